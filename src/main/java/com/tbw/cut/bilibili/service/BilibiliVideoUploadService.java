@@ -46,6 +46,14 @@ public interface BilibiliVideoUploadService {
      */
     JSONObject endUpload(JSONObject preUploadData, JSONObject postVideoMeta, int chunks);
     
+    /**
+     * 查询上传会话在服务端已接收的分片
+     * @param preUploadData 预上传返回的数据
+     * @param postVideoMeta 上传元数据返回的数据
+     * @return 服务端分片列表，parts中partNumber从1开始；会话被服务端拒绝时OK为0
+     */
+    JSONObject listUploadedParts(JSONObject preUploadData, JSONObject postVideoMeta);
+    
     /**
      * 上传视频封面
      * @param coverImage 封面图片
@@ -27,7 +27,7 @@ public class RateLimitHandler {
      * @return 需要等待的时间（毫秒），0表示不需要等待
      */
     public long handle406Error(String errorMessage) {
-        if (errorMessage != null && errorMessage.contains("406")) {
+        if (is406Error(errorMessage)) {
             int count = consecutive406Count.incrementAndGet();
             log.warn("检测到406错误，连续406错误次数: {}", count);
             
@@ -44,6 +44,14 @@ public class RateLimitHandler {
         return 0;
     }
     
+    /**
+     * 判断是否为406错误，不改变计数
+     * @param errorMessage 错误信息
+     */
+    public boolean is406Error(String errorMessage) {
+        return errorMessage != null && errorMessage.contains("406");
+    }
+    
     /**
      * 智能等待
      * @param waitTime 等待时间（毫秒）
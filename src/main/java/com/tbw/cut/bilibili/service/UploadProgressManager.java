@@ -1,15 +1,21 @@
 package com.tbw.cut.bilibili.service;
 
+import com.alibaba.fastjson.JSONArray;
 import com.alibaba.fastjson.JSONObject;
 import com.tbw.cut.entity.UploadProgress;
 import com.tbw.cut.entity.UploadStatus;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
 import java.io.File;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * 上传进度管理器
@@ -21,12 +27,24 @@ public class UploadProgressManager {
     // 存储文件上传进度，使用文件路径作为key
     private final Map<String, UploadProgress> progressMap = new ConcurrentHashMap<>();
     
+    // 分片上传会话持久化，进程重启后继续上传
+    @Autowired(required = false)
+    private UploadSessionStore sessionStore;
+    
     /**
      * 开始或恢复上传
      */
     public UploadProgress startUpload(File videoFile, int totalChunks) {
         String filePath = videoFile.getAbsolutePath();
         UploadProgress progress = progressMap.get(filePath);
+        if (progress == null) {
+            progress = loadSession(videoFile);
+            if (progress != null && progress.getTotalChunks() != totalChunks) {
+                log.info("上传会话分片数不一致，重新开始上传，文件: {}", filePath);
+                discardUpload(videoFile);
+                progress = null;
+            }
+        }
         
         if (progress == null) {
             // 创建新的上传进度
@@ -50,8 +68,20 @@ public class UploadProgressManager {
      * 设置上传元数据
      */
     public void setUploadMetadata(UploadProgress progress, JSONObject preUploadData, JSONObject postVideoMeta) {
+        String previousUploadId = progress.getPostVideoMeta() != null
+            ? progress.getPostVideoMeta().getString("upload_id") : null;
+        String uploadId = postVideoMeta != null ? postVideoMeta.getString("upload_id") : null;
+        if (previousUploadId != null && !previousUploadId.equals(uploadId)) {
+            // 新的upload_id下旧会话已上传的分片不存在，需要从头上传
+            log.info("上传会话已更换，清空已完成分片，文件: {}", progress.getFilePath());
+            progress.clearCompletedChunks();
+            progress.setSessionExpireTime(null);
+        }
         progress.setPreUploadData(preUploadData);
         progress.setPostVideoMeta(postVideoMeta);
+        if (sessionStore != null) {
+            sessionStore.save(progress);
+        }
         log.debug("设置上传元数据，文件: {}", progress.getFilePath());
     }
     
@@ -60,6 +90,9 @@ public class UploadProgressManager {
      */
     public void markChunkCompleted(UploadProgress progress, int chunkIndex) {
         progress.markChunkCompleted(chunkIndex);
+        if (sessionStore != null) {
+            sessionStore.save(progress);
+        }
         log.debug("分片{}完成，文件: {}, 总进度: {}%", chunkIndex, progress.getFilePath(), 
                 String.format("%.1f", progress.getCompletionPercentage()));
     }
@@ -70,11 +103,87 @@ public class UploadProgressManager {
     public void completeUpload(UploadProgress progress) {
         progress.setStatus(UploadStatus.COMPLETED);
         progress.setEndTime(LocalDateTime.now());
-        // 从内存中移除已完成的上传进度
+        // 从内存中移除已完成的上传进度；会话记录保留到分段投稿记录更新后由discardUpload删除，
+        // 结束上传前进程退出时可直接用原upload_id结束上传
         progressMap.remove(progress.getFilePath());
         log.info("上传完成，文件: {}", progress.getFilePath());
     }
     
+    /**
+     * 查找可继续的上传会话
+     * @return 包含预上传数据和元数据且未过期的上传进度，不存在时返回null
+     */
+    public UploadProgress findResumableUpload(File videoFile) {
+        UploadProgress progress = progressMap.get(videoFile.getAbsolutePath());
+        if (progress == null) {
+            progress = loadSession(videoFile);
+        }
+        if (progress == null || progress.getPreUploadData() == null || progress.getPostVideoMeta() == null) {
+            return null;
+        }
+        if (progress.getSessionExpireTime() != null && !progress.getSessionExpireTime().isAfter(LocalDateTime.now())) {
+            log.info("上传会话已过期，文件: {}", progress.getFilePath());
+            discardUpload(videoFile);
+            return null;
+        }
+        return progress;
+    }
+    
+    /**
+     * 用服务端分片列表校验上传会话：会话被拒绝时丢弃会话记录，
+     * 否则只保留服务端确认收到的分片，其余分片重新上传
+     * @param uploadedParts listUploadedParts的返回结果
+     * @return 会话仍可继续时返回true
+     */
+    public boolean confirmResumableUpload(UploadProgress progress, JSONObject uploadedParts) {
+        File videoFile = new File(progress.getFilePath());
+        if (uploadedParts == null || uploadedParts.getIntValue("OK") != 1) {
+            log.info("上传会话已被服务端拒绝，重新预上传，文件: {}, 响应: {}", progress.getFilePath(),
+                uploadedParts != null ? uploadedParts.toJSONString() : null);
+            discardUpload(videoFile);
+            return false;
+        }
+        
+        Set<Integer> confirmed = new HashSet<>();
+        JSONArray parts = uploadedParts.getJSONArray("parts");
+        if (parts != null) {
+            for (int i = 0; i < parts.size(); i++) {
+                Integer partNumber = parts.getJSONObject(i).getInteger("partNumber");
+                if (partNumber != null) {
+                    // partNumber从1开始，本地分片序号从0开始
+                    confirmed.add(partNumber - 1);
+                }
+            }
+        }
+        
+        List<Integer> completed = new ArrayList<>(progress.getCompletedChunkIndexes());
+        int before = completed.size();
+        completed.retainAll(confirmed);
+        if (completed.size() != before) {
+            log.info("服务端只确认了{}/{}个已完成分片，其余分片重新上传，文件: {}",
+                completed.size(), before, progress.getFilePath());
+            progress.clearCompletedChunks();
+            for (Integer chunk : completed) {
+                progress.markChunkCompleted(chunk);
+            }
+            if (sessionStore != null) {
+                sessionStore.save(progress);
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * 丢弃上传会话，下次上传重新预上传
+     */
+    public void discardUpload(File videoFile) {
+        String filePath = videoFile.getAbsolutePath();
+        progressMap.remove(filePath);
+        if (sessionStore != null) {
+            sessionStore.delete(filePath);
+        }
+    }
+    
     /**
      * 取消上传
      */
@@ -85,6 +194,19 @@ public class UploadProgressManager {
         log.warn("上传取消，文件: {}", progress.getFilePath());
     }
     
+    private UploadProgress loadSession(File videoFile) {
+        if (sessionStore == null) {
+            return null;
+        }
+        UploadProgress progress = sessionStore.load(videoFile);
+        if (progress != null) {
+            progressMap.put(progress.getFilePath(), progress);
+            log.info("读取到未完成的上传会话，文件: {}, 已完成分片: {}/{}", progress.getFilePath(),
+                progress.getCompletedChunks(), progress.getTotalChunks());
+        }
+        return progress;
+    }
+    
     /**
      * 创建上传进度跟踪
      */
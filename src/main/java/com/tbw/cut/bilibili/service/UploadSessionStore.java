@@ -0,0 +1,192 @@
+package com.tbw.cut.bilibili.service;
+
+import com.alibaba.fastjson.JSONObject;
+import com.tbw.cut.entity.UploadProgress;
+import com.tbw.cut.entity.UploadStatus;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.Base64;
+import java.util.BitSet;
+import java.util.UUID;
+
+/**
+ * 上传会话存储
+ * 每个分片上传会话保存为会话目录下的一个JSON文件，记录分片完成位图、upload_id、上传线路、
+ * 预上传和元数据响应以及会话过期时间，进程重启后据此继续上传未完成的分片。
+ * 视频文件大小或修改时间变化、会话过期时记录作废
+ */
+@Slf4j
+@Component
+public class UploadSessionStore {
+
+    private static final String SESSION_SUFFIX = ".json";
+
+    @Value("${bilibili.upload-session.enabled:true}")
+    private boolean enabled = true;
+
+    @Value("${bilibili.upload-session.dir:./upload_sessions}")
+    private String sessionDir = "./upload_sessions";
+
+    @Value("${bilibili.upload-session.ttl-hours:12}")
+    private long ttlHours = 12;
+
+    @PostConstruct
+    public void init() {
+        if (!enabled) {
+            return;
+        }
+        Path dir = Paths.get(sessionDir);
+        if (!Files.isDirectory(dir)) {
+            return;
+        }
+        int purged = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*" + SESSION_SUFFIX)) {
+            for (Path file : files) {
+                JSONObject session = read(file);
+                if (session == null || isExpired(session)) {
+                    Files.deleteIfExists(file);
+                    purged++;
+                }
+            }
+        } catch (IOException e) {
+            log.warn("清理过期上传会话失败: {}", e.getMessage());
+        }
+        if (purged > 0) {
+            log.info("清理过期上传会话{}个", purged);
+        }
+    }
+
+    /**
+     * 读取视频文件的上传会话
+     * @return 有效会话恢复出的上传进度，不存在、已过期或文件已变化时返回null
+     */
+    public UploadProgress load(File videoFile) {
+        if (!enabled) {
+            return null;
+        }
+        Path file = sessionFile(videoFile.getAbsolutePath());
+        if (!Files.exists(file)) {
+            return null;
+        }
+        JSONObject session = read(file);
+        if (session == null
+                || !videoFile.getAbsolutePath().equals(session.getString("filePath"))
+                || videoFile.length() != session.getLongValue("fileSize")
+                || videoFile.lastModified() != session.getLongValue("lastModified")
+                || session.getString("uploadId") == null
+                || isExpired(session)) {
+            log.info("上传会话已失效，重新开始上传: {}", videoFile.getAbsolutePath());
+            delete(videoFile.getAbsolutePath());
+            return null;
+        }
+
+        UploadProgress progress = new UploadProgress();
+        progress.setFilePath(videoFile.getAbsolutePath());
+        progress.setTotalChunks(session.getIntValue("totalChunks"));
+        progress.setStatus(UploadStatus.PAUSED);
+        progress.setStartTime(LocalDateTime.now());
+        progress.setPreUploadData(session.getJSONObject("preUploadData"));
+        progress.setPostVideoMeta(session.getJSONObject("postVideoMeta"));
+        progress.setSessionExpireTime(toDateTime(session.getLongValue("expiresAt")));
+        BitSet chunks = BitSet.valueOf(Base64.getDecoder().decode(session.getString("chunkBitmap")));
+        for (int i = chunks.nextSetBit(0); i >= 0 && i < progress.getTotalChunks(); i = chunks.nextSetBit(i + 1)) {
+            progress.markChunkCompleted(i);
+        }
+        return progress;
+    }
+
+    /**
+     * 保存上传进度，首次保存时确定会话过期时间
+     */
+    public void save(UploadProgress progress) {
+        JSONObject preUploadData = progress.getPreUploadData();
+        JSONObject postVideoMeta = progress.getPostVideoMeta();
+        if (!enabled || preUploadData == null || postVideoMeta == null) {
+            return;
+        }
+        File videoFile = new File(progress.getFilePath());
+        synchronized (progress) {
+            if (progress.getSessionExpireTime() == null) {
+                progress.setSessionExpireTime(LocalDateTime.now().plusHours(ttlHours));
+            }
+            BitSet chunks = new BitSet(progress.getTotalChunks());
+            for (Integer chunk : progress.getCompletedChunkIndexes()) {
+                chunks.set(chunk);
+            }
+
+            JSONObject session = new JSONObject();
+            session.put("filePath", progress.getFilePath());
+            session.put("fileSize", videoFile.length());
+            session.put("lastModified", videoFile.lastModified());
+            session.put("totalChunks", progress.getTotalChunks());
+            session.put("chunkBitmap", Base64.getEncoder().encodeToString(chunks.toByteArray()));
+            session.put("uploadId", postVideoMeta.getString("upload_id"));
+            session.put("endpoint", preUploadData.getString("endpoint"));
+            session.put("expiresAt", progress.getSessionExpireTime().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli());
+            session.put("preUploadData", preUploadData);
+            session.put("postVideoMeta", postVideoMeta);
+
+            Path file = sessionFile(progress.getFilePath());
+            Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+            try {
+                Files.createDirectories(file.getParent());
+                Files.write(tmp, session.toJSONString().getBytes(StandardCharsets.UTF_8));
+                try {
+                    Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                } catch (AtomicMoveNotSupportedException e) {
+                    Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+                }
+            } catch (IOException e) {
+                log.warn("保存上传会话失败: {}, {}", progress.getFilePath(), e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * 删除上传会话
+     */
+    public void delete(String filePath) {
+        try {
+            Files.deleteIfExists(sessionFile(filePath));
+        } catch (IOException e) {
+            log.warn("删除上传会话失败: {}, {}", filePath, e.getMessage());
+        }
+    }
+
+    private Path sessionFile(String filePath) {
+        String name = UUID.nameUUIDFromBytes(filePath.getBytes(StandardCharsets.UTF_8)).toString();
+        return Paths.get(sessionDir).toAbsolutePath().resolve(name + SESSION_SUFFIX);
+    }
+
+    private JSONObject read(Path file) {
+        try {
+            return JSONObject.parseObject(new String(Files.readAllBytes(file), StandardCharsets.UTF_8));
+        } catch (Exception e) {
+            log.warn("读取上传会话失败: {}, {}", file, e.getMessage());
+            return null;
+        }
+    }
+
+    private static boolean isExpired(JSONObject session) {
+        return session.getLongValue("expiresAt") <= System.currentTimeMillis();
+    }
+
+    private static LocalDateTime toDateTime(long epochMillis) {
+        return LocalDateTime.ofInstant(Instant.ofEpochMilli(epochMillis), ZoneId.systemDefault());
+    }
+}
@@ -6,7 +6,11 @@ import com.tbw.cut.bilibili.service.BilibiliVideoUploadService;
 import com.tbw.cut.bilibili.service.RateLimitHandler;
 import com.tbw.cut.bilibili.service.UploadProgressManager;
 import com.tbw.cut.bilibili.retry.VideoInfoRetryHandler;
+import com.tbw.cut.config.BilibiliSubmissionConfig;
 import com.tbw.cut.entity.UploadProgress;
+import com.tbw.cut.service.download.bandwidth.BandwidthGovernor;
+import com.tbw.cut.service.download.buffer.DirectBufferPool;
+import com.tbw.cut.service.download.retry.RetryManager;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
@@ -17,9 +21,19 @@ import java.io.*;
 import java.net.HttpURLConnection;
 import java.net.URI;
 import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
 import java.util.List;
 import java.util.StringJoiner;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
 
 /**
  * Bilibili视频上传服务实现
@@ -40,6 +54,28 @@ public class BilibiliVideoUploadServiceImpl implements BilibiliVideoUploadServic
     @Autowired
     private VideoInfoRetryHandler videoInfoRetryHandler;
     
+    @Autowired(required = false)
+    private BandwidthGovernor bandwidthGovernor;
+    
+    @Autowired
+    private RetryManager retryManager;
+    
+    @Autowired
+    private BilibiliSubmissionConfig submissionConfig;
+    
+    @Autowired
+    private DirectBufferPool bufferPool;
+    
+    // 执行分片上传请求，重试等待期间不占用线程
+    private final ExecutorService chunkUploadExecutor = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "chunk-upload-" + System.currentTimeMillis());
+        thread.setDaemon(true);
+        return thread;
+    });
+    
+    // 分片按该大小分批写出，每批向全局带宽调度器申请许可
+    private static final int UPLOAD_WRITE_SLICE = 64 * 1024;
+    
     @Value("${bilibili.member.base-url:https://member.bilibili.com}")
     private String memberBaseUrl;
     
@@ -109,7 +145,7 @@ public class BilibiliVideoUploadServiceImpl implements BilibiliVideoUploadServic
                     // 对于其他错误，如果还有重试机会，等待一段时间再重试
                     try {
                         // 等待2^retryCount秒再重试（指数退避）
-                        Thread.sleep((long) Math.pow(2, retryCount) * 1000);
+                        Thread.sleep(retryManager.jitter((long) Math.pow(2, retryCount) * 1000));
                     } catch (InterruptedException ie) {
                         Thread.currentThread().interrupt();
                         throw new RuntimeException("线程中断", ie);
@@ -161,7 +197,7 @@ public class BilibiliVideoUploadServiceImpl implements BilibiliVideoUploadServic
                 if (retryCount < maxRetries) {
                     // 等待2^retryCount秒再重试（指数退避）
                     try {
-                        Thread.sleep((long) Math.pow(2, retryCount) * 1000);
+                        Thread.sleep(retryManager.jitter((long) Math.pow(2, retryCount) * 1000));
                     } catch (InterruptedException ie) {
                         Thread.currentThread().interrupt();
                         throw new RuntimeException("线程中断", ie);
@@ -235,9 +271,11 @@ public class BilibiliVideoUploadServiceImpl implements BilibiliVideoUploadServic
                 long length = videoFile.length();
                 int chunkSize = preUploadData.getIntValue("chunk_size");
                 int totalChunks = progress.getTotalChunks();
-                byte[] buffer = new byte[chunkSize];
                 
-                try (InputStream in = new FileInputStream(videoFile)) {
+                try (FileChannel channel = FileChannel.open(videoFile.toPath(), StandardOpenOption.READ);
+                     BandwidthGovernor.Flow bandwidthFlow = bandwidthGovernor != null 
+                         ? bandwidthGovernor.register(BandwidthGovernor.Direction.EGRESS, "upload-" + videoFile.getName()) 
+                         : null) {
                     String uploadId = postVideoMeta.getString("upload_id");
                     
                     // 从下一个未完成的分片开始上传
@@ -247,53 +285,22 @@ public class BilibiliVideoUploadServiceImpl implements BilibiliVideoUploadServic
                         return totalChunks;
                     }
                     
-                    log.info("从分片 {} 开始上传，已完成 {}/{} ({}%)", 
+                    ChunkUploadWindow window = new ChunkUploadWindow(
+                        submissionConfig.getChunkUploadConcurrency(preUploadData.getString("endpoint")));
+                    log.info("从分片 {} 开始上传，已完成 {}/{} ({}%)，并发分片数: {}", 
                         startChunk, progress.getCompletedChunks(), totalChunks,
-                        String.format("%.1f", progress.getCompletionPercentage()));
+                        String.format("%.1f", progress.getCompletionPercentage()), window.getMaxSize());
                     
-                    // 跳过已完成的分片
-                    long skipBytes = (long) startChunk * chunkSize;
-                    if (skipBytes > 0) {
-                        long skipped = in.skip(skipBytes);
-                        if (skipped != skipBytes) {
-                            throw new IOException("无法跳过到指定位置: " + skipBytes);
-                        }
-                    }
-                    
-                    for (int chunk = startChunk; chunk < totalChunks; chunk++) {
-                        // 检查分片是否已完成
-                        if (progress.isChunkCompleted(chunk)) {
-                            // 跳过已完成的分片
-                            in.skip(chunkSize);
-                            continue;
-                        }
-                        
-                        log.info("上传分片 {}/{} (总进度: {}%)", chunk + 1, totalChunks,
-                                String.format("%.1f", ((double)(chunk + 1) / totalChunks * 100)));
-                        
-                        int size = in.read(buffer, 0, chunkSize);
-                        if (size == -1) {
-                            break;
-                        }
-                        
-                        // 上传单个分片，支持重试
-                        boolean chunkSuccess = uploadSingleChunk(urlBase, uploadId, chunk, totalChunks, 
-                                                               chunkSize, length, buffer, size, auth);
-                        
-                        if (chunkSuccess) {
-                            // 标记分片完成
-                            uploadProgressManager.markChunkCompleted(progress, chunk);
-                            // 成功上传后重置406错误计数
-                            rateLimitHandler.reset406Count();
-                        } else {
-                            throw new RuntimeException("分片 " + chunk + " 上传失败");
-                        }
-                    }
+                    uploadChunksWindowed(progress, channel, window, startChunk, urlBase, uploadId, chunkSize, 
+                        length, auth, bandwidthFlow);
                 }
                 
                 log.info("视频文件上传完成，总分片数: {}", totalChunks);
                 return totalChunks;
                 
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("线程中断", e);
             } catch (Exception e) {
                 retryCount++;
                 log.error("上传视频文件失败，第{}次尝试: {}", retryCount, e.getMessage(), e);
@@ -315,7 +322,7 @@ public class BilibiliVideoUploadServiceImpl implements BilibiliVideoUploadServic
                 } else if (retryCount < maxRetries) {
                     // 等待2^retryCount秒再重试（指数退避）
                     try {
-                        Thread.sleep((long) Math.pow(2, retryCount) * 1000);
+                        Thread.sleep(retryManager.jitter((long) Math.pow(2, retryCount) * 1000));
                     } catch (InterruptedException ie) {
                         Thread.currentThread().interrupt();
                         throw new RuntimeException("线程中断", ie);
@@ -333,60 +340,163 @@ public class BilibiliVideoUploadServiceImpl implements BilibiliVideoUploadServic
     }
     
     /**
-     * 上传单个分片，支持重试
+     * 按窗口并发上传分片：窗口内的分片同时上传，完成顺序不限，完成的分片立即记录到上传进度；
+     * 某个分片重试耗尽后停止发起新分片，等待在途分片结束后抛出异常，由外层重试从未完成的分片继续
      */
-    private boolean uploadSingleChunk(String urlBase, String uploadId, int chunk, int totalChunks,
-                                    int chunkSize, long totalLength, byte[] buffer, int size, String auth) {
-        int maxChunkRetries = 3;
+    private void uploadChunksWindowed(UploadProgress progress, FileChannel channel, ChunkUploadWindow window,
+                                      int startChunk, String urlBase, String uploadId, int chunkSize,
+                                      long totalLength, String auth, BandwidthGovernor.Flow bandwidthFlow) 
+            throws IOException, InterruptedException {
+        int totalChunks = progress.getTotalChunks();
+        BlockingQueue<ChunkOutcome> outcomes = new LinkedBlockingQueue<>();
+        RetryManager.RetryStrategy retryStrategy = chunkRetryStrategy();
         
-        for (int retry = 0; retry < maxChunkRetries; retry++) {
-            try {
-                StringJoiner params = new StringJoiner("&");
-                params.add("partNumber=" + (chunk + 1));
-                params.add("uploadId=" + uploadId);
-                params.add("chunk=" + chunk);
-                params.add("chunks=" + totalChunks);
-                params.add("size=" + size);
-                params.add("start=" + (chunk * chunkSize));
-                params.add("end=" + (chunk * chunkSize + size));
-                params.add("total=" + totalLength);
-                
-                String fullUrl = urlBase + "?" + params.toString();
-                
-                String response = callUploadChunkApi(fullUrl, auth, buffer, size);
-                if ("MULTIPART_PUT_SUCCESS".equals(response.trim())) {
-                    return true;
+        int nextChunk = startChunk;
+        int inFlight = 0;
+        Integer failedChunk = null;
+        Throwable failure = null;
+        
+        while (true) {
+            while (failedChunk == null && inFlight < window.current() && nextChunk < totalChunks) {
+                int chunk = nextChunk++;
+                if (progress.isChunkCompleted(chunk)) {
+                    continue;
                 }
                 
-                log.warn("分片{}上传失败，响应: {}，第{}次重试", chunk, response, retry + 1);
-                
-            } catch (Exception e) {
-                log.warn("分片{}上传异常，第{}次重试: {}", chunk, retry + 1, e.getMessage());
-                
-                // 检查是否是406错误
-                long waitTime = rateLimitHandler.handle406Error(e.getMessage());
-                if (waitTime > 0) {
-                    try {
-                        rateLimitHandler.smartWait(waitTime);
-                    } catch (InterruptedException ie) {
-                        Thread.currentThread().interrupt();
-                        return false;
-                    }
+                long position = (long) chunk * chunkSize;
+                ByteBuffer buffer = bufferPool.acquire((int) Math.min(chunkSize, totalLength - position));
+                int size = readChunk(channel, buffer, position);
+                if (size <= 0) {
+                    bufferPool.release(buffer);
+                    break;
                 }
+                
+                log.debug("上传分片 {}/{}，在途分片: {}", chunk + 1, totalChunks, inFlight + 1);
+                uploadChunkAsync(urlBase, uploadId, chunk, totalChunks, chunkSize, totalLength, buffer, 
+                        auth, bandwidthFlow, window, retryStrategy)
+                    .whenComplete((ignored, error) -> outcomes.add(new ChunkOutcome(chunk, buffer, error)));
+                inFlight++;
             }
             
-            // 分片重试间隔
-            if (retry < maxChunkRetries - 1) {
-                try {
-                    Thread.sleep(1000 * (retry + 1)); // 1s, 2s, 3s
-                } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
-                    return false;
-                }
+            if (inFlight == 0) {
+                break;
+            }
+            
+            ChunkOutcome outcome = outcomes.take();
+            inFlight--;
+            bufferPool.release(outcome.buffer);
+            if (outcome.error == null) {
+                uploadProgressManager.markChunkCompleted(progress, outcome.chunk);
+                window.onSuccess();
+                // 成功上传后重置406错误计数
+                rateLimitHandler.reset406Count();
+                log.info("分片 {}/{} 上传完成 (总进度: {}%)", outcome.chunk + 1, totalChunks,
+                    String.format("%.1f", progress.getCompletionPercentage()));
+            } else if (failedChunk == null) {
+                failedChunk = outcome.chunk;
+                failure = outcome.error;
+            }
+        }
+        
+        if (failedChunk != null) {
+            // 保留最后一次失败的原因，外层据此识别406限流
+            Throwable cause = failure instanceof RetryManager.RetryExhaustedException && failure.getCause() != null 
+                ? failure.getCause() : failure;
+            throw new RuntimeException("分片 " + failedChunk + " 上传失败: " + cause.getMessage(), cause);
+        }
+    }
+    
+    /**
+     * 按位置读取分片到缓冲区，任意分片都可直接读取，读取后缓冲区处于可读状态
+     * @return 读取的字节数
+     */
+    private int readChunk(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                break;
             }
         }
+        buffer.flip();
+        return buffer.remaining();
+    }
+    
+    /**
+     * 异步上传单个分片，支持重试
+     * 重试由重试管理器在退避后调度，等待期间不占用上传线程；分片完成前buffer不能被复用。
+     * 每次尝试失败都缩小上传窗口，406时窗口降为1
+     */
+    private CompletableFuture<Boolean> uploadChunkAsync(String urlBase, String uploadId, int chunk, int totalChunks,
+                                                        int chunkSize, long totalLength, ByteBuffer buffer, 
+                                                        String auth, BandwidthGovernor.Flow bandwidthFlow,
+                                                        ChunkUploadWindow window,
+                                                        RetryManager.RetryStrategy retryStrategy) {
+        int size = buffer.remaining();
+        StringJoiner params = new StringJoiner("&");
+        params.add("partNumber=" + (chunk + 1));
+        params.add("uploadId=" + uploadId);
+        params.add("chunk=" + chunk);
+        params.add("chunks=" + totalChunks);
+        params.add("size=" + size);
+        params.add("start=" + ((long) chunk * chunkSize));
+        params.add("end=" + ((long) chunk * chunkSize + size));
+        params.add("total=" + totalLength);
+        String fullUrl = urlBase + "?" + params.toString();
+        
+        return retryManager.retryAsync(() -> CompletableFuture.supplyAsync(() -> {
+            try {
+                // 每次尝试从分片开头发送
+                String response = callUploadChunkApi(fullUrl, auth, buffer.duplicate(), bandwidthFlow);
+                if (!"MULTIPART_PUT_SUCCESS".equals(response.trim())) {
+                    throw new IOException("上传失败，响应: " + response);
+                }
+                return true;
+            } catch (IOException e) {
+                // 分片序号只出现在错误信息中，所有分片共用同一个重试预算
+                throw new UncheckedIOException("分片" + chunk + ": " + e.getMessage(), e);
+            }
+        }, chunkUploadExecutor).whenComplete((ignored, error) -> {
+            if (error == null) {
+                return;
+            }
+            if (rateLimitHandler.is406Error(error.getMessage())) {
+                window.onRateLimited();
+            } else {
+                window.onError();
+            }
+        }), "upload-chunk", urlBase, retryStrategy);
+    }
+    
+    /**
+     * 分片重试策略：最多3次尝试，间隔1s、2s。
+     * 406限流不在分片内重试，由外层记录一次406并等待后从未完成的分片继续
+     */
+    private RetryManager.RetryStrategy chunkRetryStrategy() {
+        return new RetryManager.RetryStrategy() {
+            @Override
+            public boolean shouldRetry(int attempt, Exception exception) {
+                return attempt < 2 && !rateLimitHandler.is406Error(exception.getMessage());
+            }
+            
+            @Override
+            public long getDelayMs(int attempt) {
+                return 1000L * (attempt + 1);
+            }
+        };
+    }
+    
+    /**
+     * 分片上传结果
+     */
+    private static class ChunkOutcome {
+        private final int chunk;
+        private final ByteBuffer buffer;
+        private final Throwable error;
         
-        return false;
+        ChunkOutcome(int chunk, ByteBuffer buffer, Throwable error) {
+            this.chunk = chunk;
+            this.buffer = buffer;
+            this.error = error;
+        }
     }
     
     @Override
@@ -468,7 +578,7 @@ public class BilibiliVideoUploadServiceImpl implements BilibiliVideoUploadServic
                 } else if (retryCount < maxRetries) {
                     // 等待2^retryCount秒再重试（指数退避）
                     try {
-                        Thread.sleep((long) Math.pow(2, retryCount) * 1000);
+                        Thread.sleep(retryManager.jitter((long) Math.pow(2, retryCount) * 1000));
                     } catch (InterruptedException ie) {
                         Thread.currentThread().interrupt();
                         throw new RuntimeException("线程中断", ie);
@@ -537,7 +647,7 @@ public class BilibiliVideoUploadServiceImpl implements BilibiliVideoUploadServic
                 if (retryCount < maxRetries) {
                     // 等待2^retryCount秒再重试（指数退避）
                     try {
-                        Thread.sleep((long) Math.pow(2, retryCount) * 1000);
+                        Thread.sleep(retryManager.jitter((long) Math.pow(2, retryCount) * 1000));
                     } catch (InterruptedException ie) {
                         Thread.currentThread().interrupt();
                         throw new RuntimeException("线程中断", ie);
@@ -597,7 +707,7 @@ public class BilibiliVideoUploadServiceImpl implements BilibiliVideoUploadServic
                 if (retryCount < maxRetries) {
                     // 等待2^retryCount秒再重试（指数退避）
                     try {
-                        Thread.sleep((long) Math.pow(2, retryCount) * 1000);
+                        Thread.sleep(retryManager.jitter((long) Math.pow(2, retryCount) * 1000));
                     } catch (InterruptedException ie) {
                         Thread.currentThread().interrupt();
                         throw new RuntimeException("线程中断", ie);
@@ -613,7 +723,7 @@ public class BilibiliVideoUploadServiceImpl implements BilibiliVideoUploadServic
                 if (retryCount < maxRetries) {
                     // 等待2^retryCount秒再重试（指数退避）
                     try {
-                        Thread.sleep((long) Math.pow(2, retryCount) * 1000);
+                        Thread.sleep(retryManager.jitter((long) Math.pow(2, retryCount) * 1000));
                     } catch (InterruptedException ie) {
                         Thread.currentThread().interrupt();
                         throw new RuntimeException("线程中断", ie);
@@ -628,6 +738,28 @@ public class BilibiliVideoUploadServiceImpl implements BilibiliVideoUploadServic
         throw new RuntimeException("关联视频到合集失败，已达到最大重试次数");
     }
     
+    @Override
+    public JSONObject listUploadedParts(JSONObject preUploadData, JSONObject postVideoMeta) {
+        if (preUploadData == null || postVideoMeta == null) {
+            throw new IllegalArgumentException("preUploadData and postVideoMeta cannot be null");
+        }
+        try {
+            String schemeAndHost = "https:" + preUploadData.getString("endpoint");
+            String path = preUploadData.getString("upos_uri").replaceFirst("upos:/", "");
+            
+            StringJoiner params = new StringJoiner("&");
+            params.add("output=json");
+            params.add("profile=ugcfx/bup");
+            params.add("uploadId=" + URLEncoder.encode(postVideoMeta.getString("upload_id"), "UTF-8"));
+            params.add("biz_id=" + preUploadData.getLong("biz_id"));
+            
+            return callListPartsApi(schemeAndHost + path + "?" + params.toString(), preUploadData.getString("auth"));
+        } catch (IOException e) {
+            // 网络错误不代表会话失效，交由分段重试
+            throw new RuntimeException("查询已上传分片失败: " + e.getMessage(), e);
+        }
+    }
+    
     // 以下为辅助方法，用于直接调用HTTP API
     
     private String callPreUploadApi(String url) throws IOException {
@@ -641,14 +773,30 @@ public class BilibiliVideoUploadServiceImpl implements BilibiliVideoUploadServic
         return readResponse(conn);
     }
     
-    private String callUploadChunkApi(String url, String auth, byte[] data, int size) throws IOException {
+    private String callUploadChunkApi(String url, String auth, ByteBuffer data,
+                                      BandwidthGovernor.Flow bandwidthFlow) throws IOException {
+        int size = data.remaining();
         HttpURLConnection conn = createConnection(url, "PUT");
         conn.setRequestProperty("X-Upos-Auth", auth);
         conn.setRequestProperty("Content-Type", "application/octet-stream");
         conn.setDoOutput(true);
+        // 定长流式写出，避免整个分片先缓存在内存中，使节流作用于实际发送
+        conn.setFixedLengthStreamingMode(size);
         
         try (OutputStream out = conn.getOutputStream()) {
-            out.write(data, 0, size);
+            WritableByteChannel channel = Channels.newChannel(out);
+            int end = data.limit();
+            while (data.position() < end) {
+                int length = Math.min(UPLOAD_WRITE_SLICE, end - data.position());
+                if (bandwidthFlow != null) {
+                    bandwidthFlow.acquire(length);
+                }
+                data.limit(data.position() + length);
+                while (data.hasRemaining()) {
+                    channel.write(data);
+                }
+                data.limit(end);
+            }
         }
         
         return readResponse(conn);
@@ -667,6 +815,21 @@ public class BilibiliVideoUploadServiceImpl implements BilibiliVideoUploadServic
         return readResponse(conn);
     }
     
+    private JSONObject callListPartsApi(String url, String auth) throws IOException {
+        HttpURLConnection conn = createConnection(url, "GET");
+        conn.setRequestProperty("X-Upos-Auth", auth);
+        int responseCode = conn.getResponseCode();
+        if (responseCode >= 400 && responseCode < 500 && responseCode != 429) {
+            // upload_id过期、鉴权失效等客户端错误，会话不能再继续；限流只是暂时的，按普通错误重试
+            conn.disconnect();
+            JSONObject rejected = new JSONObject();
+            rejected.put("OK", 0);
+            rejected.put("message", "HTTP " + responseCode);
+            return rejected;
+        }
+        return JSONObject.parseObject(readResponse(conn));
+    }
+    
     private HttpURLConnection createConnection(String url, String method) throws IOException {
         HttpURLConnection conn;
         try {
@@ -776,7 +939,7 @@ public class BilibiliVideoUploadServiceImpl implements BilibiliVideoUploadServic
                 if (retryCount < maxRetries) {
                     // 等待2^retryCount秒再重试（指数退避）
                     try {
-                        Thread.sleep((long) Math.pow(2, retryCount) * 1000);
+                        Thread.sleep(retryManager.jitter((long) Math.pow(2, retryCount) * 1000));
                     } catch (InterruptedException ie) {
                         Thread.currentThread().interrupt();
                         throw new RuntimeException("线程中断", ie);
@@ -867,7 +1030,7 @@ public class BilibiliVideoUploadServiceImpl implements BilibiliVideoUploadServic
                 if (retryCount < maxRetries) {
                     // 等待2^retryCount秒再重试（指数退避）
                     try {
-                        Thread.sleep((long) Math.pow(2, retryCount) * 1000);
+                        Thread.sleep(retryManager.jitter((long) Math.pow(2, retryCount) * 1000));
                     } catch (InterruptedException ie) {
                         Thread.currentThread().interrupt();
                         throw new RuntimeException("线程中断", ie);
@@ -994,7 +1157,7 @@ public class BilibiliVideoUploadServiceImpl implements BilibiliVideoUploadServic
                 } else if (retryCount < maxRetries) {
                     // 等待2^retryCount秒再重试（指数退避）
                     try {
-                        Thread.sleep((long) Math.pow(2, retryCount) * 1000);
+                        Thread.sleep(retryManager.jitter((long) Math.pow(2, retryCount) * 1000));
                     } catch (InterruptedException ie) {
                         Thread.currentThread().interrupt();
                         throw new RuntimeException("线程中断", ie);
@@ -0,0 +1,40 @@
+package com.tbw.cut.bilibili.service.impl;
+
+/**
+ * 分片上传窗口
+ * 限制单个文件同时在途的分片数：每个窗口的分片成功后窗口加1（不超过上限），
+ * 分片出错时窗口减半，遇到406限流时降为1
+ */
+class ChunkUploadWindow {
+
+    private final int maxSize;
+    private double size;
+
+    ChunkUploadWindow(int maxSize) {
+        this.maxSize = Math.max(1, maxSize);
+        this.size = this.maxSize;
+    }
+
+    /**
+     * 当前允许的在途分片数
+     */
+    synchronized int current() {
+        return (int) size;
+    }
+
+    int getMaxSize() {
+        return maxSize;
+    }
+
+    synchronized void onSuccess() {
+        size = Math.min(maxSize, size + 1.0 / (int) size);
+    }
+
+    synchronized void onError() {
+        size = Math.max(1, size / 2);
+    }
+
+    synchronized void onRateLimited() {
+        size = 1;
+    }
+}
@@ -3,6 +3,9 @@ package com.tbw.cut.config;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.stereotype.Component;
 
+import java.util.HashMap;
+import java.util.Map;
+
 /**
  * B站投稿配置
  */
@@ -33,6 +36,32 @@ public class BilibiliSubmissionConfig {
      */
     private boolean enableBatchSubmission = true;
     
+    /**
+     * 单个文件同时上传的分片数
+     */
+    private int chunkUploadConcurrency = 4;
+    
+    /**
+     * 按上传线路设置的分片并发数
+     * key为上传线路endpoint中包含的关键字（如 upcdnbda2），未匹配的线路使用chunkUploadConcurrency
+     */
+    private Map<String, Integer> chunkUploadConcurrencyByLine = new HashMap<>();
+    
+    /**
+     * 同时上传的分段文件数上限（所有投稿任务共用）
+     */
+    private int segmentUploadConcurrency = 4;
+    
+    /**
+     * 单个账号同时上传的分段文件数上限
+     */
+    private int segmentUploadConcurrencyPerAccount = 2;
+    
+    /**
+     * 分段上传失败后重新握手前的等待时间（毫秒）
+     */
+    private long segmentRetryDelayMs = 5000;
+    
     public int getMaxPartsPerSubmission() {
         return maxPartsPerSubmission;
     }
@@ -64,4 +93,59 @@ public class BilibiliSubmissionConfig {
     public void setEnableBatchSubmission(boolean enableBatchSubmission) {
         this.enableBatchSubmission = enableBatchSubmission;
     }
-}
\ No newline at end of file
+    
+    public int getChunkUploadConcurrency() {
+        return chunkUploadConcurrency;
+    }
+    
+    public void setChunkUploadConcurrency(int chunkUploadConcurrency) {
+        this.chunkUploadConcurrency = chunkUploadConcurrency;
+    }
+    
+    public Map<String, Integer> getChunkUploadConcurrencyByLine() {
+        return chunkUploadConcurrencyByLine;
+    }
+    
+    public void setChunkUploadConcurrencyByLine(Map<String, Integer> chunkUploadConcurrencyByLine) {
+        this.chunkUploadConcurrencyByLine = chunkUploadConcurrencyByLine;
+    }
+    
+    public int getSegmentUploadConcurrency() {
+        return segmentUploadConcurrency;
+    }
+    
+    public void setSegmentUploadConcurrency(int segmentUploadConcurrency) {
+        this.segmentUploadConcurrency = segmentUploadConcurrency;
+    }
+    
+    public int getSegmentUploadConcurrencyPerAccount() {
+        return segmentUploadConcurrencyPerAccount;
+    }
+    
+    public void setSegmentUploadConcurrencyPerAccount(int segmentUploadConcurrencyPerAccount) {
+        this.segmentUploadConcurrencyPerAccount = segmentUploadConcurrencyPerAccount;
+    }
+    
+    public long getSegmentRetryDelayMs() {
+        return segmentRetryDelayMs;
+    }
+    
+    public void setSegmentRetryDelayMs(long segmentRetryDelayMs) {
+        this.segmentRetryDelayMs = segmentRetryDelayMs;
+    }
+    
+    /**
+     * 获取上传线路的分片并发数
+     * @param endpoint 预上传返回的上传线路，如 //upos-cs-upcdnbda2.bilivideo.com
+     */
+    public int getChunkUploadConcurrency(String endpoint) {
+        if (endpoint != null && chunkUploadConcurrencyByLine != null) {
+            for (Map.Entry<String, Integer> entry : chunkUploadConcurrencyByLine.entrySet()) {
+                if (entry.getValue() != null && endpoint.contains(entry.getKey())) {
+                    return entry.getValue();
+                }
+            }
+        }
+        return chunkUploadConcurrency;
+    }
+}
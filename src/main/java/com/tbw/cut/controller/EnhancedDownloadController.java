@@ -28,6 +28,9 @@ public class EnhancedDownloadController {
     @Autowired(required = false)
     private com.tbw.cut.service.PartDownloadService partDownloadService;
     
+    @Autowired(required = false)
+    private com.tbw.cut.service.download.progress.PartProgressStore partProgressStore;
+    
     /**
      * 获取系统状态
      */
@@ -182,6 +185,60 @@ public class EnhancedDownloadController {
         }
     }
     
+    /**
+     * 更新全局带宽上限（字节/秒，0表示不限速）
+     */
+    @PostMapping("/bandwidth")
+    public ResponseEntity<Map<String, String>> updateBandwidthLimits(@RequestBody Map<String, Long> request) {
+        try {
+            Long ingressLimit = request.get("ingressLimit");
+            Long egressLimit = request.get("egressLimit");
+            if ((ingressLimit != null && ingressLimit < 0) || (egressLimit != null && egressLimit < 0)) {
+                Map<String, String> error = new java.util.HashMap<>();
+                error.put("error", "带宽上限不能为负数");
+                return ResponseEntity.badRequest().body(error);
+            }
+            
+            enhancedDownloadManager.updateBandwidthLimits(ingressLimit, egressLimit);
+            Map<String, String> response = new java.util.HashMap<>();
+            response.put("message", "带宽上限已更新");
+            return ResponseEntity.ok(response);
+        } catch (Exception e) {
+            log.error("更新带宽上限失败", e);
+            Map<String, String> error = new java.util.HashMap<>();
+            error.put("error", "更新带宽上限失败: " + e.getMessage());
+            return ResponseEntity.internalServerError().body(error);
+        }
+    }
+    
+    /**
+     * 更新任务的带宽权重
+     */
+    @PostMapping("/bandwidth/weight")
+    public ResponseEntity<Map<String, String>> updateBandwidthWeight(@RequestBody Map<String, Object> request) {
+        try {
+            Object name = request.get("name");
+            Object weight = request.get("weight");
+            if (name == null || !(weight instanceof Number) || ((Number) weight).intValue() <= 0) {
+                Map<String, String> error = new java.util.HashMap<>();
+                error.put("error", "需要提供流量名称和正整数权重");
+                return ResponseEntity.badRequest().body(error);
+            }
+            
+            if (!enhancedDownloadManager.updateBandwidthWeight(name.toString(), ((Number) weight).intValue())) {
+                return ResponseEntity.notFound().build();
+            }
+            Map<String, String> response = new java.util.HashMap<>();
+            response.put("message", "带宽权重已更新");
+            return ResponseEntity.ok(response);
+        } catch (Exception e) {
+            log.error("更新带宽权重失败", e);
+            Map<String, String> error = new java.util.HashMap<>();
+            error.put("error", "更新带宽权重失败: " + e.getMessage());
+            return ResponseEntity.internalServerError().body(error);
+        }
+    }
+    
     /**
      * 获取队列状态 - 用于调试
      */
@@ -243,6 +300,9 @@ public class EnhancedDownloadController {
                 List<com.tbw.cut.entity.VideoDownload> downloadingTasks = 
                     partDownloadService.list(new com.baomidou.mybatisplus.core.conditions.query.QueryWrapper<com.tbw.cut.entity.VideoDownload>()
                         .eq("status", 1)); // 下载中状态
+                if (partProgressStore != null) {
+                    downloadingTasks.forEach(partProgressStore::apply);
+                }
                 
                 debugInfo.put("downloadingTasksCount", downloadingTasks.size());
                 debugInfo.put("downloadingTasks", downloadingTasks.stream()
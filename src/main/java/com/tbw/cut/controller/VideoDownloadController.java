@@ -11,6 +11,7 @@ import com.tbw.cut.entity.VideoDownload;
 import com.tbw.cut.service.IntegrationService;
 import com.tbw.cut.service.VideoDownloadService;
 import com.tbw.cut.service.FrontendVideoDownloadService;
+import com.tbw.cut.service.download.progress.PartProgressStore;
 import com.tbw.cut.workflow.model.WorkflowConfig;
 import com.tbw.cut.workflow.model.SegmentationConfig;
 import lombok.extern.slf4j.Slf4j;
@@ -35,6 +36,9 @@ public class VideoDownloadController {
     @Autowired
     private IntegrationService integrationService;
     
+    @Autowired
+    private PartProgressStore partProgressStore;
+    
     /**
      * 下载Bilibili视频（支持集成投稿功能）
      */
@@ -110,7 +114,8 @@ public class VideoDownloadController {
     @GetMapping("/{taskId}")
     public ResponseResult<VideoDownload> getDownloadStatus(@PathVariable("taskId") Long taskId) {
         try {
-            VideoDownload download = videoDownloadService.getById(taskId);
+            // 下载中任务的进度以内存为准
+            VideoDownload download = partProgressStore.apply(videoDownloadService.getById(taskId));
             if (download != null) {
                 return ResponseResult.success(download);
             } else {
@@ -143,6 +148,7 @@ public class VideoDownloadController {
     public ResponseResult<List<VideoDownload>> getDownloadingDownloads() {
         try {
             List<VideoDownload> downloads = videoDownloadService.getDownloadingDownloads();
+            downloads.forEach(partProgressStore::apply);
             return ResponseResult.success(downloads);
         } catch (Exception e) {
             log.error("获取下载中任务列表失败", e);
@@ -2,11 +2,11 @@ package com.tbw.cut.entity;
 
 import com.alibaba.fastjson.JSONObject;
 import java.time.LocalDateTime;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.Set;
-import java.util.HashSet;
 
 /**
  * 上传进度实体
@@ -28,7 +28,7 @@ public class UploadProgress {
     private int totalChunks;
     
     /**
-     * 已完成分片集合
+     * 已完成分片集合（分片并发上传，完成顺序不固定）
      */
     private Set<Integer> completedChunks;
     
@@ -87,10 +87,15 @@ public class UploadProgress {
      */
     private JSONObject postVideoMeta;
     
+    /**
+     * 上传会话过期时间（upload_id在服务端失效的时间）
+     */
+    private LocalDateTime sessionExpireTime;
+    
     // 构造函数
     public UploadProgress() {
         this.partProgress = new ConcurrentHashMap<>();
-        this.completedChunks = new HashSet<>();
+        this.completedChunks = ConcurrentHashMap.newKeySet();
     }
     
     public UploadProgress(String taskId, int totalParts) {
@@ -101,7 +106,7 @@ public class UploadProgress {
         this.overallProgress = 0.0;
         this.status = UploadStatus.NOT_STARTED;
         this.partProgress = new ConcurrentHashMap<>();
-        this.completedChunks = new HashSet<>();
+        this.completedChunks = ConcurrentHashMap.newKeySet();
     }
     
     /**
@@ -154,6 +159,20 @@ public class UploadProgress {
         completedChunks.add(chunkIndex);
     }
     
+    /**
+     * 已完成分片的序号
+     */
+    public Set<Integer> getCompletedChunkIndexes() {
+        return Collections.unmodifiableSet(completedChunks);
+    }
+    
+    /**
+     * 清空已完成分片（上传会话更换后旧分片不再有效）
+     */
+    public void clearCompletedChunks() {
+        completedChunks.clear();
+    }
+    
     /**
      * 检查是否已完成
      */
@@ -359,6 +378,14 @@ public class UploadProgress {
         this.postVideoMeta = postVideoMeta;
     }
     
+    public LocalDateTime getSessionExpireTime() {
+        return sessionExpireTime;
+    }
+    
+    public void setSessionExpireTime(LocalDateTime sessionExpireTime) {
+        this.sessionExpireTime = sessionExpireTime;
+    }
+    
     @Override
     public String toString() {
         return "UploadProgress{" +
@@ -1,7 +1,9 @@
 package com.tbw.cut.service.download;
 
+import com.tbw.cut.service.download.bandwidth.BandwidthGovernor;
 import com.tbw.cut.service.download.concurrent.ConcurrentDownloadExecutor;
 import com.tbw.cut.service.download.model.*;
+import com.tbw.cut.service.download.progress.PartProgressStore;
 import com.tbw.cut.service.download.progress.ProgressTracker;
 import com.tbw.cut.service.download.retry.RetryManager;
 import com.tbw.cut.service.download.resource.ResourceMonitor;
@@ -29,6 +31,12 @@ public class EnhancedDownloadManager {
     @Autowired(required = false)
     private VideoDownloadQueueManager videoQueueManager;
     
+    @Autowired(required = false)
+    private BandwidthGovernor bandwidthGovernor;
+    
+    @Autowired(required = false)
+    private PartProgressStore partProgressStore;
+    
     @Autowired
     public EnhancedDownloadManager(
             ConcurrentDownloadExecutor concurrentExecutor,
@@ -116,6 +124,11 @@ public class EnhancedDownloadManager {
     public void cancelDownload(Long taskId) {
         log.info("Cancelling download for task: {}", taskId);
         
+        // 取消的任务不再由定时刷写更新进度
+        if (partProgressStore != null) {
+            partProgressStore.remove(taskId);
+        }
+        
         // 尝试通过队列管理器取消
         if (videoQueueManager != null && videoQueueManager.cancelDownload(taskId)) {
             return;
@@ -208,6 +221,33 @@ public class EnhancedDownloadManager {
         }
     }
     
+    /**
+     * 更新全局带宽上限
+     * @param ingressLimit 下行上限（字节/秒，0表示不限速），为空时不修改
+     * @param egressLimit 上行上限（字节/秒，0表示不限速），为空时不修改
+     */
+    public void updateBandwidthLimits(Long ingressLimit, Long egressLimit) {
+        if (bandwidthGovernor == null) {
+            return;
+        }
+        if (ingressLimit != null) {
+            bandwidthGovernor.setLimit(BandwidthGovernor.Direction.INGRESS, ingressLimit);
+        }
+        if (egressLimit != null) {
+            bandwidthGovernor.setLimit(BandwidthGovernor.Direction.EGRESS, egressLimit);
+        }
+    }
+    
+    /**
+     * 更新任务的带宽权重
+     * @param flowName 流量名称（如 part-任务ID）
+     * @param weight 新权重
+     * @return 是否找到对应的流量
+     */
+    public boolean updateBandwidthWeight(String flowName, int weight) {
+        return bandwidthGovernor != null && bandwidthGovernor.setWeight(flowName, weight) > 0;
+    }
+    
     /**
      * 获取当前系统状态
      * @return 系统状态信息
@@ -217,6 +257,7 @@ public class EnhancedDownloadManager {
             .activeDownloads(concurrentExecutor.getActiveTaskCount())
             .queuedDownloads(concurrentExecutor.getQueuedTaskCount())
             .systemResources(resourceMonitor.getCurrentResourceInfo())
+            .bandwidth(bandwidthGovernor != null ? bandwidthGovernor.getStatus() : null)
             .build();
     }
 }
\ No newline at end of file
@@ -0,0 +1,362 @@
+package com.tbw.cut.service.download.bandwidth;
+
+import com.tbw.cut.service.download.model.BandwidthStatus;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 全局带宽调度器
+ * 下载与上传共用一个按方向划分的令牌桶，每个任务注册为一个带权重的流量，
+ * 在活跃流量之间按权重分配带宽上限，限速和权重均可在运行时调整
+ */
+@Slf4j
+@Component
+public class BandwidthGovernor {
+
+    /**
+     * 流量方向
+     */
+    public enum Direction {
+        /** 下行（下载） */
+        INGRESS,
+        /** 上行（上传） */
+        EGRESS
+    }
+
+    /** 单次等待的最长时间，保证限速调整能及时生效 */
+    private static final long MAX_WAIT_SLICE_MS = 100;
+
+    /** 超过该时间没有传输的流量不参与带宽分配 */
+    private static final long IDLE_TIMEOUT_MS = 2000;
+
+    /** 令牌桶的最小突发容量 */
+    private static final long MIN_BURST_BYTES = 64 * 1024;
+
+    @Value("${download.bandwidth.ingress-limit:0}")
+    private long ingressLimit;
+
+    @Value("${download.bandwidth.egress-limit:0}")
+    private long egressLimit;
+
+    @Value("${download.bandwidth.burst-ms:250}")
+    private long burstMs = 250;
+
+    private final Map<Direction, Channel> channels = new EnumMap<>(Direction.class);
+    private final AtomicLong flowIdGenerator = new AtomicLong();
+
+    public BandwidthGovernor() {
+        for (Direction direction : Direction.values()) {
+            channels.put(direction, new Channel(direction));
+        }
+    }
+
+    @PostConstruct
+    public void init() {
+        setLimit(Direction.INGRESS, ingressLimit);
+        setLimit(Direction.EGRESS, egressLimit);
+    }
+
+    /**
+     * 注册一个流量
+     * @param direction 流量方向
+     * @param name 流量名称（任务标识）
+     * @param weight 权重，同方向的活跃流量按权重分配带宽
+     * @return 流量句柄，传输结束后需关闭
+     */
+    public Flow register(Direction direction, String name, int weight) {
+        Channel channel = channels.get(direction);
+        Flow flow = new Flow(flowIdGenerator.incrementAndGet(), name, channel, Math.max(1, weight));
+        channel.flows.put(flow.id, flow);
+        log.debug("注册带宽流量: direction={}, name={}, weight={}", direction, name, flow.weight);
+        return flow;
+    }
+
+    /**
+     * 注册一个默认权重的流量
+     */
+    public Flow register(Direction direction, String name) {
+        return register(direction, name, 1);
+    }
+
+    /**
+     * 设置带宽上限，立即对所有流量生效
+     * @param direction 流量方向
+     * @param bytesPerSecond 每秒字节数，0表示不限速
+     */
+    public void setLimit(Direction direction, long bytesPerSecond) {
+        Channel channel = channels.get(direction);
+        synchronized (channel) {
+            channel.limit = Math.max(0, bytesPerSecond);
+            channel.lastRefillNanos = System.nanoTime();
+        }
+        log.info("带宽上限已更新: direction={}, limit={} B/s", direction, channel.limit);
+    }
+
+    public long getLimit(Direction direction) {
+        return channels.get(direction).limit;
+    }
+
+    /**
+     * 调整指定名称流量的权重
+     * @param name 流量名称
+     * @param weight 新权重
+     * @return 更新的流量数量
+     */
+    public int setWeight(String name, int weight) {
+        int updated = 0;
+        for (Channel channel : channels.values()) {
+            for (Flow flow : channel.flows.values()) {
+                if (flow.name.equals(name)) {
+                    flow.weight = Math.max(1, weight);
+                    updated++;
+                }
+            }
+        }
+        if (updated > 0) {
+            log.info("带宽权重已更新: name={}, weight={}", name, weight);
+        }
+        return updated;
+    }
+
+    /**
+     * 获取当前带宽状态
+     */
+    public BandwidthStatus getStatus() {
+        List<BandwidthStatus.FlowInfo> flowInfos = new ArrayList<>();
+        for (Channel channel : channels.values()) {
+            long limit = channel.limit;
+            for (Flow flow : channel.flows.values()) {
+                long allocated;
+                synchronized (channel) {
+                    allocated = limit > 0 ? (long) channel.allocatedRate(flow, limit) : 0;
+                }
+                flowInfos.add(BandwidthStatus.FlowInfo.builder()
+                    .name(flow.name)
+                    .direction(channel.direction.name())
+                    .weight(flow.weight)
+                    .allocatedRate(allocated)
+                    .currentRate(flow.meter.getRate())
+                    .totalBytes(flow.totalBytes.get())
+                    .build());
+            }
+        }
+
+        return BandwidthStatus.builder()
+            .ingressLimit(channels.get(Direction.INGRESS).limit)
+            .egressLimit(channels.get(Direction.EGRESS).limit)
+            .ingressRate(channels.get(Direction.INGRESS).meter.getRate())
+            .egressRate(channels.get(Direction.EGRESS).meter.getRate())
+            .flows(flowInfos)
+            .build();
+    }
+
+    private double burstBytes(double rate) {
+        return Math.max(rate * burstMs / 1000.0, MIN_BURST_BYTES);
+    }
+
+    /**
+     * 单个方向的全局令牌桶，流量自身的令牌桶也由它的锁保护
+     */
+    private final class Channel {
+        private final Direction direction;
+        private final Map<Long, Flow> flows = new ConcurrentHashMap<>();
+        private final RateMeter meter = new RateMeter();
+        private volatile long limit;
+        private double tokens;
+        private long lastRefillNanos = System.nanoTime();
+
+        private Channel(Direction direction) {
+            this.direction = direction;
+        }
+
+        /**
+         * 尝试为流量扣除令牌
+         * @return 0表示已扣除，否则为建议等待的毫秒数
+         */
+        private synchronized long reserve(Flow flow, int bytes) {
+            long currentLimit = limit;
+            if (currentLimit <= 0) {
+                return 0;
+            }
+
+            long now = System.nanoTime();
+            refill(now, currentLimit);
+            double share = allocatedRate(flow, currentLimit);
+            flow.refill(now, share);
+
+            // 令牌允许透支，欠账在后续请求中等待偿还
+            if (tokens < 0 || flow.tokens < 0) {
+                double waitSeconds = Math.max(-tokens / currentLimit, -flow.tokens / share);
+                return Math.max(1, (long) Math.ceil(waitSeconds * 1000));
+            }
+
+            tokens -= bytes;
+            flow.tokens -= bytes;
+            return 0;
+        }
+
+        /**
+         * 记录无法节流的流量，仅作为欠账扣除
+         */
+        private synchronized void charge(Flow flow, long bytes) {
+            long currentLimit = limit;
+            if (currentLimit <= 0) {
+                return;
+            }
+
+            long now = System.nanoTime();
+            refill(now, currentLimit);
+            flow.refill(now, allocatedRate(flow, currentLimit));
+            tokens -= bytes;
+            flow.tokens -= bytes;
+        }
+
+        private void refill(long now, long currentLimit) {
+            double elapsedSeconds = (now - lastRefillNanos) / 1_000_000_000.0;
+            lastRefillNanos = now;
+            tokens = Math.min(tokens + elapsedSeconds * currentLimit, burstBytes(currentLimit));
+        }
+
+        /**
+         * 按权重计算流量分得的速率，空闲的流量不参与分配
+         */
+        private double allocatedRate(Flow flow, long currentLimit) {
+            long now = System.currentTimeMillis();
+            long totalWeight = 0;
+            for (Flow other : flows.values()) {
+                if (other == flow || now - other.lastActiveTime < IDLE_TIMEOUT_MS) {
+                    totalWeight += other.weight;
+                }
+            }
+            if (!flows.containsKey(flow.id)) {
+                totalWeight += flow.weight;
+            }
+            return (double) currentLimit * flow.weight / Math.max(1, totalWeight);
+        }
+    }
+
+    /**
+     * 单个任务的流量句柄
+     */
+    public final class Flow implements AutoCloseable {
+        private final long id;
+        private final String name;
+        private final Channel channel;
+        private final RateMeter meter = new RateMeter();
+        private final AtomicLong totalBytes = new AtomicLong();
+        private volatile int weight;
+        private volatile long lastActiveTime;
+        private double tokens;
+        private long lastRefillNanos = System.nanoTime();
+
+        private Flow(long id, String name, Channel channel, int weight) {
+            this.id = id;
+            this.name = name;
+            this.channel = channel;
+            this.weight = weight;
+        }
+
+        /**
+         * 获取传输许可，超出分配速率时阻塞等待
+         * @param bytes 即将传输的字节数
+         */
+        public void acquire(int bytes) {
+            if (bytes <= 0) {
+                return;
+            }
+
+            lastActiveTime = System.currentTimeMillis();
+            long waitMs;
+            while ((waitMs = channel.reserve(this, bytes)) > 0) {
+                try {
+                    Thread.sleep(Math.min(waitMs, MAX_WAIT_SLICE_MS));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                lastActiveTime = System.currentTimeMillis();
+            }
+            account(bytes);
+        }
+
+        /**
+         * 记录已经发生的传输（如外部进程的流量），不阻塞，
+         * 超出的部分由同方向的其他流量让出
+         * @param bytes 已传输的字节数
+         */
+        public void record(long bytes) {
+            if (bytes <= 0) {
+                return;
+            }
+
+            lastActiveTime = System.currentTimeMillis();
+            channel.charge(this, bytes);
+            account(bytes);
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getTotalBytes() {
+            return totalBytes.get();
+        }
+
+        @Override
+        public void close() {
+            channel.flows.remove(id);
+            log.debug("注销带宽流量: direction={}, name={}, totalBytes={}", channel.direction, name, totalBytes.get());
+        }
+
+        private void account(long bytes) {
+            totalBytes.addAndGet(bytes);
+            meter.add(bytes);
+            channel.meter.add(bytes);
+        }
+
+        private void refill(long now, double rate) {
+            double elapsedSeconds = (now - lastRefillNanos) / 1_000_000_000.0;
+            lastRefillNanos = now;
+            tokens = Math.min(tokens + elapsedSeconds * rate, burstBytes(rate));
+        }
+    }
+
+    /**
+     * 按固定窗口统计速率
+     */
+    private static final class RateMeter {
+        private static final long WINDOW_MS = 1000;
+
+        private long windowStart = System.currentTimeMillis();
+        private long windowBytes;
+        private long lastRate;
+
+        synchronized void add(long bytes) {
+            roll(System.currentTimeMillis());
+            windowBytes += bytes;
+        }
+
+        synchronized long getRate() {
+            roll(System.currentTimeMillis());
+            return lastRate;
+        }
+
+        private void roll(long now) {
+            long elapsed = now - windowStart;
+            if (elapsed >= WINDOW_MS) {
+                lastRate = windowBytes * 1000 / elapsed;
+                windowStart = now;
+                windowBytes = 0;
+            }
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package com.tbw.cut.service.download.buffer;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.nio.ByteBuffer;
+import java.util.Deque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 直接内存缓冲区池
+ * 上传分片读取、流式下载分块、合并与校验共用，容量按64KB对齐分级复用，避免反复分配数MB的堆数组和直接内存；
+ * 池中空闲缓冲区的总容量超过上限时归还的缓冲区直接丢弃。未归还的缓冲区（如取消的请求）由GC回收，不影响池的状态
+ */
+@Slf4j
+@Component
+public class DirectBufferPool {
+
+    /** 容量分级粒度 */
+    static final int SIZE_CLASS = 64 * 1024;
+
+    @Value("${download.buffer-pool.max-pooled-bytes:268435456}")
+    private long maxPooledBytes = 256L * 1024 * 1024;
+
+    private final Map<Integer, Deque<ByteBuffer>> freeBuffers = new ConcurrentHashMap<>();
+    private final AtomicLong pooledBytes = new AtomicLong();
+    private final AtomicLong allocations = new AtomicLong();
+    private final AtomicLong reuses = new AtomicLong();
+
+    /**
+     * 获取缓冲区
+     * @param size 需要的字节数
+     * @return position为0、limit为size的缓冲区，容量可能大于size
+     */
+    public ByteBuffer acquire(int size) {
+        int capacity = capacityFor(size);
+        Deque<ByteBuffer> free = freeBuffers.get(capacity);
+        ByteBuffer buffer = free != null ? free.pollFirst() : null;
+        if (buffer != null) {
+            pooledBytes.addAndGet(-capacity);
+            reuses.incrementAndGet();
+        } else {
+            buffer = ByteBuffer.allocateDirect(capacity);
+            allocations.incrementAndGet();
+        }
+        buffer.clear();
+        buffer.limit(size);
+        return buffer;
+    }
+
+    /**
+     * 归还缓冲区，归还后调用方不能再使用
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect() || buffer.capacity() % SIZE_CLASS != 0) {
+            return;
+        }
+        int capacity = buffer.capacity();
+        if (pooledBytes.addAndGet(capacity) > maxPooledBytes) {
+            pooledBytes.addAndGet(-capacity);
+            return;
+        }
+        freeBuffers.computeIfAbsent(capacity, c -> new ConcurrentLinkedDeque<>()).offerFirst(buffer);
+    }
+
+    /**
+     * 池中空闲缓冲区的总容量
+     */
+    public long getPooledBytes() {
+        return pooledBytes.get();
+    }
+
+    public long getAllocations() {
+        return allocations.get();
+    }
+
+    public long getReuses() {
+        return reuses.get();
+    }
+
+    static int capacityFor(int size) {
+        if (size <= 0) {
+            return SIZE_CLASS;
+        }
+        return (int) Math.min(Integer.MAX_VALUE / SIZE_CLASS * (long) SIZE_CLASS,
+            ((size + (long) SIZE_CLASS - 1) / SIZE_CLASS) * SIZE_CLASS);
+    }
+}
@@ -4,6 +4,7 @@ import com.tbw.cut.service.download.model.DownloadConfig;
 import com.tbw.cut.service.download.model.VideoPart;
 import com.tbw.cut.utils.EnhancedFFmpegUtil;
 import com.tbw.cut.service.download.progress.ProgressTracker;
+import com.tbw.cut.service.download.store.DownloadStore;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
@@ -37,6 +38,9 @@ public class ConcurrentDownloadExecutor {
     @Autowired
     private ProgressTracker progressTracker;
     
+    @Autowired
+    private DownloadStore downloadStore;
+    
     private ThreadPoolExecutor downloadThreadPool;
     private Semaphore concurrencyLimiter;
     private final Map<Long, CompletableFuture<String>> activeTasks = new ConcurrentHashMap<>();
@@ -148,8 +152,9 @@ public class ConcurrentDownloadExecutor {
                     return null;
                 }
                 
-                // 执行实际下载
-                return executePartDownload(part, config, isResume);
+                // 执行实际下载，同一分P已存储或正在下载时复用下载存储中的结果
+                return downloadStore.fetch(DownloadStore.keyOf(part), part.getOutputPath(),
+                    () -> executePartDownload(part, config, isResume));
                 
             } catch (InterruptedException e) {
                 Thread.currentThread().interrupt();
@@ -191,6 +196,8 @@ public class ConcurrentDownloadExecutor {
             boolean isDashMerge = false;
             String audioUrl = null;
             String videoUrl = part.getUrl();
+            List<String> videoBackupUrls = null;
+            List<String> audioBackupUrls = null;
             
             if (part.getExtraParams() != null) {
                 Object isDashMergeObj = part.getExtraParams().get("isDashMerge");
@@ -198,6 +205,8 @@ public class ConcurrentDownloadExecutor {
                     isDashMerge = true;
                     audioUrl = (String) part.getExtraParams().get("audioUrl");
                     videoUrl = (String) part.getExtraParams().get("videoUrl");
+                    videoBackupUrls = getUrlList(part, "videoBackupUrls");
+                    audioBackupUrls = getUrlList(part, "audioBackupUrls");
                     log.info("检测到DASH格式，需要合并音视频流: videoUrl={}, audioUrl={}", 
                             videoUrl.substring(0, Math.min(100, videoUrl.length())) + "...",
                             audioUrl.substring(0, Math.min(100, audioUrl.length())) + "...");
@@ -225,13 +234,17 @@ public class ConcurrentDownloadExecutor {
                         .readTimeout(config.getReadTimeout())
                         .maxRetryAttempts(config.getMaxRetryAttempts())
                         .progressUpdateInterval(1000L)
+                        .bandwidthFlowName("part-" + taskId)
+                        .bandwidthWeight(config.getBandwidthWeight())
                         .build();
                 
                 // 使用增强的FFmpeg工具进行DASH合并下载
                 com.tbw.cut.utils.EnhancedFFmpegUtil.DownloadResult result = 
                     enhancedFFmpegUtil.downloadAndMergeDashStreams(
                         videoUrl,
+                        videoBackupUrls,
                         audioUrl,
+                        audioBackupUrls,
                         part.getOutputPath(),
                         enhancedConfig,
                         new com.tbw.cut.utils.EnhancedFFmpegUtil.ProgressCallback() {
@@ -346,7 +359,8 @@ public class ConcurrentDownloadExecutor {
                             }
                         }
                     },
-                    part.getBvid() // 传递BVID用于URL刷新
+                    part.getBvid(), // 传递BVID用于URL刷新
+                    "part-" + taskId
                 );
             }
             
@@ -489,4 +503,16 @@ public class ConcurrentDownloadExecutor {
         // 如果没有数据库ID，使用CID作为备选
         return part.getCid() != null ? part.getCid() : System.currentTimeMillis();
     }
+    
+    /**
+     * 从分P额外参数中读取URL列表（如DASH流的备用CDN地址）
+     * @param part 分P信息
+     * @param key 参数名
+     * @return URL列表，没有时返回null
+     */
+    @SuppressWarnings("unchecked")
+    private List<String> getUrlList(VideoPart part, String key) {
+        Object urls = part.getExtraParams().get(key);
+        return urls instanceof List ? (List<String>) urls : null;
+    }
 }
\ No newline at end of file
@@ -6,6 +6,9 @@ import org.springframework.stereotype.Component;
 import java.time.Duration;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicLong;
 
@@ -19,6 +22,9 @@ public class DownloadTimeLogger {
     
     private static final DateTimeFormatter TIME_FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
     
+    // 每个队列类别保留的最近等待时长样本数
+    private static final int QUEUE_WAIT_SAMPLE_SIZE = 1024;
+    
     // 存储下载开始时间
     private final ConcurrentHashMap<Long, DownloadTimeRecord> downloadRecords = new ConcurrentHashMap<>();
     
@@ -28,6 +34,9 @@ public class DownloadTimeLogger {
     private final AtomicLong successfulDownloads = new AtomicLong(0);
     private final AtomicLong failedDownloads = new AtomicLong(0);
     
+    // 各队列类别的等待时长样本
+    private final ConcurrentHashMap<String, QueueWaitSamples> queueWaitSamples = new ConcurrentHashMap<>();
+    
     /**
      * 记录下载开始
      * @param taskId 任务ID
@@ -126,11 +135,36 @@ public class DownloadTimeLogger {
      * @param waitDurationMs 等待时长（毫秒）
      */
     public void logQueueWaitTime(Long taskId, long waitDurationMs) {
+        logQueueWaitTime(taskId, "default", waitDurationMs);
+    }
+    
+    /**
+     * 记录队列等待时长，并按队列类别统计分位数
+     * @param taskId 任务ID
+     * @param queueClass 队列类别（如任务所属者）
+     * @param waitDurationMs 等待时长（毫秒）
+     */
+    public void logQueueWaitTime(Long taskId, String queueClass, long waitDurationMs) {
+        QueueWaitSamples samples = queueWaitSamples.computeIfAbsent(queueClass, key -> new QueueWaitSamples());
+        samples.add(waitDurationMs);
+        
         if (waitDurationMs > 1000) { // 只记录超过1秒的等待
-            log.info("⏳ [队列等待] 任务ID: {}, 等待时长: {}ms", taskId, waitDurationMs);
+            QueueWaitStats stats = samples.snapshot();
+            log.info("⏳ [队列等待] 任务ID: {}, 类别: {}, 等待时长: {}ms, P50/P90/P99: {}/{}/{}ms", 
+                taskId, queueClass, waitDurationMs, stats.getP50(), stats.getP90(), stats.getP99());
         }
     }
     
+    /**
+     * 获取各队列类别的等待时长分位数
+     * @return 队列类别 -> 等待时长统计
+     */
+    public Map<String, QueueWaitStats> getQueueWaitStatistics() {
+        Map<String, QueueWaitStats> statistics = new TreeMap<>();
+        queueWaitSamples.forEach((queueClass, samples) -> statistics.put(queueClass, samples.snapshot()));
+        return statistics;
+    }
+    
     /**
      * 获取下载统计信息
      * @return 统计信息字符串
@@ -199,6 +233,60 @@ public class DownloadTimeLogger {
         }
     }
     
+    /**
+     * 队列等待时长统计
+     */
+    public static class QueueWaitStats {
+        private final long count;
+        private final long p50;
+        private final long p90;
+        private final long p99;
+        private final long max;
+        
+        public QueueWaitStats(long count, long p50, long p90, long p99, long max) {
+            this.count = count;
+            this.p50 = p50;
+            this.p90 = p90;
+            this.p99 = p99;
+            this.max = max;
+        }
+        
+        public long getCount() { return count; }
+        public long getP50() { return p50; }
+        public long getP90() { return p90; }
+        public long getP99() { return p99; }
+        public long getMax() { return max; }
+    }
+    
+    /**
+     * 单个队列类别最近的等待时长样本（环形缓冲）
+     */
+    private static class QueueWaitSamples {
+        private final long[] samples = new long[QUEUE_WAIT_SAMPLE_SIZE];
+        private long count;
+        
+        synchronized void add(long waitDurationMs) {
+            samples[(int) (count % samples.length)] = waitDurationMs;
+            count++;
+        }
+        
+        synchronized QueueWaitStats snapshot() {
+            int size = (int) Math.min(count, samples.length);
+            if (size == 0) {
+                return new QueueWaitStats(0, 0, 0, 0, 0);
+            }
+            long[] sorted = Arrays.copyOf(samples, size);
+            Arrays.sort(sorted);
+            return new QueueWaitStats(count, percentile(sorted, 0.5), percentile(sorted, 0.9), 
+                percentile(sorted, 0.99), sorted[size - 1]);
+        }
+        
+        private static long percentile(long[] sorted, double quantile) {
+            int index = (int) Math.ceil(quantile * sorted.length) - 1;
+            return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+        }
+    }
+    
     /**
      * 下载时间记录内部类
      */
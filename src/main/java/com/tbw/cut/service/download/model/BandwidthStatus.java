@@ -0,0 +1,83 @@
+package com.tbw.cut.service.download.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+/**
+ * 全局带宽状态模型
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class BandwidthStatus {
+
+    /**
+     * 下行带宽上限（字节/秒，0表示不限速）
+     */
+    private long ingressLimit;
+
+    /**
+     * 上行带宽上限（字节/秒，0表示不限速）
+     */
+    private long egressLimit;
+
+    /**
+     * 当前下行速率（字节/秒）
+     */
+    private long ingressRate;
+
+    /**
+     * 当前上行速率（字节/秒）
+     */
+    private long egressRate;
+
+    /**
+     * 已注册的流量
+     */
+    private List<FlowInfo> flows;
+
+    /**
+     * 单个任务的流量信息
+     */
+    @Data
+    @Builder
+    @NoArgsConstructor
+    @AllArgsConstructor
+    public static class FlowInfo {
+
+        /**
+         * 流量名称（任务标识）
+         */
+        private String name;
+
+        /**
+         * 方向：INGRESS 或 EGRESS
+         */
+        private String direction;
+
+        /**
+         * 权重
+         */
+        private int weight;
+
+        /**
+         * 当前分得的速率（字节/秒，0表示不限速）
+         */
+        private long allocatedRate;
+
+        /**
+         * 当前实际速率（字节/秒）
+         */
+        private long currentRate;
+
+        /**
+         * 累计传输字节数
+         */
+        private long totalBytes;
+    }
+}
@@ -65,6 +65,16 @@ public class DownloadConfig {
      */
     private java.util.Map<String, String> headers;
     
+    /**
+     * 全局带宽调度中的流量名称（任务标识），为空时使用输出文件名
+     */
+    private String bandwidthFlowName;
+    
+    /**
+     * 全局带宽调度中的权重，为空时为1
+     */
+    private Integer bandwidthWeight;
+    
     /**
      * 创建默认配置
      * @return 默认配置
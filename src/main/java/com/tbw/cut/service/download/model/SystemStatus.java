@@ -29,6 +29,11 @@ public class SystemStatus {
      */
     private SystemResourceInfo systemResources;
     
+    /**
+     * 全局带宽状态
+     */
+    private BandwidthStatus bandwidth;
+    
     /**
      * 系统资源信息
      */
@@ -0,0 +1,275 @@
+package com.tbw.cut.service.download.progress;
+
+import com.tbw.cut.entity.VideoDownload;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * 分P下载进度表
+ * 下载中任务的进度以内存为准，进度变化只标记为脏，由定时任务合并后批量写入 video_download；
+ * 状态变更通过 {@link #writeThrough(Long)} 立即写库。查询接口通过 {@link #apply(VideoDownload)} 读取内存中的最新进度
+ */
+@Slf4j
+@Component
+public class PartProgressStore {
+
+    @Value("${download.progress.write-behind.enabled:true}")
+    private boolean enabled = true;
+
+    // 已移除任务的墓碑保留时间，期间迟到的进度回调不会重新从数据库加载任务
+    @Value("${download.progress.write-behind.tombstone-ttl-ms:600000}")
+    private long tombstoneTtlMs = 600000;
+
+    private final Map<Long, PartProgress> entries = new ConcurrentHashMap<>();
+
+    // 已移除任务ID -> 移除时间。终态写库在移除之后，此时数据库中的状态仍是下载中，
+    // 不能靠加载时的状态判断拒绝迟到的回调
+    private final Map<Long, Long> removed = new ConcurrentHashMap<>();
+
+    // 刷写与移除互斥，避免已移除任务的旧进度在终态写入之后落库
+    private final Object flushLock = new Object();
+
+    private volatile Consumer<List<VideoDownload>> writer;
+
+    /**
+     * 设置批量写库方法，由持有 video_download 表的服务注册
+     */
+    public void setWriter(Consumer<List<VideoDownload>> writer) {
+        this.writer = writer;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * 获取任务进度，不在内存中时通过loader从数据库加载一次
+     * @return 进度，记录不存在、已处于终态（完成/失败）或已被移除时返回null
+     */
+    public PartProgress getOrLoad(Long taskId, Function<Long, VideoDownload> loader) {
+        PartProgress entry = entries.get(taskId);
+        if (entry != null) {
+            return entry;
+        }
+        if (isRemoved(taskId)) {
+            return null;
+        }
+        VideoDownload download = loader.apply(taskId);
+        if (download == null || isTerminal(download.getStatus())) {
+            // 终态记录不再缓存，迟到的进度回调不会覆盖其进度
+            return null;
+        }
+        entry = entries.computeIfAbsent(taskId, id -> new PartProgress(id,
+            download.getProgress() != null ? download.getProgress() : 0,
+            download.getStatus() != null ? download.getStatus() : 0));
+        // 加载期间任务被移除：remove先写墓碑再删除条目，这里再检查一次，不留下复活的条目
+        if (isRemoved(taskId)) {
+            entries.remove(taskId, entry);
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * 获取内存中的任务进度
+     */
+    public PartProgress get(Long taskId) {
+        return entries.get(taskId);
+    }
+
+    /**
+     * 用内存中的最新进度和状态覆盖数据库查询结果
+     */
+    public VideoDownload apply(VideoDownload download) {
+        if (download != null && download.getId() != null) {
+            PartProgress entry = entries.get(download.getId());
+            if (entry != null) {
+                synchronized (entry) {
+                    download.setProgress(entry.progress);
+                    download.setStatus(entry.status);
+                }
+            }
+        }
+        return download;
+    }
+
+    /**
+     * 立即写入任务的进度和状态，用于状态变更
+     */
+    public void writeThrough(Long taskId) {
+        PartProgress entry = entries.get(taskId);
+        if (entry == null) {
+            return;
+        }
+        synchronized (flushLock) {
+            VideoDownload update;
+            synchronized (entry) {
+                update = entry.toUpdate(true);
+                entry.dirty = false;
+            }
+            write(Collections.singletonList(update));
+        }
+    }
+
+    /**
+     * 移除任务，任务进入终态、被取消或删除前调用，此后的刷写不会再覆盖其进度，
+     * 墓碑过期前迟到的进度回调也不会重新加载任务
+     */
+    public void remove(Long taskId) {
+        synchronized (flushLock) {
+            removed.put(taskId, System.currentTimeMillis());
+            entries.remove(taskId);
+        }
+    }
+
+    /**
+     * 将有变化的进度合并为一次批量更新，只写进度和更新时间，不覆盖其他服务修改的状态
+     * @return 写入的记录数
+     */
+    @Scheduled(fixedDelayString = "${download.progress.write-behind.flush-interval-ms:2000}")
+    public int flush() {
+        synchronized (flushLock) {
+            purgeExpiredTombstones();
+            List<VideoDownload> batch = new ArrayList<>();
+            for (PartProgress entry : entries.values()) {
+                synchronized (entry) {
+                    if (entry.dirty) {
+                        batch.add(entry.toUpdate(false));
+                        entry.dirty = false;
+                    }
+                }
+            }
+            if (batch.isEmpty()) {
+                return 0;
+            }
+            try {
+                write(batch);
+                log.debug("Flushed {} part progress updates", batch.size());
+                return batch.size();
+            } catch (Exception e) {
+                // 写库失败时重新标记，下一轮重试
+                for (VideoDownload update : batch) {
+                    PartProgress entry = entries.get(update.getId());
+                    if (entry != null) {
+                        synchronized (entry) {
+                            entry.dirty = true;
+                        }
+                    }
+                }
+                log.error("Failed to flush {} part progress updates", batch.size(), e);
+                return 0;
+            }
+        }
+    }
+
+    @PreDestroy
+    public void close() {
+        flush();
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    private boolean isRemoved(Long taskId) {
+        Long removedAt = removed.get(taskId);
+        return removedAt != null && System.currentTimeMillis() - removedAt < tombstoneTtlMs;
+    }
+
+    private void purgeExpiredTombstones() {
+        long now = System.currentTimeMillis();
+        removed.values().removeIf(removedAt -> now - removedAt >= tombstoneTtlMs);
+    }
+
+    private static boolean isTerminal(Integer status) {
+        return status != null && (status == 2 || status == 3);
+    }
+
+    private void write(List<VideoDownload> updates) {
+        Consumer<List<VideoDownload>> target = writer;
+        if (target == null) {
+            throw new IllegalStateException("Part progress writer is not registered");
+        }
+        target.accept(updates);
+    }
+
+    /**
+     * 单个分P任务的内存进度
+     */
+    public static class PartProgress {
+        private final Long taskId;
+        private int progress;
+        private int status;
+        private boolean dirty;
+        private LocalDateTime updateTime = LocalDateTime.now();
+
+        PartProgress(Long taskId, int progress, int status) {
+            this.taskId = taskId;
+            this.progress = progress;
+            this.status = status;
+        }
+
+        /**
+         * 推进进度，拒绝回退（进度为0表示重置）
+         * @return 是否接受
+         */
+        public synchronized boolean advance(int newProgress) {
+            if (newProgress < progress && newProgress > 0) {
+                return false;
+            }
+            if (newProgress != progress) {
+                progress = newProgress;
+                dirty = true;
+            }
+            updateTime = LocalDateTime.now();
+            return true;
+        }
+
+        /**
+         * 待下载的任务转为下载中
+         * @return 状态是否发生变化
+         */
+        public synchronized boolean start() {
+            if (status != 0) {
+                return false;
+            }
+            status = 1;
+            return true;
+        }
+
+        public synchronized int getProgress() {
+            return progress;
+        }
+
+        public synchronized int getStatus() {
+            return status;
+        }
+
+        public synchronized LocalDateTime getUpdateTime() {
+            return updateTime;
+        }
+
+        private VideoDownload toUpdate(boolean includeStatus) {
+            VideoDownload update = new VideoDownload();
+            update.setId(taskId);
+            update.setProgress(progress);
+            update.setUpdateTime(updateTime);
+            if (includeStatus) {
+                update.setStatus(status);
+            }
+            return update;
+        }
+    }
+}
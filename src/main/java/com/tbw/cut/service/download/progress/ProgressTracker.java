@@ -6,30 +6,48 @@ import com.tbw.cut.service.PartDownloadService;
 import com.tbw.cut.websocket.DownloadProgressWebSocket;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
+import java.time.Instant;
 import java.time.LocalDateTime;
-import java.util.LinkedList;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
-import java.util.Queue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * 进度跟踪器
  * 跟踪和计算下载进度，包括速度和剩余时间估算
+ * 更新路径只读写原子变量：速度按时间加权的指数移动平均（EWMA）估算，百分比未变化时不重复上报；
+ * {@link DetailedProgress} 只在查询时生成。
+ * 字节数统一按来源累计：{@link #updateProgress} 上报任务本身、{@link #updatePartProgress} 上报各分P的累计值，
+ * 每个来源只取最大值，任务总体字节数是各来源之和，由来源的正增量维护
  */
 @Slf4j
 @Service
 public class ProgressTracker {
     
+    // 两次速度采样的最小间隔，间隔内的更新只推进字节数
+    private static final long MIN_SAMPLE_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    
     @Autowired
     private PartDownloadService partDownloadService;
     
     @Autowired
     private DownloadConfig downloadConfig;
     
-    private final Map<Long, ProgressCalculator> progressCalculators = new ConcurrentHashMap<>();
-    private final Map<Long, DetailedProgress> currentProgress = new ConcurrentHashMap<>();
+    @Autowired(required = false)
+    private PartProgressStore partProgressStore;
+    
+    @Value("${download.progress.speed-smoothing-ms:2000}")
+    private long speedSmoothingMs = 2000;
+    
+    private final Map<Long, TaskProgress> tasks = new ConcurrentHashMap<>();
     
     /**
      * 更新下载进度
@@ -38,30 +56,27 @@ public class ProgressTracker {
      * @param totalBytes 总字节数
      */
     public void updateProgress(Long taskId, long currentBytes, long totalBytes) {
-        ProgressCalculator calculator = progressCalculators.computeIfAbsent(
-            taskId, id -> new ProgressCalculator());
+        TaskProgress task = taskOf(taskId);
         
-        DetailedProgress progress = calculator.calculateProgress(currentBytes, totalBytes);
-        progress.setTaskId(taskId);
+        long downloaded = accumulate(task, task.whole, currentBytes, totalBytes);
+        task.speed.record(downloaded, System.nanoTime());
+        task.lastUpdateMillis = System.currentTimeMillis();
         
-        // 更新当前进度
-        currentProgress.put(taskId, progress);
+        int progressPercentage = task.percentage();
+        if (task.reportedPercentage.getAndSet(progressPercentage) == progressPercentage) {
+            return;
+        }
         
-        // 关键修复：更新数据库中的进度和状态
+        // 关键修复：更新进度和状态，进度先写入内存进度表再定时合并写库
         try {
-            int progressPercentage = progress.getProgressPercentage();
-            log.info("更新任务进度到数据库: taskId={}, progress={}%", taskId, progressPercentage);
+            log.debug("更新任务进度: taskId={}, progress={}%", taskId, progressPercentage);
             partDownloadService.updatePartProgress(taskId, progressPercentage);
         } catch (Exception e) {
             log.error("更新数据库进度失败: taskId={}", taskId, e);
         }
         
         // 推送到前端
-        broadcastProgress(taskId, progress);
-        
-        log.debug("Updated progress for task {}: {}% ({}/{} bytes, speed: {:.2f} KB/s)", 
-            taskId, progress.getProgressPercentage(), currentBytes, totalBytes,
-            progress.getDownloadSpeedBps() / 1024);
+        broadcastProgress(taskId, task, progressPercentage);
     }
     
     /**
@@ -76,45 +91,22 @@ public class ProgressTracker {
     public void updatePartProgress(Long taskId, Long cid, String partTitle, 
                                  long currentBytes, long totalBytes, 
                                  DetailedProgress.DownloadStatus status) {
-        
-        DetailedProgress progress = currentProgress.computeIfAbsent(taskId, 
-            id -> DetailedProgress.builder()
-                .taskId(taskId)
-                .startTime(LocalDateTime.now())
-                .partProgresses(new java.util.ArrayList<>())
-                .build());
-        
-        // 更新或添加分P进度
-        DetailedProgress.PartProgress partProgress = progress.getPartProgresses().stream()
-            .filter(p -> cid.equals(p.getCid()))
-            .findFirst()
-            .orElse(null);
-        
-        if (partProgress == null) {
-            partProgress = DetailedProgress.PartProgress.builder()
-                .cid(cid)
-                .partTitle(partTitle)
-                .build();
-            progress.getPartProgresses().add(partProgress);
+        TaskProgress task = taskOf(taskId);
+        PartState part = task.parts.get(cid);
+        if (part == null) {
+            part = task.parts.computeIfAbsent(cid, id -> new PartState(id, partTitle));
         }
+        part.status = status;
         
-        // 更新分P进度信息
-        partProgress.setDownloadedBytes(currentBytes);
-        partProgress.setTotalBytes(totalBytes);
-        partProgress.setStatus(status);
+        // 总体进度按分P的变化量增量更新，不再遍历全部分P
+        long downloaded = accumulate(task, part, currentBytes, totalBytes);
+        task.speed.record(downloaded, System.nanoTime());
+        task.lastUpdateMillis = System.currentTimeMillis();
         
-        if (totalBytes > 0) {
-            partProgress.setProgressPercentage((int) ((currentBytes * 100) / totalBytes));
+        int progressPercentage = task.percentage();
+        if (task.reportedPercentage.getAndSet(progressPercentage) != progressPercentage) {
+            broadcastProgress(taskId, task, progressPercentage);
         }
-        
-        // 重新计算总体进度
-        recalculateOverallProgress(progress);
-        
-        // 更新时间戳
-        progress.setLastUpdateTime(LocalDateTime.now());
-        
-        // 推送更新
-        broadcastProgress(taskId, progress);
     }
     
     /**
@@ -123,7 +115,22 @@ public class ProgressTracker {
      * @return 详细进度信息
      */
     public DetailedProgress getDetailedProgress(Long taskId) {
-        return currentProgress.get(taskId);
+        TaskProgress task = tasks.get(taskId);
+        if (task != null) {
+            return task.toDetailedProgress();
+        }
+        if (partProgressStore != null) {
+            // 没有字节级进度时使用内存进度表中的百分比，不查询数据库
+            PartProgressStore.PartProgress part = partProgressStore.get(taskId);
+            if (part != null) {
+                return DetailedProgress.builder()
+                    .taskId(taskId)
+                    .progressPercentage(part.getProgress())
+                    .lastUpdateTime(part.getUpdateTime())
+                    .build();
+            }
+        }
+        return null;
     }
     
     /**
@@ -133,13 +140,13 @@ public class ProgressTracker {
      * @param errorMessage 错误消息（可选）
      */
     public void setTaskStatus(Long taskId, DetailedProgress.DownloadStatus status, String errorMessage) {
-        DetailedProgress progress = currentProgress.get(taskId);
-        if (progress != null) {
-            progress.setStatus(status);
-            progress.setErrorMessage(errorMessage);
-            progress.setLastUpdateTime(LocalDateTime.now());
+        TaskProgress task = tasks.get(taskId);
+        if (task != null) {
+            task.errorMessage = errorMessage;
+            task.status = status;
+            task.lastUpdateMillis = System.currentTimeMillis();
             
-            broadcastProgress(taskId, progress);
+            broadcastProgress(taskId, task, task.percentage());
         }
     }
     
@@ -148,63 +155,50 @@ public class ProgressTracker {
      * @param taskId 任务ID
      */
     public void cleanupProgress(Long taskId) {
-        progressCalculators.remove(taskId);
-        currentProgress.remove(taskId);
+        tasks.remove(taskId);
         log.debug("Cleaned up progress tracking for task: {}", taskId);
     }
     
     /**
-     * 重新计算总体进度
-     * @param progress 进度信息
+     * 记录来源的累计字节数并把正增量计入任务总体。
+     * 同一来源的更新可能乱序到达，来源字节数只取最大值，旧的更新不会让总体减少
+     * @return 任务总体已下载字节数
      */
-    private void recalculateOverallProgress(DetailedProgress progress) {
-        if (progress.getPartProgresses().isEmpty()) {
-            return;
-        }
-        
-        long totalDownloaded = 0;
-        long totalSize = 0;
-        
-        for (DetailedProgress.PartProgress partProgress : progress.getPartProgresses()) {
-            totalDownloaded += partProgress.getDownloadedBytes();
-            totalSize += partProgress.getTotalBytes();
-        }
-        
-        progress.setDownloadedBytes(totalDownloaded);
-        progress.setTotalBytes(totalSize);
-        
-        if (totalSize > 0) {
-            progress.setProgressPercentage((int) ((totalDownloaded * 100) / totalSize));
-        }
-        
-        // 计算总体下载速度
-        ProgressCalculator calculator = progressCalculators.get(progress.getTaskId());
-        if (calculator != null) {
-            double speed = calculator.calculateSpeed();
-            progress.setDownloadSpeedBps(speed);
-            
-            if (speed > 0) {
-                long remainingBytes = totalSize - totalDownloaded;
-                progress.setEstimatedRemainingTimeMs((long) ((remainingBytes / speed) * 1000));
-            }
+    private static long accumulate(TaskProgress task, PartState source, long currentBytes, long totalBytes) {
+        long downloadedDelta = currentBytes - source.downloadedBytes.getAndAccumulate(currentBytes, Math::max);
+        long downloaded = downloadedDelta > 0
+            ? task.downloadedBytes.addAndGet(downloadedDelta) : task.downloadedBytes.get();
+        long totalDelta = totalBytes - source.totalBytes.getAndAccumulate(totalBytes, Math::max);
+        if (totalDelta > 0) {
+            task.totalBytes.addAndGet(totalDelta);
         }
+        return downloaded;
+    }
+    
+    private TaskProgress taskOf(Long taskId) {
+        // 先无锁读取，只有首次更新才进入computeIfAbsent
+        TaskProgress task = tasks.get(taskId);
+        return task != null ? task : tasks.computeIfAbsent(taskId, id -> new TaskProgress(id, speedSmoothingMs));
     }
     
     /**
      * 广播进度更新
      * @param taskId 任务ID
-     * @param progress 进度信息
+     * @param task 任务进度
+     * @param progressPercentage 进度百分比
      */
-    private void broadcastProgress(Long taskId, DetailedProgress progress) {
+    private void broadcastProgress(Long taskId, TaskProgress task, int progressPercentage) {
         try {
             // 推送简单进度信息（使用配置化的节流参数）
-            DownloadProgressWebSocket.broadcastProgressUpdate(taskId, progress.getProgressPercentage(),
+            DownloadProgressWebSocket.broadcastProgressUpdate(taskId, progressPercentage,
                 downloadConfig.getProgressUpdateIntervalMs(),
                 downloadConfig.getProgressChangeThreshold(),
                 downloadConfig.isEnableProgressThrottling());
             
             // 推送详细进度信息（新增）
-            broadcastDetailedProgress(taskId, progress);
+            if (log.isDebugEnabled()) {
+                broadcastDetailedProgress(taskId, task.toDetailedProgress());
+            }
             
         } catch (Exception e) {
             log.error("Failed to broadcast progress for task: {}", taskId, e);
@@ -234,87 +228,148 @@ public class ProgressTracker {
         log.debug("Broadcasting detailed progress: {}", message);
     }
     
+    private static LocalDateTime toDateTime(long epochMillis) {
+        return LocalDateTime.ofInstant(Instant.ofEpochMilli(epochMillis), ZoneId.systemDefault());
+    }
+    
     /**
-     * 进度计算器
+     * 单个任务的进度，各字段独立原子更新
      */
-    private static class ProgressCalculator {
-        private final Queue<ProgressSnapshot> snapshots = new LinkedList<>();
-        private static final int MAX_SNAPSHOTS = 10;
+    private static final class TaskProgress {
+        private final Long taskId;
+        private final long startMillis = System.currentTimeMillis();
+        private final SpeedEstimator speed;
+        private final AtomicLong downloadedBytes = new AtomicLong();
+        private final AtomicLong totalBytes = new AtomicLong();
+        private final AtomicInteger reportedPercentage = new AtomicInteger(-1);
+        // updateProgress上报的任务本身的字节数，不计入分P列表
+        private final PartState whole = new PartState(null, null);
+        private final Map<Long, PartState> parts = new ConcurrentHashMap<>();
+        private volatile long lastUpdateMillis = startMillis;
+        private volatile DetailedProgress.DownloadStatus status;
+        private volatile String errorMessage;
+        
+        TaskProgress(Long taskId, long speedSmoothingMs) {
+            this.taskId = taskId;
+            this.speed = new SpeedEstimator(TimeUnit.MILLISECONDS.toNanos(speedSmoothingMs));
+        }
         
-        public DetailedProgress calculateProgress(long currentBytes, long totalBytes) {
-            long currentTime = System.currentTimeMillis();
-            snapshots.offer(new ProgressSnapshot(currentTime, currentBytes));
+        int percentage() {
+            long total = totalBytes.get();
+            return total > 0 ? (int) ((downloadedBytes.get() * 100) / total) : 0;
+        }
+        
+        DetailedProgress toDetailedProgress() {
+            long downloaded = downloadedBytes.get();
+            long total = totalBytes.get();
+            double speedBps = speed.rate();
+            long remainingTimeMs = speedBps > 0 && total > downloaded
+                ? (long) (((total - downloaded) / speedBps) * 1000) : 0;
             
-            // 保持最近的快照
-            while (snapshots.size() > MAX_SNAPSHOTS) {
-                snapshots.poll();
+            DetailedProgress.DownloadStatus currentStatus = status;
+            if (currentStatus == null) {
+                currentStatus = downloaded >= total && total > 0
+                    ? DetailedProgress.DownloadStatus.COMPLETED
+                    : DetailedProgress.DownloadStatus.DOWNLOADING;
             }
             
-            // 计算下载速度
-            double speed = calculateSpeed();
-            
-            // 计算剩余时间
-            long remainingTime = calculateRemainingTime(currentBytes, totalBytes, speed);
+            List<DetailedProgress.PartProgress> partProgresses = null;
+            if (!parts.isEmpty()) {
+                partProgresses = new ArrayList<>(parts.size());
+                for (PartState part : parts.values()) {
+                    partProgresses.add(part.toPartProgress());
+                }
+            }
             
             return DetailedProgress.builder()
-                .progressPercentage(totalBytes > 0 ? (int) ((currentBytes * 100) / totalBytes) : 0)
-                .downloadedBytes(currentBytes)
-                .totalBytes(totalBytes)
-                .downloadSpeedBps(speed)
-                .estimatedRemainingTimeMs(remainingTime)
-                .lastUpdateTime(LocalDateTime.now())
-                .status(currentBytes >= totalBytes && totalBytes > 0 ? 
-                    DetailedProgress.DownloadStatus.COMPLETED : 
-                    DetailedProgress.DownloadStatus.DOWNLOADING)
+                .taskId(taskId)
+                .progressPercentage(percentage())
+                .downloadedBytes(downloaded)
+                .totalBytes(total)
+                .downloadSpeedBps(speedBps)
+                .estimatedRemainingTimeMs(remainingTimeMs)
+                .startTime(toDateTime(startMillis))
+                .lastUpdateTime(toDateTime(lastUpdateMillis))
+                .partProgresses(partProgresses)
+                .status(currentStatus)
+                .errorMessage(errorMessage)
                 .build();
         }
+    }
+    
+    /**
+     * 单个分P的进度
+     */
+    private static final class PartState {
+        private final Long cid;
+        private final String partTitle;
+        private final AtomicLong downloadedBytes = new AtomicLong();
+        private final AtomicLong totalBytes = new AtomicLong();
+        private volatile DetailedProgress.DownloadStatus status;
         
-        public double calculateSpeed() {
-            if (snapshots.size() < 2) {
-                return 0.0;
-            }
-            
-            ProgressSnapshot first = snapshots.peek();
-            ProgressSnapshot last = ((LinkedList<ProgressSnapshot>) snapshots).peekLast();
-            
-            if (first == null || last == null) {
-                return 0.0;
-            }
-            
-            long timeDiff = last.getTimestamp() - first.getTimestamp();
-            long bytesDiff = last.getBytes() - first.getBytes();
-            
-            return timeDiff > 0 ? (bytesDiff * 1000.0) / timeDiff : 0.0;
+        PartState(Long cid, String partTitle) {
+            this.cid = cid;
+            this.partTitle = partTitle;
         }
         
-        private long calculateRemainingTime(long currentBytes, long totalBytes, double speedBps) {
-            if (speedBps <= 0 || totalBytes <= currentBytes) {
-                return 0;
-            }
-            
-            long remainingBytes = totalBytes - currentBytes;
-            return (long) ((remainingBytes / speedBps) * 1000); // 转换为毫秒
+        DetailedProgress.PartProgress toPartProgress() {
+            long downloaded = downloadedBytes.get();
+            long total = totalBytes.get();
+            return DetailedProgress.PartProgress.builder()
+                .cid(cid)
+                .partTitle(partTitle)
+                .downloadedBytes(downloaded)
+                .totalBytes(total)
+                .progressPercentage(total > 0 ? (int) ((downloaded * 100) / total) : 0)
+                .status(status)
+                .build();
         }
     }
     
     /**
-     * 进度快照
+     * 下载速度估算器
+     * 按时间加权的指数移动平均：间隔dt的采样权重为 1 - e^(-dt/τ)，与更新频率无关。
+     * 每个采样间隔只有CAS成功的线程计算速度，其余线程直接返回，不加锁也不分配对象
      */
-    private static class ProgressSnapshot {
-        private final long timestamp;
-        private final long bytes;
+    static final class SpeedEstimator {
+        private final long smoothingNanos;
+        private final AtomicLong sampleNanos = new AtomicLong();
+        private final AtomicLong sampleBytes = new AtomicLong();
+        // 速度（字节/秒）的double位表示，0表示尚无估算
+        private final AtomicLong rateBits = new AtomicLong();
         
-        public ProgressSnapshot(long timestamp, long bytes) {
-            this.timestamp = timestamp;
-            this.bytes = bytes;
+        SpeedEstimator(long smoothingNanos) {
+            this.smoothingNanos = Math.max(1, smoothingNanos);
         }
         
-        public long getTimestamp() {
-            return timestamp;
+        void record(long bytes, long nowNanos) {
+            long previousNanos = sampleNanos.get();
+            if (previousNanos == 0) {
+                if (sampleNanos.compareAndSet(0, nowNanos)) {
+                    sampleBytes.set(bytes);
+                }
+                return;
+            }
+            long elapsedNanos = nowNanos - previousNanos;
+            if (elapsedNanos < MIN_SAMPLE_INTERVAL_NANOS || !sampleNanos.compareAndSet(previousNanos, nowNanos)) {
+                return;
+            }
+            
+            long previousBytes = sampleBytes.getAndSet(bytes);
+            double instantRate = Math.max(0, bytes - previousBytes) * 1e9 / elapsedNanos;
+            double weight = 1 - Math.exp(-(double) elapsedNanos / smoothingNanos);
+            long currentBits;
+            long nextBits;
+            do {
+                currentBits = rateBits.get();
+                double current = Double.longBitsToDouble(currentBits);
+                double next = currentBits == 0 ? instantRate : current + weight * (instantRate - current);
+                nextBits = Double.doubleToRawLongBits(next);
+            } while (!rateBits.compareAndSet(currentBits, nextBits));
         }
         
-        public long getBytes() {
-            return bytes;
+        double rate() {
+            return Double.longBitsToDouble(rateBits.get());
         }
     }
-}
\ No newline at end of file
+}
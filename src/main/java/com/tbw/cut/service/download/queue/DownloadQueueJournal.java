@@ -0,0 +1,491 @@
+package com.tbw.cut.service.download.queue;
+
+import com.alibaba.fastjson.JSON;
+import com.alibaba.fastjson.JSONArray;
+import com.alibaba.fastjson.JSONObject;
+import com.tbw.cut.service.download.model.DownloadConfig;
+import com.tbw.cut.service.download.model.VideoDownloadRequest;
+import com.tbw.cut.service.download.model.VideoDownloadTask;
+import com.tbw.cut.service.download.model.VideoPart;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 下载队列日志
+ * 以追加方式记录任务的入队、开始、完成和取消事件，重启后据此恢复待下载和下载中的任务。
+ * 下载进度不写入日志，重启后分段下载根据分段清单续传。
+ * 写入由单独线程完成：一次fsync提交期间到达的记录合并到下一次fsync（组提交）；
+ * 记录数达到阈值时把存活任务写入快照并切换到新的日志文件
+ */
+@Slf4j
+@Component
+public class DownloadQueueJournal {
+
+    private static final String SNAPSHOT_FILE = "snapshot.log";
+    private static final String JOURNAL_PREFIX = "journal-";
+    private static final String JOURNAL_SUFFIX = ".log";
+    private static final int MAX_BATCH = 4096;
+
+    private static final String OP_ENQUEUE = "E";
+    private static final String OP_START = "S";
+    private static final String OP_COMPLETE = "D";
+    private static final String OP_CANCEL = "X";
+    private static final String OP_TASK = "T";
+
+    @Value("${download.queue.journal.enabled:true}")
+    private boolean enabled = true;
+
+    @Value("${download.queue.journal.dir:./download_queue}")
+    private String journalDir = "./download_queue";
+
+    @Value("${download.queue.journal.compact-threshold:10000}")
+    private int compactThreshold = 10000;
+
+    private final LinkedBlockingQueue<Record> pending = new LinkedBlockingQueue<>();
+
+    // 存活任务的最新状态，恢复完成后只由写入线程访问
+    private final Map<Long, JSONObject> live = new LinkedHashMap<>();
+
+    private FileChannel journal;
+    private long generation;
+    private int recordsSinceSnapshot;
+    private Thread writer;
+    private volatile boolean open;
+
+    /**
+     * 从快照和日志恢复存活任务，并开始接收新记录
+     * @return 按入队顺序排列的待下载和下载中任务
+     */
+    public synchronized List<JournaledTask> recover() {
+        if (!enabled || open) {
+            return new ArrayList<>();
+        }
+
+        long start = System.currentTimeMillis();
+        List<JournaledTask> tasks = new ArrayList<>();
+        try {
+            Path dir = Paths.get(journalDir);
+            Files.createDirectories(dir);
+
+            live.clear();
+            generation = 0;
+            Path snapshot = dir.resolve(SNAPSHOT_FILE);
+            if (Files.exists(snapshot)) {
+                replay(snapshot, true);
+            }
+            Path journalPath = journalPath(generation);
+            int replayed = Files.exists(journalPath) ? replay(journalPath, false) : 0;
+            deleteStaleJournals(dir);
+
+            for (JSONObject record : live.values()) {
+                tasks.add(toTask(record));
+            }
+
+            journal = FileChannel.open(journalPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+            recordsSinceSnapshot = replayed;
+            if (recordsSinceSnapshot > 0) {
+                compact();
+            }
+
+            open = true;
+            writer = new Thread(this::writeLoop, "download-queue-journal");
+            writer.setDaemon(true);
+            writer.start();
+
+            log.info("Recovered {} download queue tasks from journal in {} ms (generation {}, {} journal records)",
+                tasks.size(), System.currentTimeMillis() - start, generation, replayed);
+        } catch (Exception e) {
+            log.error("Failed to recover download queue journal from {}, queued tasks will not survive restarts",
+                journalDir, e);
+        }
+        return tasks;
+    }
+
+    /**
+     * 记录任务入队
+     * @return 记录写入磁盘后完成的Future
+     */
+    public CompletableFuture<Void> enqueued(VideoDownloadTask task) {
+        JSONObject record = op(OP_ENQUEUE, task.getTaskId());
+        record.put("p", task.getPriority());
+        record.put("c", task.getCreatedTime().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli());
+        record.put("r", requestToJson(task.getRequest()));
+        record.put("t", partTaskIds(task.getRequest()));
+        return append(record);
+    }
+
+    /**
+     * 记录任务开始下载
+     */
+    public void started(Long taskId) {
+        append(op(OP_START, taskId));
+    }
+
+    /**
+     * 记录任务结束（成功或失败）
+     */
+    public void completed(Long taskId) {
+        append(op(OP_COMPLETE, taskId));
+    }
+
+    /**
+     * 记录任务取消
+     */
+    public void cancelled(Long taskId) {
+        append(op(OP_CANCEL, taskId));
+    }
+
+    /**
+     * 停止接收新记录，写完已提交的记录后关闭日志
+     */
+    @PreDestroy
+    public synchronized void close() {
+        if (!open) {
+            return;
+        }
+        open = false;
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            journal.close();
+        } catch (IOException e) {
+            log.warn("Failed to close download queue journal", e);
+        }
+        log.info("Download queue journal closed (generation {})", generation);
+    }
+
+    private CompletableFuture<Void> append(JSONObject json) {
+        if (!open) {
+            return CompletableFuture.completedFuture(null);
+        }
+        Record record = new Record(json);
+        pending.offer(record);
+        return record.committed;
+    }
+
+    /**
+     * 写入线程：每次取出当前积压的全部记录，一次写入、一次fsync
+     */
+    private void writeLoop() {
+        List<Record> batch = new ArrayList<>();
+        while (open || !pending.isEmpty()) {
+            try {
+                Record first = pending.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                pending.drainTo(batch, MAX_BATCH - 1);
+
+                StringBuilder lines = new StringBuilder();
+                for (Record record : batch) {
+                    lines.append(record.json.toJSONString()).append('\n');
+                    apply(record.json);
+                }
+                writeFully(journal, lines.toString());
+                journal.force(false);
+                batch.forEach(record -> record.committed.complete(null));
+
+                recordsSinceSnapshot += batch.size();
+                if (recordsSinceSnapshot >= compactThreshold) {
+                    compact();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (Exception e) {
+                log.error("Failed to write download queue journal", e);
+                batch.forEach(record -> record.committed.completeExceptionally(e));
+            }
+            batch.clear();
+        }
+    }
+
+    /**
+     * 将存活任务写入新一代快照，然后切换到新的日志文件并删除旧日志
+     */
+    private void compact() throws IOException {
+        long next = generation + 1;
+        Path dir = Paths.get(journalDir);
+        Path tempSnapshot = dir.resolve(SNAPSHOT_FILE + ".tmp");
+
+        StringBuilder lines = new StringBuilder();
+        JSONObject header = new JSONObject();
+        header.put("generation", next);
+        lines.append(header.toJSONString()).append('\n');
+        for (JSONObject record : live.values()) {
+            lines.append(record.toJSONString()).append('\n');
+        }
+        try (FileChannel channel = FileChannel.open(tempSnapshot, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            writeFully(channel, lines.toString());
+            channel.force(true);
+        }
+        Files.move(tempSnapshot, dir.resolve(SNAPSHOT_FILE), StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.ATOMIC_MOVE);
+
+        Path oldJournal = journalPath(generation);
+        journal.close();
+        generation = next;
+        journal = FileChannel.open(journalPath(generation), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+            StandardOpenOption.APPEND);
+        Files.deleteIfExists(oldJournal);
+        recordsSinceSnapshot = 0;
+
+        log.debug("Compacted download queue journal: {} live tasks, generation {}", live.size(), generation);
+    }
+
+    /**
+     * 重放快照或日志文件。中间损坏的记录只跳过该行；
+     * 末尾没有换行的记录是写了一半的记录，从日志中截断
+     * @return 重放的记录数
+     */
+    private int replay(Path file, boolean snapshot) throws IOException {
+        byte[] data = Files.readAllBytes(file);
+        int count = 0;
+        int lineStart = 0;
+        for (int i = 0; i < data.length; i++) {
+            if (data[i] != '\n') {
+                continue;
+            }
+            JSONObject json = parseRecord(data, lineStart, i);
+            if (json == null) {
+                log.warn("Skipping corrupt record in {} at byte {}", file, lineStart);
+            } else if (snapshot && json.containsKey("generation")) {
+                generation = json.getLongValue("generation");
+            } else {
+                apply(json);
+                count++;
+            }
+            lineStart = i + 1;
+        }
+
+        if (!snapshot && lineStart < data.length) {
+            log.warn("Truncating {} incomplete bytes at the end of {}", data.length - lineStart, file);
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                channel.truncate(lineStart);
+            }
+        }
+        return count;
+    }
+
+    private static JSONObject parseRecord(byte[] data, int from, int to) {
+        try {
+            JSONObject json = JSONObject.parseObject(new String(data, from, to - from, StandardCharsets.UTF_8));
+            return json != null && (json.containsKey("op") || json.containsKey("generation")) ? json : null;
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * 将记录应用到存活任务状态
+     */
+    private void apply(JSONObject json) {
+        Long taskId = json.getLong("id");
+        switch (json.getString("op")) {
+            case OP_ENQUEUE:
+            case OP_TASK: {
+                JSONObject task = new JSONObject();
+                task.put("op", OP_TASK);
+                task.put("id", taskId);
+                task.put("p", json.getIntValue("p"));
+                task.put("c", json.getLongValue("c"));
+                task.put("r", json.getJSONObject("r"));
+                task.put("a", json.getBooleanValue("a"));
+                JSONArray partTaskIds = json.getJSONArray("t");
+                task.put("t", partTaskIds != null ? partTaskIds : new JSONArray());
+                live.put(taskId, task);
+                break;
+            }
+            case OP_START: {
+                JSONObject task = live.get(taskId);
+                if (task != null) {
+                    task.put("a", true);
+                }
+                break;
+            }
+            case OP_COMPLETE:
+            case OP_CANCEL:
+                live.remove(taskId);
+                break;
+            default:
+                break;
+        }
+    }
+
+    private JournaledTask toTask(JSONObject record) {
+        return new JournaledTask(record.getLong("id"), record.getIntValue("p"),
+            LocalDateTime.ofInstant(Instant.ofEpochMilli(record.getLongValue("c")), ZoneId.systemDefault()),
+            requestFromJson(record.getJSONObject("r")), record.getBooleanValue("a"),
+            record.getJSONArray("t").toJavaList(Long.class));
+    }
+
+    /**
+     * 序列化下载请求（逐字段写入，避免派生getter在字段缺失时出错）
+     */
+    static JSONObject requestToJson(VideoDownloadRequest request) {
+        JSONObject json = new JSONObject();
+        json.put("videoUrl", request.getVideoUrl());
+        json.put("videoTitle", request.getVideoTitle());
+        json.put("outputDirectory", request.getOutputDirectory());
+        json.put("enableSegmentedDownload", request.isEnableSegmentedDownload());
+        json.put("estimatedFileSize", request.getEstimatedFileSize());
+        json.put("quality", request.getQuality());
+        json.put("format", request.getFormat());
+        json.put("userId", request.getUserId());
+        json.put("callbackUrl", request.getCallbackUrl());
+        json.put("extraParams", request.getExtraParams() != null ? new LinkedHashMap<>(request.getExtraParams()) : null);
+        json.put("config", request.getConfig() != null ? JSON.toJSON(request.getConfig()) : null);
+
+        JSONArray parts = new JSONArray();
+        if (request.getParts() != null) {
+            for (VideoPart part : request.getParts()) {
+                parts.add(JSON.toJSON(part));
+            }
+        }
+        json.put("parts", parts);
+        return json;
+    }
+
+    /**
+     * 请求中各分P对应的分P下载记录ID，恢复后据此更新记录状态
+     */
+    static JSONArray partTaskIds(VideoDownloadRequest request) {
+        JSONArray ids = new JSONArray();
+        if (request.getParts() != null) {
+            for (VideoPart part : request.getParts()) {
+                if (part.getDatabaseId() != null) {
+                    ids.add(part.getDatabaseId());
+                }
+            }
+        }
+        return ids;
+    }
+
+    static VideoDownloadRequest requestFromJson(JSONObject json) {
+        List<VideoPart> parts = new ArrayList<>();
+        JSONArray partsJson = json.getJSONArray("parts");
+        if (partsJson != null) {
+            for (int i = 0; i < partsJson.size(); i++) {
+                parts.add(partsJson.getJSONObject(i).toJavaObject(VideoPart.class));
+            }
+        }
+        JSONObject config = json.getJSONObject("config");
+        JSONObject extraParams = json.getJSONObject("extraParams");
+
+        return VideoDownloadRequest.builder()
+            .videoUrl(json.getString("videoUrl"))
+            .videoTitle(json.getString("videoTitle"))
+            .outputDirectory(json.getString("outputDirectory"))
+            .enableSegmentedDownload(json.getBooleanValue("enableSegmentedDownload"))
+            .estimatedFileSize(json.getLong("estimatedFileSize"))
+            .quality(json.getString("quality"))
+            .format(json.getString("format"))
+            .userId(json.getString("userId"))
+            .callbackUrl(json.getString("callbackUrl"))
+            .extraParams(extraParams != null ? new LinkedHashMap<>(extraParams) : null)
+            .config(config != null ? config.toJavaObject(DownloadConfig.class) : null)
+            .parts(parts)
+            .build();
+    }
+
+    private void deleteStaleJournals(Path dir) throws IOException {
+        Path current = journalPath(generation);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, JOURNAL_PREFIX + "*" + JOURNAL_SUFFIX)) {
+            for (Path file : files) {
+                if (!file.equals(current)) {
+                    Files.deleteIfExists(file);
+                }
+            }
+        }
+    }
+
+    private Path journalPath(long journalGeneration) {
+        return Paths.get(journalDir, JOURNAL_PREFIX + journalGeneration + JOURNAL_SUFFIX);
+    }
+
+    private static JSONObject op(String op, Long taskId) {
+        JSONObject json = new JSONObject();
+        json.put("op", op);
+        json.put("id", taskId);
+        return json;
+    }
+
+    private static void writeFully(FileChannel channel, String content) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(content.getBytes(StandardCharsets.UTF_8));
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * 待写入的记录
+     */
+    private static class Record {
+        private final JSONObject json;
+        private final CompletableFuture<Void> committed = new CompletableFuture<>();
+
+        Record(JSONObject json) {
+            this.json = json;
+        }
+    }
+
+    /**
+     * 从日志恢复的任务
+     */
+    public static class JournaledTask {
+        private final Long taskId;
+        private final int priority;
+        private final LocalDateTime createdTime;
+        private final VideoDownloadRequest request;
+        private final boolean active;
+        private final List<Long> partTaskIds;
+
+        JournaledTask(Long taskId, int priority, LocalDateTime createdTime, VideoDownloadRequest request,
+                      boolean active, List<Long> partTaskIds) {
+            this.taskId = taskId;
+            this.priority = priority;
+            this.createdTime = createdTime;
+            this.request = request;
+            this.active = active;
+            this.partTaskIds = partTaskIds;
+        }
+
+        public Long getTaskId() { return taskId; }
+        public int getPriority() { return priority; }
+        public LocalDateTime getCreatedTime() { return createdTime; }
+        public VideoDownloadRequest getRequest() { return request; }
+        /** 重启前是否正在下载 */
+        public boolean isActive() { return active; }
+        /** 各分P对应的分P下载记录ID */
+        public List<Long> getPartTaskIds() { return partTaskIds; }
+    }
+}
@@ -0,0 +1,267 @@
+package com.tbw.cut.service.download.queue;
+
+import com.tbw.cut.service.download.model.VideoDownloadRequest;
+import com.tbw.cut.service.download.model.VideoDownloadTask;
+import com.tbw.cut.service.download.model.VideoPart;
+import com.tbw.cut.service.download.segmented.MirrorHostScoreboard;
+
+import java.time.ZoneId;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 公平下载调度器
+ * 待下载任务按所属者（用户或来源渠道）分队，所属者之间按赤字轮转（DRR）分配下载槽位，任务成本为分P数；
+ * 优先级随等待时间提升，只有处于当前最高有效优先级的所属者参与轮转；同一CDN主机的并发视频数受限
+ */
+class FairDownloadDispatcher {
+
+    static final String DEFAULT_OWNER = "default";
+
+    private final int quantum;
+    private final long agingIntervalMs;
+    private final int maxPerHost;
+
+    // 有待下载任务的所属者，队首为当前轮到的所属者
+    private final ArrayDeque<OwnerQueue> rotation = new ArrayDeque<>();
+    private final Map<String, OwnerQueue> owners = new HashMap<>();
+
+    // 各CDN主机正在下载的视频数
+    private final Map<String, Integer> hostActive = new HashMap<>();
+    private final Map<VideoDownloadTask, String> dispatchedHosts = new IdentityHashMap<>();
+
+    private int size;
+
+    /**
+     * @param quantum 每轮为所属者增加的额度（分P数）
+     * @param agingIntervalMs 每等待该时长有效优先级提升一级，0表示不老化
+     * @param maxPerHost 每个CDN主机的最大并发视频数，0表示不限制
+     */
+    FairDownloadDispatcher(int quantum, long agingIntervalMs, int maxPerHost) {
+        this.quantum = Math.max(1, quantum);
+        this.agingIntervalMs = agingIntervalMs;
+        this.maxPerHost = maxPerHost;
+    }
+
+    /**
+     * 加入待下载任务
+     */
+    synchronized void offer(VideoDownloadTask task) {
+        String owner = ownerOf(task.getRequest());
+        OwnerQueue queue = owners.get(owner);
+        if (queue == null) {
+            queue = new OwnerQueue(owner);
+            owners.put(owner, queue);
+            rotation.addLast(queue);
+        }
+        queue.tasks.add(task);
+        size++;
+    }
+
+    /**
+     * 移除尚未开始的任务
+     * @return 任务是否在队列中
+     */
+    synchronized boolean remove(VideoDownloadTask task) {
+        OwnerQueue queue = owners.get(ownerOf(task.getRequest()));
+        if (queue == null || !removeIdentical(queue.tasks, task)) {
+            return false;
+        }
+        size--;
+        if (queue.tasks.isEmpty()) {
+            dropOwner(queue);
+        }
+        return true;
+    }
+
+    /**
+     * 选出下一个可以开始的任务，并计入其CDN主机的并发数
+     * @param now 当前时间（毫秒）
+     * @return 任务，没有可开始的任务（队列为空或主机均已达到上限）时返回null
+     */
+    synchronized VideoDownloadTask next(long now) {
+        // 每个所属者的候选任务：主机未达上限的任务中有效优先级最高、创建最早的
+        Map<OwnerQueue, VideoDownloadTask> candidates = new LinkedHashMap<>();
+        long bestTier = Long.MAX_VALUE;
+        for (OwnerQueue queue : rotation) {
+            VideoDownloadTask candidate = queue.best(now);
+            if (candidate != null) {
+                candidates.put(queue, candidate);
+                bestTier = Math.min(bestTier, effectivePriority(candidate, now));
+            }
+        }
+        if (candidates.isEmpty()) {
+            return null;
+        }
+
+        // 赤字轮转：轮到的所属者获得一份额度，额度足够支付候选任务的分P数时出队，否则轮到下一个
+        while (true) {
+            OwnerQueue queue = rotation.peekFirst();
+            VideoDownloadTask candidate = candidates.get(queue);
+            if (candidate == null || effectivePriority(candidate, now) > bestTier) {
+                // 没有可开始的任务或优先级较低，本轮不获得额度
+                queue.inTurn = false;
+                rotation.addLast(rotation.pollFirst());
+                continue;
+            }
+
+            if (!queue.inTurn) {
+                queue.deficit += quantum;
+                queue.inTurn = true;
+            }
+            int cost = costOf(candidate);
+            if (cost > queue.deficit) {
+                queue.inTurn = false;
+                rotation.addLast(rotation.pollFirst());
+                continue;
+            }
+
+            queue.deficit -= cost;
+            removeIdentical(queue.tasks, candidate);
+            size--;
+            if (queue.tasks.isEmpty()) {
+                dropOwner(queue);
+            }
+
+            String host = hostOf(candidate.getRequest());
+            hostActive.merge(host, 1, Integer::sum);
+            dispatchedHosts.put(candidate, host);
+            return candidate;
+        }
+    }
+
+    /**
+     * 任务结束后释放其CDN主机的并发数
+     */
+    synchronized void release(VideoDownloadTask task) {
+        String host = dispatchedHosts.remove(task);
+        if (host != null) {
+            hostActive.computeIfPresent(host, (key, count) -> count > 1 ? count - 1 : null);
+        }
+    }
+
+    /**
+     * 取出全部待下载任务
+     */
+    synchronized List<VideoDownloadTask> drain() {
+        List<VideoDownloadTask> tasks = new ArrayList<>();
+        for (OwnerQueue queue : rotation) {
+            tasks.addAll(queue.tasks);
+        }
+        rotation.clear();
+        owners.clear();
+        size = 0;
+        return tasks;
+    }
+
+    synchronized int size() {
+        return size;
+    }
+
+    /**
+     * 任务所属者：用户ID，其次为额外参数中的 owner / source，都没有时归入默认类别
+     */
+    static String ownerOf(VideoDownloadRequest request) {
+        if (request == null) {
+            return DEFAULT_OWNER;
+        }
+        if (request.getUserId() != null && !request.getUserId().isEmpty()) {
+            return request.getUserId();
+        }
+        Map<String, Object> extraParams = request.getExtraParams();
+        if (extraParams != null) {
+            for (String key : new String[] {"owner", "source"}) {
+                Object value = extraParams.get(key);
+                if (value != null && !value.toString().isEmpty()) {
+                    return value.toString();
+                }
+            }
+        }
+        return DEFAULT_OWNER;
+    }
+
+    /**
+     * 任务的CDN主机，取第一个分P的流地址
+     */
+    static String hostOf(VideoDownloadRequest request) {
+        if (request != null && request.getParts() != null) {
+            for (VideoPart part : request.getParts()) {
+                if (part.getUrl() != null && !part.getUrl().isEmpty()) {
+                    return MirrorHostScoreboard.hostOf(part.getUrl());
+                }
+            }
+        }
+        return "";
+    }
+
+    private static int costOf(VideoDownloadTask task) {
+        VideoDownloadRequest request = task.getRequest();
+        return request != null ? Math.max(1, request.getPartCount()) : 1;
+    }
+
+    private long effectivePriority(VideoDownloadTask task, long now) {
+        if (agingIntervalMs <= 0) {
+            return task.getPriority();
+        }
+        long waitedMs = now - task.getCreatedTime().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        return task.getPriority() - Math.max(0, waitedMs) / agingIntervalMs;
+    }
+
+    private boolean hostAvailable(VideoDownloadTask task) {
+        String host = hostOf(task.getRequest());
+        return maxPerHost <= 0 || host.isEmpty() || hostActive.getOrDefault(host, 0) < maxPerHost;
+    }
+
+    private void dropOwner(OwnerQueue queue) {
+        // 队列清空后赤字清零，所属者下次有任务时重新排到队尾
+        owners.remove(queue.owner);
+        rotation.remove(queue);
+    }
+
+    private static boolean removeIdentical(List<VideoDownloadTask> tasks, VideoDownloadTask task) {
+        for (Iterator<VideoDownloadTask> iterator = tasks.iterator(); iterator.hasNext(); ) {
+            if (iterator.next() == task) {
+                iterator.remove();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 单个所属者的待下载任务
+     */
+    private class OwnerQueue {
+        private final String owner;
+        private final List<VideoDownloadTask> tasks = new ArrayList<>();
+        private int deficit;
+        private boolean inTurn;
+
+        OwnerQueue(String owner) {
+            this.owner = owner;
+        }
+
+        VideoDownloadTask best(long now) {
+            VideoDownloadTask best = null;
+            long bestPriority = Long.MAX_VALUE;
+            for (VideoDownloadTask task : tasks) {
+                if (!hostAvailable(task)) {
+                    continue;
+                }
+                long priority = effectivePriority(task, now);
+                if (priority < bestPriority
+                    || (priority == bestPriority && task.getCreatedTime().isBefore(best.getCreatedTime()))) {
+                    best = task;
+                    bestPriority = priority;
+                }
+            }
+            return best;
+        }
+    }
+}
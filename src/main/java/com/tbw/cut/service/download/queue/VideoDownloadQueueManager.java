@@ -12,6 +12,9 @@ import org.springframework.stereotype.Service;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicLong;
@@ -24,12 +27,23 @@ import java.util.concurrent.atomic.AtomicLong;
 @Service
 public class VideoDownloadQueueManager {
     
+    private static final long JOURNAL_COMMIT_TIMEOUT_SECONDS = 5;
+    
     @Value("${download.max-concurrent-videos:2}")
     private int maxConcurrentVideos;
     
     @Value("${download.queue-capacity:100}")
     private int queueCapacity;
     
+    @Value("${download.queue.drr-quantum:4}")
+    private int drrQuantum = 4;
+    
+    @Value("${download.queue.aging-interval-ms:60000}")
+    private long agingIntervalMs = 60000;
+    
+    @Value("${download.queue.max-per-host:2}")
+    private int maxPerHost = 2;
+    
     @Autowired
     private SegmentedDownloadManager segmentedDownloadManager;
     
@@ -39,17 +53,11 @@ public class VideoDownloadQueueManager {
     @Autowired
     private ApplicationEventPublisher eventPublisher;
     
-    // 待下载队列（优先级队列）
-    private final PriorityBlockingQueue<VideoDownloadTask> pendingQueue = 
-        new PriorityBlockingQueue<>(100, (t1, t2) -> {
-            // 优先级排序：数值小的优先级高
-            int priorityCompare = Integer.compare(t1.getPriority(), t2.getPriority());
-            if (priorityCompare != 0) {
-                return priorityCompare;
-            }
-            // 相同优先级按创建时间排序
-            return t1.getCreatedTime().compareTo(t2.getCreatedTime());
-        });
+    @Autowired(required = false)
+    private DownloadQueueJournal queueJournal;
+    
+    // 待下载队列（按所属者公平调度）
+    private FairDownloadDispatcher pendingQueue;
     
     // 正在下载的任务
     private final Map<Long, VideoDownloadTask> activeDownloads = new ConcurrentHashMap<>();
@@ -60,51 +68,83 @@ public class VideoDownloadQueueManager {
     // 任务ID生成器
     private final AtomicLong taskIdGenerator = new AtomicLong(System.currentTimeMillis());
     
-    // 队列处理线程池
-    private ScheduledExecutorService queueProcessor;
+    // 调度锁：槽位检查和任务出队在同一临界区内完成
+    private final Object dispatchLock = new Object();
+    
+    // 从日志恢复、尚未被提交方接管的任务
+    private final List<RecoveredTask> recoveredTasks = new CopyOnWriteArrayList<>();
     
     @PostConstruct
     public void initialize() {
-        // 创建队列处理线程
-        this.queueProcessor = Executors.newSingleThreadScheduledExecutor(r -> {
-            Thread t = new Thread(r, "video-queue-processor");
-            t.setDaemon(true);
-            return t;
-        });
+        // 任务提交、结束和取消时立即调度，不再定时轮询
+        this.pendingQueue = new FairDownloadDispatcher(drrQuantum, agingIntervalMs, maxPerHost);
         
-        // 定期检查队列状态
-        queueProcessor.scheduleWithFixedDelay(this::processQueue, 1, 1, TimeUnit.SECONDS);
+        log.info("VideoDownloadQueueManager initialized with max concurrent videos: {}, DRR quantum: {}, max per host: {}", 
+            maxConcurrentVideos, drrQuantum, maxPerHost);
         
-        log.info("VideoDownloadQueueManager initialized with max concurrent videos: {}", maxConcurrentVideos);
+        recoverJournaledTasks();
+    }
+    
+    /**
+     * 恢复重启前未完成的任务：重启前正在下载的任务先入队，分段下载会根据分段清单续传。
+     * 提交方的结果处理随进程丢失，由提交方通过{@link #takeRecoveredTasks()}重新接管
+     */
+    private void recoverJournaledTasks() {
+        if (queueJournal == null) {
+            return;
+        }
+        
+        List<DownloadQueueJournal.JournaledTask> journaledTasks = new ArrayList<>(queueJournal.recover());
+        if (journaledTasks.isEmpty()) {
+            return;
+        }
+        journaledTasks.sort(Comparator.comparing(journaled -> !journaled.isActive()));
+        
+        for (DownloadQueueJournal.JournaledTask journaled : journaledTasks) {
+            VideoDownloadTask task = VideoDownloadTask.create(journaled.getRequest());
+            task.setTaskId(journaled.getTaskId());
+            task.setPriority(journaled.getPriority());
+            task.setCreatedTime(journaled.getCreatedTime());
+            taskIdGenerator.accumulateAndGet(journaled.getTaskId(), Math::max);
+            
+            allTasks.put(task.getTaskId(), task);
+            recoveredTasks.add(new RecoveredTask(task, journaled.getPartTaskIds()));
+            pendingQueue.offer(task);
+            
+            if (journaled.isActive()) {
+                log.info("Resuming journaled download task: {} (title: {}, part tasks: {})", 
+                    task.getTaskId(), journaled.getRequest().getVideoTitle(), journaled.getPartTaskIds());
+            }
+        }
+        
+        log.info("Recovered {} download tasks from queue journal", journaledTasks.size());
+        processQueue();
+    }
+    
+    /**
+     * 取出从日志恢复的任务，调用方需要为其重新挂上结果处理（例如更新分P下载记录）
+     * @return 恢复的任务，每个任务只返回一次
+     */
+    public List<RecoveredTask> takeRecoveredTasks() {
+        List<RecoveredTask> tasks = new ArrayList<>(recoveredTasks);
+        recoveredTasks.removeAll(tasks);
+        return tasks;
     }
     
     @PreDestroy
     public void shutdown() {
         log.info("Shutting down VideoDownloadQueueManager");
         
-        // 取消所有待处理任务
-        while (!pendingQueue.isEmpty()) {
-            VideoDownloadTask task = pendingQueue.poll();
-            if (task != null) {
-                task.cancel("System shutdown");
-            }
+        // 先关闭队列日志，关闭时被中断的任务在重启后恢复
+        if (queueJournal != null) {
+            queueJournal.close();
         }
         
+        // 取消所有待处理任务
+        pendingQueue.drain().forEach(task -> task.cancel("System shutdown"));
+        
         // 取消所有活跃任务
         activeDownloads.values().forEach(task -> task.cancel("System shutdown"));
-        
-        // 关闭线程池
-        if (queueProcessor != null) {
-            queueProcessor.shutdown();
-            try {
-                if (!queueProcessor.awaitTermination(10, TimeUnit.SECONDS)) {
-                    queueProcessor.shutdownNow();
-                }
-            } catch (InterruptedException e) {
-                queueProcessor.shutdownNow();
-                Thread.currentThread().interrupt();
-            }
-        }
     }
     
     /**
@@ -138,15 +178,23 @@ public class VideoDownloadQueueManager {
         // 添加到任务映射
         allTasks.put(task.getTaskId(), task);
         
+        // 入队记录写入磁盘后再返回，组提交使等待时间保持在一次fsync左右
+        if (queueJournal != null) {
+            try {
+                queueJournal.enqueued(task).get(JOURNAL_COMMIT_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            } catch (Exception e) {
+                log.warn("Failed to journal download task {}, it will not survive a restart", task.getTaskId(), e);
+            }
+        }
+        
         log.info("Submitted video download task: {} (title: {}, priority: {})", 
             task.getTaskId(), request.getVideoTitle(), priority);
         
-        // 检查是否可以立即开始下载
-        if (activeDownloads.size() < maxConcurrentVideos) {
-            startVideoDownload(task);
-        } else {
-            // 加入等待队列
-            pendingQueue.offer(task);
+        // 加入等待队列，有空闲槽位时立即开始
+        pendingQueue.offer(task);
+        processQueue();
+        
+        if (task.getStatus() == VideoDownloadTask.TaskStatus.PENDING) {
             log.info("Task {} added to pending queue (queue size: {})", 
                 task.getTaskId(), pendingQueue.size());
         }
@@ -161,10 +209,14 @@ public class VideoDownloadQueueManager {
     private void startVideoDownload(VideoDownloadTask task) {
         activeDownloads.put(task.getTaskId(), task);
         task.setStatus(VideoDownloadTask.TaskStatus.DOWNLOADING);
+        if (queueJournal != null) {
+            queueJournal.started(task.getTaskId());
+        }
         
         // 记录队列等待时长
         long waitTime = System.currentTimeMillis() - task.getCreatedTime().atZone(java.time.ZoneId.systemDefault()).toInstant().toEpochMilli();
-        downloadTimeLogger.logQueueWaitTime(task.getTaskId(), waitTime);
+        downloadTimeLogger.logQueueWaitTime(task.getTaskId(), 
+            FairDownloadDispatcher.ownerOf(task.getRequest()), waitTime);
         
         // 记录下载开始
         VideoDownloadRequest request = task.getRequest();
@@ -197,7 +249,12 @@ public class VideoDownloadQueueManager {
      */
     private void handleDownloadCompletion(VideoDownloadTask task, DownloadResult result, Throwable throwable) {
         // 从活跃下载中移除
-        activeDownloads.remove(task.getTaskId());
+        if (activeDownloads.remove(task.getTaskId()) != null) {
+            pendingQueue.release(task);
+        }
+        if (queueJournal != null && task.getStatus() != VideoDownloadTask.TaskStatus.CANCELLED) {
+            queueJournal.completed(task.getTaskId());
+        }
         
         // 更新任务状态
         if (throwable != null) {
@@ -236,10 +293,17 @@ public class VideoDownloadQueueManager {
      * 处理队列，启动待处理的任务
      */
     private void processQueue() {
-        while (activeDownloads.size() < maxConcurrentVideos && !pendingQueue.isEmpty()) {
-            VideoDownloadTask nextTask = pendingQueue.poll();
-            if (nextTask != null && nextTask.getStatus() == VideoDownloadTask.TaskStatus.PENDING) {
-                startVideoDownload(nextTask);
+        synchronized (dispatchLock) {
+            while (activeDownloads.size() < maxConcurrentVideos) {
+                VideoDownloadTask nextTask = pendingQueue.next(System.currentTimeMillis());
+                if (nextTask == null) {
+                    break;
+                }
+                if (nextTask.getStatus() == VideoDownloadTask.TaskStatus.PENDING) {
+                    startVideoDownload(nextTask);
+                } else {
+                    pendingQueue.release(nextTask);
+                }
             }
         }
     }
@@ -259,10 +323,15 @@ public class VideoDownloadQueueManager {
         pendingQueue.remove(task);
         
         // 从活跃下载中移除
-        activeDownloads.remove(taskId);
+        if (activeDownloads.remove(taskId) != null) {
+            pendingQueue.release(task);
+        }
         
         // 取消任务
         task.cancel("User cancelled");
+        if (queueJournal != null) {
+            queueJournal.cancelled(taskId);
+        }
         
         log.info("Cancelled video download task: {}", taskId);
         
@@ -333,4 +402,20 @@ public class VideoDownloadQueueManager {
         
         log.info("Cleaned up completed tasks, remaining: {}", allTasks.size());
     }
-}
\ No newline at end of file
+    
+    /**
+     * 从日志恢复的任务及其分P下载记录ID
+     */
+    public static class RecoveredTask {
+        private final VideoDownloadTask task;
+        private final List<Long> partTaskIds;
+        
+        RecoveredTask(VideoDownloadTask task, List<Long> partTaskIds) {
+            this.task = task;
+            this.partTaskIds = partTaskIds;
+        }
+        
+        public VideoDownloadTask getTask() { return task; }
+        public List<Long> getPartTaskIds() { return partTaskIds; }
+    }
+}
@@ -1,23 +1,38 @@
 package com.tbw.cut.service.download.retry;
 
 import com.tbw.cut.service.VideoUrlRefreshService;
+import com.tbw.cut.service.download.segmented.MirrorHostScoreboard;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import java.io.IOException;
 import java.net.ConnectException;
 import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
 import java.util.Map;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Supplier;
 
 /**
  * 智能重试管理器
- * 根据不同的错误类型采用不同的重试策略
+ * 根据不同的错误类型采用不同的重试策略；重试由调度线程在带抖动的退避时间后发起，等待期间不占用工作线程，
+ * 重试次数受按目标主机和操作划分的重试预算限制，额度已满且长时间未使用的预算定期清理
  */
 @Slf4j
 @Component
@@ -26,8 +41,39 @@ public class RetryManager {
     @Autowired
     private VideoUrlRefreshService videoUrlRefreshService;
     
+    @Value("${download.retry.jitter-ratio:0.5}")
+    private double jitterRatio = 0.5;
+    
+    @Value("${download.retry.budget.max-tokens:20}")
+    private double budgetMaxTokens = 20;
+    
+    @Value("${download.retry.budget.token-ratio:0.2}")
+    private double budgetTokenRatio = 0.2;
+    
+    // 额度已满的预算超过该时间未使用即移除，再次使用时重新创建（与保留一个满额度预算等价）
+    @Value("${download.retry.budget.idle-expiry-ms:600000}")
+    private long budgetIdleExpiryMs = 600000;
+    
     private final Map<Class<? extends Exception>, RetryStrategy> retryStrategies = new ConcurrentHashMap<>();
     
+    // 目标主机+操作 -> 重试预算
+    private final Map<String, RetryBudget> budgets = new ConcurrentHashMap<>();
+    
+    // 只负责在退避结束后发起下一次尝试
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "retry-scheduler");
+        thread.setDaemon(true);
+        return thread;
+    });
+    
+    // 执行executeWithRetry提交的阻塞操作，不占用公共ForkJoinPool
+    private final AtomicInteger operationThreadCount = new AtomicInteger();
+    private final ExecutorService operationExecutor = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "retry-operation-" + operationThreadCount.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    });
+    
     @PostConstruct
     public void initializeStrategies() {
         // 连接异常：指数退避重试
@@ -55,55 +101,224 @@ public class RetryManager {
             new IoRetryStrategy(videoUrlRefreshService));
         
         log.info("Initialized retry strategies for {} exception types", retryStrategies.size());
+        
+        long cleanupInterval = Math.max(1000, budgetIdleExpiryMs);
+        scheduler.scheduleWithFixedDelay(this::expireIdleBudgets, cleanupInterval, cleanupInterval, TimeUnit.MILLISECONDS);
     }
     
     /**
      * 执行带重试的操作
      * @param operation 要执行的操作
-     * @param operationName 操作名称（用于日志）
+     * @param operationName 操作名称（用于日志和重试预算）
      * @return 操作结果
      */
     public <T> CompletableFuture<T> executeWithRetry(Supplier<T> operation, String operationName) {
-        return CompletableFuture.supplyAsync(() -> {
-            int attempt = 0;
-            Exception lastException = null;
-            
-            while (attempt < getMaxRetries()) {
-                try {
-                    T result = operation.get();
-                    if (attempt > 0) {
-                        log.info("Operation {} succeeded on attempt {}", operationName, attempt + 1);
-                    }
-                    return result;
-                    
-                } catch (Exception e) {
-                    lastException = e;
-                    RetryStrategy strategy = getRetryStrategy(e);
-                    
-                    if (!strategy.shouldRetry(attempt, e)) {
-                        log.warn("Operation {} failed and retry strategy says not to retry: {}", 
-                            operationName, e.getMessage());
-                        break;
-                    }
-                    
-                    long delay = strategy.getDelayMs(attempt);
-                    log.info("Operation {} failed (attempt {}), retrying in {}ms: {}", 
-                        operationName, attempt + 1, delay, e.getMessage());
-                    
-                    try {
-                        Thread.sleep(delay);
-                    } catch (InterruptedException ie) {
-                        Thread.currentThread().interrupt();
-                        throw new RuntimeException("Operation interrupted", ie);
+        return executeWithRetry(operation, operationName, null);
+    }
+    
+    /**
+     * 执行带重试的操作，重试预算按目标主机和操作名称分别计算
+     * @param operation 要执行的操作
+     * @param operationName 操作名称（用于日志和重试预算）
+     * @param url 操作访问的URL，为null时只按操作名称计算预算
+     * @return 操作结果，取消该Future会取消尚未开始的重试
+     */
+    public <T> CompletableFuture<T> executeWithRetry(Supplier<T> operation, String operationName, String url) {
+        return retryAsync(() -> CompletableFuture.supplyAsync(operation, operationExecutor), operationName, url, null);
+    }
+    
+    /**
+     * 异步重试：每次尝试返回一个Future，失败后由调度线程在退避时间后发起下一次尝试，等待期间不占用任何线程
+     * @param attempt 发起一次尝试，不能阻塞调用线程（重试由调度线程发起）
+     * @param operationName 操作名称（用于日志和重试预算）
+     * @param url 操作访问的URL，为null时只按操作名称计算预算
+     * @param strategy 重试策略，为null时按异常类型选择
+     * @return 操作结果，取消该Future会取消等待中的重试
+     */
+    public <T> CompletableFuture<T> retryAsync(Supplier<CompletableFuture<T>> attempt, String operationName,
+                                               String url, RetryStrategy strategy) {
+        RetryExecution<T> execution = new RetryExecution<>(attempt, operationName, budgetKey(url, operationName), strategy);
+        execution.run(0);
+        return execution.result;
+    }
+    
+    /**
+     * 在指定延迟后执行任务
+     */
+    public ScheduledFuture<?> schedule(Runnable task, long delayMs) {
+        return scheduler.schedule(task, Math.max(0, delayMs), TimeUnit.MILLISECONDS);
+    }
+    
+    /**
+     * 为退避延迟加入随机抖动，避免同时失败的请求同时重试
+     * @param delayMs 基础延迟
+     * @return 区间 [delayMs * (1 - jitterRatio), delayMs] 内的随机延迟
+     */
+    public long jitter(long delayMs) {
+        if (delayMs <= 0 || jitterRatio <= 0) {
+            return Math.max(0, delayMs);
+        }
+        double ratio = Math.min(1.0, jitterRatio);
+        return Math.round(delayMs * (1 - ratio * ThreadLocalRandom.current().nextDouble()));
+    }
+    
+    /**
+     * 申请一次重试额度
+     * @param url 操作访问的URL，可为null
+     * @param operationName 操作名称
+     * @return 预算不足时返回false，调用方应放弃重试
+     */
+    public boolean tryAcquireRetry(String url, String operationName) {
+        return budgetFor(budgetKey(url, operationName)).tryAcquire();
+    }
+    
+    /**
+     * 记录一次成功的操作，补充重试额度
+     */
+    public void recordSuccess(String url, String operationName) {
+        budgetFor(budgetKey(url, operationName)).deposit();
+    }
+    
+    /**
+     * 移除额度已满且超过空闲时间未使用的重试预算
+     * @return 移除的预算数
+     */
+    int expireIdleBudgets() {
+        long now = System.nanoTime();
+        long idleNanos = TimeUnit.MILLISECONDS.toNanos(budgetIdleExpiryMs);
+        int before = budgets.size();
+        budgets.values().removeIf(budget -> budget.isIdle(now, idleNanos));
+        int removed = before - budgets.size();
+        if (removed > 0) {
+            log.debug("Expired {} idle retry budgets, {} remaining", removed, budgets.size());
+        }
+        return Math.max(0, removed);
+    }
+    
+    int budgetCount() {
+        return budgets.size();
+    }
+    
+    @PreDestroy
+    public void shutdown() {
+        scheduler.shutdownNow();
+        operationExecutor.shutdownNow();
+    }
+    
+    private RetryBudget budgetFor(String key) {
+        return budgets.computeIfAbsent(key, k -> new RetryBudget(budgetMaxTokens, budgetTokenRatio));
+    }
+    
+    private static String budgetKey(String url, String operationName) {
+        return url != null ? MirrorHostScoreboard.hostOf(url) + " " + operationName : operationName;
+    }
+    
+    /**
+     * 一次带重试的操作
+     * 当前尝试或等待中的重试保存在pending中，结果被取消时一并取消
+     */
+    private class RetryExecution<T> {
+        private final Supplier<CompletableFuture<T>> attempt;
+        private final String operationName;
+        private final String budgetKey;
+        private final RetryStrategy strategy;
+        private final CompletableFuture<T> result = new CompletableFuture<>();
+        private volatile Future<?> pending;
+        
+        RetryExecution(Supplier<CompletableFuture<T>> attempt, String operationName, String budgetKey,
+                       RetryStrategy strategy) {
+            this.attempt = attempt;
+            this.operationName = operationName;
+            this.budgetKey = budgetKey;
+            this.strategy = strategy;
+            result.whenComplete((value, error) -> {
+                Future<?> current = pending;
+                if (result.isCancelled() && current != null) {
+                    current.cancel(true);
+                }
+            });
+        }
+        
+        void run(int attemptNumber) {
+            if (result.isDone()) {
+                return;
+            }
+            CompletableFuture<T> future;
+            try {
+                future = attempt.get();
+            } catch (Exception e) {
+                future = new CompletableFuture<>();
+                future.completeExceptionally(e);
+            }
+            pending = future;
+            future.whenComplete((value, error) -> {
+                if (error == null) {
+                    budgetFor(budgetKey).deposit();
+                    if (attemptNumber > 0) {
+                        log.info("Operation {} succeeded on attempt {}", operationName, attemptNumber + 1);
                     }
-                    
-                    attempt++;
+                    result.complete(value);
+                } else {
+                    onFailure(attemptNumber, unwrap(error));
                 }
+            });
+            if (result.isCancelled()) {
+                future.cancel(true);
             }
+        }
+        
+        private void onFailure(int attemptNumber, Throwable error) {
+            if (result.isDone()) {
+                return;
+            }
+            if (!(error instanceof Exception)) {
+                result.completeExceptionally(error);
+                return;
+            }
+            Exception e = (Exception) error;
+            RetryStrategy retryStrategy = strategy != null ? strategy : getRetryStrategy(e);
             
-            throw new RetryExhaustedException(
-                "Operation " + operationName + " failed after " + attempt + " attempts", lastException);
-        });
+            if (!retryStrategy.shouldRetry(attemptNumber, e)) {
+                log.warn("Operation {} failed and retry strategy says not to retry: {}", operationName, e.getMessage());
+                exhausted(attemptNumber + 1, e);
+                return;
+            }
+            if (attemptNumber + 1 >= getMaxRetries()) {
+                exhausted(attemptNumber + 1, e);
+                return;
+            }
+            if (!budgetFor(budgetKey).tryAcquire()) {
+                log.warn("Operation {} failed and retry budget for {} is exhausted: {}", 
+                    operationName, budgetKey, e.getMessage());
+                exhausted(attemptNumber + 1, e);
+                return;
+            }
+            
+            long delay = jitter(retryStrategy.getDelayMs(attemptNumber, e));
+            log.info("Operation {} failed (attempt {}), retrying in {}ms: {}", 
+                operationName, attemptNumber + 1, delay, e.getMessage());
+            try {
+                pending = schedule(() -> run(attemptNumber + 1), delay);
+            } catch (RejectedExecutionException rejected) {
+                exhausted(attemptNumber + 1, e);
+                return;
+            }
+            if (result.isCancelled()) {
+                pending.cancel(false);
+            }
+        }
+        
+        private void exhausted(int attempts, Exception lastException) {
+            result.completeExceptionally(new RetryExhaustedException(
+                "Operation " + operationName + " failed after " + attempts + " attempts", lastException));
+        }
+    }
+    
+    private static Throwable unwrap(Throwable error) {
+        while ((error instanceof CompletionException || error instanceof ExecutionException) && error.getCause() != null) {
+            error = error.getCause();
+        }
+        return error;
     }
     
     /**
@@ -143,6 +358,56 @@ public class RetryManager {
     public interface RetryStrategy {
         boolean shouldRetry(int attempt, Exception exception);
         long getDelayMs(int attempt);
+        
+        /**
+         * 按失败原因计算延迟，默认只按尝试次数计算
+         */
+        default long getDelayMs(int attempt, Exception exception) {
+            return getDelayMs(attempt);
+        }
+    }
+    
+    /**
+     * 重试预算
+     * 每次重试消耗一个额度，每次成功补充tokenRatio个额度，额度上限为maxTokens；
+     * 目标主机持续失败时额度很快耗尽，此后只有成功请求补充的额度可用于重试，避免重试放大故障
+     */
+    static class RetryBudget {
+        private final double maxTokens;
+        private final double tokenRatio;
+        private double tokens;
+        private long lastUsedNanos = System.nanoTime();
+        
+        RetryBudget(double maxTokens, double tokenRatio) {
+            this.maxTokens = maxTokens;
+            this.tokenRatio = tokenRatio;
+            this.tokens = maxTokens;
+        }
+        
+        synchronized boolean tryAcquire() {
+            lastUsedNanos = System.nanoTime();
+            if (tokens < 1) {
+                return false;
+            }
+            tokens -= 1;
+            return true;
+        }
+        
+        synchronized void deposit() {
+            lastUsedNanos = System.nanoTime();
+            tokens = Math.min(maxTokens, tokens + tokenRatio);
+        }
+        
+        /**
+         * 额度已满且超过空闲时间未使用，移除后重新创建不会改变重试行为
+         */
+        synchronized boolean isIdle(long nowNanos, long idleNanos) {
+            return tokens >= maxTokens && nowNanos - lastUsedNanos >= idleNanos;
+        }
+        
+        synchronized double getTokens() {
+            return tokens;
+        }
     }
     
     /**
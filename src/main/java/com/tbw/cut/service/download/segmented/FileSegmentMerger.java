@@ -1,5 +1,6 @@
 package com.tbw.cut.service.download.segmented;
 
+import com.tbw.cut.service.download.buffer.DirectBufferPool;
 import com.tbw.cut.service.download.logging.DownloadTimeLogger;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -7,8 +8,12 @@ import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.*;
 import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
@@ -26,6 +31,9 @@ public class FileSegmentMerger {
     @Value("${download.merge.buffer-size:65536}") // 64KB
     private int bufferSize;
     
+    @Value("${download.merge.transfer-chunk-size:67108864}") // 64MB，单次transferTo的最大字节数
+    private long transferChunkSize;
+    
     @Value("${download.merge.verify-checksum:true}")
     private boolean verifyChecksum;
     
@@ -35,6 +43,9 @@ public class FileSegmentMerger {
     @Autowired
     private DownloadTimeLogger downloadTimeLogger;
     
+    @Autowired(required = false)
+    private DirectBufferPool bufferPool;
+    
     private final ExecutorService cleanupExecutor = Executors.newSingleThreadExecutor(r -> {
         Thread t = new Thread(r, "file-merger-cleanup");
         t.setDaemon(true);
@@ -52,6 +63,21 @@ public class FileSegmentMerger {
     public CompletableFuture<MergeResult> mergeSegments(
             List<String> segmentFiles, String outputPath, long expectedSize,
             MergeProgressCallback progressCallback) {
+        return mergeSegments(segmentFiles, null, outputPath, expectedSize, progressCallback);
+    }
+    
+    /**
+     * 合并分段文件，使用下载时已计算的分段摘要生成整体校验值
+     * @param segmentFiles 分段文件路径列表（按顺序）
+     * @param segmentChecksums 分段MD5摘要列表（与分段文件一一对应，可为null）
+     * @param outputPath 输出文件路径
+     * @param expectedSize 预期文件大小（用于验证）
+     * @param progressCallback 进度回调
+     * @return 合并结果
+     */
+    public CompletableFuture<MergeResult> mergeSegments(
+            List<String> segmentFiles, List<String> segmentChecksums, String outputPath, 
+            long expectedSize, MergeProgressCallback progressCallback) {
         
         return CompletableFuture.supplyAsync(() -> {
             log.info("Starting merge of {} segments to {}", segmentFiles.size(), outputPath);
@@ -67,7 +93,8 @@ public class FileSegmentMerger {
                 createOutputDirectory(outputPath);
                 
                 // 执行合并
-                MergeResult result = performMerge(segmentFiles, outputPath, expectedSize, progressCallback, taskId);
+                MergeResult result = performMerge(segmentFiles, segmentChecksums, outputPath, 
+                    expectedSize, progressCallback, taskId);
                 
                 if (result.isSuccess()) {
                     // 记录文件合并时长
@@ -128,49 +155,51 @@ public class FileSegmentMerger {
     
     /**
      * 执行文件合并
+     * 使用FileChannel.transferTo由内核完成数据拷贝，不经过JVM缓冲区
      * @param segmentFiles 分段文件列表
+     * @param segmentChecksums 分段MD5摘要列表（可为null）
      * @param outputPath 输出路径
      * @param expectedSize 预期大小
      * @param progressCallback 进度回调
      * @param taskId 任务ID
      * @return 合并结果
      */
-    private MergeResult performMerge(List<String> segmentFiles, String outputPath, 
+    private MergeResult performMerge(List<String> segmentFiles, List<String> segmentChecksums, String outputPath, 
                                    long expectedSize, MergeProgressCallback progressCallback, Long taskId) throws Exception {
         
         long startTime = System.currentTimeMillis();
         long totalMerged = 0;
-        MessageDigest md5Digest = verifyChecksum ? MessageDigest.getInstance("MD5") : null;
+        
+        if (segmentChecksums != null && segmentChecksums.size() != segmentFiles.size()) {
+            throw new IllegalArgumentException(String.format("Checksum count %d does not match segment count %d", 
+                segmentChecksums.size(), segmentFiles.size()));
+        }
         
         // 创建临时输出文件
         String tempOutputPath = outputPath + ".merging";
         
-        try (FileOutputStream outputStream = new FileOutputStream(tempOutputPath);
-             BufferedOutputStream bufferedOutput = new BufferedOutputStream(outputStream, bufferSize)) {
+        try (FileChannel outputChannel = FileChannel.open(Paths.get(tempOutputPath), 
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
             
             for (int i = 0; i < segmentFiles.size(); i++) {
                 String segmentFile = segmentFiles.get(i);
-                long segmentSize = Files.size(Paths.get(segmentFile));
-                long segmentMerged = 0;
-                
-                log.debug("Merging segment {}/{}: {} ({} bytes)", 
-                    i + 1, segmentFiles.size(), segmentFile, segmentSize);
                 
-                try (FileInputStream inputStream = new FileInputStream(segmentFile);
-                     BufferedInputStream bufferedInput = new BufferedInputStream(inputStream, bufferSize)) {
+                try (FileChannel inputChannel = FileChannel.open(Paths.get(segmentFile), StandardOpenOption.READ)) {
+                    long segmentSize = inputChannel.size();
+                    long segmentMerged = 0;
                     
-                    byte[] buffer = new byte[bufferSize];
-                    int bytesRead;
+                    log.debug("Merging segment {}/{}: {} ({} bytes)", 
+                        i + 1, segmentFiles.size(), segmentFile, segmentSize);
                     
-                    while ((bytesRead = bufferedInput.read(buffer)) != -1) {
-                        bufferedOutput.write(buffer, 0, bytesRead);
-                        
-                        if (md5Digest != null) {
-                            md5Digest.update(buffer, 0, bytesRead);
+                    while (segmentMerged < segmentSize) {
+                        long count = Math.min(transferChunkSize, segmentSize - segmentMerged);
+                        long transferred = inputChannel.transferTo(segmentMerged, count, outputChannel);
+                        if (transferred <= 0) {
+                            throw new IOException("Failed to transfer data from segment: " + segmentFile);
                         }
                         
-                        segmentMerged += bytesRead;
-                        totalMerged += bytesRead;
+                        segmentMerged += transferred;
+                        totalMerged += transferred;
                         
                         // 更新进度
                         if (progressCallback != null) {
@@ -180,14 +209,13 @@ public class FileSegmentMerger {
                             progressCallback.onProgress(i, segmentProgress, totalProgress, totalMerged);
                         }
                     }
+                    
+                    log.debug("Segment {} merged: {} bytes", i + 1, segmentMerged);
                 }
-                
-                log.debug("Segment {} merged: {} bytes", i + 1, segmentMerged);
             }
             
             // 确保数据写入磁盘
-            bufferedOutput.flush();
-            outputStream.getFD().sync();
+            outputChannel.force(true);
         }
         
         // 验证合并结果
@@ -203,19 +231,15 @@ public class FileSegmentMerger {
         }
         
         // 原子性地移动临时文件到最终位置
-        try {
-            Files.move(Paths.get(tempOutputPath), Paths.get(outputPath), 
-                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
-        } catch (IOException e) {
-            // 如果原子移动失败，尝试普通复制
-            log.warn("Atomic move failed, trying copy: {}", e.getMessage());
-            Files.copy(Paths.get(tempOutputPath), Paths.get(outputPath), 
-                StandardCopyOption.REPLACE_EXISTING);
-            Files.deleteIfExists(Paths.get(tempOutputPath));
-        }
+        moveIntoPlace(Paths.get(tempOutputPath), Paths.get(outputPath));
         
         long duration = System.currentTimeMillis() - startTime;
-        String checksum = md5Digest != null ? bytesToHex(md5Digest.digest()) : null;
+        String checksum = null;
+        if (verifyChecksum) {
+            // 优先使用下载时增量计算的分段摘要，缺失时才回读分段文件
+            List<String> checksums = segmentChecksums != null ? segmentChecksums : digestFiles(segmentFiles);
+            checksum = combineChecksums(checksums);
+        }
         
         log.info("Merge completed successfully: {} bytes in {} ms (checksum: {})", 
             totalMerged, duration, checksum);
@@ -223,6 +247,70 @@ public class FileSegmentMerger {
         return MergeResult.success(totalMerged, duration, checksum);
     }
     
+    /**
+     * 合并分段摘要为整体校验值
+     * 格式为各分段MD5拼接后的MD5加分段数后缀，与分段方式相关，不等同于整文件MD5
+     * @param segmentChecksums 分段MD5摘要（十六进制）
+     * @return 整体校验值
+     */
+    static String combineChecksums(List<String> segmentChecksums) throws NoSuchAlgorithmException {
+        MessageDigest md5Digest = MessageDigest.getInstance("MD5");
+        for (String segmentChecksum : segmentChecksums) {
+            if (segmentChecksum == null) {
+                return null;
+            }
+            md5Digest.update(hexToBytes(segmentChecksum));
+        }
+        return bytesToHex(md5Digest.digest()) + "-" + segmentChecksums.size();
+    }
+    
+    /**
+     * 计算分段文件的MD5摘要（分段未携带摘要时使用）
+     * @param segmentFiles 分段文件列表
+     * @return 分段MD5摘要列表
+     */
+    private List<String> digestFiles(List<String> segmentFiles) throws IOException, NoSuchAlgorithmException {
+        List<String> checksums = new ArrayList<>(segmentFiles.size());
+        ByteBuffer buffer = bufferPool != null ? bufferPool.acquire(bufferSize) : ByteBuffer.allocateDirect(bufferSize);
+        
+        try {
+            for (String segmentFile : segmentFiles) {
+                MessageDigest md5Digest = MessageDigest.getInstance("MD5");
+                try (FileChannel inputChannel = FileChannel.open(Paths.get(segmentFile), StandardOpenOption.READ)) {
+                    buffer.clear();
+                    while (inputChannel.read(buffer) != -1) {
+                        buffer.flip();
+                        md5Digest.update(buffer);
+                        buffer.clear();
+                    }
+                }
+                checksums.add(bytesToHex(md5Digest.digest()));
+            }
+        } finally {
+            if (bufferPool != null) {
+                bufferPool.release(buffer);
+            }
+        }
+        return checksums;
+    }
+    
+    /**
+     * 原子性地将临时文件移动到最终位置，原子移动不可用时降级为复制
+     * @param source 临时文件
+     * @param target 最终文件
+     */
+    static void moveIntoPlace(Path source, Path target) throws IOException {
+        try {
+            Files.move(source, target, 
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            // 如果原子移动失败，尝试普通复制
+            log.warn("Atomic move failed, trying copy: {}", e.getMessage());
+            Files.copy(source, target, StandardCopyOption.REPLACE_EXISTING);
+            Files.deleteIfExists(source);
+        }
+    }
+    
     /**
      * 验证合并后的文件
      * @param filePath 文件路径
@@ -332,7 +420,7 @@ public class FileSegmentMerger {
      * @param bytes 字节数组
      * @return 十六进制字符串
      */
-    private String bytesToHex(byte[] bytes) {
+    static String bytesToHex(byte[] bytes) {
         StringBuilder result = new StringBuilder();
         for (byte b : bytes) {
             result.append(String.format("%02x", b));
@@ -340,6 +428,19 @@ public class FileSegmentMerger {
         return result.toString();
     }
     
+    /**
+     * 十六进制字符串转字节数组
+     * @param hex 十六进制字符串
+     * @return 字节数组
+     */
+    private static byte[] hexToBytes(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+        }
+        return bytes;
+    }
+    
     /**
      * 关闭合并器
      */
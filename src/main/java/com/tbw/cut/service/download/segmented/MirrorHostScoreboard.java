@@ -0,0 +1,263 @@
+package com.tbw.cut.service.download.segmented;
+
+import com.alibaba.fastjson.JSONObject;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * CDN镜像主机评分
+ * 按主机记录随时间衰减的单连接吞吐量和错误分，分段下载据此在同一流的多个镜像URL之间分配连接；
+ * 长时间没有样本的主机评分逐渐回到未知状态，使其重新获得探测机会。评分跨任务持久化
+ */
+@Slf4j
+@Component
+public class MirrorHostScoreboard {
+
+    // 吞吐量EWMA的平滑系数
+    private static final double THROUGHPUT_ALPHA = 0.3;
+
+    @Value("${download.segment.mirror.score-half-life-ms:600000}")
+    private long scoreHalfLifeMs = 600000;
+
+    @Value("${download.segment.mirror.state-file:download_host_scores.json}")
+    private String stateFile = "download_host_scores.json";
+
+    private final ConcurrentHashMap<String, HostScore> scores = new ConcurrentHashMap<>();
+    private volatile boolean dirty;
+
+    /**
+     * 加载已保存的主机评分
+     */
+    @PostConstruct
+    public void loadScores() {
+        Path path = Paths.get(stateFile);
+        if (!Files.exists(path)) {
+            return;
+        }
+
+        try {
+            JSONObject state = JSONObject.parseObject(new String(Files.readAllBytes(path), StandardCharsets.UTF_8));
+            if (state != null) {
+                for (String host : state.keySet()) {
+                    JSONObject entry = state.getJSONObject(host);
+                    if (entry != null) {
+                        scores.put(host, new HostScore(entry.getDoubleValue("throughput"),
+                            entry.getLongValue("throughputAt"), entry.getDoubleValue("errors"),
+                            entry.getLongValue("errorsAt")));
+                    }
+                }
+            }
+            log.info("Loaded mirror host scores for {} hosts from {}", scores.size(), path);
+        } catch (Exception e) {
+            log.warn("Failed to load mirror host scores from {}", path, e);
+        }
+    }
+
+    /**
+     * 记录一次连接的吞吐量
+     * @param url 请求URL
+     * @param bytesPerSecond 吞吐量（字节/秒）
+     */
+    public void recordThroughput(String url, double bytesPerSecond) {
+        if (bytesPerSecond <= 0) {
+            return;
+        }
+        scores.computeIfAbsent(hostOf(url), host -> new HostScore())
+            .recordThroughput(bytesPerSecond, System.currentTimeMillis(), scoreHalfLifeMs);
+        dirty = true;
+    }
+
+    /**
+     * 记录一次请求失败
+     * @param url 请求URL
+     */
+    public void recordError(String url) {
+        scores.computeIfAbsent(hostOf(url), host -> new HostScore())
+            .recordError(System.currentTimeMillis(), scoreHalfLifeMs);
+        dirty = true;
+    }
+
+    /**
+     * 获取主机当前评分
+     * @param host 主机名
+     * @return 评分（估计的单连接有效吞吐量），没有记录时返回-1
+     */
+    public double getScore(String host) {
+        HostScore score = scores.get(host);
+        return score != null ? score.score(System.currentTimeMillis(), scoreHalfLifeMs, 0) : -1;
+    }
+
+    /**
+     * 为新请求选择镜像URL
+     * 按评分分配连接：选择 (当前连接数+1)/评分 最小的主机，没有记录的主机按已知最好的吞吐量估计以便探测
+     * @param urls 同一流的镜像URL（第一个为主URL）
+     * @param activeConnections 各主机当前的连接数
+     * @param avoidHost 需要避开的主机（如刚失败或过慢的主机），其他主机都不可用时仍可能选择
+     * @return 选中的URL
+     */
+    public String selectUrl(List<String> urls, Map<String, AtomicInteger> activeConnections, String avoidHost) {
+        if (urls.size() == 1) {
+            return urls.get(0);
+        }
+
+        long now = System.currentTimeMillis();
+        double prior = 0;
+        for (String url : urls) {
+            HostScore score = scores.get(hostOf(url));
+            if (score != null) {
+                prior = Math.max(prior, score.score(now, scoreHalfLifeMs, 0));
+            }
+        }
+        if (prior <= 0) {
+            prior = 1;
+        }
+
+        String selected = null;
+        double selectedLoad = Double.MAX_VALUE;
+        for (String url : urls) {
+            String host = hostOf(url);
+            if (host.equals(avoidHost)) {
+                continue;
+            }
+            HostScore score = scores.get(host);
+            double hostScore = score != null ? score.score(now, scoreHalfLifeMs, prior) : prior;
+            AtomicInteger active = activeConnections.get(host);
+            double load = ((active != null ? active.get() : 0) + 1) / Math.max(hostScore, 1e-9);
+            if (load < selectedLoad) {
+                selected = url;
+                selectedLoad = load;
+            }
+        }
+        return selected != null ? selected : urls.get(0);
+    }
+
+    /**
+     * 按主机去重镜像URL，保持原有顺序
+     * @param primaryUrl 主URL
+     * @param backupUrls 备用URL
+     * @return 每个主机保留一个URL的列表
+     */
+    public static List<String> distinctHosts(String primaryUrl, List<String> backupUrls) {
+        Map<String, String> byHost = new LinkedHashMap<>();
+        byHost.put(hostOf(primaryUrl), primaryUrl);
+        if (backupUrls != null) {
+            for (String url : backupUrls) {
+                if (url != null && !url.isEmpty()) {
+                    byHost.putIfAbsent(hostOf(url), url);
+                }
+            }
+        }
+        return new ArrayList<>(byHost.values());
+    }
+
+    /**
+     * 从URL提取主机名
+     * @param url URL
+     * @return 主机名，无法解析时返回URL本身
+     */
+    public static String hostOf(String url) {
+        try {
+            String host = new java.net.URL(url).getHost();
+            return host != null && !host.isEmpty() ? host : url;
+        } catch (Exception e) {
+            return url;
+        }
+    }
+
+    /**
+     * 持久化主机评分，没有变化时跳过
+     */
+    public synchronized void saveScores() {
+        if (!dirty) {
+            return;
+        }
+        dirty = false;
+
+        Path path = Paths.get(stateFile);
+        try {
+            JSONObject state = new JSONObject();
+            for (Map.Entry<String, HostScore> entry : scores.entrySet()) {
+                state.put(entry.getKey(), entry.getValue().toJson());
+            }
+
+            Path tempFile = path.resolveSibling(path.getFileName() + ".tmp");
+            Files.write(tempFile, state.toJSONString().getBytes(StandardCharsets.UTF_8));
+            Files.move(tempFile, path, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            log.warn("Failed to save mirror host scores to {}", path, e);
+        }
+    }
+
+    /**
+     * 单个主机的衰减评分
+     */
+    private static class HostScore {
+        private double throughput;
+        private long throughputAt;
+        private double errors;
+        private long errorsAt;
+
+        HostScore() {
+        }
+
+        HostScore(double throughput, long throughputAt, double errors, long errorsAt) {
+            this.throughput = throughput;
+            this.throughputAt = throughputAt;
+            this.errors = errors;
+            this.errorsAt = errorsAt;
+        }
+
+        synchronized void recordThroughput(double sample, long now, long halfLifeMs) {
+            // 旧估计按时间衰减后的权重参与平滑，长时间未更新时以新样本为主
+            double retained = throughput > 0 ? (1 - THROUGHPUT_ALPHA) * decay(now - throughputAt, halfLifeMs) : 0;
+            throughput = throughput * retained + sample * (1 - retained);
+            throughputAt = now;
+        }
+
+        synchronized void recordError(long now, long halfLifeMs) {
+            errors = errors * decay(now - errorsAt, halfLifeMs) + 1;
+            errorsAt = now;
+        }
+
+        /**
+         * 当前评分：衰减后的吞吐量估计除以 (1 + 衰减后的错误分)
+         * @param prior 吞吐量置信度下降后回归的值
+         */
+        synchronized double score(long now, long halfLifeMs, double prior) {
+            double estimate = prior;
+            if (throughput > 0) {
+                double confidence = decay(now - throughputAt, halfLifeMs);
+                estimate = prior > 0 ? confidence * throughput + (1 - confidence) * prior : throughput;
+            }
+            return estimate / (1 + errors * decay(now - errorsAt, halfLifeMs));
+        }
+
+        synchronized JSONObject toJson() {
+            JSONObject json = new JSONObject();
+            json.put("throughput", throughput);
+            json.put("throughputAt", throughputAt);
+            json.put("errors", errors);
+            json.put("errorsAt", errorsAt);
+            return json;
+        }
+
+        private static double decay(long elapsedMs, long halfLifeMs) {
+            return Math.pow(0.5, Math.max(0, elapsedMs) / (double) Math.max(1, halfLifeMs));
+        }
+    }
+}
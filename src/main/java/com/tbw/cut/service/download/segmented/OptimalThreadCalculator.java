@@ -1,18 +1,27 @@
 package com.tbw.cut.service.download.segmented;
 
+import com.alibaba.fastjson.JSONObject;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PostConstruct;
+import java.io.IOException;
 import java.lang.management.ManagementFactory;
 import java.lang.management.MemoryMXBean;
 import java.lang.management.OperatingSystemMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * 最优线程数计算器
- * 基于文件大小、带宽、系统资源计算最优线程数
+ * 基于文件大小、带宽、系统资源计算最优线程数，下载过程中通过AIMD控制器在线调整连接数，并按服务器保存学习到的连接数
  */
 @Slf4j
 @Component
@@ -30,13 +39,57 @@ public class OptimalThreadCalculator {
     @Value("${download.thread.memory-threshold:0.8}")
     private double memoryThreshold;
     
+    @Value("${download.thread.adaptive.enabled:true}")
+    private boolean adaptiveEnabled;
+    
+    @Value("${download.thread.adaptive.sample-interval-ms:3000}")
+    private long adaptiveSampleIntervalMs;
+    
+    @Value("${download.thread.adaptive.min-gain:0.05}")
+    private double adaptiveMinGain;
+    
+    @Value("${download.thread.adaptive.decrease-factor:0.5}")
+    private double adaptiveDecreaseFactor;
+    
+    @Value("${download.thread.adaptive.state-file:download_connection_limits.json}")
+    private String adaptiveStateFile;
+    
     // 历史性能数据存储
     private final ConcurrentHashMap<String, PerformanceData> performanceHistory = new ConcurrentHashMap<>();
     
+    // 各服务器学习到的最优连接数
+    private final ConcurrentHashMap<String, Integer> learnedConnections = new ConcurrentHashMap<>();
+    
     // 系统资源监控
     private final OperatingSystemMXBean osBean = ManagementFactory.getOperatingSystemMXBean();
     private final MemoryMXBean memoryBean = ManagementFactory.getMemoryMXBean();
     
+    /**
+     * 加载已保存的各服务器最优连接数
+     */
+    @PostConstruct
+    public void loadLearnedConnections() {
+        Path stateFile = Paths.get(adaptiveStateFile);
+        if (!Files.exists(stateFile)) {
+            return;
+        }
+        
+        try {
+            JSONObject state = JSONObject.parseObject(new String(Files.readAllBytes(stateFile), StandardCharsets.UTF_8));
+            if (state != null) {
+                for (String host : state.keySet()) {
+                    Integer connections = state.getInteger(host);
+                    if (connections != null && connections > 0) {
+                        learnedConnections.put(host, connections);
+                    }
+                }
+            }
+            log.info("Loaded learned connection counts for {} hosts from {}", learnedConnections.size(), stateFile);
+        } catch (Exception e) {
+            log.warn("Failed to load learned connection counts from {}", stateFile, e);
+        }
+    }
+    
     /**
      * 计算最优线程数
      * @param fileSize 文件大小（字节）
@@ -68,6 +121,9 @@ public class OptimalThreadCalculator {
         // 6. 应用最终限制
         int optimalThreads = Math.max(minThreads, Math.min(maxThreads, historyAdjustedThreads));
         
+        // 7. 已学习到该服务器的最优连接数时直接使用
+        optimalThreads = getLearnedConnections(serverUrl, optimalThreads);
+        
         log.info("Optimal threads calculation - CPU: {}, Memory: {}, Bandwidth: {}, FileSize: {}, History: {}, Final: {}", 
             cpuBasedThreads, memoryBasedThreads, bandwidthBasedThreads, 
             fileSizeBasedThreads, historyAdjustedThreads, optimalThreads);
@@ -259,6 +315,99 @@ public class OptimalThreadCalculator {
             serverKey, threadCount, efficiency, throughput / (1024 * 1024));
     }
     
+    /**
+     * 记录单个连接的吞吐量
+     * @param serverUrl 服务器URL
+     * @param bytesPerSecond 连接吞吐量（字节/秒）
+     */
+    public void recordConnectionThroughput(String serverUrl, double bytesPerSecond) {
+        if (serverUrl == null || bytesPerSecond <= 0) {
+            return;
+        }
+        
+        String serverKey = extractServerKey(serverUrl);
+        performanceHistory.computeIfAbsent(serverKey, key -> new PerformanceData())
+            .addConnectionSample(bytesPerSecond);
+        
+        log.debug("Recorded connection throughput - server: {}, throughput: {} KB/s", 
+            serverKey, (long) (bytesPerSecond / 1024));
+    }
+    
+    /**
+     * 获取服务器的历史单连接平均吞吐量
+     * @param serverUrl 服务器URL
+     * @return 平均吞吐量（字节/秒），没有历史数据时返回0
+     */
+    public double getAverageConnectionThroughput(String serverUrl) {
+        if (serverUrl == null) {
+            return 0.0;
+        }
+        
+        PerformanceData history = performanceHistory.get(extractServerKey(serverUrl));
+        return history != null ? history.getAverageConnectionThroughput() : 0.0;
+    }
+    
+    /**
+     * 获取服务器学习到的最优连接数
+     * @param serverUrl 服务器URL
+     * @param defaultConnections 没有学习结果时使用的连接数
+     * @return 连接数
+     */
+    public int getLearnedConnections(String serverUrl, int defaultConnections) {
+        Integer learned = serverUrl != null ? learnedConnections.get(extractServerKey(serverUrl)) : null;
+        int connections = learned != null ? learned : defaultConnections;
+        return Math.max(minThreads, Math.min(maxThreads, connections));
+    }
+    
+    /**
+     * 创建下载过程中使用的连接数控制器
+     * @param initialConnections 初始连接数
+     * @return 控制器，未启用自适应调整时返回null
+     */
+    public ConnectionController createConnectionController(int initialConnections) {
+        if (!adaptiveEnabled) {
+            return null;
+        }
+        return new ConnectionController(initialConnections, minThreads, maxThreads, 
+            adaptiveMinGain, adaptiveDecreaseFactor, adaptiveSampleIntervalMs);
+    }
+    
+    /**
+     * 保存控制器学习到的最优连接数，同一服务器的下次下载从该值开始
+     * @param serverUrl 服务器URL
+     * @param controller 连接数控制器
+     */
+    public void recordLearnedConnections(String serverUrl, ConnectionController controller) {
+        if (serverUrl == null || controller == null || !controller.hasSamples()) {
+            return;
+        }
+        
+        String serverKey = extractServerKey(serverUrl);
+        int connections = controller.getLearnedConnections();
+        Integer previous = learnedConnections.put(serverKey, connections);
+        if (previous == null || previous != connections) {
+            log.info("Learned connection count for {}: {} (previous: {})", serverKey, connections, previous);
+            saveLearnedConnections();
+        }
+    }
+    
+    /**
+     * 持久化各服务器学习到的最优连接数
+     */
+    private synchronized void saveLearnedConnections() {
+        Path stateFile = Paths.get(adaptiveStateFile);
+        try {
+            JSONObject state = new JSONObject();
+            state.putAll(learnedConnections);
+            
+            Path tempFile = stateFile.resolveSibling(stateFile.getFileName() + ".tmp");
+            Files.write(tempFile, state.toJSONString().getBytes(StandardCharsets.UTF_8));
+            Files.move(tempFile, stateFile, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            log.warn("Failed to save learned connection counts to {}", stateFile, e);
+        }
+    }
+    
     /**
      * 从URL提取服务器标识
      * @param url URL
@@ -273,6 +422,116 @@ public class OptimalThreadCalculator {
         }
     }
     
+    /**
+     * 连接数AIMD控制器
+     * 按采样间隔测量总有效吞吐量：增加一个连接后吞吐量提升超过阈值则继续加性增加，
+     * 没有收益时回退一个连接并保持若干采样周期；出现错误、403或吞吐量停滞时乘性减少
+     */
+    public static class ConnectionController {
+        // 回退后保持的采样周期数
+        private static final int HOLD_SAMPLES = 3;
+        
+        private final int minConnections;
+        private final int maxConnections;
+        private final double minGain;
+        private final double decreaseFactor;
+        private final long sampleIntervalMs;
+        private final AtomicInteger errorCount = new AtomicInteger(0);
+        
+        private int targetConnections;
+        private double baselineGoodput;
+        private boolean probing;
+        private int holdSamples;
+        private int sampleCount;
+        
+        // 最近一次回退以来吞吐量最高时的连接数
+        private double bestGoodput;
+        private int bestConnections;
+        
+        ConnectionController(int initialConnections, int minConnections, int maxConnections,
+                             double minGain, double decreaseFactor, long sampleIntervalMs) {
+            this.minConnections = minConnections;
+            this.maxConnections = maxConnections;
+            this.minGain = minGain;
+            this.decreaseFactor = decreaseFactor;
+            this.sampleIntervalMs = sampleIntervalMs;
+            this.targetConnections = Math.max(minConnections, Math.min(maxConnections, initialConnections));
+        }
+        
+        /**
+         * 记录一次连接错误（包括403和读取超时），在下一次采样时触发乘性减少
+         */
+        public void recordError() {
+            errorCount.incrementAndGet();
+        }
+        
+        /**
+         * 处理一次吞吐量采样
+         * @param bytes 采样周期内下载的字节数
+         * @param intervalMs 采样周期长度
+         * @return 新的目标连接数
+         */
+        public synchronized int onSample(long bytes, long intervalMs) {
+            double goodput = intervalMs > 0 ? bytes * 1000.0 / intervalMs : 0;
+            int errors = errorCount.getAndSet(0);
+            sampleCount++;
+            
+            if (errors > 0 || goodput <= 0) {
+                // 错误或停滞：乘性减少
+                int previous = targetConnections;
+                targetConnections = Math.max(minConnections, (int) Math.floor(targetConnections * decreaseFactor));
+                probing = false;
+                holdSamples = HOLD_SAMPLES;
+                bestGoodput = 0;
+                bestConnections = targetConnections;
+                log.info("Connection controller backing off from {} to {} connections ({} errors, goodput {} KB/s)", 
+                    previous, targetConnections, errors, (long) (goodput / 1024));
+                return targetConnections;
+            }
+            
+            if (goodput > bestGoodput * (1 + minGain)) {
+                // 只有明显的提升才更新最优连接数，避免在平台期偏向更多连接
+                bestGoodput = goodput;
+                bestConnections = targetConnections;
+            }
+            
+            if (probing) {
+                probing = false;
+                if (goodput >= baselineGoodput * (1 + minGain)) {
+                    // 增加连接带来了收益，继续探测
+                    baselineGoodput = goodput;
+                    return probe();
+                }
+                // 没有边际收益，回退并保持
+                targetConnections = Math.max(minConnections, targetConnections - 1);
+                holdSamples = HOLD_SAMPLES;
+                baselineGoodput = goodput;
+                log.debug("Connection controller found no gain, holding at {} connections", targetConnections);
+                return targetConnections;
+            }
+            
+            baselineGoodput = goodput;
+            if (holdSamples > 0) {
+                holdSamples--;
+                return targetConnections;
+            }
+            return probe();
+        }
+        
+        private int probe() {
+            if (targetConnections < maxConnections) {
+                targetConnections++;
+                probing = true;
+            }
+            return targetConnections;
+        }
+        
+        public synchronized int getTargetConnections() { return targetConnections; }
+        public synchronized boolean hasSamples() { return sampleCount > 0; }
+        public synchronized int getLearnedConnections() { return bestConnections > 0 ? bestConnections : targetConnections; }
+        public long getSampleIntervalMs() { return sampleIntervalMs; }
+    }
+    
     /**
      * 性能数据内部类
      */
@@ -280,6 +539,8 @@ public class OptimalThreadCalculator {
         private final AtomicLong totalSamples = new AtomicLong(0);
         private volatile double totalEfficiency = 0.0;
         private volatile double totalThroughput = 0.0;
+        private final AtomicLong connectionSamples = new AtomicLong(0);
+        private volatile double totalConnectionThroughput = 0.0;
         private final Object lock = new Object();
         
         public void addSample(int threadCount, double efficiency, double throughput) {
@@ -297,6 +558,19 @@ public class OptimalThreadCalculator {
             }
         }
         
+        public void addConnectionSample(double throughput) {
+            synchronized (lock) {
+                connectionSamples.incrementAndGet();
+                totalConnectionThroughput += throughput;
+                
+                // 保持最近100个样本
+                if (connectionSamples.get() > 100) {
+                    totalConnectionThroughput *= 0.99;
+                    connectionSamples.set(99);
+                }
+            }
+        }
+        
         public double getAverageEfficiency() {
             long samples = totalSamples.get();
             return samples > 0 ? totalEfficiency / samples : 0.0;
@@ -307,6 +581,11 @@ public class OptimalThreadCalculator {
             return samples > 0 ? totalThroughput / samples : 0.0;
         }
         
+        public double getAverageConnectionThroughput() {
+            long samples = connectionSamples.get();
+            return samples > 0 ? totalConnectionThroughput / samples : 0.0;
+        }
+        
         public long getSampleCount() {
             return totalSamples.get();
         }
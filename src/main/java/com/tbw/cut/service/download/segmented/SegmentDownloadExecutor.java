@@ -1,7 +1,10 @@
 package com.tbw.cut.service.download.segmented;
 
+import com.tbw.cut.service.download.bandwidth.BandwidthGovernor;
+import com.tbw.cut.service.download.buffer.DirectBufferPool;
 import com.tbw.cut.service.download.model.DownloadResult;
 import com.tbw.cut.service.download.logging.DownloadTimeLogger;
+import com.tbw.cut.service.download.retry.RetryManager;
 import com.tbw.cut.bilibili.BilibiliApiClient;
 import com.tbw.cut.service.VideoUrlRefreshService;
 import lombok.extern.slf4j.Slf4j;
@@ -12,17 +15,32 @@ import org.springframework.stereotype.Component;
 import java.io.*;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
+import java.util.Queue;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * 分段下载执行器
- * 实现HTTP Range请求下载和分段进度跟踪
+ * 实现HTTP Range请求下载和分段进度跟踪，空闲连接动态拆分剩余范围并对慢分段发起对冲请求，
+ * 连接数由OptimalThreadCalculator的控制器根据实测吞吐量在线调整；
+ * 提供备用URL时按MirrorHostScoreboard的主机评分把请求分散到各CDN镜像
  */
 @Slf4j
 @Component
@@ -40,15 +58,69 @@ public class SegmentDownloadExecutor {
     @Value("${download.segment.retry-count:3}")
     private int maxRetries;
     
+    @Value("${download.segment.direct-write:true}")
+    private boolean directWriteEnabled;
+    
+    @Value("${download.merge.verify-checksum:true}")
+    private boolean checksumEnabled;
+    
+    @Value("${download.segment.checkpoint-interval-ms:1000}")
+    private long checkpointIntervalMs;
+    
+    @Value("${download.segment.min-split-size:1048576}")
+    private long minSplitSize;
+    
+    @Value("${download.segment.hedge-ratio:0.25}")
+    private double hedgeRatio;
+    
+    @Value("${download.segment.hedge-min-elapsed-ms:3000}")
+    private long hedgeMinElapsedMs;
+    
+    @Value("${download.segment.stream-chunk-size:4194304}")
+    private int streamChunkSize = 4 * 1024 * 1024;
+    
+    @Value("${download.segment.stream-read-ahead:4}")
+    private int streamReadAhead = 4;
+    
+    // 每个初始分段预留的清单槽位数，用于动态拆分
+    private static final int MANIFEST_SLOTS_PER_SEGMENT = 8;
+    
+    // 清单槽位下限，连接数增加后仍有足够的拆分空间
+    private static final int MIN_MANIFEST_SLOTS = 128;
+    
+    // 空闲连接检查对冲机会的间隔
+    private static final long IDLE_CHECK_INTERVAL_MS = 500;
+    
+    // 分段重试在重试预算中的操作名称
+    private static final String SEGMENT_RETRY_OPERATION = "segment-download";
+    
     @Autowired
     private DownloadTimeLogger downloadTimeLogger;
     
+    @Autowired(required = false)
+    private OptimalThreadCalculator optimalThreadCalculator;
+    
+    @Autowired(required = false)
+    private MirrorHostScoreboard mirrorHostScoreboard;
+    
+    @Autowired
+    private FileSegmentMerger fileSegmentMerger;
+    
     @Autowired(required = false)
     private BilibiliApiClient bilibiliApiClient;
     
     @Autowired(required = false)
     private VideoUrlRefreshService videoUrlRefreshService;
     
+    @Autowired(required = false)
+    private BandwidthGovernor bandwidthGovernor;
+    
+    @Autowired
+    private RetryManager retryManager;
+    
+    @Autowired
+    private DirectBufferPool bufferPool;
+    
     private final ExecutorService executorService = Executors.newCachedThreadPool(r -> {
         Thread t = new Thread(r, "segment-download-" + System.currentTimeMillis());
         t.setDaemon(true);
@@ -57,6 +129,7 @@ public class SegmentDownloadExecutor {
     
     /**
      * 执行分段下载
+     * 存在匹配的分段清单时只续传缺失的字节范围
      * @param url 下载URL
      * @param outputPath 输出文件路径
      * @param fileSize 文件总大小
@@ -67,76 +140,1108 @@ public class SegmentDownloadExecutor {
     public CompletableFuture<DownloadResult> executeSegmentedDownload(
             String url, String outputPath, long fileSize, int segmentCount,
             SegmentProgressCallback progressCallback) {
+        return executeSegmentedDownload(url, null, outputPath, fileSize, segmentCount, progressCallback);
+    }
+    
+    /**
+     * 执行分段下载，Range请求按主机评分分散到主URL和各备用URL
+     * 存在匹配的分段清单时只续传缺失的字节范围
+     * @param url 主URL
+     * @param backupUrls 同一流的备用URL（playurl中的backupUrl），可为空
+     * @param outputPath 输出文件路径
+     * @param fileSize 文件总大小
+     * @param segmentCount 分段数量
+     * @param progressCallback 进度回调
+     * @return 下载结果
+     */
+    public CompletableFuture<DownloadResult> executeSegmentedDownload(
+            String url, List<String> backupUrls, String outputPath, long fileSize, int segmentCount,
+            SegmentProgressCallback progressCallback) {
+        
+        List<String> mirrorUrls = mirrorHostScoreboard != null 
+            ? MirrorHostScoreboard.distinctHosts(url, backupUrls) : Collections.singletonList(url);
         
-        log.info("Starting segmented download: url={}, output={}, size={}, segments={}", 
-            url, outputPath, fileSize, segmentCount);
+        log.info("Starting segmented download: url={}, mirrors={}, output={}, size={}, segments={}", 
+            url, mirrorUrls.size(), outputPath, fileSize, segmentCount);
         
         return CompletableFuture.supplyAsync(() -> {
+            SegmentManifest manifest = null;
             try {
-                // 检查服务器是否支持Range请求
-                if (!supportsRangeRequests(url)) {
+                // 检查服务器是否支持Range请求，并获取真实文件大小
+                long contentLength = probeRangeSupport(mirrorUrls);
+                if (contentLength < 0) {
                     log.warn("Server does not support Range requests, falling back to single download");
                     return executeSingleDownload(url, outputPath, progressCallback);
                 }
                 
-                // 创建分段信息
-                List<SegmentInfo> segments = createSegments(fileSize, segmentCount);
+                long effectiveSize = contentLength > 0 ? contentLength : fileSize;
+                if (effectiveSize <= 0) {
+                    log.warn("File size unknown for {}, falling back to single download", outputPath);
+                    return executeSingleDownload(url, outputPath, progressCallback);
+                }
+                if (contentLength > 0 && fileSize > 0 && contentLength != fileSize) {
+                    log.info("Using server reported size {} instead of estimated size {} for {}", 
+                        contentLength, fileSize, outputPath);
+                }
                 
-                // 创建临时文件目录
-                Path tempDir = createTempDirectory(outputPath);
+                // 打开或创建分段清单
+                manifest = openOrCreateManifest(url, outputPath, effectiveSize, segmentCount);
+                List<SegmentInfo> segments = createSegments(manifest);
                 
-                // 并行下载所有分段
-                List<CompletableFuture<SegmentResult>> segmentFutures = new ArrayList<>();
-                AtomicLong totalDownloaded = new AtomicLong(0);
+                // 同一服务器已学习到最优连接数时从该值开始
+                int connectionCount = optimalThreadCalculator != null 
+                    ? optimalThreadCalculator.getLearnedConnections(url, segmentCount) : segmentCount;
                 
-                for (int i = 0; i < segments.size(); i++) {
-                    SegmentInfo segment = segments.get(i);
-                    String tempFilePath = tempDir.resolve("segment_" + i + ".tmp").toString();
-                    
-                    CompletableFuture<SegmentResult> segmentFuture = downloadSegment(
-                        url, segment, tempFilePath, totalDownloaded, fileSize, progressCallback);
-                    
-                    segmentFutures.add(segmentFuture);
+                if (directWriteEnabled) {
+                    // 直写模式：各分段按偏移量直接写入预分配的输出文件
+                    executeDirectWriteDownload(mirrorUrls, outputPath, manifest, segments, connectionCount, progressCallback);
+                } else {
+                    // 临时文件模式：分段写入临时文件后合并
+                    executeTempFileDownload(mirrorUrls, outputPath, manifest, segments, connectionCount, progressCallback);
                 }
                 
-                // 等待所有分段下载完成
-                CompletableFuture<Void> allSegments = CompletableFuture.allOf(
-                    segmentFutures.toArray(new CompletableFuture[0]));
+                // 下载完成后清单不再需要
+                manifest.delete();
+                manifest = null;
                 
-                allSegments.get(readTimeout * segmentCount, TimeUnit.MILLISECONDS);
+                log.info("Segmented download completed successfully: {}", outputPath);
+                return DownloadResult.success(outputPath);
                 
-                // 检查所有分段是否成功
-                List<SegmentResult> results = new ArrayList<>();
-                for (CompletableFuture<SegmentResult> future : segmentFutures) {
-                    SegmentResult result = future.get();
-                    if (!result.isSuccess()) {
-                        throw new RuntimeException("Segment download failed: " + result.getErrorMessage());
+            } catch (Exception e) {
+                log.error("Segmented download failed", e);
+                return DownloadResult.failure("Segmented download failed: " + e.getMessage());
+            } finally {
+                if (manifest != null) {
+                    try {
+                        manifest.close();
+                    } catch (IOException e) {
+                        log.warn("Failed to close segment manifest for {}", outputPath, e);
                     }
-                    results.add(result);
                 }
+            }
+        }, executorService);
+    }
+    
+    /**
+     * 检查输出文件是否存在可续传的分段清单
+     * @param outputPath 输出文件路径
+     * @return 是否可续传
+     */
+    public boolean hasResumableDownload(String outputPath) {
+        return Files.exists(getManifestPath(outputPath));
+    }
+    
+    /**
+     * 删除输出文件的续传数据：部分下载文件、分段临时目录和分段清单
+     * @param outputPath 输出文件路径
+     */
+    public void discardResumableDownload(String outputPath) throws IOException {
+        discardPartialData(outputPath);
+        Files.deleteIfExists(getManifestPath(outputPath));
+    }
+    
+    /**
+     * 流式下载：数据按字节顺序写入输出流（如FFmpeg读取的命名管道），不落盘
+     * 服务器支持Range时按固定大小分块，最多预读若干分块并发下载、按顺序交付，单个分块失败时换镜像重试；
+     * 输出流不可回退，因此不支持断点续传
+     * @param url 主URL
+     * @param backupUrls 同一流的备用URL，可为空
+     * @param name 下载名称，用于日志和带宽流量
+     * @param sink 输出流，在下载线程中打开
+     * @param progressCallback 进度回调
+     * @return 下载结果
+     */
+    public CompletableFuture<DownloadResult> executeStreamingDownload(
+            String url, List<String> backupUrls, String name, StreamSink sink,
+            SegmentProgressCallback progressCallback) {
+        
+        List<String> mirrorUrls = mirrorHostScoreboard != null 
+            ? MirrorHostScoreboard.distinctHosts(url, backupUrls) : Collections.singletonList(url);
+        
+        return CompletableFuture.supplyAsync(() -> {
+            BandwidthGovernor.Flow bandwidthFlow = bandwidthGovernor != null 
+                ? bandwidthGovernor.register(BandwidthGovernor.Direction.INGRESS, name) : null;
+            try {
+                long contentLength = probeRangeSupport(mirrorUrls);
+                if (contentLength <= 0) {
+                    log.warn("Range requests unavailable for streaming download {}, using a single connection", name);
+                    streamSingleConnection(url, sink, bandwidthFlow, progressCallback);
+                } else {
+                    streamChunks(mirrorUrls, contentLength, name, sink, bandwidthFlow, progressCallback);
+                }
+                log.info("Streaming download completed: {}", name);
+                return DownloadResult.success(name);
                 
-                // 合并分段文件
-                mergeSegments(results, outputPath);
+            } catch (Exception e) {
+                Throwable cause = e instanceof ExecutionException && e.getCause() != null ? e.getCause() : e;
+                log.error("Streaming download failed: {}", name, cause);
+                return DownloadResult.failure("Streaming download failed: " + cause.getMessage());
+            } finally {
+                if (bandwidthFlow != null) {
+                    bandwidthFlow.close();
+                }
+                if (mirrorHostScoreboard != null) {
+                    mirrorHostScoreboard.saveScores();
+                }
+            }
+        }, executorService);
+    }
+    
+    /**
+     * 分块并发下载并按顺序写入输出流
+     */
+    private void streamChunks(List<String> mirrorUrls, long contentLength, String name, StreamSink sink,
+                              BandwidthGovernor.Flow bandwidthFlow, 
+                              SegmentProgressCallback progressCallback) throws Exception {
+        int chunkCount = (int) ((contentLength + streamChunkSize - 1) / streamChunkSize);
+        ConcurrentHashMap<String, AtomicInteger> hostConnections = new ConcurrentHashMap<>();
+        AtomicBoolean stopped = new AtomicBoolean(false);
+        Queue<CompletableFuture<ByteBuffer>> window = new ArrayDeque<>();
+        int nextChunk = 0;
+        long written = 0;
+        
+        log.info("Streaming {} bytes of {} in {} chunks across {} mirrors", 
+            contentLength, name, chunkCount, mirrorUrls.size());
+        
+        try (OutputStream outputStream = sink.open()) {
+            WritableByteChannel outputChannel = Channels.newChannel(outputStream);
+            for (int i = 0; i < chunkCount; i++) {
+                // 保持预读窗口，后续分块在当前分块写出时并发下载
+                while (nextChunk < chunkCount && window.size() < Math.max(1, streamReadAhead)) {
+                    long from = (long) nextChunk * streamChunkSize;
+                    long to = Math.min(contentLength, from + streamChunkSize) - 1;
+                    window.add(fetchChunkAsync(mirrorUrls, hostConnections, from, to, stopped, bandwidthFlow));
+                    nextChunk++;
+                }
                 
-                // 清理临时文件
-                cleanupTempFiles(tempDir);
+                // 分块交付后才移出窗口，等待期间失败或中断时由finally归还
+                ByteBuffer chunk = window.peek().get();
+                window.poll();
+                int chunkLength = chunk.remaining();
+                try {
+                    while (chunk.hasRemaining()) {
+                        outputChannel.write(chunk);
+                    }
+                } finally {
+                    bufferPool.release(chunk);
+                }
+                written += chunkLength;
                 
-                log.info("Segmented download completed successfully: {}", outputPath);
-                return DownloadResult.success("Segmented download completed");
+                if (progressCallback != null) {
+                    progressCallback.onProgress(i, chunkLength, chunkLength, (double) written / contentLength);
+                    progressCallback.onBytesProgress(written, contentLength);
+                }
+            }
+        } finally {
+            // 失败时停止仍在下载的分块，并归还已下载完成但未写出的分块缓冲区
+            stopped.set(true);
+            for (CompletableFuture<ByteBuffer> pending : window) {
+                if (!pending.cancel(true) && !pending.isCompletedExceptionally()) {
+                    bufferPool.release(pending.join());
+                }
+            }
+        }
+    }
+    
+    /**
+     * 在下载线程池中下载分块；分块完成前future已被取消时，下载线程自行归还缓冲区
+     */
+    private CompletableFuture<ByteBuffer> fetchChunkAsync(List<String> mirrorUrls, 
+                                                          ConcurrentHashMap<String, AtomicInteger> hostConnections,
+                                                          long from, long to, AtomicBoolean stopped, 
+                                                          BandwidthGovernor.Flow bandwidthFlow) {
+        CompletableFuture<ByteBuffer> future = new CompletableFuture<>();
+        executorService.execute(() -> {
+            try {
+                ByteBuffer data = fetchChunk(mirrorUrls, hostConnections, from, to, stopped, bandwidthFlow);
+                if (!future.complete(data)) {
+                    bufferPool.release(data);
+                }
+            } catch (Throwable e) {
+                future.completeExceptionally(e);
+            }
+        });
+        return future;
+    }
+    
+    /**
+     * 下载单个分块到池化的缓冲区，失败时避开出错的镜像重试
+     * @return 处于可读状态的缓冲区，写出后由调用方归还
+     */
+    private ByteBuffer fetchChunk(List<String> mirrorUrls, ConcurrentHashMap<String, AtomicInteger> hostConnections,
+                              long from, long to, AtomicBoolean stopped, BandwidthGovernor.Flow bandwidthFlow) {
+        String failedUrl = null;
+        Exception lastException = null;
+        
+        for (int attempt = 1; attempt <= maxRetries && !stopped.get(); attempt++) {
+            String url = acquireMirror(mirrorUrls, hostConnections, failedUrl);
+            long startTime = System.currentTimeMillis();
+            HttpURLConnection connection = null;
+            ByteBuffer data = null;
+            try {
+                connection = openRangeConnection(url, from, to, null);
+                data = bufferPool.acquire((int) (to - from + 1));
+                try (ReadableByteChannel inputChannel = Channels.newChannel(connection.getInputStream())) {
+                    int bytesRead;
+                    while (data.hasRemaining() && !stopped.get() && (bytesRead = inputChannel.read(data)) != -1) {
+                        if (bandwidthFlow != null) {
+                            bandwidthFlow.acquire(bytesRead);
+                        }
+                    }
+                }
+                if (data.hasRemaining()) {
+                    throw new IOException(String.format("Chunk %d-%d incomplete: received %d bytes", from, to, data.position()));
+                }
+                data.flip();
+                
+                long elapsed = System.currentTimeMillis() - startTime;
+                if (mirrorHostScoreboard != null && elapsed > 0) {
+                    mirrorHostScoreboard.recordThroughput(url, data.remaining() * 1000.0 / elapsed);
+                }
+                // 交给调用方归还
+                ByteBuffer completed = data;
+                data = null;
+                return completed;
                 
             } catch (Exception e) {
-                log.error("Segmented download failed", e);
-                return DownloadResult.failure("Segmented download failed: " + e.getMessage());
+                lastException = e;
+                if (stopped.get()) {
+                    break;
+                }
+                failedUrl = url;
+                if (mirrorHostScoreboard != null) {
+                    mirrorHostScoreboard.recordError(url);
+                }
+                log.warn("Chunk {}-{} download failed (attempt {}): {}", from, to, attempt, e.getMessage());
+            } finally {
+                bufferPool.release(data);
+                releaseMirror(hostConnections, url);
+                if (connection != null) {
+                    connection.disconnect();
+                }
             }
-        }, executorService);
+        }
+        
+        throw new CompletionException(lastException != null 
+            ? lastException : new IOException("Streaming download cancelled"));
+    }
+    
+    /**
+     * 不支持Range时用单个连接顺序下载
+     */
+    private void streamSingleConnection(String url, StreamSink sink, BandwidthGovernor.Flow bandwidthFlow,
+                                        SegmentProgressCallback progressCallback) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setConnectTimeout(connectionTimeout);
+        connection.setReadTimeout(readTimeout);
+        addEnhancedHeaders(connection);
+        
+        try {
+            int responseCode = connection.getResponseCode();
+            if (responseCode == 403) {
+                throw new IOException("403 Forbidden - URL may be expired or authentication failed");
+            } else if (responseCode != 200) {
+                throw new IOException("Unexpected response code: " + responseCode);
+            }
+            
+            long fileSize = connection.getContentLengthLong();
+            ByteBuffer buffer = bufferPool.acquire(bufferSize);
+            try (ReadableByteChannel inputChannel = Channels.newChannel(connection.getInputStream());
+                 OutputStream outputStream = sink.open()) {
+                WritableByteChannel outputChannel = Channels.newChannel(outputStream);
+                long totalDownloaded = 0;
+                int bytesRead;
+                while ((bytesRead = readInto(inputChannel, buffer)) != -1) {
+                    if (bandwidthFlow != null) {
+                        bandwidthFlow.acquire(bytesRead);
+                    }
+                    buffer.flip();
+                    while (buffer.hasRemaining()) {
+                        outputChannel.write(buffer);
+                    }
+                    totalDownloaded += bytesRead;
+                    if (progressCallback != null) {
+                        progressCallback.onBytesProgress(totalDownloaded, fileSize);
+                    }
+                }
+            } finally {
+                bufferPool.release(buffer);
+            }
+        } finally {
+            connection.disconnect();
+        }
+    }
+    
+    /**
+     * 直写模式下载：预分配输出文件，各分段通过FileChannel按位置写入，完成后原子重命名
+     * @param mirrorUrls 镜像URL列表（第一个为主URL）
+     * @param outputPath 输出文件路径
+     * @param manifest 分段清单
+     * @param segments 分段信息
+     * @param connectionCount 并发连接数
+     * @param progressCallback 进度回调
+     */
+    private void executeDirectWriteDownload(List<String> mirrorUrls, String outputPath, SegmentManifest manifest,
+                                            List<SegmentInfo> segments, int connectionCount,
+                                            SegmentProgressCallback progressCallback) throws Exception {
+        Path outputFile = Paths.get(outputPath);
+        Path partialFile = getPartialFilePath(outputPath);
+        
+        try (FileChannel channel = preallocateOutputFile(partialFile, manifest.getTotalSize())) {
+            SegmentTarget target = SegmentTarget.sharedChannel(channel, partialFile.toString());
+            DownloadContext context = new DownloadContext(mirrorUrls, manifest, target, null, progressCallback);
+            
+            List<SegmentResult> results;
+            try {
+                results = downloadAllSegments(context, segments, connectionCount);
+            } finally {
+                // 无论成功与否都提交进度，失败后可从断点续传
+                checkpointQuietly(context);
+            }
+            
+            // 确保数据写入磁盘
+            channel.force(false);
+            
+            // 续传的分段没有摘要，此时没有整体校验值
+            String checksum = checksumEnabled ? FileSegmentMerger.combineChecksums(collectChecksums(results)) : null;
+            if (checksum != null) {
+                log.info("Direct write checksum for {}: {}", outputPath, checksum);
+            }
+        }
+        
+        // 原子性地移动到最终位置
+        FileSegmentMerger.moveIntoPlace(partialFile, outputFile);
+    }
+    
+    /**
+     * 临时文件模式下载：各分段写入独立临时文件，全部完成后合并
+     * 该模式不对临时文件执行fsync，续传仅保证进程重启场景
+     * @param mirrorUrls 镜像URL列表（第一个为主URL）
+     * @param outputPath 输出文件路径
+     * @param manifest 分段清单
+     * @param segments 分段信息
+     * @param connectionCount 并发连接数
+     * @param progressCallback 进度回调
+     */
+    private void executeTempFileDownload(List<String> mirrorUrls, String outputPath, SegmentManifest manifest,
+                                         List<SegmentInfo> segments, int connectionCount,
+                                         SegmentProgressCallback progressCallback) throws Exception {
+        // 创建临时文件目录
+        Path tempDir = createTempDirectory(outputPath);
+        
+        // 已提交字节数不能超过临时文件实际长度
+        for (SegmentInfo segment : segments) {
+            Path tempFile = tempDir.resolve("segment_" + segment.getIndex() + ".tmp");
+            long existing = Files.exists(tempFile) ? Files.size(tempFile) : 0;
+            segment.setCommitted(Math.min(segment.getCommitted(), existing));
+            segment.resetReservation();
+        }
+        
+        DownloadContext context = new DownloadContext(mirrorUrls, manifest, null, tempDir, progressCallback);
+        
+        List<SegmentResult> results;
+        try {
+            results = downloadAllSegments(context, segments, connectionCount);
+        } finally {
+            checkpointQuietly(context);
+        }
+        
+        // 合并分段文件（零拷贝合并，合并成功后由合并器清理临时文件）
+        List<String> segmentFiles = new ArrayList<>();
+        for (SegmentResult result : results) {
+            segmentFiles.add(result.getTempFilePath());
+        }
+        
+        FileSegmentMerger.MergeResult mergeResult = fileSegmentMerger.mergeSegments(
+            segmentFiles, checksumEnabled ? collectChecksums(results) : null, outputPath, 
+            manifest.getTotalSize(), null).get();
+        if (!mergeResult.isSuccess()) {
+            throw new IOException("Failed to merge segments: " + mergeResult.getErrorMessage());
+        }
+    }
+    
+    /**
+     * 下载所有分段并等待完成
+     * 连接空闲时拆分剩余字节最多的分段并接管后半部分，没有可拆分的分段时对明显慢于中位数的分段发起对冲请求；
+     * 等待期间按采样间隔把总吞吐量交给连接数控制器，按新的目标连接数增减连接
+     * @param context 下载上下文
+     * @param segments 分段信息
+     * @param connectionCount 初始并发连接数
+     * @return 分段结果列表（按文件偏移排序）
+     */
+    private List<SegmentResult> downloadAllSegments(DownloadContext context, List<SegmentInfo> segments,
+                                                    int connectionCount) throws Exception {
+        long startTime = System.currentTimeMillis();
+        long resumedBytes = 0;
+        for (SegmentInfo segment : segments) {
+            resumedBytes += segment.getCommitted();
+            context.addPendingSegment(segment);
+        }
+        context.getTotalDownloaded().addAndGet(resumedBytes);
+        
+        OptimalThreadCalculator.ConnectionController controller = optimalThreadCalculator != null 
+            ? optimalThreadCalculator.createConnectionController(connectionCount) : null;
+        context.setConnectionController(controller);
+        context.setTargetWorkers(controller != null ? controller.getTargetConnections() : connectionCount);
+        if (bandwidthGovernor != null) {
+            String manifestName = context.getManifest().getPath().getFileName().toString();
+            context.setBandwidthFlow(bandwidthGovernor.register(BandwidthGovernor.Direction.INGRESS, 
+                manifestName.substring(0, manifestName.length() - ".manifest".length())));
+        }
+        adjustWorkers(context);
+        
+        boolean success = false;
+        try {
+            long timeoutMs = (long) readTimeout * Math.max(connectionCount, segments.size());
+            long deadline = startTime + timeoutMs;
+            long lastSampleTime = System.currentTimeMillis();
+            long lastSampleBytes = context.getTotalDownloaded().get();
+            
+            while (context.getActiveWorkers() > 0) {
+                if (System.currentTimeMillis() > deadline) {
+                    throw new TimeoutException("Segmented download timed out after " + timeoutMs + " ms");
+                }
+                context.awaitWorkers(controller != null ? controller.getSampleIntervalMs() : IDLE_CHECK_INTERVAL_MS);
+                
+                long now = System.currentTimeMillis();
+                if (controller != null && now - lastSampleTime >= controller.getSampleIntervalMs()) {
+                    long downloaded = context.getTotalDownloaded().get();
+                    // 只有剩余工作足以分配给更多连接时才调整，尾部阶段的吞吐量下降不代表连接数不合适
+                    if (!context.isStopped() && hasSpareWork(context)) {
+                        context.setTargetWorkers(controller.onSample(downloaded - lastSampleBytes, now - lastSampleTime));
+                        adjustWorkers(context);
+                    }
+                    lastSampleTime = now;
+                    lastSampleBytes = downloaded;
+                }
+            }
+            
+            List<SegmentResult> results = context.collectResults();
+            success = true;
+            return results;
+        } finally {
+            // 超时或失败时通知仍在运行的连接停止
+            context.stop();
+            context.closeBandwidthFlow();
+            recordDownloadPerformance(context, context.getTargetWorkers(), 
+                context.getTotalDownloaded().get() - resumedBytes, System.currentTimeMillis() - startTime, success);
+            if (optimalThreadCalculator != null) {
+                optimalThreadCalculator.recordLearnedConnections(context.getUrl(), controller);
+            }
+            if (mirrorHostScoreboard != null) {
+                mirrorHostScoreboard.saveScores();
+            }
+        }
+    }
+    
+    /**
+     * 按目标连接数补充连接，多出的连接在完成当前范围后自行退出
+     * @param context 下载上下文
+     */
+    private void adjustWorkers(DownloadContext context) {
+        while (context.tryStartWorker()) {
+            CompletableFuture.runAsync(() -> runWorker(context), executorService);
+        }
+    }
+    
+    /**
+     * 检查是否还有可分配给新连接的工作
+     * @param context 下载上下文
+     * @return 存在待领取的分段或可拆分的分段时返回true
+     */
+    private boolean hasSpareWork(DownloadContext context) {
+        if (context.hasPendingSegments()) {
+            return true;
+        }
+        for (SegmentInfo segment : context.getSegments()) {
+            if (segment.getRemaining() >= 2 * minSplitSize) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * 连接工作循环：依次领取待下载分段，没有时窃取其他分段的剩余范围或对慢分段发起对冲请求
+     * 连接数超过目标时退出
+     * @param context 下载上下文
+     */
+    private void runWorker(DownloadContext context) {
+        boolean retired = false;
+        try {
+            while (!context.isStopped()) {
+                if (context.tryRetireWorker()) {
+                    retired = true;
+                    return;
+                }
+                
+                SegmentInfo segment = context.pollPendingSegment();
+                if (segment == null) {
+                    segment = stealWork(context);
+                }
+                
+                if (segment != null) {
+                    downloadSegment(context, segment);
+                    continue;
+                }
+                
+                if (!context.hasUnfinishedSegments()) {
+                    return;
+                }
+                
+                SegmentInfo straggler = findStraggler(context);
+                if (straggler != null) {
+                    hedgeSegment(context, straggler);
+                    continue;
+                }
+                
+                // 剩余分段都在其他连接上或等待重试：退避结束放回队列时立即唤醒，否则到时重新检查慢分段
+                try {
+                    context.awaitPendingSegment(IDLE_CHECK_INTERVAL_MS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        } finally {
+            if (!retired) {
+                context.workerExited();
+            }
+        }
+    }
+    
+    /**
+     * 拆分预计最晚完成的分段，由当前连接接管后半部分
+     * 按剩余字节除以该连接的吞吐量估计完成时间，慢镜像上的分段优先被拆分
+     * 拆分点位于原连接已分配写入位置之后，原连接读到新的结束位置时停止
+     * @param context 下载上下文
+     * @return 新分段，没有可拆分的分段时返回null
+     */
+    private SegmentInfo stealWork(DownloadContext context) {
+        while (!context.isStopped()) {
+            double median = medianThroughput(context);
+            SegmentInfo victim = null;
+            double maxFinishTime = 0;
+            for (SegmentInfo segment : context.getSegments()) {
+                long remaining = segment.getRemaining();
+                if (remaining < 2 * minSplitSize) {
+                    continue;
+                }
+                // 吞吐量未知的分段按中位数估计，没有任何样本时退化为按剩余字节选择
+                double throughput = segment.isActive() && segment.getAttemptElapsedMs() >= hedgeMinElapsedMs 
+                    ? segment.getThroughput() : median;
+                double finishTime = remaining / Math.max(throughput, 1);
+                if (finishTime > maxFinishTime) {
+                    victim = segment;
+                    maxFinishTime = finishTime;
+                }
+            }
+            
+            if (victim == null) {
+                return null;
+            }
+            
+            synchronized (victim) {
+                long remaining = victim.getRemaining();
+                if (remaining < 2 * minSplitSize) {
+                    // 已被其他连接拆分，重新选择
+                    continue;
+                }
+                
+                SegmentInfo stolen = splitAt(context, victim, victim.getReservedUpTo() + remaining / 2);
+                if (stolen == null) {
+                    log.debug("Segment manifest has no free slots, stop splitting");
+                    return null;
+                }
+                
+                context.addSegment(stolen);
+                log.debug("Split segment {}, new segment {} covers {}-{}", 
+                    victim.getIndex(), stolen.getIndex(), stolen.getStart(), stolen.getEnd());
+                return stolen;
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * 查找吞吐量远低于中位数的慢分段，并标记为已对冲
+     * 剩余范围仍可拆分的分段由拆分处理，这里只处理无法继续拆分的尾部
+     * @param context 下载上下文
+     * @return 慢分段，没有时返回null
+     */
+    private SegmentInfo findStraggler(DownloadContext context) {
+        double median = medianThroughput(context);
+        if (median <= 0) {
+            return null;
+        }
+        
+        SegmentInfo slowest = null;
+        double slowestThroughput = median * hedgeRatio;
+        for (SegmentInfo segment : context.getSegments()) {
+            if (!segment.isActive() || segment.isHedged() || segment.getAttemptElapsedMs() < hedgeMinElapsedMs) {
+                continue;
+            }
+            long remaining = segment.getRemaining();
+            if (remaining <= 0 || remaining >= 2 * minSplitSize) {
+                continue;
+            }
+            double throughput = segment.getThroughput();
+            if (throughput < slowestThroughput) {
+                slowest = segment;
+                slowestThroughput = throughput;
+            }
+        }
+        
+        return slowest != null && slowest.tryMarkHedged() ? slowest : null;
+    }
+    
+    /**
+     * 计算连接吞吐量中位数
+     * 样本来自本次下载已结束的连接和运行中的连接，样本不足时参考该服务器的历史单连接吞吐量
+     * @param context 下载上下文
+     * @return 吞吐量中位数（字节/秒），样本不足时返回0
+     */
+    private double medianThroughput(DownloadContext context) {
+        List<Double> samples = new ArrayList<>(context.getConnectionThroughputs());
+        for (SegmentInfo segment : context.getSegments()) {
+            if (segment.isActive() && segment.getAttemptElapsedMs() >= hedgeMinElapsedMs) {
+                samples.add(segment.getThroughput());
+            }
+        }
+        
+        if (samples.size() < 2 && optimalThreadCalculator != null) {
+            double historical = optimalThreadCalculator.getAverageConnectionThroughput(context.getUrl());
+            if (historical > 0) {
+                samples.add(historical);
+            }
+        }
+        
+        if (samples.size() < 2) {
+            return 0;
+        }
+        
+        Collections.sort(samples);
+        int middle = samples.size() / 2;
+        return samples.size() % 2 == 0 
+            ? (samples.get(middle - 1) + samples.get(middle)) / 2 
+            : samples.get(middle);
+    }
+    
+    /**
+     * 对慢分段的剩余范围发起对冲请求，先完成者生效
+     * 对冲请求先完成时截断原分段，剩余范围作为新分段写入并断开原连接；原分段先完成时丢弃对冲数据
+     * @param context 下载上下文
+     * @param straggler 慢分段
+     */
+    private void hedgeSegment(DownloadContext context, SegmentInfo straggler) {
+        long hedgeStart = straggler.getReservedUpTo();
+        long hedgeEnd = straggler.getEnd();
+        if (hedgeStart > hedgeEnd) {
+            return;
+        }
+        
+        log.debug("Hedging slow segment {}: bytes {}-{} at {} B/s", 
+            straggler.getIndex(), hedgeStart, hedgeEnd, (long) straggler.getThroughput());
+        
+        // 剩余范围小于两倍拆分粒度，可直接缓存在内存中
+        byte[] data = new byte[(int) (hedgeEnd - hedgeStart + 1)];
+        int received = 0;
+        long hedgeStartTime = System.currentTimeMillis();
+        // 对冲请求优先发往其他镜像
+        String url = acquireMirror(context, straggler.getUrl());
+        HttpURLConnection connection = null;
+        try {
+            connection = openRangeConnection(url, hedgeStart, hedgeEnd, null);
+            try (InputStream inputStream = connection.getInputStream()) {
+                int bytesRead;
+                while (received < data.length && !straggler.isDone() && !context.isStopped()
+                        && (bytesRead = inputStream.read(data, received, data.length - received)) != -1) {
+                    received += bytesRead;
+                    context.acquireBandwidth(bytesRead);
+                }
+            }
+        } catch (Exception e) {
+            log.debug("Hedged request for segment {} failed: {}", straggler.getIndex(), e.getMessage());
+            if (mirrorHostScoreboard != null && !context.isStopped()) {
+                mirrorHostScoreboard.recordError(url);
+            }
+            return;
+        } finally {
+            releaseMirror(context, url);
+            if (connection != null) {
+                connection.disconnect();
+            }
+        }
+        
+        if (received < data.length) {
+            // 原分段先完成
+            return;
+        }
+        
+        long hedgeElapsed = System.currentTimeMillis() - hedgeStartTime;
+        if (mirrorHostScoreboard != null && hedgeElapsed > 0) {
+            mirrorHostScoreboard.recordThroughput(url, received * 1000.0 / hedgeElapsed);
+        }
+        
+        SegmentInfo tail = cutForHedge(context, straggler, hedgeStart, hedgeEnd);
+        if (tail == null) {
+            return;
+        }
+        
+        // 原连接不再需要，断开后其读取立即结束
+        straggler.disconnect();
+        
+        try {
+            writeHedgedTail(context, tail, data, (int) (tail.getStart() - hedgeStart));
+            log.info("Hedged request won for segment {}: {} bytes taken over as segment {}", 
+                straggler.getIndex(), tail.getSize(), tail.getIndex());
+        } catch (Exception e) {
+            log.warn("Failed to write hedged data for segment {}, downloading it again", tail.getIndex(), e);
+            downloadSegment(context, tail);
+        }
+    }
+    
+    /**
+     * 在原连接当前分配位置截断慢分段，剩余范围成为由对冲结果填充的新分段
+     * @param context 下载上下文
+     * @param straggler 慢分段
+     * @param hedgeStart 对冲请求起始偏移
+     * @param hedgeEnd 对冲请求结束偏移
+     * @return 新分段，原分段已完成或范围已变化时返回null
+     */
+    private SegmentInfo cutForHedge(DownloadContext context, SegmentInfo straggler, long hedgeStart, long hedgeEnd) {
+        synchronized (straggler) {
+            long cutPoint = Math.max(straggler.getReservedUpTo(), hedgeStart);
+            if (straggler.isDone() || straggler.getEnd() != hedgeEnd || cutPoint > hedgeEnd) {
+                return null;
+            }
+            
+            SegmentInfo tail = splitAt(context, straggler, cutPoint);
+            if (tail == null) {
+                return null;
+            }
+            
+            tail.tryMarkHedged();
+            context.addSegment(tail);
+            return tail;
+        }
+    }
+    
+    /**
+     * 连接数超过目标时让出分段的未分配部分，由其他连接接管
+     * @param context 下载上下文
+     * @param segment 当前分段
+     * @return 是否已让出
+     */
+    private boolean yieldRemaining(DownloadContext context, SegmentInfo segment) {
+        synchronized (segment) {
+            long cutPoint = segment.getReservedUpTo();
+            if (cutPoint > segment.getEnd()) {
+                return false;
+            }
+            
+            SegmentInfo tail = splitAt(context, segment, cutPoint);
+            if (tail == null) {
+                return false;
+            }
+            
+            context.addPendingSegment(tail);
+            log.debug("Segment {} yielded bytes {}-{} as segment {}", 
+                segment.getIndex(), tail.getStart(), tail.getEnd(), tail.getIndex());
+            return true;
+        }
+    }
+    
+    /**
+     * 在指定位置拆分分段并登记到清单，调用方需持有分段的锁
+     * @param context 下载上下文
+     * @param segment 被拆分的分段
+     * @param splitPoint 新分段的起始偏移
+     * @return 新分段，清单槽位已满时返回null
+     */
+    private SegmentInfo splitAt(DownloadContext context, SegmentInfo segment, long splitPoint) {
+        int newIndex = context.getManifest().splitSegment(segment.getIndex(), splitPoint);
+        if (newIndex < 0) {
+            return null;
+        }
+        
+        SegmentInfo tail = new SegmentInfo(newIndex, splitPoint, segment.getEnd());
+        segment.setEnd(splitPoint - 1);
+        return tail;
+    }
+    
+    /**
+     * 将对冲请求的数据写入新分段并标记完成
+     * @param context 下载上下文
+     * @param tail 新分段
+     * @param data 对冲请求数据
+     * @param offset 新分段在数据中的起始位置
+     */
+    private void writeHedgedTail(DownloadContext context, SegmentInfo tail, byte[] data, int offset) throws Exception {
+        int length = (int) tail.getSize();
+        SegmentTarget target = context.targetFor(tail);
+        FileChannel channel = target.open(0);
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(data, offset, length);
+            long position = target.getBasePosition(tail);
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+        } finally {
+            target.release(channel);
+        }
+        
+        String checksum = null;
+        if (checksumEnabled) {
+            MessageDigest digest = MessageDigest.getInstance("MD5");
+            digest.update(data, offset, length);
+            checksum = FileSegmentMerger.bytesToHex(digest.digest());
+        }
+        
+        tail.setCommitted(length);
+        tail.setChecksum(checksum);
+        context.getManifest().completeSegment(tail.getIndex(), checksum);
+        context.getTotalDownloaded().addAndGet(length);
+        context.completeSegment(tail, SegmentResult.success(tail.getIndex(), target.getPath(), length, checksum));
+    }
+    
+    /**
+     * 为新请求选择镜像URL，并登记到该主机的连接数
+     * @param context 下载上下文
+     * @param avoidUrl 需要避开的URL所在主机（上次失败或过慢），可为空
+     * @return 选中的URL，请求结束后需调用releaseMirror
+     */
+    private String acquireMirror(DownloadContext context, String avoidUrl) {
+        return acquireMirror(context.getMirrorUrls(), context.getHostConnections(), avoidUrl);
+    }
+    
+    private String acquireMirror(List<String> mirrorUrls, ConcurrentHashMap<String, AtomicInteger> hostConnections,
+                                 String avoidUrl) {
+        String url = mirrorUrls.get(0);
+        if (mirrorHostScoreboard != null && mirrorUrls.size() > 1) {
+            url = mirrorHostScoreboard.selectUrl(mirrorUrls, hostConnections,
+                avoidUrl != null ? MirrorHostScoreboard.hostOf(avoidUrl) : null);
+        }
+        hostConnections.computeIfAbsent(MirrorHostScoreboard.hostOf(url), host -> new AtomicInteger())
+            .incrementAndGet();
+        return url;
+    }
+    
+    private void releaseMirror(DownloadContext context, String url) {
+        releaseMirror(context.getHostConnections(), url);
+    }
+    
+    private void releaseMirror(ConcurrentHashMap<String, AtomicInteger> hostConnections, String url) {
+        AtomicInteger connections = hostConnections.get(MirrorHostScoreboard.hostOf(url));
+        if (connections != null) {
+            connections.decrementAndGet();
+        }
+    }
+    
+    /**
+     * 上报单个连接的吞吐量，用于本次下载的慢分段判断、服务器历史性能和镜像主机评分
+     * @param context 下载上下文
+     * @param url 该连接请求的URL
+     * @param throughput 吞吐量（字节/秒）
+     */
+    private void reportConnectionThroughput(DownloadContext context, String url, double throughput) {
+        context.getConnectionThroughputs().add(throughput);
+        if (optimalThreadCalculator != null) {
+            optimalThreadCalculator.recordConnectionThroughput(url, throughput);
+        }
+        if (mirrorHostScoreboard != null) {
+            mirrorHostScoreboard.recordThroughput(url, throughput);
+        }
+    }
+    
+    /**
+     * 记录本次分段下载的整体性能
+     * @param context 下载上下文
+     * @param connectionCount 并发连接数
+     * @param downloadedBytes 本次下载的字节数（不含续传前已有的部分）
+     * @param durationMs 耗时
+     * @param success 是否成功
+     */
+    private void recordDownloadPerformance(DownloadContext context, int connectionCount, long downloadedBytes,
+                                           long durationMs, boolean success) {
+        if (optimalThreadCalculator != null && downloadedBytes > 0) {
+            optimalThreadCalculator.recordPerformance(context.getUrl(), connectionCount, downloadedBytes, 
+                durationMs, success);
+        }
+    }
+    
+    /**
+     * 收集分段下载时计算的摘要
+     * @param results 分段结果列表（按分段顺序）
+     * @return 分段摘要列表
+     */
+    private List<String> collectChecksums(List<SegmentResult> results) {
+        List<String> checksums = new ArrayList<>(results.size());
+        for (SegmentResult result : results) {
+            checksums.add(result.getChecksum());
+        }
+        return checksums;
+    }
+    
+    /**
+     * 打开可续传的分段清单，不匹配时丢弃旧数据并创建新清单
+     * @param url 下载URL
+     * @param outputPath 输出文件路径
+     * @param fileSize 文件总大小
+     * @param segmentCount 分段数量
+     * @return 分段清单
+     */
+    private SegmentManifest openOrCreateManifest(String url, String outputPath, long fileSize, 
+                                                 int segmentCount) throws IOException {
+        Path manifestPath = getManifestPath(outputPath);
+        String identity = SegmentManifest.identityOf(url);
+        
+        SegmentManifest existing = null;
+        try {
+            existing = SegmentManifest.open(manifestPath);
+        } catch (IOException e) {
+            log.warn("Failed to read segment manifest {}, starting over", manifestPath, e);
+        }
+        
+        if (existing != null) {
+            if (existing.matches(identity, fileSize) && hasPartialData(outputPath, fileSize)) {
+                log.info("Resuming segmented download {}: {}/{} bytes already committed", 
+                    outputPath, existing.getTotalCommittedBytes(), fileSize);
+                return existing;
+            }
+            log.info("Discarding stale segment manifest for {}", outputPath);
+            existing.close();
+        }
+        
+        discardPartialData(outputPath);
+        
+        long segmentSize = fileSize / segmentCount;
+        long[] starts = new long[segmentCount];
+        long[] ends = new long[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            starts[i] = i * segmentSize;
+            ends[i] = (i == segmentCount - 1) ? fileSize - 1 : starts[i] + segmentSize - 1;
+        }
+        
+        Path parentDir = manifestPath.getParent();
+        if (parentDir != null && !Files.exists(parentDir)) {
+            Files.createDirectories(parentDir);
+        }
+        return SegmentManifest.create(manifestPath, identity, fileSize, starts, ends, 
+            Math.max(MIN_MANIFEST_SLOTS, segmentCount * MANIFEST_SLOTS_PER_SEGMENT));
+    }
+    
+    /**
+     * 检查当前模式下的未完成数据是否存在
+     * @param outputPath 输出文件路径
+     * @param fileSize 文件总大小
+     * @return 是否存在
+     */
+    private boolean hasPartialData(String outputPath, long fileSize) throws IOException {
+        if (directWriteEnabled) {
+            Path partialFile = getPartialFilePath(outputPath);
+            return Files.exists(partialFile) && Files.size(partialFile) == fileSize;
+        }
+        return Files.isDirectory(getTempDirectoryPath(outputPath));
+    }
+    
+    /**
+     * 删除未完成文件和临时分段目录
+     * @param outputPath 输出文件路径
+     */
+    private void discardPartialData(String outputPath) throws IOException {
+        Files.deleteIfExists(getPartialFilePath(outputPath));
+        
+        Path tempDir = getTempDirectoryPath(outputPath);
+        if (Files.exists(tempDir)) {
+            Files.walk(tempDir)
+                .sorted((a, b) -> b.compareTo(a)) // 先删除文件，再删除目录
+                .forEach(path -> {
+                    try {
+                        Files.delete(path);
+                    } catch (IOException e) {
+                        log.warn("Failed to delete temp file: {}", path, e);
+                    }
+                });
+        }
+    }
+    
+    private Path getManifestPath(String outputPath) {
+        Path outputFile = Paths.get(outputPath);
+        return outputFile.resolveSibling(outputFile.getFileName() + ".manifest");
+    }
+    
+    private Path getPartialFilePath(String outputPath) {
+        Path outputFile = Paths.get(outputPath);
+        return outputFile.resolveSibling(outputFile.getFileName() + ".downloading");
+    }
+    
+    private Path getTempDirectoryPath(String outputPath) {
+        Path outputFile = Paths.get(outputPath);
+        return outputFile.resolveSibling(outputFile.getFileName() + ".segments");
+    }
+    
+    /**
+     * 执行清单检查点，失败时只记录日志
+     * @param context 下载上下文
+     */
+    private void checkpointQuietly(DownloadContext context) {
+        try {
+            context.getManifest().checkpoint(context::syncData);
+        } catch (IOException e) {
+            log.warn("Failed to checkpoint segment manifest", e);
+        }
+    }
+    
+    /**
+     * 预分配输出文件（已存在且大小一致时直接复用）
+     * @param partialFile 未完成文件路径
+     * @param fileSize 文件总大小
+     * @return 可按位置写入的文件通道
+     */
+    private FileChannel preallocateOutputFile(Path partialFile, long fileSize) throws IOException {
+        Path parentDir = partialFile.getParent();
+        if (parentDir != null && !Files.exists(parentDir)) {
+            Files.createDirectories(parentDir);
+        }
+        
+        RandomAccessFile file = new RandomAccessFile(partialFile.toFile(), "rw");
+        try {
+            if (file.length() != fileSize) {
+                file.setLength(fileSize);
+                log.debug("Preallocated output file {} with {} bytes", partialFile, fileSize);
+            }
+            return file.getChannel();
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+    }
+    
+    /**
+     * 依次检查镜像URL直到找到支持Range请求的服务器
+     * @param mirrorUrls 镜像URL列表
+     * @return 支持时返回服务器报告的文件大小（未知时为0），都不支持时返回-1
+     */
+    private long probeRangeSupport(List<String> mirrorUrls) {
+        for (String mirrorUrl : mirrorUrls) {
+            long contentLength = probeRangeSupport(mirrorUrl);
+            if (contentLength >= 0) {
+                return contentLength;
+            }
+            if (mirrorHostScoreboard != null) {
+                mirrorHostScoreboard.recordError(mirrorUrl);
+            }
+        }
+        return -1;
     }
     
     /**
      * 检查服务器是否支持Range请求
      * @param url URL
-     * @return 是否支持Range请求
+     * @return 支持时返回服务器报告的文件大小（未知时为0），不支持时返回-1
      */
-    private boolean supportsRangeRequests(String url) {
+    private long probeRangeSupport(String url) {
         try {
             HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
             connection.setRequestMethod("HEAD");
@@ -148,217 +1253,256 @@ public class SegmentDownloadExecutor {
             
             int responseCode = connection.getResponseCode();
             String acceptRanges = connection.getHeaderField("Accept-Ranges");
+            long contentLength = connection.getContentLengthLong();
             
             connection.disconnect();
             
-            return responseCode == 200 && "bytes".equalsIgnoreCase(acceptRanges);
+            if (responseCode != 200 || !"bytes".equalsIgnoreCase(acceptRanges)) {
+                return -1;
+            }
+            return Math.max(0, contentLength);
             
         } catch (Exception e) {
             log.warn("Failed to check Range support for URL: {}", url, e);
-            return false;
+            return -1;
         }
     }
     
     /**
-     * 创建分段信息
-     * @param fileSize 文件大小
-     * @param segmentCount 分段数量
+     * 根据分段清单创建分段信息
+     * @param manifest 分段清单
      * @return 分段信息列表
      */
-    private List<SegmentInfo> createSegments(long fileSize, int segmentCount) {
+    private List<SegmentInfo> createSegments(SegmentManifest manifest) {
         List<SegmentInfo> segments = new ArrayList<>();
-        long segmentSize = fileSize / segmentCount;
         
-        for (int i = 0; i < segmentCount; i++) {
-            long start = i * segmentSize;
-            long end = (i == segmentCount - 1) ? fileSize - 1 : start + segmentSize - 1;
-            
-            segments.add(new SegmentInfo(i, start, end));
+        for (int i = 0; i < manifest.getSegmentCount(); i++) {
+            SegmentInfo segment = new SegmentInfo(i, manifest.getSegmentStart(i), manifest.getSegmentEnd(i));
+            segment.setCommitted(manifest.getCommittedBytes(i));
+            segment.setChecksum(manifest.getChecksum(i));
+            segment.resetReservation();
+            segments.add(segment);
         }
         
         return segments;
     }
     
     /**
-     * 创建临时文件目录
+     * 创建临时文件目录（保留已有分段文件用于续传）
      * @param outputPath 输出文件路径
      * @return 临时目录路径
      */
     private Path createTempDirectory(String outputPath) throws IOException {
-        Path outputFile = Paths.get(outputPath);
-        Path tempDir = outputFile.getParent().resolve(outputFile.getFileName() + ".segments");
-        
-        if (Files.exists(tempDir)) {
-            // 清理已存在的临时目录
-            Files.walk(tempDir)
-                .sorted((a, b) -> b.compareTo(a)) // 先删除文件，再删除目录
-                .forEach(path -> {
-                    try {
-                        Files.delete(path);
-                    } catch (IOException e) {
-                        log.warn("Failed to delete temp file: {}", path, e);
-                    }
-                });
-        }
-        
+        Path tempDir = getTempDirectoryPath(outputPath);
         Files.createDirectories(tempDir);
         return tempDir;
     }
     
     /**
-     * 下载单个分段
-     * @param url 下载URL
+     * 下载单个分段，失败后按退避时间重新放回待下载队列，连接继续领取其他分段；
+     * 重试次数或重试预算耗尽时通知其他连接停止
+     * @param context 下载上下文
      * @param segment 分段信息
-     * @param tempFilePath 临时文件路径
-     * @param totalDownloaded 总下载字节数
-     * @param totalSize 总文件大小
-     * @param progressCallback 进度回调
-     * @return 分段下载结果
      */
-    private CompletableFuture<SegmentResult> downloadSegment(
-            String url, SegmentInfo segment, String tempFilePath,
-            AtomicLong totalDownloaded, long totalSize, SegmentProgressCallback progressCallback) {
-        
-        return CompletableFuture.supplyAsync(() -> {
-            int retryCount = 0;
-            Exception lastException = null;
-            
-            while (retryCount < maxRetries) {
-                try {
-                    return downloadSegmentWithRetry(url, segment, tempFilePath, 
-                        totalDownloaded, totalSize, progressCallback);
-                        
-                } catch (Exception e) {
-                    lastException = e;
-                    retryCount++;
-                    
-                    if (retryCount < maxRetries) {
-                        log.warn("Segment {} download failed (attempt {}), retrying...", 
-                            segment.getIndex(), retryCount, e);
-                        
-                        try {
-                            Thread.sleep(1000 * retryCount); // 指数退避
-                        } catch (InterruptedException ie) {
-                            Thread.currentThread().interrupt();
-                            break;
-                        }
-                    }
+    private void downloadSegment(DownloadContext context, SegmentInfo segment) {
+        SegmentTarget target = context.targetFor(segment);
+        try {
+            context.completeSegment(segment, downloadSegmentWithRetry(context, segment, target));
+            retryManager.recordSuccess(segment.getUrl(), SEGMENT_RETRY_OPERATION);
+            return;
+        } catch (Exception e) {
+            int failures = segment.recordFailure();
+            context.recordConnectionError();
+            String failedUrl = segment.getUrl();
+            if (context.isStopped()) {
+                return;
+            }
+            if (failedUrl != null) {
+                // 重试时避开失败的镜像
+                segment.setFailedUrl(failedUrl);
+                if (mirrorHostScoreboard != null) {
+                    mirrorHostScoreboard.recordError(failedUrl);
                 }
             }
             
-            log.error("Segment {} download failed after {} retries", segment.getIndex(), maxRetries, lastException);
-            return SegmentResult.failure(segment.getIndex(), tempFilePath, 
-                "Download failed after " + maxRetries + " retries: " + lastException.getMessage());
-                
-        }, executorService);
+            if (failures < maxRetries && retryManager.tryAcquireRetry(failedUrl, SEGMENT_RETRY_OPERATION)) {
+                long delay = retryManager.jitter(1000L * failures);
+                log.warn("Segment {} download failed (attempt {}), retrying from byte {} in {} ms...", 
+                    segment.getIndex(), failures, segment.getCommitted(), delay, e);
+                retryManager.schedule(() -> context.requeueSegment(segment), delay);
+                return;
+            }
+            
+            log.error("Segment {} download failed after {} attempts", segment.getIndex(), failures, e);
+            context.fail("Segment " + segment.getIndex() + " download failed after " + failures + " attempts: " + 
+                e.getMessage());
+        }
     }
     
     /**
-     * 执行分段下载（带重试）
-     * @param url 下载URL
+     * 执行分段下载，从分段已提交的位置继续
+     * 分段结束位置可能因拆分或对冲被提前，读到新的结束位置时停止
+     * @param context 下载上下文
      * @param segment 分段信息
-     * @param tempFilePath 临时文件路径
-     * @param totalDownloaded 总下载字节数
-     * @param totalSize 总文件大小
-     * @param progressCallback 进度回调
+     * @param target 分段写入目标
      * @return 分段下载结果
      */
     private SegmentResult downloadSegmentWithRetry(
-            String url, SegmentInfo segment, String tempFilePath,
-            AtomicLong totalDownloaded, long totalSize, SegmentProgressCallback progressCallback) throws Exception {
+            DownloadContext context, SegmentInfo segment, SegmentTarget target) throws Exception {
         
         long segmentStartTime = System.currentTimeMillis();
+        long committed = segment.getCommitted();
+        segment.resetReservation();
+        
+        // 已完成的分段无需再次下载，续传前完成的分段可能没有摘要
+        if (committed >= segment.getSize()) {
+            log.debug("Segment {} already completed, skipping", segment.getIndex());
+            return SegmentResult.success(segment.getIndex(), target.getPath(), 0, segment.getChecksum());
+        }
+        
         HttpURLConnection connection = null;
         InputStream inputStream = null;
-        FileOutputStream outputStream = null;
+        FileChannel outputChannel = null;
+        long segmentDownloaded = 0;
         
         try {
-            // 创建HTTP连接
-            connection = (HttpURLConnection) new URL(url).openConnection();
-            connection.setRequestMethod("GET");
-            connection.setConnectTimeout(connectionTimeout);
-            connection.setReadTimeout(readTimeout);
-            
-            // 设置Range请求头
-            String rangeHeader = String.format("bytes=%d-%d", segment.getStart(), segment.getEnd());
-            connection.setRequestProperty("Range", rangeHeader);
-            
-            // 添加增强的HTTP请求头和Cookie认证
-            addEnhancedHeaders(connection);
-            
-            // 检查响应码
-            int responseCode = connection.getResponseCode();
-            if (responseCode == 403) {
-                // 检测到403错误，尝试URL刷新
-                log.warn("Segment {} download got 403 error, this may indicate URL expiration", segment.getIndex());
-                throw new IOException("403 Forbidden - URL may be expired or authentication failed");
-            } else if (responseCode != 206) { // 206 Partial Content
-                throw new IOException("Unexpected response code: " + responseCode);
-            }
-            
-            // 开始下载
-            inputStream = connection.getInputStream();
-            outputStream = new FileOutputStream(tempFilePath);
+            outputChannel = target.open(committed);
+            long writePosition = target.getBasePosition(segment) + committed;
             
-            byte[] buffer = new byte[bufferSize];
-            int bytesRead;
-            long segmentDownloaded = 0;
-            long segmentSize = segment.getEnd() - segment.getStart() + 1;
+            // 边下载边计算分段摘要，合并时无需再次读取；
+            // 摘要只用于日志中的整体校验值，没有可比对的服务端摘要，续传的分段不为此回读已有数据，摘要留空
+            MessageDigest segmentDigest = checksumEnabled && committed == 0 ? MessageDigest.getInstance("MD5") : null;
             
-            // 进度节流变量
-            long lastProgressUpdateTime = 0;
-            double lastReportedProgress = -1;
-            final long PROGRESS_UPDATE_INTERVAL_MS = 500; // 500ms最小间隔
-            final double MIN_PROGRESS_CHANGE = 0.01; // 最小1%变化
-            
-            while ((bytesRead = inputStream.read(buffer)) != -1) {
-                outputStream.write(buffer, 0, bytesRead);
-                segmentDownloaded += bytesRead;
-                
-                // 更新进度（带节流）
-                long currentTotal = totalDownloaded.addAndGet(bytesRead);
-                if (progressCallback != null) {
-                    double progress = totalSize > 0 ? (double) currentTotal / totalSize : 0.0;
-                    long currentTime = System.currentTimeMillis();
+            if (committed < segment.getSize()) {
+                String url = acquireMirror(context, segment.getFailedUrl());
+                segment.setUrl(url);
+                segment.beginAttempt();
+                // 每次尝试从池中借用直接缓冲区，结束后归还
+                ByteBuffer buffer = bufferPool.acquire(bufferSize);
+                try {
+                    // 只请求缺失部分
+                    connection = openRangeConnection(url, 
+                        segment.getStart() + committed, segment.getEnd(), segment);
+                    inputStream = connection.getInputStream();
+                    ReadableByteChannel inputChannel = Channels.newChannel(inputStream);
+                    int bytesRead;
                     
-                    // 节流逻辑：检查时间间隔和进度变化
-                    boolean shouldUpdate = false;
-                    if (lastReportedProgress < 0) {
-                        // 首次更新
-                        shouldUpdate = true;
-                    } else if (progress >= 1.0) {
-                        // 完成时总是更新
-                        shouldUpdate = true;
-                    } else if (currentTime - lastProgressUpdateTime >= PROGRESS_UPDATE_INTERVAL_MS) {
-                        // 时间间隔达到
-                        shouldUpdate = true;
-                    } else if (Math.abs(progress - lastReportedProgress) >= MIN_PROGRESS_CHANGE) {
-                        // 进度变化达到阈值
-                        shouldUpdate = true;
-                    }
+                    // 进度节流变量
+                    long lastProgressUpdateTime = 0;
+                    double lastReportedProgress = -1;
+                    final long PROGRESS_UPDATE_INTERVAL_MS = 500; // 500ms最小间隔
+                    final double MIN_PROGRESS_CHANGE = 0.01; // 最小1%变化
                     
-                    if (shouldUpdate) {
-                        lastProgressUpdateTime = currentTime;
-                        lastReportedProgress = progress;
-                        progressCallback.onProgress(segment.getIndex(), segmentDownloaded, segmentSize, progress);
+                    SegmentProgressCallback progressCallback = context.getProgressCallback();
+                    long totalSize = context.getManifest().getTotalSize();
+                    
+                    while ((bytesRead = readInto(inputChannel, buffer)) != -1) {
+                        if (context.isStopped()) {
+                            throw new IOException("Segmented download cancelled");
+                        }
+                        // 按全局带宽调度器分得的速率节流
+                        context.acquireBandwidth(bytesRead);
+                        
+                        // 分配写入范围，超出当前结束位置的数据已由其他连接负责
+                        int allowed = (int) segment.reserve(segment.getStart() + committed + segmentDownloaded, bytesRead);
+                        buffer.flip();
+                        if (allowed > 0) {
+                            buffer.limit(allowed);
+                            if (segmentDigest != null) {
+                                segmentDigest.update(buffer.duplicate());
+                            }
+                            // 按位置写入，直写模式下多个分段共享同一通道
+                            while (buffer.hasRemaining()) {
+                                writePosition += outputChannel.write(buffer, writePosition);
+                            }
+                            segmentDownloaded += allowed;
+                            segment.addAttemptBytes(allowed);
+                            
+                            // 记录已写入位置，按检查点间隔批量落盘
+                            segment.setCommitted(committed + segmentDownloaded);
+                            context.getManifest().recordProgress(segment.getIndex(), committed + segmentDownloaded);
+                            context.getManifest().checkpointIfDue(checkpointIntervalMs, context::syncData);
+                            
+                            // 更新进度（带节流）
+                            long currentTotal = context.getTotalDownloaded().addAndGet(allowed);
+                            if (progressCallback != null) {
+                                double progress = totalSize > 0 ? (double) currentTotal / totalSize : 0.0;
+                                long currentTime = System.currentTimeMillis();
+                                
+                                // 节流逻辑：检查时间间隔和进度变化
+                                boolean shouldUpdate = false;
+                                if (lastReportedProgress < 0) {
+                                    // 首次更新
+                                    shouldUpdate = true;
+                                } else if (progress >= 1.0) {
+                                    // 完成时总是更新
+                                    shouldUpdate = true;
+                                } else if (currentTime - lastProgressUpdateTime >= PROGRESS_UPDATE_INTERVAL_MS) {
+                                    // 时间间隔达到
+                                    shouldUpdate = true;
+                                } else if (Math.abs(progress - lastReportedProgress) >= MIN_PROGRESS_CHANGE) {
+                                    // 进度变化达到阈值
+                                    shouldUpdate = true;
+                                }
+                                
+                                if (shouldUpdate) {
+                                    lastProgressUpdateTime = currentTime;
+                                    lastReportedProgress = progress;
+                                    progressCallback.onProgress(segment.getIndex(), committed + segmentDownloaded, 
+                                        segment.getSize(), progress);
+                                    progressCallback.onBytesProgress(currentTotal, totalSize);
+                                }
+                            }
+                        }
+                        
+                        if (allowed < bytesRead) {
+                            // 结束位置已被拆分或对冲提前
+                            break;
+                        }
+                        
+                        if (context.isOverTarget() && yieldRemaining(context, segment)) {
+                            // 控制器减少了连接数，剩余部分交给其他连接
+                            break;
+                        }
+                    }
+                } catch (IOException e) {
+                    // 对冲请求抢先完成时会截断本分段并断开连接
+                    if (context.isStopped() || committed + segmentDownloaded != segment.getSize()) {
+                        throw e;
+                    }
+                } finally {
+                    bufferPool.release(buffer);
+                    releaseMirror(context, url);
+                    double throughput = segment.endAttempt();
+                    if (throughput > 0) {
+                        reportConnectionThroughput(context, url, throughput);
                     }
                 }
+                
+                if (committed + segmentDownloaded != segment.getSize()) {
+                    throw new IOException(String.format("Segment %d incomplete: received %d of %d bytes", 
+                        segment.getIndex(), committed + segmentDownloaded, segment.getSize()));
+                }
             }
             
+            String checksum = segmentDigest != null ? FileSegmentMerger.bytesToHex(segmentDigest.digest()) : null;
+            segment.setChecksum(checksum);
+            context.getManifest().completeSegment(segment.getIndex(), checksum);
+            
             // 记录分段下载完成时长
             long segmentDuration = System.currentTimeMillis() - segmentStartTime;
-            if (progressCallback instanceof SegmentProgressCallbackWithLogging) {
-                ((SegmentProgressCallbackWithLogging) progressCallback).onSegmentComplete(
+            if (context.getProgressCallback() instanceof SegmentProgressCallbackWithLogging) {
+                ((SegmentProgressCallbackWithLogging) context.getProgressCallback()).onSegmentComplete(
                     segment.getIndex(), segmentDownloaded, segmentDuration);
             }
             
-            log.debug("Segment {} download completed: {} bytes in {} ms", 
-                segment.getIndex(), segmentDownloaded, segmentDuration);
-            return SegmentResult.success(segment.getIndex(), tempFilePath, segmentDownloaded);
+            log.debug("Segment {} download completed: {} bytes in {} ms (resumed from {})", 
+                segment.getIndex(), segmentDownloaded, segmentDuration, committed);
+            return SegmentResult.success(segment.getIndex(), target.getPath(), segmentDownloaded, checksum);
             
         } finally {
-            if (outputStream != null) {
-                try { outputStream.close(); } catch (IOException e) { /* ignore */ }
+            if (outputChannel != null) {
+                target.release(outputChannel);
             }
             if (inputStream != null) {
                 try { inputStream.close(); } catch (IOException e) { /* ignore */ }
@@ -369,6 +1513,54 @@ public class SegmentDownloadExecutor {
         }
     }
     
+    /**
+     * 打开Range请求连接并检查响应码
+     * @param url 下载URL
+     * @param from 起始偏移
+     * @param to 结束偏移（包含）
+     * @param owner 使用该连接的分段（对冲请求为null），用于在对冲成功时断开
+     * @return HTTP连接
+     */
+    private HttpURLConnection openRangeConnection(String url, long from, long to, SegmentInfo owner) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setRequestMethod("GET");
+        connection.setConnectTimeout(connectionTimeout);
+        connection.setReadTimeout(readTimeout);
+        
+        // 设置Range请求头
+        connection.setRequestProperty("Range", String.format("bytes=%d-%d", from, to));
+        
+        // 添加增强的HTTP请求头和Cookie认证
+        addEnhancedHeaders(connection);
+        
+        if (owner != null) {
+            owner.setConnection(connection);
+        }
+        
+        // 检查响应码
+        int responseCode = connection.getResponseCode();
+        if (responseCode == 403) {
+            // 检测到403错误，尝试URL刷新
+            log.warn("Range request {}-{} got 403 error, this may indicate URL expiration", from, to);
+            connection.disconnect();
+            throw new IOException("403 Forbidden - URL may be expired or authentication failed");
+        } else if (responseCode != 206) { // 206 Partial Content
+            connection.disconnect();
+            throw new IOException("Unexpected response code: " + responseCode);
+        }
+        return connection;
+    }
+    
+    /**
+     * 清空缓冲区后读取至多bufferSize字节
+     * @return 读取的字节数，流结束时返回-1
+     */
+    private int readInto(ReadableByteChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.clear();
+        buffer.limit(Math.min(bufferSize, buffer.capacity()));
+        return channel.read(buffer);
+    }
+    
     /**
      * 添加增强的HTTP请求头和Cookie认证
      * @param connection HTTP连接
@@ -453,10 +1645,14 @@ public class SegmentDownloadExecutor {
             
             long fileSize = connection.getContentLengthLong();
             
-            try (InputStream inputStream = connection.getInputStream();
-                 FileOutputStream outputStream = new FileOutputStream(outputPath)) {
+            ByteBuffer buffer = bufferPool.acquire(bufferSize);
+            try (ReadableByteChannel inputChannel = Channels.newChannel(connection.getInputStream());
+                 FileChannel outputChannel = FileChannel.open(Paths.get(outputPath), StandardOpenOption.CREATE,
+                     StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+                 BandwidthGovernor.Flow bandwidthFlow = bandwidthGovernor != null 
+                     ? bandwidthGovernor.register(BandwidthGovernor.Direction.INGRESS, Paths.get(outputPath).getFileName().toString()) 
+                     : null) {
                 
-                byte[] buffer = new byte[bufferSize];
                 int bytesRead;
                 long totalDownloaded = 0;
                 
@@ -466,8 +1662,15 @@ public class SegmentDownloadExecutor {
                 final long PROGRESS_UPDATE_INTERVAL_MS = 500; // 500ms最小间隔
                 final double MIN_PROGRESS_CHANGE = 0.01; // 最小1%变化
                 
-                while ((bytesRead = inputStream.read(buffer)) != -1) {
-                    outputStream.write(buffer, 0, bytesRead);
+                while ((bytesRead = readInto(inputChannel, buffer)) != -1) {
+                    if (bandwidthFlow != null) {
+                        bandwidthFlow.acquire(bytesRead);
+                    }
+                    buffer.flip();
+                    long position = totalDownloaded;
+                    while (buffer.hasRemaining()) {
+                        position += outputChannel.write(buffer, position);
+                    }
                     totalDownloaded += bytesRead;
                     
                     if (progressCallback != null) {
@@ -494,12 +1697,15 @@ public class SegmentDownloadExecutor {
                             lastProgressUpdateTime = currentTime;
                             lastReportedProgress = progress;
                             progressCallback.onProgress(0, totalDownloaded, fileSize, progress);
+                            progressCallback.onBytesProgress(totalDownloaded, fileSize);
                         }
                     }
                 }
                 
                 log.info("Single download completed: {} bytes", totalDownloaded);
                 return DownloadResult.success("Single download completed");
+            } finally {
+                bufferPool.release(buffer);
             }
             
         } catch (Exception e) {
@@ -508,54 +1714,6 @@ public class SegmentDownloadExecutor {
         }
     }
     
-    /**
-     * 合并分段文件
-     * @param segmentResults 分段结果列表
-     * @param outputPath 输出文件路径
-     */
-    private void mergeSegments(List<SegmentResult> segmentResults, String outputPath) throws IOException {
-        log.info("Merging {} segments to {}", segmentResults.size(), outputPath);
-        
-        // 按分段索引排序
-        segmentResults.sort((a, b) -> Integer.compare(a.getSegmentIndex(), b.getSegmentIndex()));
-        
-        try (FileOutputStream outputStream = new FileOutputStream(outputPath)) {
-            for (SegmentResult result : segmentResults) {
-                try (FileInputStream inputStream = new FileInputStream(result.getTempFilePath())) {
-                    byte[] buffer = new byte[bufferSize];
-                    int bytesRead;
-                    
-                    while ((bytesRead = inputStream.read(buffer)) != -1) {
-                        outputStream.write(buffer, 0, bytesRead);
-                    }
-                }
-            }
-        }
-        
-        log.info("Segments merged successfully");
-    }
-    
-    /**
-     * 清理临时文件
-     * @param tempDir 临时目录
-     */
-    private void cleanupTempFiles(Path tempDir) {
-        try {
-            Files.walk(tempDir)
-                .sorted((a, b) -> b.compareTo(a))
-                .forEach(path -> {
-                    try {
-                        Files.delete(path);
-                    } catch (IOException e) {
-                        log.warn("Failed to delete temp file: {}", path, e);
-                    }
-                });
-            log.debug("Temp files cleaned up: {}", tempDir);
-        } catch (IOException e) {
-            log.warn("Failed to cleanup temp directory: {}", tempDir, e);
-        }
-    }
-    
     /**
      * 关闭执行器
      */
@@ -573,21 +1731,400 @@ public class SegmentDownloadExecutor {
     
     /**
      * 分段信息内部类
+     * 结束位置可被拆分或对冲提前，写入前通过reserve分配范围，与拆分在同一把锁下互斥
      */
     private static class SegmentInfo {
         private final int index;
         private final long start;
-        private final long end;
+        private volatile long end;
+        private volatile long committed;
+        private volatile String checksum;
+        private volatile boolean done;
+        private final AtomicBoolean hedged = new AtomicBoolean(false);
+        private final AtomicInteger failures = new AtomicInteger();
+        
+        // 当前连接已分配写入的位置（不含），拆分点不能早于该位置
+        private long reservedUpTo;
+        
+        // 当前连接的吞吐量统计
+        private volatile HttpURLConnection connection;
+        private volatile long attemptStartNanos;
+        private volatile long attemptBytes;
+        
+        // 当前（或最近一次）连接请求的镜像URL，以及上次失败的镜像URL
+        private volatile String url;
+        private volatile String failedUrl;
         
         public SegmentInfo(int index, long start, long end) {
             this.index = index;
             this.start = start;
             this.end = end;
+            this.reservedUpTo = start;
         }
         
         public int getIndex() { return index; }
         public long getStart() { return start; }
         public long getEnd() { return end; }
+        public long getSize() { return end - start + 1; }
+        public long getCommitted() { return committed; }
+        public void setCommitted(long committed) { this.committed = committed; }
+        public String getChecksum() { return checksum; }
+        public void setChecksum(String checksum) { this.checksum = checksum; }
+        public boolean isDone() { return done; }
+        public void markDone() { this.done = true; }
+        public boolean isHedged() { return hedged.get(); }
+        public boolean tryMarkHedged() { return hedged.compareAndSet(false, true); }
+        public int recordFailure() { return failures.incrementAndGet(); }
+        public void setConnection(HttpURLConnection connection) { this.connection = connection; }
+        public String getUrl() { return url; }
+        public void setUrl(String url) { this.url = url; }
+        public String getFailedUrl() { return failedUrl; }
+        public void setFailedUrl(String failedUrl) { this.failedUrl = failedUrl; }
+        
+        /**
+         * 调整结束位置，调用方需持有本对象的锁
+         */
+        public void setEnd(long end) { this.end = end; }
+        
+        /**
+         * 从已提交位置重新开始分配
+         */
+        public synchronized void resetReservation() {
+            reservedUpTo = start + committed;
+        }
+        
+        /**
+         * 分配写入范围
+         * @return 允许写入的字节数，超出结束位置的部分不允许写入
+         */
+        public synchronized long reserve(long position, long length) {
+            long allowed = Math.max(0, Math.min(length, end + 1 - position));
+            reservedUpTo = position + allowed;
+            return allowed;
+        }
+        
+        public synchronized long getReservedUpTo() { return reservedUpTo; }
+        
+        public synchronized long getRemaining() {
+            return done ? 0 : Math.max(0, end - reservedUpTo + 1);
+        }
+        
+        public void beginAttempt() {
+            attemptBytes = 0;
+            attemptStartNanos = System.nanoTime();
+        }
+        
+        public void addAttemptBytes(long bytes) {
+            attemptBytes += bytes; // 只由持有该分段的连接线程更新
+        }
+        
+        /**
+         * 结束当前连接
+         * @return 该连接的吞吐量（字节/秒），没有传输数据时返回0
+         */
+        public double endAttempt() {
+            double throughput = attemptBytes > 0 ? getThroughput() : 0;
+            attemptStartNanos = 0;
+            connection = null;
+            return throughput;
+        }
+        
+        public boolean isActive() { return attemptStartNanos != 0 && !done; }
+        
+        public long getAttemptElapsedMs() {
+            long startNanos = attemptStartNanos;
+            return startNanos != 0 ? TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos) : 0;
+        }
+        
+        public double getThroughput() {
+            long startNanos = attemptStartNanos;
+            if (startNanos == 0) {
+                return 0;
+            }
+            long elapsedNanos = Math.max(1, System.nanoTime() - startNanos);
+            return attemptBytes * 1_000_000_000.0 / elapsedNanos;
+        }
+        
+        public void disconnect() {
+            HttpURLConnection current = connection;
+            if (current != null) {
+                current.disconnect();
+            }
+        }
+    }
+    
+    /**
+     * 分段写入目标内部类
+     * 临时文件模式下每个分段独占一个文件，直写模式下所有分段共享输出文件通道
+     */
+    private static class SegmentTarget {
+        private final String path;
+        private final FileChannel sharedChannel;
+        
+        private SegmentTarget(String path, FileChannel sharedChannel) {
+            this.path = path;
+            this.sharedChannel = sharedChannel;
+        }
+        
+        public static SegmentTarget tempFile(String tempFilePath) {
+            return new SegmentTarget(tempFilePath, null);
+        }
+        
+        public static SegmentTarget sharedChannel(FileChannel channel, String path) {
+            return new SegmentTarget(path, channel);
+        }
+        
+        /**
+         * 打开写入通道，临时文件会截断到已提交长度以丢弃未确认的数据
+         */
+        public FileChannel open(long committed) throws IOException {
+            if (sharedChannel != null) {
+                return sharedChannel;
+            }
+            FileChannel channel = FileChannel.open(Paths.get(path), 
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            if (channel.size() > committed) {
+                channel.truncate(committed);
+            }
+            return channel;
+        }
+        
+        public long getBasePosition(SegmentInfo segment) {
+            return sharedChannel != null ? segment.getStart() : 0;
+        }
+        
+        public void sync() throws IOException {
+            if (sharedChannel != null) {
+                sharedChannel.force(false);
+            }
+        }
+        
+        public void release(FileChannel channel) {
+            // 共享通道由直写流程统一关闭
+            if (channel != sharedChannel) {
+                try { channel.close(); } catch (IOException e) { /* ignore */ }
+            }
+        }
+        
+        public String getPath() { return path; }
+    }
+    
+    /**
+     * 单次分段下载的共享上下文
+     */
+    private static class DownloadContext {
+        private final List<String> mirrorUrls;
+        private final SegmentManifest manifest;
+        private final SegmentTarget sharedTarget;
+        private final Path tempDir;
+        private final SegmentProgressCallback progressCallback;
+        private final AtomicLong totalDownloaded = new AtomicLong(0);
+        
+        // 全部分段（含拆分产生的分段）与尚未被连接领取的分段
+        private final List<SegmentInfo> segments = new CopyOnWriteArrayList<>();
+        private final Queue<SegmentInfo> pendingSegments = new ConcurrentLinkedQueue<>();
+        private final ConcurrentHashMap<Integer, SegmentResult> results = new ConcurrentHashMap<>();
+        private final List<Double> connectionThroughputs = new CopyOnWriteArrayList<>();
+        private volatile boolean stopped;
+        private volatile String failureMessage;
+        
+        // 连接数控制
+        private volatile OptimalThreadCalculator.ConnectionController connectionController;
+        private volatile int targetWorkers;
+        private volatile int activeWorkers;
+        
+        // 全局带宽调度中的流量
+        private volatile BandwidthGovernor.Flow bandwidthFlow;
+        
+        // 各镜像主机当前的连接数
+        private final ConcurrentHashMap<String, AtomicInteger> hostConnections = new ConcurrentHashMap<>();
+        
+        public DownloadContext(List<String> mirrorUrls, SegmentManifest manifest, SegmentTarget sharedTarget,
+                               Path tempDir, SegmentProgressCallback progressCallback) {
+            this.mirrorUrls = mirrorUrls;
+            this.manifest = manifest;
+            this.sharedTarget = sharedTarget;
+            this.tempDir = tempDir;
+            this.progressCallback = progressCallback;
+        }
+        
+        public SegmentTarget targetFor(SegmentInfo segment) {
+            if (sharedTarget != null) {
+                return sharedTarget;
+            }
+            return SegmentTarget.tempFile(tempDir.resolve("segment_" + segment.getIndex() + ".tmp").toString());
+        }
+        
+        /**
+         * 检查点前的数据落盘：直写模式同步共享通道，临时文件模式不做同步
+         */
+        public void syncData() throws IOException {
+            if (sharedTarget != null) {
+                sharedTarget.sync();
+            }
+        }
+        
+        public void addPendingSegment(SegmentInfo segment) {
+            segments.add(segment);
+            pendingSegments.add(segment);
+        }
+        
+        public void addSegment(SegmentInfo segment) {
+            segments.add(segment);
+        }
+        
+        public SegmentInfo pollPendingSegment() {
+            return pendingSegments.poll();
+        }
+        
+        /**
+         * 退避结束后把失败的分段放回待下载队列，期间可能已被其他连接拆分接管
+         */
+        public synchronized void requeueSegment(SegmentInfo segment) {
+            if (!stopped && !segment.isDone()) {
+                pendingSegments.add(segment);
+                notifyAll();
+            }
+        }
+        
+        /**
+         * 空闲连接等待分段放回队列、下载停止或超时
+         */
+        public synchronized void awaitPendingSegment(long timeoutMs) throws InterruptedException {
+            if (!stopped && pendingSegments.isEmpty()) {
+                wait(timeoutMs);
+            }
+        }
+        
+        public boolean hasPendingSegments() {
+            return !pendingSegments.isEmpty();
+        }
+        
+        /**
+         * 连接数低于目标时登记一个新连接
+         */
+        public synchronized boolean tryStartWorker() {
+            if (stopped || activeWorkers >= targetWorkers) {
+                return false;
+            }
+            activeWorkers++;
+            return true;
+        }
+        
+        /**
+         * 连接数超过目标时注销当前连接
+         */
+        public synchronized boolean tryRetireWorker() {
+            if (activeWorkers <= targetWorkers) {
+                return false;
+            }
+            activeWorkers--;
+            notifyAll();
+            return true;
+        }
+        
+        public synchronized void workerExited() {
+            activeWorkers--;
+            notifyAll();
+        }
+        
+        public synchronized int getActiveWorkers() {
+            return activeWorkers;
+        }
+        
+        /**
+         * 等待连接退出或超时
+         */
+        public synchronized void awaitWorkers(long timeoutMs) throws InterruptedException {
+            if (activeWorkers > 0) {
+                wait(timeoutMs);
+            }
+        }
+        
+        public boolean isOverTarget() {
+            return activeWorkers > targetWorkers; // 读取可能略有滞后，让出后由tryRetireWorker最终决定
+        }
+        
+        public void recordConnectionError() {
+            OptimalThreadCalculator.ConnectionController controller = connectionController;
+            if (controller != null) {
+                controller.recordError();
+            }
+        }
+        
+        public void completeSegment(SegmentInfo segment, SegmentResult result) {
+            results.put(segment.getIndex(), result);
+            segment.markDone();
+        }
+        
+        public boolean hasUnfinishedSegments() {
+            for (SegmentInfo segment : segments) {
+                if (!segment.isDone()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        
+        /**
+         * 按文件偏移顺序收集分段结果
+         */
+        public List<SegmentResult> collectResults() {
+            List<SegmentInfo> ordered = new ArrayList<>(segments);
+            ordered.sort(Comparator.comparingLong(SegmentInfo::getStart));
+            
+            List<SegmentResult> orderedResults = new ArrayList<>(ordered.size());
+            for (SegmentInfo segment : ordered) {
+                SegmentResult result = results.get(segment.getIndex());
+                if (result == null) {
+                    throw new RuntimeException("Segment download failed: " + (failureMessage != null 
+                        ? failureMessage : "segment " + segment.getIndex() + " did not complete"));
+                }
+                orderedResults.add(result);
+            }
+            return orderedResults;
+        }
+        
+        public synchronized void fail(String message) {
+            if (failureMessage == null) {
+                failureMessage = message;
+            }
+            stopped = true;
+            notifyAll();
+        }
+        
+        public void acquireBandwidth(int bytes) {
+            BandwidthGovernor.Flow flow = bandwidthFlow;
+            if (flow != null) {
+                flow.acquire(bytes);
+            }
+        }
+        
+        public void closeBandwidthFlow() {
+            BandwidthGovernor.Flow flow = bandwidthFlow;
+            if (flow != null) {
+                flow.close();
+            }
+        }
+        
+        public synchronized void stop() {
+            stopped = true;
+            notifyAll();
+        }
+
+        public void setBandwidthFlow(BandwidthGovernor.Flow bandwidthFlow) { this.bandwidthFlow = bandwidthFlow; }
+        public void setConnectionController(OptimalThreadCalculator.ConnectionController controller) { this.connectionController = controller; }
+        public int getTargetWorkers() { return targetWorkers; }
+        public void setTargetWorkers(int targetWorkers) { this.targetWorkers = Math.max(1, targetWorkers); }
+        public boolean isStopped() { return stopped; }
+        public String getUrl() { return mirrorUrls.get(0); }
+        public List<String> getMirrorUrls() { return mirrorUrls; }
+        public ConcurrentHashMap<String, AtomicInteger> getHostConnections() { return hostConnections; }
+        public SegmentManifest getManifest() { return manifest; }
+        public SegmentProgressCallback getProgressCallback() { return progressCallback; }
+        public AtomicLong getTotalDownloaded() { return totalDownloaded; }
+        public List<SegmentInfo> getSegments() { return segments; }
+        public List<Double> getConnectionThroughputs() { return connectionThroughputs; }
     }
     
     /**
@@ -598,37 +2135,54 @@ public class SegmentDownloadExecutor {
         private final int segmentIndex;
         private final String tempFilePath;
         private final long downloadedBytes;
+        private final String checksum;
         private final String errorMessage;
         
         private SegmentResult(boolean success, int segmentIndex, String tempFilePath, 
-                             long downloadedBytes, String errorMessage) {
+                             long downloadedBytes, String checksum, String errorMessage) {
             this.success = success;
             this.segmentIndex = segmentIndex;
             this.tempFilePath = tempFilePath;
             this.downloadedBytes = downloadedBytes;
+            this.checksum = checksum;
             this.errorMessage = errorMessage;
         }
         
-        public static SegmentResult success(int segmentIndex, String tempFilePath, long downloadedBytes) {
-            return new SegmentResult(true, segmentIndex, tempFilePath, downloadedBytes, null);
-        }
-        
-        public static SegmentResult failure(int segmentIndex, String tempFilePath, String errorMessage) {
-            return new SegmentResult(false, segmentIndex, tempFilePath, 0, errorMessage);
+        public static SegmentResult success(int segmentIndex, String tempFilePath, long downloadedBytes, String checksum) {
+            return new SegmentResult(true, segmentIndex, tempFilePath, downloadedBytes, checksum, null);
         }
         
         public boolean isSuccess() { return success; }
         public int getSegmentIndex() { return segmentIndex; }
         public String getTempFilePath() { return tempFilePath; }
         public long getDownloadedBytes() { return downloadedBytes; }
+        public String getChecksum() { return checksum; }
         public String getErrorMessage() { return errorMessage; }
     }
     
+    /**
+     * 流式下载的输出目标
+     */
+    public interface StreamSink {
+        /**
+         * 打开输出流，命名管道在读取方打开前会阻塞
+         */
+        OutputStream open() throws IOException;
+    }
+    
     /**
      * 分段进度回调接口
      */
     public interface SegmentProgressCallback {
         void onProgress(int segmentIndex, long segmentDownloaded, long segmentSize, double totalProgress);
+        
+        /**
+         * 整个文件的字节进度，与onProgress同时回调
+         * @param downloadedBytes 已下载字节数（含续传前已完成的部分）
+         * @param totalBytes 文件总字节数，未知时小于等于0
+         */
+        default void onBytesProgress(long downloadedBytes, long totalBytes) {
+        }
     }
     
     /**
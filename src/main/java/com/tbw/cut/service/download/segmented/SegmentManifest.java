@@ -0,0 +1,369 @@
+package com.tbw.cut.service.download.segmented;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 分段下载清单
+ * 以内存映射的紧凑二进制边车文件记录URL标识、文件大小、分段范围、各分段已提交字节数和分段摘要，
+ * 用于进程重启、暂停或URL刷新后仅续传缺失的字节范围。分段记录槽位预先分配，支持下载过程中动态拆分分段
+ *
+ * 文件格式：
+ * <pre>
+ * int magic | int version | long totalSize | int segmentCount | int capacity | short identityLength | byte[] identity
+ * 每个槽位: long start | long end | long committed | byte completed | byte[32] md5Hex
+ * </pre>
+ */
+@Slf4j
+class SegmentManifest implements Closeable {
+
+    private static final int MAGIC = 0x52435347; // "RCSG"
+    private static final int VERSION = 1;
+    private static final int CHECKSUM_LENGTH = 32;
+    private static final int RECORD_SIZE = 8 + 8 + 8 + 1 + CHECKSUM_LENGTH;
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 4 + 4 + 2;
+
+    private final Path path;
+    private final String identity;
+    private final long totalSize;
+    private final long[] starts;
+    private final long[] ends;
+    private final String[] checksums;
+    private final int recordsOffset;
+    private volatile int segmentCount;
+    private int persistedSegmentCount;
+
+    // 已写入数据的字节数（尚未确认落盘）
+    private final AtomicLongArray writtenBytes;
+    // 已随检查点落盘的字节数
+    private final long[] committedBytes;
+
+    private final FileChannel channel;
+    private final MappedByteBuffer mapped;
+    private volatile long lastCheckpointTime = System.currentTimeMillis();
+
+    private SegmentManifest(Path path, String identity, long totalSize, int segmentCount, long[] starts, long[] ends,
+                            long[] committed, String[] checksums, int recordsOffset,
+                            FileChannel channel, MappedByteBuffer mapped) {
+        this.path = path;
+        this.identity = identity;
+        this.totalSize = totalSize;
+        this.segmentCount = segmentCount;
+        this.persistedSegmentCount = segmentCount;
+        this.starts = starts;
+        this.ends = ends;
+        this.checksums = checksums;
+        this.recordsOffset = recordsOffset;
+        this.committedBytes = committed;
+        this.writtenBytes = new AtomicLongArray(committed);
+        this.channel = channel;
+        this.mapped = mapped;
+    }
+
+    /**
+     * 创建新的清单文件（覆盖已有文件）
+     * @param path 清单文件路径
+     * @param identity 下载标识
+     * @param totalSize 文件总大小
+     * @param starts 各分段起始偏移
+     * @param ends 各分段结束偏移（包含）
+     * @param capacity 分段槽位总数（不小于初始分段数，多出的槽位用于动态拆分）
+     * @return 清单
+     */
+    static SegmentManifest create(Path path, String identity, long totalSize,
+                                  long[] starts, long[] ends, int capacity) throws IOException {
+        byte[] identityBytes = identity.getBytes(StandardCharsets.UTF_8);
+        capacity = Math.max(capacity, starts.length);
+        int recordsOffset = HEADER_SIZE + identityBytes.length;
+        int fileSize = recordsOffset + RECORD_SIZE * capacity;
+
+        ByteBuffer buffer = ByteBuffer.allocate(fileSize);
+        buffer.putInt(MAGIC);
+        buffer.putInt(VERSION);
+        buffer.putLong(totalSize);
+        buffer.putInt(starts.length);
+        buffer.putInt(capacity);
+        buffer.putShort((short) identityBytes.length);
+        buffer.put(identityBytes);
+        for (int i = 0; i < capacity; i++) {
+            boolean used = i < starts.length;
+            buffer.putLong(used ? starts[i] : 0);
+            buffer.putLong(used ? ends[i] : -1);
+            buffer.putLong(0);
+            buffer.put((byte) 0);
+            buffer.put(new byte[CHECKSUM_LENGTH]);
+        }
+        buffer.flip();
+
+        try (FileChannel out = FileChannel.open(path,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buffer.hasRemaining()) {
+                out.write(buffer);
+            }
+            out.force(true);
+        }
+
+        SegmentManifest manifest = open(path);
+        if (manifest == null) {
+            throw new IOException("Failed to reopen newly created manifest: " + path);
+        }
+        return manifest;
+    }
+
+    /**
+     * 打开已有的清单文件
+     * @param path 清单文件路径
+     * @return 清单，文件不存在或已损坏时返回null
+     */
+    static SegmentManifest open(Path path) throws IOException {
+        if (!Files.exists(path)) {
+            return null;
+        }
+
+        RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw");
+        FileChannel channel = file.getChannel();
+        try {
+            long fileSize = channel.size();
+            if (fileSize < HEADER_SIZE) {
+                log.warn("Segment manifest is truncated, ignoring: {}", path);
+                file.close();
+                return null;
+            }
+
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, fileSize);
+            if (mapped.getInt(0) != MAGIC || mapped.getInt(4) != VERSION) {
+                log.warn("Segment manifest has unknown format, ignoring: {}", path);
+                file.close();
+                return null;
+            }
+
+            long totalSize = mapped.getLong(8);
+            int segmentCount = mapped.getInt(16);
+            int capacity = mapped.getInt(20);
+            int identityLength = mapped.getShort(24) & 0xFFFF;
+            int recordsOffset = HEADER_SIZE + identityLength;
+            if (segmentCount <= 0 || segmentCount > capacity
+                    || fileSize != (long) recordsOffset + (long) RECORD_SIZE * capacity) {
+                log.warn("Segment manifest size does not match its header, ignoring: {}", path);
+                file.close();
+                return null;
+            }
+
+            byte[] identityBytes = new byte[identityLength];
+            for (int i = 0; i < identityLength; i++) {
+                identityBytes[i] = mapped.get(HEADER_SIZE + i);
+            }
+
+            long[] starts = new long[capacity];
+            long[] ends = new long[capacity];
+            long[] committed = new long[capacity];
+            String[] checksums = new String[capacity];
+            for (int i = 0; i < segmentCount; i++) {
+                int offset = recordsOffset + RECORD_SIZE * i;
+                starts[i] = mapped.getLong(offset);
+                ends[i] = mapped.getLong(offset + 8);
+                long segmentSize = ends[i] - starts[i] + 1;
+                committed[i] = Math.max(0, Math.min(segmentSize, mapped.getLong(offset + 16)));
+                if (mapped.get(offset + 24) != 0) {
+                    byte[] checksumBytes = new byte[CHECKSUM_LENGTH];
+                    for (int j = 0; j < CHECKSUM_LENGTH; j++) {
+                        checksumBytes[j] = mapped.get(offset + 25 + j);
+                    }
+                    checksums[i] = new String(checksumBytes, StandardCharsets.US_ASCII);
+                }
+            }
+
+            return new SegmentManifest(path, new String(identityBytes, StandardCharsets.UTF_8), totalSize,
+                segmentCount, starts, ends, committed, checksums, recordsOffset, channel, mapped);
+
+        } catch (IOException | RuntimeException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    /**
+     * 生成下载标识
+     * 只使用URL路径，忽略主机与查询参数，使URL刷新或切换CDN节点后仍能匹配同一资源
+     * @param url 下载URL
+     * @return 下载标识
+     */
+    static String identityOf(String url) {
+        try {
+            return new URL(url).getPath();
+        } catch (Exception e) {
+            int queryIndex = url.indexOf('?');
+            return queryIndex >= 0 ? url.substring(0, queryIndex) : url;
+        }
+    }
+
+    /**
+     * 检查清单是否对应同一下载
+     * @param identity 下载标识
+     * @param totalSize 文件总大小
+     * @return 是否匹配
+     */
+    boolean matches(String identity, long totalSize) {
+        return this.identity.equals(identity) && this.totalSize == totalSize;
+    }
+
+    /**
+     * 记录分段已写入的字节数，在下一次检查点时落盘
+     * @param index 分段索引
+     * @param written 分段内已写入字节数
+     */
+    void recordProgress(int index, long written) {
+        writtenBytes.set(index, written);
+    }
+
+    /**
+     * 标记分段完成并保存分段摘要
+     * @param index 分段索引
+     * @param checksum 分段MD5（十六进制，可为null）
+     */
+    synchronized void completeSegment(int index, String checksum) {
+        writtenBytes.set(index, getSegmentSize(index));
+        checksums[index] = checksum;
+    }
+
+    /**
+     * 在指定位置拆分分段，后半部分占用一个新的槽位
+     * 调用方需保证拆分点之后的数据尚未被写入
+     * @param index 被拆分的分段索引
+     * @param splitPoint 新分段的起始偏移
+     * @return 新分段索引，槽位已满时返回-1
+     */
+    synchronized int splitSegment(int index, long splitPoint) {
+        if (segmentCount >= starts.length || splitPoint < starts[index] || splitPoint > ends[index]) {
+            return -1;
+        }
+
+        int newIndex = segmentCount;
+        starts[newIndex] = splitPoint;
+        ends[newIndex] = ends[index];
+        checksums[newIndex] = null;
+        writtenBytes.set(newIndex, 0);
+        ends[index] = splitPoint - 1;
+        segmentCount = newIndex + 1;
+        return newIndex;
+    }
+
+    /**
+     * 距上次检查点超过间隔时执行检查点
+     * @param intervalMs 检查点间隔
+     * @param dataSync 数据落盘操作
+     */
+    void checkpointIfDue(long intervalMs, DataSync dataSync) throws IOException {
+        if (System.currentTimeMillis() - lastCheckpointTime >= intervalMs) {
+            checkpoint(dataSync);
+        }
+    }
+
+    /**
+     * 执行检查点：先快照已写入字节数，再将数据落盘，最后写入并同步清单
+     * 先快照后落盘保证清单记录的字节一定已持久化，多个分段的进度在一次同步中批量提交
+     * @param dataSync 数据落盘操作
+     */
+    synchronized void checkpoint(DataSync dataSync) throws IOException {
+        int count = segmentCount;
+        long[] snapshot = new long[count];
+        for (int i = 0; i < count; i++) {
+            snapshot[i] = writtenBytes.get(i);
+        }
+
+        if (dataSync != null) {
+            dataSync.sync();
+        }
+
+        boolean changed = false;
+        for (int i = 0; i < count; i++) {
+            int offset = recordsOffset + RECORD_SIZE * i;
+            if (mapped.getLong(offset) != starts[i] || mapped.getLong(offset + 8) != ends[i]) {
+                // 拆分产生的范围变化
+                mapped.putLong(offset, starts[i]);
+                mapped.putLong(offset + 8, ends[i]);
+                changed = true;
+            }
+            if (snapshot[i] != committedBytes[i]) {
+                committedBytes[i] = snapshot[i];
+                mapped.putLong(offset + 16, snapshot[i]);
+                changed = true;
+            }
+
+            boolean completed = checksums[i] != null && snapshot[i] == getSegmentSize(i);
+            if (completed && mapped.get(offset + 24) == 0) {
+                byte[] checksumBytes = checksums[i].getBytes(StandardCharsets.US_ASCII);
+                for (int j = 0; j < CHECKSUM_LENGTH && j < checksumBytes.length; j++) {
+                    mapped.put(offset + 25 + j, checksumBytes[j]);
+                }
+                mapped.put(offset + 24, (byte) 1);
+                changed = true;
+            }
+        }
+
+        if (count != persistedSegmentCount) {
+            // 新槽位的记录先写入，最后更新分段数
+            mapped.putInt(16, count);
+            persistedSegmentCount = count;
+            changed = true;
+        }
+
+        if (changed) {
+            mapped.force();
+        }
+        lastCheckpointTime = System.currentTimeMillis();
+    }
+
+    /**
+     * 关闭并删除清单文件（下载完成后调用）
+     */
+    void delete() {
+        try {
+            close();
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            log.warn("Failed to delete segment manifest: {}", path, e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    int getSegmentCount() { return segmentCount; }
+    Path getPath() { return path; }
+    long getTotalSize() { return totalSize; }
+    long getSegmentStart(int index) { return starts[index]; }
+    long getSegmentEnd(int index) { return ends[index]; }
+    long getSegmentSize(int index) { return ends[index] - starts[index] + 1; }
+    long getCommittedBytes(int index) { return committedBytes[index]; }
+    String getChecksum(int index) { return checksums[index]; }
+
+    long getTotalCommittedBytes() {
+        long total = 0;
+        for (int i = 0; i < segmentCount; i++) {
+            total += committedBytes[i];
+        }
+        return total;
+    }
+
+    /**
+     * 数据落盘操作
+     */
+    interface DataSync {
+        void sync() throws IOException;
+    }
+}
@@ -3,6 +3,7 @@ package com.tbw.cut.service.download.segmented;
 import com.tbw.cut.service.download.model.*;
 import com.tbw.cut.service.download.EnhancedDownloadManager;
 import com.tbw.cut.service.download.logging.DownloadTimeLogger;
+import com.tbw.cut.service.download.store.DownloadStore;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
@@ -38,6 +39,9 @@ public class SegmentedDownloadManager {
     @Autowired
     private com.tbw.cut.service.PartDownloadService partDownloadService;
     
+    @Autowired
+    private DownloadStore downloadStore;
+    
     @Value("${download.segmented.enabled:true}")
     private boolean segmentedDownloadEnabled;
     
@@ -52,6 +56,7 @@ public class SegmentedDownloadManager {
     
     /**
      * 下载视频
+     * 之前中断的分段下载会根据分段清单自动续传
      * @param request 下载请求
      * @return 下载结果
      */
@@ -97,6 +102,17 @@ public class SegmentedDownloadManager {
             return SegmentationStrategy.noSegmentation("User disabled segmented download");
         }
         
+        // 存在未完成的分段清单时继续分段下载，只补齐缺失的字节范围
+        if (request.getParts() != null) {
+            for (VideoPart part : request.getParts()) {
+                if (segmentExecutor.hasResumableDownload(generateOutputPath(request, part))) {
+                    return SegmentationStrategy.useSegmentation(
+                        "Resuming interrupted segmented download", 
+                        calculateOptimalSegments(request.getTotalEstimatedSize()));
+                }
+            }
+        }
+        
         // 检查文件大小 - 降低分段下载的最小文件大小阈值
         long adjustedMinSize = minFileSizeForSegmentation / 5; // 降低到10MB
         long totalEstimatedSize = request.getTotalEstimatedSize();
@@ -173,13 +189,15 @@ public class SegmentedDownloadManager {
             // 获取数据库任务ID
             Long databaseTaskId = part.getDatabaseId();
             
-            return segmentExecutor.executeSegmentedDownload(
-                part.getUrl(), 
-                outputPath, 
-                fileSize, 
-                strategy.getSegmentCount(),
+            return downloadPart(part, outputPath, fileSize, strategy.getSegmentCount(),
                 new SegmentProgressCallbackImpl(request.getVideoTitle(), databaseTaskId, partDownloadService)
-            );
+            ).handle((path, throwable) -> {
+                if (throwable == null) {
+                    return DownloadResult.success(path);
+                }
+                Throwable cause = throwable.getCause() != null ? throwable.getCause() : throwable;
+                return DownloadResult.failure(cause.getMessage());
+            });
         }
         
         // 降级到标准下载
@@ -209,20 +227,10 @@ public class SegmentedDownloadManager {
             long estimatedPartSize = request.getTotalEstimatedSize() / request.getPartCount();
             
             // 为每个分P使用分段下载
-            CompletableFuture<String> partFuture = segmentExecutor.executeSegmentedDownload(
-                part.getUrl(),
-                outputPath,
-                estimatedPartSize,
+            CompletableFuture<String> partFuture = downloadPart(part, outputPath, estimatedPartSize,
                 strategy.getSegmentCount(),
                 new SegmentProgressCallbackImpl(request.getVideoTitle() + " - Part " + (i + 1), 
-                                              part.getDatabaseId(), partDownloadService)
-            ).thenApply(result -> {
-                if (result.isSuccess()) {
-                    return outputPath;
-                } else {
-                    throw new RuntimeException("Part download failed: " + result.getErrorMessage());
-                }
-            });
+                                              part.getDatabaseId(), partDownloadService));
             
             partFutures.add(partFuture);
         }
@@ -243,6 +251,30 @@ public class SegmentedDownloadManager {
             });
     }
     
+    /**
+     * 分段下载单个分P，同一分P已存储或正在下载时复用下载存储中的结果
+     * @return 分P文件路径
+     */
+    private CompletableFuture<String> downloadPart(VideoPart part, String outputPath, long fileSize,
+                                                   int segmentCount,
+                                                   SegmentDownloadExecutor.SegmentProgressCallback callback) {
+        return downloadStore.fetchAsync(DownloadStore.keyOf(part), outputPath,
+            () -> segmentExecutor.executeSegmentedDownload(
+                part.getUrl(),
+                getBackupUrls(part),
+                outputPath,
+                fileSize,
+                segmentCount,
+                callback
+            ).thenApply(result -> {
+                if (result.isSuccess()) {
+                    return outputPath;
+                } else {
+                    throw new RuntimeException("Part download failed: " + result.getErrorMessage());
+                }
+            }));
+    }
+    
     /**
      * 执行标准下载
      * @param request 下载请求
@@ -268,6 +300,20 @@ public class SegmentedDownloadManager {
             .build();
     }
     
+    /**
+     * 获取分P视频流的备用URL（playurl返回的backupUrl，位于其他CDN节点）
+     * @param part 视频分P
+     * @return 备用URL列表，没有时返回null
+     */
+    @SuppressWarnings("unchecked")
+    private List<String> getBackupUrls(VideoPart part) {
+        if (part.getExtraParams() == null) {
+            return null;
+        }
+        Object backupUrls = part.getExtraParams().get("backupUrls");
+        return backupUrls instanceof List ? (List<String>) backupUrls : null;
+    }
+    
     /**
      * 生成输出文件路径
      * @param request 下载请求
@@ -0,0 +1,541 @@
+package com.tbw.cut.service.download.store;
+
+import com.alibaba.fastjson.JSONObject;
+import com.tbw.cut.service.download.buffer.DirectBufferPool;
+import com.tbw.cut.service.download.model.VideoPart;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Supplier;
+
+/**
+ * 内容寻址的下载存储
+ * 已完成的分P按 (bvid, cid, qn, codec) 登记，文件硬链接到存储目录后按内容哈希命名；同一分P再次下载时硬链接到任务目录，
+ * 无法硬链接（跨文件系统）时在后台线程中复制。正在下载的重复请求等待已有下载完成后共享结果。
+ * 存储超过磁盘配额时按最近最少使用淘汰。
+ * 存储对象与任务文件共用inode，索引记录对象的大小和修改时间，任务文件被原地改写后两者之一变化，该对象即被丢弃；
+ * 登记时的哈希计算在单独的线程中进行，不占用下载完成的线程
+ */
+@Slf4j
+@Component
+public class DownloadStore {
+
+    private static final String INDEX_FILE = "index.json";
+    private static final String OBJECTS_DIR = "objects";
+    private static final int HASH_BUFFER_SIZE = 1024 * 1024;
+
+    @Value("${download.store.enabled:true}")
+    private boolean enabled = true;
+
+    @Value("${download.store.dir:./download_store}")
+    private String storeDir = "./download_store";
+
+    @Value("${download.store.quota-bytes:21474836480}")
+    private long quotaBytes = 20L * 1024 * 1024 * 1024;
+
+    @Autowired(required = false)
+    private DirectBufferPool bufferPool;
+
+    // 存储键 -> 条目，访问顺序即LRU顺序
+    private final LinkedHashMap<String, Entry> index = new LinkedHashMap<>(16, 0.75f, true);
+
+    // 正在下载或登记中的存储键，登记完成后才移除，重复请求据此等待并从存储复制
+    private final ConcurrentHashMap<String, CompletableFuture<String>> inFlight = new ConcurrentHashMap<>();
+
+    // 登记（哈希并复制到存储）在单线程中依次执行
+    private final ExecutorService ingestExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "download-store-ingest");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // 无法硬链接时从存储复制到任务目录
+    private final ExecutorService copyExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "download-store-copy");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private volatile CompletableFuture<Void> lastIngest = CompletableFuture.completedFuture(null);
+
+    /**
+     * 加载存储索引，丢弃对象文件已不存在的条目
+     */
+    @PostConstruct
+    public void init() {
+        if (!enabled) {
+            return;
+        }
+
+        Path indexPath = Paths.get(storeDir, INDEX_FILE);
+        if (!Files.exists(indexPath)) {
+            return;
+        }
+
+        try {
+            JSONObject state = JSONObject.parseObject(new String(Files.readAllBytes(indexPath), StandardCharsets.UTF_8));
+            if (state != null) {
+                List<String> keys = new ArrayList<>(state.keySet());
+                // 按最后访问时间恢复LRU顺序
+                keys.sort(Comparator.comparingLong(key -> state.getJSONObject(key).getLongValue("lastAccess")));
+                synchronized (index) {
+                    for (String key : keys) {
+                        JSONObject json = state.getJSONObject(key);
+                        String hash = json.getString("hash");
+                        if (hash == null || !Files.exists(objectPath(hash))) {
+                            continue;
+                        }
+                        long modified = json.containsKey("modified") ? json.getLongValue("modified")
+                            : Files.getLastModifiedTime(objectPath(hash)).toMillis();
+                        index.put(key, new Entry(hash, json.getLongValue("size"), modified,
+                            json.getLongValue("lastAccess")));
+                    }
+                }
+            }
+            log.info("Loaded download store index: {} entries, {} bytes", index.size(), getStoredBytes());
+        } catch (Exception e) {
+            log.warn("Failed to load download store index from {}", indexPath, e);
+        }
+    }
+
+    /**
+     * 生成分P的存储键
+     * @param part 视频分P（qn和codec来自extraParams）
+     * @return 存储键，缺少bvid或cid时返回null（不参与去重）
+     */
+    public static String keyOf(VideoPart part) {
+        if (part == null) {
+            return null;
+        }
+        Map<String, Object> extraParams = part.getExtraParams();
+        Object qn = extraParams != null ? extraParams.get("qn") : null;
+        Object codec = extraParams != null ? extraParams.get("codec") : null;
+        return keyOf(part.getBvid(), part.getCid(), qn != null ? qn.toString() : null,
+            codec != null ? codec.toString() : null);
+    }
+
+    /**
+     * 生成存储键
+     * @return 存储键，缺少bvid或cid时返回null
+     */
+    public static String keyOf(String bvid, Long cid, String qn, String codec) {
+        if (bvid == null || bvid.isEmpty() || cid == null) {
+            return null;
+        }
+        return bvid + ":" + cid + ":" + (qn != null ? qn : "") + ":" + (codec != null ? codec : "");
+    }
+
+    /**
+     * 获取分P文件，在当前线程中完成
+     * 已存储时链接到目标路径（无法链接时等待复制线程复制）；同一存储键正在下载时等待其完成后链接；
+     * 否则执行下载并登记结果
+     * @param key 存储键，为null时直接下载
+     * @param targetPath 目标路径
+     * @param downloader 实际下载，返回下载后的文件路径
+     * @return 文件路径
+     */
+    public String fetch(String key, String targetPath, Supplier<String> downloader) {
+        if (!enabled || key == null) {
+            return downloader.get();
+        }
+
+        String linked = materialize(key, targetPath).join();
+        if (linked != null) {
+            return linked;
+        }
+
+        CompletableFuture<String> own = new CompletableFuture<>();
+        CompletableFuture<String> running = inFlight.putIfAbsent(key, own);
+        if (running != null) {
+            log.info("Waiting for in-flight download of {} instead of starting another", key);
+            try {
+                running.join();
+                linked = materialize(key, targetPath).join();
+                if (linked != null) {
+                    return linked;
+                }
+            } catch (Exception e) {
+                log.info("In-flight download of {} failed, downloading it again", key);
+            }
+            return downloader.get();
+        }
+
+        try {
+            String path = downloader.get();
+            ingestAsync(key, path, own);
+            return path;
+        } catch (RuntimeException e) {
+            inFlight.remove(key, own);
+            own.completeExceptionally(e);
+            throw e;
+        }
+    }
+
+    /**
+     * 获取分P文件，下载异步进行
+     * @param key 存储键，为null时直接下载
+     * @param targetPath 目标路径
+     * @param downloader 实际下载，完成时返回下载后的文件路径
+     * @return 文件路径的Future
+     */
+    public CompletableFuture<String> fetchAsync(String key, String targetPath,
+                                                Supplier<CompletableFuture<String>> downloader) {
+        if (!enabled || key == null) {
+            return downloader.get();
+        }
+
+        return materialize(key, targetPath).thenCompose(stored -> stored != null
+            ? CompletableFuture.completedFuture(stored) : downloadOrAttach(key, targetPath, downloader));
+    }
+
+    private CompletableFuture<String> downloadOrAttach(String key, String targetPath,
+                                                      Supplier<CompletableFuture<String>> downloader) {
+        CompletableFuture<String> own = new CompletableFuture<>();
+        CompletableFuture<String> running = inFlight.putIfAbsent(key, own);
+        if (running != null) {
+            log.info("Attaching to in-flight download of {}", key);
+            return running
+                .handle((path, error) -> error == null ? materialize(key, targetPath)
+                    : CompletableFuture.<String>completedFuture(null))
+                .thenCompose(stored -> stored)
+                .thenCompose(path -> path != null ? CompletableFuture.completedFuture(path) : downloader.get());
+        }
+
+        CompletableFuture<String> download;
+        try {
+            download = downloader.get();
+        } catch (RuntimeException e) {
+            inFlight.remove(key, own);
+            own.completeExceptionally(e);
+            throw e;
+        }
+        return download.whenComplete((path, error) -> {
+            if (error == null) {
+                ingestAsync(key, path, own);
+            } else {
+                inFlight.remove(key, own);
+                own.completeExceptionally(error);
+            }
+        });
+    }
+
+    /**
+     * 已存储的文件总字节数（同一内容只计一次）
+     */
+    public long getStoredBytes() {
+        synchronized (index) {
+            Map<String, Long> blobs = new HashMap<>();
+            for (Entry entry : index.values()) {
+                blobs.put(entry.hash, entry.size);
+            }
+            return blobs.values().stream().mapToLong(Long::longValue).sum();
+        }
+    }
+
+    public boolean contains(String key) {
+        synchronized (index) {
+            return index.containsKey(key);
+        }
+    }
+
+    /**
+     * 将已存储的文件硬链接到目标路径，无法硬链接时在复制线程中复制
+     * @return 目标路径的Future，没有可用条目、存储对象已被改写或复制失败时结果为null
+     */
+    private CompletableFuture<String> materialize(String key, String targetPath) {
+        Path blob;
+        Entry entry;
+        synchronized (index) {
+            entry = index.get(key);
+            if (entry == null) {
+                return CompletableFuture.completedFuture(null);
+            }
+            blob = objectPath(entry.hash);
+            if (!Files.exists(blob)) {
+                index.remove(key);
+                saveIndex();
+                return CompletableFuture.completedFuture(null);
+            }
+            entry.lastAccess = System.currentTimeMillis();
+            saveIndex();
+        }
+
+        if (!unchanged(blob, entry)) {
+            log.warn("Stored file for {} was modified after it was stored, discarding it", key);
+            discard(key, entry);
+            return CompletableFuture.completedFuture(null);
+        }
+
+        Path target = Paths.get(targetPath);
+        try {
+            Path parent = target.toAbsolutePath().getParent();
+            if (parent != null) {
+                Files.createDirectories(parent);
+            }
+            Files.deleteIfExists(target);
+            Files.createLink(target, blob);
+            log.info("Satisfied download of {} from store: {}", key, targetPath);
+            return CompletableFuture.completedFuture(targetPath);
+        } catch (UnsupportedOperationException | IOException e) {
+            log.info("Cannot hard link stored file for {} into {} ({}), copying it in the background",
+                key, targetPath, e.toString());
+        }
+
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                Files.copy(blob, target, StandardCopyOption.REPLACE_EXISTING);
+                log.info("Satisfied download of {} from store by copy: {}", key, targetPath);
+                return targetPath;
+            } catch (Exception e) {
+                log.warn("Failed to copy stored file for {} into {}", key, targetPath, e);
+                return null;
+            }
+        }, copyExecutor);
+    }
+
+    /**
+     * 存储对象的大小和修改时间与登记时一致，即没有被共用inode的任务文件原地改写
+     */
+    private static boolean unchanged(Path blob, Entry entry) {
+        try {
+            return Files.size(blob) == entry.size && Files.getLastModifiedTime(blob).toMillis() == entry.modified;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * 移除条目，没有其他条目引用时删除存储对象
+     */
+    private void discard(String key, Entry entry) {
+        synchronized (index) {
+            index.remove(key, entry);
+            boolean shared = index.values().stream().anyMatch(other -> other.hash.equals(entry.hash));
+            if (!shared) {
+                try {
+                    Files.deleteIfExists(objectPath(entry.hash));
+                } catch (IOException e) {
+                    log.warn("Failed to delete stored file {}", entry.hash, e);
+                }
+            }
+            saveIndex();
+        }
+    }
+
+    /**
+     * 在登记线程中登记下载完成的文件，完成（无论成功与否）后释放存储键并通知等待的重复请求
+     */
+    private void ingestAsync(String key, String path, CompletableFuture<String> own) {
+        Runnable task = () -> {
+            try {
+                if (path != null) {
+                    ingest(key, Paths.get(path));
+                }
+            } catch (Exception e) {
+                log.warn("Failed to add {} to download store", path, e);
+            } finally {
+                inFlight.remove(key, own);
+                own.complete(path);
+            }
+        };
+        synchronized (this) {
+            lastIngest = CompletableFuture.runAsync(task, ingestExecutor);
+        }
+    }
+
+    /**
+     * 等待已提交的登记完成
+     */
+    void awaitIngest() {
+        lastIngest.join();
+    }
+
+    /**
+     * 登记下载完成的文件：硬链接到存储目录后读取一遍计算哈希，数据不再写第二份；
+     * 存储目录与任务文件不在同一文件系统时退回到边复制边计算哈希。随后按配额淘汰
+     */
+    private void ingest(String key, Path file) throws Exception {
+        if (!Files.isRegularFile(file)) {
+            return;
+        }
+
+        Path tempBlob = Paths.get(storeDir, OBJECTS_DIR, "ingest-" + Thread.currentThread().getId() + ".tmp");
+        Files.createDirectories(tempBlob.getParent());
+        String hash;
+        try {
+            Files.deleteIfExists(tempBlob);
+            if (link(file, tempBlob)) {
+                long size = Files.size(tempBlob);
+                long modified = Files.getLastModifiedTime(tempBlob).toMillis();
+                hash = hash(tempBlob, null);
+                if (!unchanged(tempBlob, new Entry(hash, size, modified, 0))) {
+                    log.info("{} changed while it was being hashed, not adding it to download store", file);
+                    return;
+                }
+            } else {
+                log.info("Cannot hard link {} into download store, copying it instead", file);
+                hash = hash(file, tempBlob);
+            }
+            Path blob = objectPath(hash);
+            if (!Files.exists(blob)) {
+                Files.createDirectories(blob.getParent());
+                Files.move(tempBlob, blob, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+        } finally {
+            Files.deleteIfExists(tempBlob);
+        }
+        Path blob = objectPath(hash);
+        long size = Files.size(blob);
+        long modified = Files.getLastModifiedTime(blob).toMillis();
+
+        synchronized (index) {
+            index.put(key, new Entry(hash, size, modified, System.currentTimeMillis()));
+            evictOverQuota();
+            saveIndex();
+        }
+        log.info("Added {} to download store: {} bytes, sha256={}", key, size, hash);
+    }
+
+    /**
+     * 按最近最少使用淘汰，直到存储总量不超过配额，调用方需持有索引锁
+     */
+    private void evictOverQuota() {
+        long stored = getStoredBytes();
+        Iterator<Map.Entry<String, Entry>> iterator = index.entrySet().iterator();
+        while (stored > quotaBytes && iterator.hasNext()) {
+            Map.Entry<String, Entry> eldest = iterator.next();
+            Entry entry = eldest.getValue();
+            iterator.remove();
+
+            boolean shared = index.values().stream().anyMatch(other -> other.hash.equals(entry.hash));
+            if (!shared) {
+                try {
+                    Files.deleteIfExists(objectPath(entry.hash));
+                } catch (IOException e) {
+                    log.warn("Failed to delete stored file {}", entry.hash, e);
+                }
+                stored -= entry.size;
+            }
+            log.info("Evicted {} from download store ({} bytes remaining)", eldest.getKey(), stored);
+        }
+    }
+
+    private Path objectPath(String hash) {
+        return Paths.get(storeDir, OBJECTS_DIR, hash.substring(0, 2), hash);
+    }
+
+    /**
+     * 保存索引，调用方需持有索引锁
+     */
+    private void saveIndex() {
+        Path indexPath = Paths.get(storeDir, INDEX_FILE);
+        try {
+            JSONObject state = new JSONObject();
+            for (Map.Entry<String, Entry> entry : index.entrySet()) {
+                JSONObject json = new JSONObject();
+                json.put("hash", entry.getValue().hash);
+                json.put("size", entry.getValue().size);
+                json.put("modified", entry.getValue().modified);
+                json.put("lastAccess", entry.getValue().lastAccess);
+                state.put(entry.getKey(), json);
+            }
+
+            Files.createDirectories(indexPath.getParent());
+            Path tempFile = indexPath.resolveSibling(INDEX_FILE + ".tmp");
+            Files.write(tempFile, state.toJSONString().getBytes(StandardCharsets.UTF_8));
+            Files.move(tempFile, indexPath, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            log.warn("Failed to save download store index to {}", indexPath, e);
+        }
+    }
+
+    private static boolean link(Path existing, Path link) {
+        try {
+            Files.createLink(link, existing);
+            return true;
+        } catch (UnsupportedOperationException | IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * 计算文件的SHA-256，copyTarget不为null时同时复制到该路径
+     */
+    private String hash(Path source, Path copyTarget) throws Exception {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        ByteBuffer buffer = bufferPool != null ? bufferPool.acquire(HASH_BUFFER_SIZE) : ByteBuffer.allocateDirect(HASH_BUFFER_SIZE);
+        try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+             FileChannel out = copyTarget == null ? null : FileChannel.open(copyTarget, StandardOpenOption.CREATE,
+                 StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (in.read(buffer) != -1) {
+                buffer.flip();
+                digest.update(buffer.duplicate());
+                while (out != null && buffer.hasRemaining()) {
+                    out.write(buffer);
+                }
+                buffer.clear();
+            }
+            if (out != null) {
+                out.force(false);
+            }
+        } finally {
+            if (bufferPool != null) {
+                bufferPool.release(buffer);
+            }
+        }
+
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        ingestExecutor.shutdown();
+        copyExecutor.shutdown();
+    }
+
+    /**
+     * 存储条目
+     */
+    private static class Entry {
+        private final String hash;
+        private final long size;
+        private final long modified;
+        private long lastAccess;
+
+        Entry(String hash, long size, long modified, long lastAccess) {
+            this.hash = hash;
+            this.size = size;
+            this.modified = modified;
+            this.lastAccess = lastAccess;
+        }
+    }
+}
@@ -1,24 +1,39 @@
 package com.tbw.cut.service.impl;
 
 import com.alibaba.fastjson.JSONObject;
+import com.tbw.cut.bilibili.BilibiliApiClient;
 import com.tbw.cut.bilibili.service.BilibiliVideoUploadService;
 import com.tbw.cut.bilibili.service.RateLimitHandler;
 import com.tbw.cut.bilibili.service.UploadProgressManager;
 import com.tbw.cut.config.BilibiliSubmissionConfig;
 import com.tbw.cut.entity.SubmissionTask;
 import com.tbw.cut.entity.TaskOutputSegment;
+import com.tbw.cut.entity.UploadProgress;
 import com.tbw.cut.service.BilibiliSubmissionService;
 import com.tbw.cut.service.SubmissionTaskService;
 import com.tbw.cut.service.VideoSubmissionResult;
+import com.tbw.cut.service.download.retry.RetryManager;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 import org.springframework.util.ObjectUtils;
 
+import javax.annotation.PostConstruct;
 import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 @Slf4j
 @Service
@@ -39,161 +54,366 @@ public class BilibiliSubmissionServiceImpl implements BilibiliSubmissionService
     @Autowired
     private BilibiliSubmissionConfig submissionConfig;
     
+    @Autowired
+    private RetryManager retryManager;
+    
+    @Autowired(required = false)
+    private BilibiliApiClient apiClient;
+    
+    // 分段最多尝试次数
+    private static final int MAX_SEGMENT_ATTEMPTS = 3;
+    
+    // 等待上传名额时重新检查的间隔
+    private static final long PERMIT_POLL_MS = 500;
+    
+    // 预上传和上传元数据按顺序执行，避免并发握手触发限流
+    private final ExecutorService segmentHandshakeExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "segment-handshake");
+        thread.setDaemon(true);
+        return thread;
+    });
+    
+    private final ExecutorService segmentUploadExecutor = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "segment-upload-" + System.currentTimeMillis());
+        thread.setDaemon(true);
+        return thread;
+    });
+    
+    private SegmentUploadLimiter segmentUploadLimiter;
+    
+    @PostConstruct
+    public void initSegmentUploadLimiter() {
+        segmentUploadLimiter = new SegmentUploadLimiter(
+            submissionConfig.getSegmentUploadConcurrency(),
+            submissionConfig.getSegmentUploadConcurrencyPerAccount());
+    }
+    
     @Override
     public boolean uploadSegments(String taskId, List<TaskOutputSegment> segments) {
         try {
-            log.info("开始上传分段文件到B站，任务ID: {}, 分段数量: {}", taskId, segments.size());
-            
-            // 记录上传失败的分段，用于重试
-            List<TaskOutputSegment> failedSegments = new ArrayList<>(segments);
-            int maxRetries = 3; // 最大重试次数
-            int retryCount = 0;
-            
-            // 循环重试直到所有分段上传成功或达到最大重试次数
-            while (!failedSegments.isEmpty() && retryCount < maxRetries) {
-                if (retryCount > 0) {
-                    log.info("第{}次重试上传分段文件，剩余分段数量: {}", retryCount, failedSegments.size());
-                }
-                
-                // 临时存储本次尝试中失败的分段
-                List<TaskOutputSegment> currentFailedSegments = new ArrayList<>();
-                
-                // 遍历需要上传的分段
-                for (TaskOutputSegment segment : failedSegments) {
-                    try {
-                        // 获取视频文件
-                        File videoFile = new File(segment.getSegmentFilePath());
-                        if (!videoFile.exists()) {
-                            log.error("视频文件不存在: {}", segment.getSegmentFilePath());
-                            currentFailedSegments.add(segment);
-                            continue;
-                        }
-                        
-                        // 1. 预上传
-                        JSONObject preUploadData = videoUploadService.preUploadVideo(
-                            videoFile.getName(), videoFile.length());
-                        
-                        if (preUploadData.getIntValue("OK") != 1) {
-                            log.error("预上传失败: {}", preUploadData.toJSONString());
-                            currentFailedSegments.add(segment);
-                            continue;
-                        }
-                        
-                        // 2. 上传元数据
-                        JSONObject postVideoMeta = videoUploadService.postVideoMeta(
-                            preUploadData, videoFile.length());
-                        
-                        if (postVideoMeta.getIntValue("OK") != 1) {
-                            log.error("上传元数据失败: {}", postVideoMeta.toJSONString());
-                            currentFailedSegments.add(segment);
-                            continue;
-                        }
-                        
-                        // 3. 分片上传文件
-                        int chunks = videoUploadService.uploadVideo(preUploadData, postVideoMeta, videoFile);
-                        
-                        // 4. 结束上传
-                        JSONObject endUploadResult = videoUploadService.endUpload(preUploadData, postVideoMeta, chunks);
-                        
-                        if (endUploadResult.getIntValue("OK") != 1) {
-                            log.error("结束上传失败: {}", endUploadResult.toJSONString());
-                            currentFailedSegments.add(segment);
-                            continue;
-                        }
-                        
-                        // 获取上传后的CID
-                        // 根据biliup-rs项目的实现，CID应该从endUploadResult中获取，而不是preUploadData
-                        Long cid = null;
-                        if (endUploadResult.containsKey("data") && endUploadResult.getJSONObject("data").containsKey("cid")) {
-                            cid = endUploadResult.getJSONObject("data").getLong("cid");
-                        }
-                        if (cid == null) {
-                            // 如果endUploadResult中没有cid，则从preUploadData中获取biz_id作为备用方案
-                            cid = preUploadData.getLong("biz_id");
-                        }
-                        
-                        // 获取上传后的filename（key字段）
-                        String filename = null;
-                        if (endUploadResult.containsKey("key")) {
-                            filename = endUploadResult.getString("key");
-                            // 移除开头的斜杠
-                            if (filename.startsWith("/")) {
-                                filename = filename.substring(1);
-                            }
-                            // 移除文件扩展名
-                            int dotIndex = filename.lastIndexOf('.');
-                            if (dotIndex > 0) {
-                                filename = filename.substring(0, dotIndex);
-                            }
-                        }
-                        
-                        // 更新分段状态和CID
-                        submissionTaskService.updateSegmentUploadStatusAndCid(
-                            segment.getSegmentId(), 
-                            TaskOutputSegment.UploadStatus.SUCCESS, 
-                            cid);
-                        
-                        // 如果获取到了filename，则更新到数据库
-                        if (filename != null && !filename.isEmpty()) {
-                            submissionTaskService.updateSegmentFilename(segment.getSegmentId(), filename);
-                        }
-                        
-                        log.info("分段文件上传成功: {}, CID: {}, Filename: {}", segment.getSegmentFilePath(), cid, filename);
-                        
-                        // 清理上传进度（上传成功后）
-                        // 注意：这里我们无法直接获取UploadProgress对象，但UploadProgressManager会在内部管理
-                        // 实际的清理会在uploadVideo方法完成时自动进行
-                    } catch (Exception e) {
-                        log.error("上传分段文件时发生异常: {}", segment.getSegmentFilePath(), e);
-                        
-                        // 使用统一的406错误处理
-                        long waitTime = rateLimitHandler.handle406Error(e.getMessage());
-                        if (waitTime > 0) {
-                            log.warn("遇到406错误，需要等待{}，当前连续406错误次数: {}", 
-                                rateLimitHandler.getWaitTimeDescription(waitTime), 
-                                rateLimitHandler.getCurrent406Count());
-                            try {
-                                rateLimitHandler.smartWait(waitTime);
-                            } catch (InterruptedException ie) {
-                                Thread.currentThread().interrupt();
-                                log.error("线程中断", ie);
-                            }
-                        }
-                        
-                        // 无论是否406错误，都将该分段重新加入失败列表以便重试
-                        currentFailedSegments.add(segment);
-                    }
-                }
-                
-                // 更新失败分段列表
-                failedSegments = currentFailedSegments;
-                retryCount++;
-                
-                // 如果还有失败的分段并且不是最后一次重试，等待一段时间再重试
-                if (!failedSegments.isEmpty() && retryCount < maxRetries) {
-                    try {
-                        // 等待5秒再重试
-                        Thread.sleep(5000);
-                    } catch (InterruptedException ie) {
-                        Thread.currentThread().interrupt();
-                        log.error("线程中断", ie);
-                    }
+            // 已记录为上传成功的分段不再重复上传
+            List<TaskOutputSegment> pendingSegments = new ArrayList<>();
+            for (TaskOutputSegment segment : segments) {
+                if (segment.getUploadStatus() == TaskOutputSegment.UploadStatus.SUCCESS && segment.getCid() != null) {
+                    log.info("分段已上传，跳过: {}, CID: {}", segment.getSegmentFilePath(), segment.getCid());
+                } else {
+                    pendingSegments.add(segment);
                 }
             }
+            log.info("开始上传分段文件到B站，任务ID: {}, 分段数量: {}, 待上传: {}", 
+                taskId, segments.size(), pendingSegments.size());
             
-            if (failedSegments.isEmpty()) {
+            int failedCount = new SegmentUploadPipeline(taskId, pendingSegments, currentAccount()).run();
+            if (failedCount == 0) {
                 log.info("所有分段文件上传完成，任务ID: {}", taskId);
                 return true;
             } else {
-                log.error("仍有{}个分段上传失败，任务ID: {}", failedSegments.size(), taskId);
+                log.error("仍有{}个分段上传失败，任务ID: {}", failedCount, taskId);
                 return false;
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.error("上传分段文件被中断，任务ID: {}", taskId);
+            return false;
         } catch (Exception e) {
             log.error("上传分段文件到B站时发生异常，任务ID: {}", taskId, e);
             return false;
         }
     }
     
+    /**
+     * 分段上传流水线
+     * 握手（预上传和上传元数据）在共用的单线程上按顺序提前进行，最多领先账号并发上限个分段；
+     * 握手完成的分段在全局和账号并发上限内并发上传，每个分段完成后立即记录状态。
+     * 失败的分段延迟后重新进入握手队列，不阻塞其他分段，最多尝试MAX_SEGMENT_ATTEMPTS次
+     */
+    private class SegmentUploadPipeline {
+        
+        private final String taskId;
+        private final String account;
+        private final Deque<TaskOutputSegment> waiting;
+        private final Deque<PreparedSegment> ready = new ArrayDeque<>();
+        private final BlockingQueue<SegmentEvent> events = new LinkedBlockingQueue<>();
+        private final Map<String, Integer> attempts = new HashMap<>();
+        private final int lookahead;
+        private int handshaking;
+        private int unfinished;
+        private int failedCount;
+        
+        SegmentUploadPipeline(String taskId, List<TaskOutputSegment> segments, String account) {
+            this.taskId = taskId;
+            this.account = account;
+            this.waiting = new ArrayDeque<>(segments);
+            this.unfinished = segments.size();
+            this.lookahead = segmentUploadLimiter.getPerAccountLimit();
+        }
+        
+        /**
+         * @return 最终上传失败的分段数
+         */
+        int run() throws InterruptedException {
+            while (unfinished > 0) {
+                startHandshakes();
+                startUploads();
+                // 其他任务释放的上传名额不会产生事件，定期重新检查
+                SegmentEvent event = events.poll(PERMIT_POLL_MS, TimeUnit.MILLISECONDS);
+                if (event == null) {
+                    continue;
+                }
+                if (event.retry) {
+                    waiting.addLast(event.segment);
+                } else if (event.error != null) {
+                    onFailure(event);
+                } else if (event.prepared != null && !event.uploaded) {
+                    handshaking--;
+                    ready.addLast(event.prepared);
+                } else {
+                    unfinished--;
+                }
+            }
+            return failedCount;
+        }
+        
+        private void startHandshakes() {
+            while (!waiting.isEmpty() && handshaking + ready.size() < lookahead) {
+                TaskOutputSegment segment = waiting.pollFirst();
+                handshaking++;
+                segmentHandshakeExecutor.execute(() -> {
+                    try {
+                        events.add(SegmentEvent.prepared(prepareSegment(segment)));
+                    } catch (Exception e) {
+                        events.add(SegmentEvent.failed(segment, false, true, e));
+                    }
+                });
+            }
+        }
+        
+        private void startUploads() {
+            while (!ready.isEmpty() && segmentUploadLimiter.tryAcquire(account)) {
+                PreparedSegment prepared = ready.pollFirst();
+                segmentUploadExecutor.execute(() -> {
+                    SegmentEvent event;
+                    try {
+                        uploadPreparedSegment(prepared);
+                        event = SegmentEvent.uploaded(prepared);
+                    } catch (Exception e) {
+                        event = SegmentEvent.failed(prepared.segment, prepared.resumed, false, e);
+                    } finally {
+                        segmentUploadLimiter.release(account);
+                    }
+                    events.add(event);
+                });
+            }
+        }
+        
+        private void onFailure(SegmentEvent event) {
+            TaskOutputSegment segment = event.segment;
+            if (event.handshake) {
+                handshaking--;
+            }
+            log.error("上传分段文件时发生异常: {}", segment.getSegmentFilePath(), event.error);
+            
+            // 使用统一的406错误处理，限流时按给出的时间延迟重试
+            long waitTime = rateLimitHandler.handle406Error(event.error.getMessage());
+            if (waitTime > 0) {
+                log.warn("遇到406错误，需要等待{}，当前连续406错误次数: {}", 
+                    rateLimitHandler.getWaitTimeDescription(waitTime), 
+                    rateLimitHandler.getCurrent406Count());
+            } else if (event.resumed) {
+                // 沿用的会话上传失败（如upload_id已在服务端失效），下次重新预上传
+                log.warn("继续上传会话失败，下次重新预上传: {}", segment.getSegmentFilePath());
+                uploadProgressManager.discardUpload(new File(segment.getSegmentFilePath()));
+            }
+            
+            int attempt = attempts.merge(segment.getSegmentId(), 1, Integer::sum);
+            if (event.error instanceof FileNotFoundException || attempt >= MAX_SEGMENT_ATTEMPTS) {
+                unfinished--;
+                failedCount++;
+                submissionTaskService.updateSegmentUploadStatusAndCid(
+                    segment.getSegmentId(), TaskOutputSegment.UploadStatus.FAILED, null);
+                log.error("分段上传失败，任务ID: {}, 文件: {}, 已尝试{}次", taskId, segment.getSegmentFilePath(), attempt);
+                return;
+            }
+            
+            long delay = waitTime > 0 ? waitTime : retryManager.jitter(submissionConfig.getSegmentRetryDelayMs());
+            log.info("{}ms后重试上传分段文件: {}, 第{}次重试", delay, segment.getSegmentFilePath(), attempt);
+            retryManager.schedule(() -> events.add(SegmentEvent.retry(segment)), delay);
+        }
+    }
+    
+    /**
+     * 分段握手：存在未过期且服务端仍认可的上传会话时沿用原upload_id，只上传服务端已确认之外的分片；
+     * 否则预上传并上传元数据
+     */
+    private PreparedSegment prepareSegment(TaskOutputSegment segment) throws IOException {
+        File videoFile = new File(segment.getSegmentFilePath());
+        if (!videoFile.exists()) {
+            throw new FileNotFoundException("视频文件不存在: " + segment.getSegmentFilePath());
+        }
+        
+        UploadProgress session = uploadProgressManager.findResumableUpload(videoFile);
+        if (session != null && uploadProgressManager.confirmResumableUpload(session,
+                videoUploadService.listUploadedParts(session.getPreUploadData(), session.getPostVideoMeta()))) {
+            log.info("继续未完成的上传会话: {}, 已完成分片: {}/{}", 
+                segment.getSegmentFilePath(), session.getCompletedChunks(), session.getTotalChunks());
+            return new PreparedSegment(segment, videoFile, session.getPreUploadData(), session.getPostVideoMeta(), true);
+        }
+        
+        // 1. 预上传
+        JSONObject preUploadData = videoUploadService.preUploadVideo(videoFile.getName(), videoFile.length());
+        if (preUploadData.getIntValue("OK") != 1) {
+            throw new IOException("预上传失败: " + preUploadData.toJSONString());
+        }
+        
+        // 2. 上传元数据
+        JSONObject postVideoMeta = videoUploadService.postVideoMeta(preUploadData, videoFile.length());
+        if (postVideoMeta.getIntValue("OK") != 1) {
+            throw new IOException("上传元数据失败: " + postVideoMeta.toJSONString());
+        }
+        return new PreparedSegment(segment, videoFile, preUploadData, postVideoMeta, false);
+    }
+    
+    /**
+     * 上传握手完成的分段并记录CID和文件名
+     */
+    private void uploadPreparedSegment(PreparedSegment prepared) throws IOException {
+        TaskOutputSegment segment = prepared.segment;
+        JSONObject preUploadData = prepared.preUploadData;
+        JSONObject postVideoMeta = prepared.postVideoMeta;
+        
+        // 3. 分片上传文件
+        int chunks = videoUploadService.uploadVideo(preUploadData, postVideoMeta, prepared.videoFile);
+        
+        // 4. 结束上传
+        JSONObject endUploadResult = videoUploadService.endUpload(preUploadData, postVideoMeta, chunks);
+        
+        if (endUploadResult.getIntValue("OK") != 1) {
+            // 会话可能已在服务端失效，下次重新预上传
+            uploadProgressManager.discardUpload(prepared.videoFile);
+            throw new IOException("结束上传失败: " + endUploadResult.toJSONString());
+        }
+        
+        // 获取上传后的CID
+        // 根据biliup-rs项目的实现，CID应该从endUploadResult中获取，而不是preUploadData
+        Long cid = null;
+        if (endUploadResult.containsKey("data") && endUploadResult.getJSONObject("data").containsKey("cid")) {
+            cid = endUploadResult.getJSONObject("data").getLong("cid");
+        }
+        if (cid == null) {
+            // 如果endUploadResult中没有cid，则从preUploadData中获取biz_id作为备用方案
+            cid = preUploadData.getLong("biz_id");
+        }
+        
+        // 获取上传后的filename（key字段）
+        String filename = null;
+        if (endUploadResult.containsKey("key")) {
+            filename = endUploadResult.getString("key");
+            // 移除开头的斜杠
+            if (filename.startsWith("/")) {
+                filename = filename.substring(1);
+            }
+            // 移除文件扩展名
+            int dotIndex = filename.lastIndexOf('.');
+            if (dotIndex > 0) {
+                filename = filename.substring(0, dotIndex);
+            }
+        }
+        
+        // 更新分段状态和CID
+        submissionTaskService.updateSegmentUploadStatusAndCid(
+            segment.getSegmentId(), 
+            TaskOutputSegment.UploadStatus.SUCCESS, 
+            cid);
+        
+        // 如果获取到了filename，则更新到数据库
+        if (filename != null && !filename.isEmpty()) {
+            submissionTaskService.updateSegmentFilename(segment.getSegmentId(), filename);
+        }
+        
+        log.info("分段文件上传成功: {}, CID: {}, Filename: {}", segment.getSegmentFilePath(), cid, filename);
+        
+        // 分段已记录为成功，删除上传会话
+        uploadProgressManager.discardUpload(prepared.videoFile);
+    }
+    
+    /**
+     * 当前登录账号（Cookie中的DedeUserID），用于账号级上传并发限制
+     */
+    private String currentAccount() {
+        String cookie = apiClient != null ? apiClient.extractCookieFromLoginInfo() : null;
+        if (cookie != null) {
+            for (String pair : cookie.split(";")) {
+                String trimmed = pair.trim();
+                if (trimmed.startsWith("DedeUserID=")) {
+                    return trimmed.substring("DedeUserID=".length());
+                }
+            }
+        }
+        return "default";
+    }
+    
+    /**
+     * 握手完成、等待上传的分段
+     */
+    private static class PreparedSegment {
+        final TaskOutputSegment segment;
+        final File videoFile;
+        final JSONObject preUploadData;
+        final JSONObject postVideoMeta;
+        final boolean resumed;
+        
+        PreparedSegment(TaskOutputSegment segment, File videoFile, JSONObject preUploadData,
+                        JSONObject postVideoMeta, boolean resumed) {
+            this.segment = segment;
+            this.videoFile = videoFile;
+            this.preUploadData = preUploadData;
+            this.postVideoMeta = postVideoMeta;
+            this.resumed = resumed;
+        }
+    }
+    
+    /**
+     * 流水线事件：握手完成、上传完成、失败或重试到期
+     */
+    private static class SegmentEvent {
+        TaskOutputSegment segment;
+        PreparedSegment prepared;
+        boolean uploaded;
+        boolean retry;
+        boolean handshake;
+        boolean resumed;
+        Exception error;
+        
+        static SegmentEvent prepared(PreparedSegment prepared) {
+            SegmentEvent event = new SegmentEvent();
+            event.segment = prepared.segment;
+            event.prepared = prepared;
+            return event;
+        }
+        
+        static SegmentEvent uploaded(PreparedSegment prepared) {
+            SegmentEvent event = prepared(prepared);
+            event.uploaded = true;
+            return event;
+        }
+        
+        static SegmentEvent failed(TaskOutputSegment segment, boolean resumed, boolean handshake, Exception error) {
+            SegmentEvent event = new SegmentEvent();
+            event.segment = segment;
+            event.resumed = resumed;
+            event.handshake = handshake;
+            event.error = error;
+            return event;
+        }
+        
+        static SegmentEvent retry(TaskOutputSegment segment) {
+            SegmentEvent event = new SegmentEvent();
+            event.segment = segment;
+            event.retry = true;
+            return event;
+        }
+    }
+    
     @Override
     public String submitVideo(SubmissionTask task, List<TaskOutputSegment> segments) {
         try {
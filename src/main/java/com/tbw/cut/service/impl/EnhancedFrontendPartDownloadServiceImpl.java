@@ -13,9 +13,11 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Primary;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PostConstruct;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.Files;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import java.util.ArrayList;
@@ -128,19 +130,43 @@ public class EnhancedFrontendPartDownloadServiceImpl implements FrontendPartDown
                 .submitVideoDownload(videoRequest);
             
             // 处理下载结果
-            downloadFuture.thenAccept(result -> {
-                handleDownloadResult(result, partTaskIds, videoParts);
-            }).exceptionally(throwable -> {
-                log.error("下载任务执行失败: taskId={}", taskId, throwable);
-                handleDownloadFailure(throwable, partTaskIds);
-                return null;
-            });
+            attachResultHandler(downloadFuture, taskId, partTaskIds, videoParts);
             
         } catch (Exception e) {
             log.error("执行增强下载时发生异常: taskId={}", taskId, e);
         }
     }
     
+    /**
+     * 为重启前未完成、从队列日志恢复的下载任务重新挂上结果处理，结束时更新对应的分P下载记录
+     */
+    @PostConstruct
+    public void resumeRecoveredDownloads() {
+        for (com.tbw.cut.service.download.queue.VideoDownloadQueueManager.RecoveredTask recovered
+                : videoDownloadQueueManager.takeRecoveredTasks()) {
+            VideoDownloadTask task = recovered.getTask();
+            if (recovered.getPartTaskIds().isEmpty()) {
+                log.warn("恢复的下载任务没有分P下载记录: queueTaskId={}", task.getTaskId());
+                continue;
+            }
+            log.info("接管恢复的下载任务: queueTaskId={}, partTaskIds={}", 
+                task.getTaskId(), recovered.getPartTaskIds());
+            attachResultHandler(task.getFuture(), task.getTaskId(), recovered.getPartTaskIds(), 
+                task.getRequest().getParts());
+        }
+    }
+    
+    private void attachResultHandler(CompletableFuture<DownloadResult> downloadFuture, Long taskId,
+                                     List<Long> partTaskIds, List<VideoPart> videoParts) {
+        downloadFuture.thenAccept(result -> {
+            handleDownloadResult(result, partTaskIds, videoParts);
+        }).exceptionally(throwable -> {
+            log.error("下载任务执行失败: taskId={}", taskId, throwable);
+            handleDownloadFailure(throwable, partTaskIds);
+            return null;
+        });
+    }
+    
     /**
      * 创建下载配置
      */
@@ -218,6 +244,7 @@ public class EnhancedFrontendPartDownloadServiceImpl implements FrontendPartDown
     private List<VideoPart> convertToVideoParts(List<Map<String, Object>> parts, String bvid, String aid, 
                                                Path downloadPath, Map<String, Object> config) {
         List<VideoPart> videoParts = new ArrayList<>();
+        Map<String, String> bilibiliParams = convertFrontendConfigToBilibiliParams(config);
         
         for (int i = 0; i < parts.size(); i++) {
             Map<String, Object> part = parts.get(i);
@@ -226,8 +253,7 @@ public class EnhancedFrontendPartDownloadServiceImpl implements FrontendPartDown
             
             if (cid != null) {
                 // 获取视频流URL
-                String streamUrl = getActualVideoStreamUrl(bvid, aid, String.valueOf(cid), 
-                                                         convertFrontendConfigToBilibiliParams(config));
+                String streamUrl = getActualVideoStreamUrl(bvid, aid, String.valueOf(cid), bilibiliParams);
                 
                 if (streamUrl != null) {
                     // 修复：使用originalTitle构建文件路径，而不是简单的序号
@@ -250,8 +276,10 @@ public class EnhancedFrontendPartDownloadServiceImpl implements FrontendPartDown
                         // 解析DASH URL
                         String[] urlParts = streamUrl.substring("DASH_MERGE:".length()).split("\\|AUDIO:");
                         if (urlParts.length == 2) {
-                            String videoUrl = urlParts[0];
-                            String audioUrl = urlParts[1];
+                            List<String> videoUrls = splitMirrorUrls(urlParts[0]);
+                            List<String> audioUrls = splitMirrorUrls(urlParts[1]);
+                            String videoUrl = videoUrls.get(0);
+                            String audioUrl = audioUrls.get(0);
                             
                             // 设置DASH相关信息
                             videoPartBuilder.streamUrl(videoUrl); // 主URL设为视频流
@@ -261,6 +289,8 @@ public class EnhancedFrontendPartDownloadServiceImpl implements FrontendPartDown
                             extraParams.put("isDashMerge", true);
                             extraParams.put("audioUrl", audioUrl);
                             extraParams.put("videoUrl", videoUrl);
+                            extraParams.put("videoBackupUrls", videoUrls.subList(1, videoUrls.size()));
+                            extraParams.put("audioBackupUrls", audioUrls.subList(1, audioUrls.size()));
                             videoPartBuilder.extraParams(extraParams);
                             
                             log.info("创建DASH合并VideoPart: cid={}, title={}, outputPath={}, videoUrl={}, audioUrl={}", 
@@ -272,12 +302,27 @@ public class EnhancedFrontendPartDownloadServiceImpl implements FrontendPartDown
                             continue;
                         }
                     } else {
+                        List<String> urls = splitMirrorUrls(streamUrl);
+                        streamUrl = urls.get(0);
+                        videoPartBuilder.streamUrl(streamUrl);
+                        if (urls.size() > 1) {
+                            // 备用CDN地址，分段下载时分散Range请求
+                            Map<String, Object> extraParams = new java.util.HashMap<>();
+                            extraParams.put("backupUrls", urls.subList(1, urls.size()));
+                            videoPartBuilder.extraParams(extraParams);
+                        }
                         log.info("创建普通VideoPart: cid={}, title={}, outputPath={}, url={}", 
                                 cid, partTitle, outputPath,
                                 streamUrl.substring(0, Math.min(100, streamUrl.length())) + "...");
                     }
                     
                     VideoPart videoPart = videoPartBuilder.build();
+                    // 清晰度和编码参与下载存储的去重键
+                    if (videoPart.getExtraParams() == null) {
+                        videoPart.setExtraParams(new java.util.HashMap<>());
+                    }
+                    videoPart.getExtraParams().put("qn", bilibiliParams.get("qn"));
+                    videoPart.getExtraParams().put("codec", bilibiliParams.get("codec"));
                     videoParts.add(videoPart);
                 } else {
                     log.error("无法获取分P视频流URL: cid={}", cid);
@@ -658,7 +703,7 @@ public class EnhancedFrontendPartDownloadServiceImpl implements FrontendPartDown
                         if (firstDurl.containsKey("url")) {
                             String url = firstDurl.getString("url");
                             log.info("获取到包含音频的MP4/FLV视频流URL: {}", url);
-                            return url;
+                            return appendBackupUrls(url, firstDurl);
                         }
                     }
                 }
@@ -700,6 +745,7 @@ public class EnhancedFrontendPartDownloadServiceImpl implements FrontendPartDown
                             videoUrl = selectedVideo.getString("base_url");
                         }
                         log.info("获取到DASH视频流URL: {}", videoUrl);
+                        videoUrl = appendBackupUrls(videoUrl, selectedVideo);
                     }
                 }
             }
@@ -717,6 +763,7 @@ public class EnhancedFrontendPartDownloadServiceImpl implements FrontendPartDown
                             audioUrl = selectedAudio.getString("base_url");
                         }
                         log.info("获取到DASH音频流URL: {}", audioUrl);
+                        audioUrl = appendBackupUrls(audioUrl, selectedAudio);
                     }
                 }
             }
@@ -742,6 +789,40 @@ public class EnhancedFrontendPartDownloadServiceImpl implements FrontendPartDown
         }
     }
     
+    /**
+     * 在主URL后以空格分隔追加备用CDN地址（backupUrl/backup_url），供分段下载分散请求
+     */
+    private String appendBackupUrls(String url, com.alibaba.fastjson.JSONObject stream) {
+        if (url == null) {
+            return null;
+        }
+        com.alibaba.fastjson.JSONArray backups = stream.getJSONArray("backupUrl");
+        if (backups == null) {
+            backups = stream.getJSONArray("backup_url");
+        }
+        if (backups == null || backups.isEmpty()) {
+            return url;
+        }
+        
+        StringBuilder urls = new StringBuilder(url);
+        for (int i = 0; i < backups.size(); i++) {
+            String backup = backups.getString(i);
+            if (backup != null && !backup.isEmpty()) {
+                urls.append(' ').append(backup);
+            }
+        }
+        log.info("获取到{}个备用CDN地址", backups.size());
+        return urls.toString();
+    }
+    
+    /**
+     * 拆分主URL和备用URL
+     * @return 第一个元素为主URL
+     */
+    private List<String> splitMirrorUrls(String urls) {
+        return new ArrayList<>(Arrays.asList(urls.trim().split("\\s+")));
+    }
+    
     /**
      * 选择最佳音频流
      */
@@ -5,6 +5,7 @@ import com.tbw.cut.config.DownloadConfig;
 import com.tbw.cut.entity.VideoDownload;
 import com.tbw.cut.mapper.VideoDownloadMapper;
 import com.tbw.cut.service.PartDownloadService;
+import com.tbw.cut.service.download.progress.PartProgressStore;
 import com.tbw.cut.event.DownloadStatusChangeEvent;
 import com.tbw.cut.websocket.DownloadProgressWebSocket;
 import lombok.extern.slf4j.Slf4j;
@@ -12,9 +13,8 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PostConstruct;
 import java.time.LocalDateTime;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
 
 @Slf4j
 @Service
@@ -26,11 +26,14 @@ public class PartDownloadServiceImpl extends ServiceImpl<VideoDownloadMapper, Vi
     @Autowired
     private ApplicationEventPublisher eventPublisher;
     
-    // 数据库更新节流控制
-    private final Map<Long, Long> lastDbUpdateTimes = new ConcurrentHashMap<>();
-    private final Map<Long, Integer> lastDbProgressValues = new ConcurrentHashMap<>();
-    private static final long DB_UPDATE_INTERVAL_MS = 5000; // 5秒数据库更新间隔
-    private static final int DB_PROGRESS_THRESHOLD = 10; // 10%进度变化阈值
+    @Autowired
+    private PartProgressStore progressStore;
+    
+    @PostConstruct
+    public void registerProgressWriter() {
+        // 合并后的进度以JDBC批量方式写入
+        progressStore.setWriter(this::updateBatchById);
+    }
     
     @Override
     public Long createPartDownload(VideoDownload download) {
@@ -47,114 +50,50 @@ public class PartDownloadServiceImpl extends ServiceImpl<VideoDownloadMapper, Vi
     
     @Override
     public void updatePartProgress(Long taskId, Integer progress) {
-        VideoDownload download = this.getById(taskId);
-        if (download != null) {
-            log.info("Updating part progress: taskId={}, progress={}, currentProgress={}", taskId, progress, download.getProgress());
-            
-            // 确保进度不会回退（除非是重置进度）
-            if (progress < download.getProgress() && progress > 0) {
-                log.debug("Skipping progress update to prevent rollback, Task ID: {}, Current: {}%, New: {}%", 
-                         taskId, download.getProgress(), progress);
-                // 仍然广播最新的进度值给前端
-                DownloadProgressWebSocket.broadcastProgressUpdate(taskId, download.getProgress());
-                return;
-            }
-            
-            // 更新进度和时间
-            download.setProgress(progress);
-            download.setUpdateTime(LocalDateTime.now());
-            
-            // 只有当当前状态是待下载(0)时，才更新为下载中(1)
-            if (download.getStatus() == 0) {
-                download.setStatus(1); // 下载中
-                this.updateById(download); // 状态变更时总是更新数据库
-                lastDbUpdateTimes.put(taskId, System.currentTimeMillis());
-                lastDbProgressValues.put(taskId, progress);
-                log.info("Updated part download status from pending to downloading, Task ID: {}, Progress: {}%", taskId, progress);
-                // 广播状态和进度更新
-                DownloadProgressWebSocket.broadcastStatusUpdate(taskId, 1);
-                // 状态变更时强制发送进度更新
-                DownloadProgressWebSocket.forceProgressUpdate(taskId, progress);
-            } else if (progress >= 100) {
-                // 下载完成时更新数据库并广播
-                this.updateById(download); // 完成时总是更新数据库
-                lastDbUpdateTimes.put(taskId, System.currentTimeMillis());
-                lastDbProgressValues.put(taskId, progress);
-                log.debug("Updated part download progress on completion, Task ID: {}, Progress: {}%", taskId, progress);
-                // 完成时强制发送进度更新
-                DownloadProgressWebSocket.forceProgressUpdate(taskId, progress);
-            } else {
-                // 对于其他进度更新，使用节流逻辑决定是否更新数据库
-                boolean shouldUpdateDb = shouldUpdateDatabase(taskId, progress);
-                
-                if (shouldUpdateDb && (progress >= download.getProgress() || progress == 0)) {
-                    this.updateById(download); // 节流更新数据库
-                    lastDbUpdateTimes.put(taskId, System.currentTimeMillis());
-                    lastDbProgressValues.put(taskId, progress);
-                    log.debug("Updated part download progress in database, Task ID: {}, Progress: {}%", taskId, progress);
-                } else {
-                    log.trace("Database update throttled for Task ID: {}, Progress: {}%", taskId, progress);
-                }
-                
-                // 使用配置化的节流进度更新（WebSocket总是尝试发送，内部有节流）
-                log.debug("Sending throttled progress update: taskId={}, progress={}", taskId, progress);
-                DownloadProgressWebSocket.broadcastProgressUpdate(taskId, progress, 
-                    downloadConfig.getProgressUpdateIntervalMs(), 
-                    downloadConfig.getProgressChangeThreshold(), 
-                    downloadConfig.isEnableProgressThrottling());
-            }
-        } else {
-            log.warn("VideoDownload not found for taskId: {}", taskId);
-        }
-    }
-    
-    /**
-     * 判断是否应该更新数据库
-     * @param taskId 任务ID
-     * @param progress 当前进度
-     * @return 是否应该更新数据库
-     */
-    private boolean shouldUpdateDatabase(Long taskId, Integer progress) {
-        long currentTime = System.currentTimeMillis();
-        Long lastUpdateTime = lastDbUpdateTimes.get(taskId);
-        Integer lastProgress = lastDbProgressValues.get(taskId);
-        
-        // 首次更新
-        if (lastUpdateTime == null || lastProgress == null) {
-            return true;
-        }
-        
-        // 完成时总是更新
-        if (progress >= 100) {
-            return true;
+        // 内存中的进度为准，只有任务第一次更新时读取数据库
+        PartProgressStore.PartProgress state = progressStore.getOrLoad(taskId, this::getById);
+        if (state == null) {
+            log.warn("VideoDownload not found or already finished for taskId: {}", taskId);
+            return;
         }
+        log.debug("Updating part progress: taskId={}, progress={}, currentProgress={}", taskId, progress, state.getProgress());
         
-        // 重置时总是更新
-        if (progress == 0) {
-            return true;
+        // 确保进度不会回退（除非是重置进度）
+        if (!state.advance(progress)) {
+            log.debug("Skipping progress update to prevent rollback, Task ID: {}, Current: {}%, New: {}%", 
+                     taskId, state.getProgress(), progress);
+            // 仍然广播最新的进度值给前端
+            DownloadProgressWebSocket.broadcastProgressUpdate(taskId, state.getProgress());
+            return;
         }
         
-        // 时间间隔达到
-        if (currentTime - lastUpdateTime >= DB_UPDATE_INTERVAL_MS) {
-            return true;
-        }
-        
-        // 进度变化达到阈值
-        if (Math.abs(progress - lastProgress) >= DB_PROGRESS_THRESHOLD) {
-            return true;
+        // 只有当当前状态是待下载(0)时，才更新为下载中(1)
+        if (state.start()) {
+            progressStore.writeThrough(taskId); // 状态变更时立即写库
+            log.info("Updated part download status from pending to downloading, Task ID: {}, Progress: {}%", taskId, progress);
+            // 广播状态和进度更新
+            DownloadProgressWebSocket.broadcastStatusUpdate(taskId, 1);
+            // 状态变更时强制发送进度更新
+            DownloadProgressWebSocket.forceProgressUpdate(taskId, progress);
+        } else if (progress >= 100) {
+            // 下载完成时立即写库并广播
+            progressStore.writeThrough(taskId);
+            log.debug("Updated part download progress on completion, Task ID: {}, Progress: {}%", taskId, progress);
+            // 完成时强制发送进度更新
+            DownloadProgressWebSocket.forceProgressUpdate(taskId, progress);
+        } else {
+            // 其他进度更新由进度表定时合并写库
+            if (!progressStore.isEnabled()) {
+                progressStore.writeThrough(taskId);
+            }
+            
+            // 使用配置化的节流进度更新（WebSocket总是尝试发送，内部有节流）
+            log.debug("Sending throttled progress update: taskId={}, progress={}", taskId, progress);
+            DownloadProgressWebSocket.broadcastProgressUpdate(taskId, progress, 
+                downloadConfig.getProgressUpdateIntervalMs(), 
+                downloadConfig.getProgressChangeThreshold(), 
+                downloadConfig.isEnableProgressThrottling());
         }
-        
-        return false;
-    }
-    
-    /**
-     * 清理任务的节流数据
-     * @param taskId 任务ID
-     */
-    public void clearThrottlingData(Long taskId) {
-        lastDbUpdateTimes.remove(taskId);
-        lastDbProgressValues.remove(taskId);
-        log.debug("Cleared database throttling data for task: {}", taskId);
     }
     
     @Override
@@ -163,6 +102,8 @@ public class PartDownloadServiceImpl extends ServiceImpl<VideoDownloadMapper, Vi
         log.info("任务ID: {}", taskId);
         log.info("本地路径: {}", localPath);
         
+        // 先移除内存进度，之后的定时刷写不会覆盖终态
+        progressStore.remove(taskId);
         VideoDownload download = this.getById(taskId);
         if (download != null) {
             log.info("找到下载记录: id={}, bvid={}, title={}, 当前状态={}, 当前进度={}%", 
@@ -200,10 +141,6 @@ public class PartDownloadServiceImpl extends ServiceImpl<VideoDownloadMapper, Vi
                 log.error("❌ 无法重新查询下载记录进行验证");
             }
             
-            // 更新节流数据
-            lastDbUpdateTimes.put(taskId, System.currentTimeMillis());
-            lastDbProgressValues.put(taskId, 100);
-            
             log.info("Part download completed, Task ID: {}, Path: {}", taskId, localPath);
             // 广播状态和进度更新
             DownloadProgressWebSocket.broadcastStatusUpdate(taskId, 2);
@@ -219,9 +156,6 @@ public class PartDownloadServiceImpl extends ServiceImpl<VideoDownloadMapper, Vi
                 log.error("Failed to publish download completion event for part task: taskId={}", taskId, e);
                 // 不抛出异常，避免影响主流程
             }
-            
-            // 清理节流数据
-            clearThrottlingData(taskId);
         } else {
             log.error("❌ 无法找到下载记录: taskId={}", taskId);
         }
@@ -231,6 +165,7 @@ public class PartDownloadServiceImpl extends ServiceImpl<VideoDownloadMapper, Vi
     
     @Override
     public void failPartDownload(Long taskId, String errorMessage) {
+        progressStore.remove(taskId);
         VideoDownload download = this.getById(taskId);
         if (download != null) {
             download.setStatus(3); // Failed
@@ -249,9 +184,6 @@ public class PartDownloadServiceImpl extends ServiceImpl<VideoDownloadMapper, Vi
                 log.error("Failed to publish download failure event for part task: taskId={}", taskId, e);
                 // 不抛出异常，避免影响主流程
             }
-            
-            // 清理节流数据
-            clearThrottlingData(taskId);
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,60 @@
+package com.tbw.cut.service.impl;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 分段上传并发限制
+ * 同时上传的分段文件数同时受全局上限和单个账号上限约束，所有投稿任务共用
+ */
+class SegmentUploadLimiter {
+
+    private final int globalLimit;
+    private final int perAccountLimit;
+    private final Map<String, Integer> accountInFlight = new HashMap<>();
+    private int inFlight;
+
+    SegmentUploadLimiter(int globalLimit, int perAccountLimit) {
+        this.globalLimit = Math.max(1, globalLimit);
+        this.perAccountLimit = Math.max(1, perAccountLimit);
+    }
+
+    /**
+     * 尝试占用一个上传名额
+     * @return 全局和账号都有空闲名额时返回true
+     */
+    synchronized boolean tryAcquire(String account) {
+        int accountCount = accountInFlight.getOrDefault(account, 0);
+        if (inFlight >= globalLimit || accountCount >= perAccountLimit) {
+            return false;
+        }
+        inFlight++;
+        accountInFlight.put(account, accountCount + 1);
+        return true;
+    }
+
+    synchronized void release(String account) {
+        Integer accountCount = accountInFlight.get(account);
+        if (accountCount == null) {
+            return;
+        }
+        inFlight--;
+        if (accountCount <= 1) {
+            accountInFlight.remove(account);
+        } else {
+            accountInFlight.put(account, accountCount - 1);
+        }
+    }
+
+    synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    synchronized int getInFlight(String account) {
+        return accountInFlight.getOrDefault(account, 0);
+    }
+
+    int getPerAccountLimit() {
+        return perAccountLimit;
+    }
+}
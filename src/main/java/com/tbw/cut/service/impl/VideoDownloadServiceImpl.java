@@ -5,6 +5,7 @@ import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.tbw.cut.entity.VideoDownload;
 import com.tbw.cut.mapper.VideoDownloadMapper;
 import com.tbw.cut.service.VideoDownloadService;
+import com.tbw.cut.service.download.progress.PartProgressStore;
 import com.tbw.cut.event.DownloadStatusChangeEvent;
 import com.tbw.cut.dto.VideoDownloadDTO;
 import com.tbw.cut.bilibili.BilibiliUtils;
@@ -31,6 +32,9 @@ public class VideoDownloadServiceImpl extends ServiceImpl<VideoDownloadMapper, V
     @Autowired
     private ApplicationEventPublisher eventPublisher;
     
+    @Autowired(required = false)
+    private PartProgressStore partProgressStore;
+    
     @Override
     public Long downloadVideo(VideoDownloadDTO dto) {
         try {
@@ -145,6 +149,10 @@ public class VideoDownloadServiceImpl extends ServiceImpl<VideoDownloadMapper, V
     
     @Override
     public boolean deleteDownloadRecord(Long taskId) {
+        // 先移除内存进度，避免定时刷写更新已删除的记录
+        if (partProgressStore != null) {
+            partProgressStore.remove(taskId);
+        }
         return this.removeById(taskId);
     }
     
@@ -12,8 +12,15 @@ import com.tbw.cut.mapper.TaskSourceVideoMapper;
 import com.tbw.cut.mapper.TaskOutputSegmentMapper;
 import com.tbw.cut.mapper.VideoClipMapper;
 import com.tbw.cut.service.VideoProcessService;
+import com.tbw.cut.service.WorkflowStepProgressService;
+import com.tbw.cut.utils.FFmpegJobPool;
+import com.tbw.cut.utils.FFmpegSegmenter;
+import com.tbw.cut.utils.FFmpegSmartRenderer;
 import com.tbw.cut.utils.FFmpegUtil;
 import com.tbw.cut.utils.FileUtils;
+import com.tbw.cut.utils.KeyframeIndex;
+import com.tbw.cut.utils.KeyframeIndexService;
+import com.tbw.cut.workflow.model.StepType;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
@@ -24,6 +31,7 @@ import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
@@ -32,9 +40,13 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 @Slf4j
 @Service
@@ -57,6 +69,31 @@ public class VideoProcessServiceImpl implements VideoProcessService {
     @Autowired
     private MergedVideoMapper mergedVideoMapper;
 
+    @Autowired
+    private FFmpegJobPool ffmpegJobPool;
+
+    @Autowired
+    private FFmpegSegmenter ffmpegSegmenter;
+
+    @Autowired(required = false)
+    private WorkflowStepProgressService workflowStepProgressService;
+
+    @Autowired(required = false)
+    private KeyframeIndexService keyframeIndexService;
+
+    @Autowired(required = false)
+    private FFmpegSmartRenderer smartRenderer;
+
+    // 剪辑合并一次完成：剪辑步骤只登记剪辑区间，合并时用concat脚本的inpoint/outpoint直接从源视频生成合并文件
+    @Value("${ffmpeg.fused-clip-merge.enabled:true}")
+    private boolean fusedClipMergeEnabled = true;
+
+    /** 剪辑记录状态：待处理，剪辑区间推迟到合并时截取，剪辑路径为源视频路径 */
+    static final int CLIP_STATUS_DEFERRED = 0;
+
+    /** 剪辑记录状态：剪辑文件已生成 */
+    static final int CLIP_STATUS_CLIPPED = 1;
+
     @Override
     public List<String> clipVideos(String taskId) {
         try {
@@ -67,31 +104,52 @@ public class VideoProcessServiceImpl implements VideoProcessService {
                 return Collections.emptyList();
             }
             
+            // 融合模式下不生成剪辑文件，只登记剪辑区间
+            if (fusedClipMergeEnabled && canDeferClips(sourceVideos)) {
+                return deferClips(taskId, sourceVideos);
+            }
+            
             // 创建剪辑目录
             String workDir = createWorkDirectory(taskId);
             String clipsDir = workDir + File.separator + "clips";
             new File(clipsDir).mkdirs();
             
-            List<String> clipPaths = new ArrayList<>();
+            // 提交前先生成关键帧索引，按剪辑计划决定任务类型
+            List<String> indexedPaths = new ArrayList<>();
+            for (TaskSourceVideo sourceVideo : sourceVideos) {
+                if (sourceVideo.getStartTime() != null && !sourceVideo.getStartTime().isEmpty()) {
+                    indexedPaths.add(sourceVideo.getSourceFilePath());
+                }
+            }
+            prepareKeyframeIndexes(indexedPaths);
             
-            // 剪辑每个源视频
-            for (int i = 0; i < sourceVideos.size(); i++) {
+            // 各源视频的剪辑提交到FFmpeg任务池并行执行，每完成一个上报一次进度
+            int total = sourceVideos.size();
+            AtomicInteger finished = new AtomicInteger();
+            List<CompletableFuture<String>> clipJobs = new ArrayList<>();
+            for (int i = 0; i < total; i++) {
                 TaskSourceVideo sourceVideo = sourceVideos.get(i);
-                String clipPath = clipVideo(sourceVideo, clipsDir, i + 1);
-                if (clipPath != null && !clipPath.isEmpty()) {
-                    clipPaths.add(clipPath);
+                int index = i + 1;
+                FFmpegJobPool.JobType jobType = clipJobType(sourceVideo.getSourceFilePath(),
+                    sourceVideo.getStartTime(), sourceVideo.getEndTime());
+                clipJobs.add(ffmpegJobPool.submit(jobType, sourceVideo.getSourceFilePath(),
+                        () -> clipVideo(sourceVideo, clipsDir, index))
+                    .whenComplete((clipPath, error) -> reportClipProgress(taskId, finished.incrementAndGet(), total)));
+            }
+            
+            // 按源视频顺序收集结果
+            List<String> clipPaths = new ArrayList<>();
+            for (int i = 0; i < total; i++) {
+                String clipPath = clipJobs.get(i).join();
+                if (clipPath == null || clipPath.isEmpty()) {
+                    log.error("视频剪辑失败，任务ID: {}, 视频索引: {}", taskId, i + 1);
+                    return Collections.emptyList();
                 }
-                VideoClip videoClip = new VideoClip();
-                videoClip.setClipPath(clipPath);
-                videoClip.setTaskId(taskId); // taskId已经是String类型，无需转换
-                videoClip.setSequence(sourceVideo.getSortOrder());
-                videoClip.setStartTime(sourceVideo.getStartTime());
-                videoClip.setEndTime(sourceVideo.getEndTime());
-                videoClip.setCreateTime(LocalDateTime.now());
-                videoClip.setUpdateTime(LocalDateTime.now());
-                videoClip.setFileName(new File(clipPath).getName());
-                videoClip.setStatus(1);
-                videoClipMapper.insert(videoClip);
+                clipPaths.add(clipPath);
+            }
+            
+            for (int i = 0; i < total; i++) {
+                saveVideoClip(taskId, sourceVideos.get(i), clipPaths.get(i), CLIP_STATUS_CLIPPED);
             }
             log.info("视频剪辑完成，任务ID: {}, 剪辑文件数量: {}", taskId, clipPaths.size());
             return clipPaths;
@@ -104,6 +162,16 @@ public class VideoProcessServiceImpl implements VideoProcessService {
     @Override
     public String mergeVideos(String taskId) {
         try {
+            // 剪辑步骤推迟了截取时，直接从源视频剪辑并合并
+            List<VideoClip> videoClips = videoClipMapper.findByTaskIdOrderBySequence(taskId);
+            if (videoClips != null && videoClips.stream().anyMatch(this::isDeferredClip)) {
+                String mergedPath = performFusedClipMerge(taskId, videoClips);
+                if (mergedPath != null && !mergedPath.isEmpty()) {
+                    saveMergedVideo(taskId, mergedPath);
+                }
+                return mergedPath;
+            }
+            
             // 从数据库获取剪辑文件路径并按sequence排序
             List<String> clipPaths = getClipPathsFromDatabase(taskId);
             if (clipPaths == null || clipPaths.isEmpty()) {
@@ -125,6 +193,218 @@ public class VideoProcessServiceImpl implements VideoProcessService {
         }
     }
 
+    /**
+     * 源视频的剪辑区间都能直接写入concat脚本时才推迟剪辑；有剪辑需要智能渲染时逐个生成剪辑文件
+     */
+    private boolean canDeferClips(List<TaskSourceVideo> sourceVideos) {
+        List<String> paths = new ArrayList<>();
+        for (TaskSourceVideo sourceVideo : sourceVideos) {
+            if (sourceVideo.getStartTime() != null && !sourceVideo.getStartTime().isEmpty()) {
+                paths.add(sourceVideo.getSourceFilePath());
+            }
+        }
+        prepareKeyframeIndexes(paths);
+        for (TaskSourceVideo sourceVideo : sourceVideos) {
+            String startTime = sourceVideo.getStartTime();
+            String endTime = sourceVideo.getEndTime();
+            if (startTime != null && !startTime.isEmpty() && endTime != null && !endTime.isEmpty()
+                    && calculateDuration(startTime, endTime) == null) {
+                return false;
+            }
+            KeyframeIndex index = findKeyframeIndex(sourceVideo.getSourceFilePath());
+            if (smartRenderer != null && planSmartRender(index, startTime, endTime) != null) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * 登记待合并时截取的剪辑区间，剪辑路径指向源视频，返回源视频路径
+     */
+    private List<String> deferClips(String taskId, List<TaskSourceVideo> sourceVideos) {
+        List<String> clipPaths = new ArrayList<>();
+        for (TaskSourceVideo sourceVideo : sourceVideos) {
+            saveVideoClip(taskId, sourceVideo, sourceVideo.getSourceFilePath(), CLIP_STATUS_DEFERRED);
+            clipPaths.add(sourceVideo.getSourceFilePath());
+        }
+        reportClipProgress(taskId, sourceVideos.size(), sourceVideos.size());
+        log.info("剪辑区间已登记，合并时直接从源视频截取，任务ID: {}, 片段数量: {}", taskId, clipPaths.size());
+        return clipPaths;
+    }
+    
+    /**
+     * 保存剪辑记录
+     */
+    private void saveVideoClip(String taskId, TaskSourceVideo sourceVideo, String clipPath, int status) {
+        VideoClip videoClip = new VideoClip();
+        videoClip.setClipPath(clipPath);
+        videoClip.setTaskId(taskId); // taskId已经是String类型，无需转换
+        videoClip.setSequence(sourceVideo.getSortOrder());
+        videoClip.setStartTime(sourceVideo.getStartTime());
+        videoClip.setEndTime(sourceVideo.getEndTime());
+        videoClip.setCreateTime(LocalDateTime.now());
+        videoClip.setUpdateTime(LocalDateTime.now());
+        videoClip.setFileName(new File(clipPath).getName());
+        videoClip.setStatus(status);
+        videoClipMapper.insert(videoClip);
+    }
+    
+    private boolean isDeferredClip(VideoClip clip) {
+        return clip.getStatus() != null && clip.getStatus() == CLIP_STATUS_DEFERRED;
+    }
+    
+    /**
+     * 剪辑合并一次完成：一个concat脚本列出所有源视频及其inpoint/outpoint，单个FFmpeg进程流复制生成合并文件。
+     * 与先剪辑后合并相比少写读一遍剪辑文件，也少启动N个FFmpeg进程。
+     * 流复制时截取起点同样落在inpoint之前的关键帧上，与原剪辑命令的 -ss 精度一致；
+     * 失败时退回到先生成剪辑文件再合并
+     */
+    private String performFusedClipMerge(String taskId, List<VideoClip> videoClips) {
+        String workDir = getWorkDirectory(taskId);
+        String outputPath = workDir + File.separator + "merged_video.mp4";
+        String scriptPath = workDir + File.separator + "fused_concat.txt";
+        try {
+            List<String> deferredPaths = new ArrayList<>();
+            for (VideoClip clip : videoClips) {
+                if (isDeferredClip(clip) && clip.getStartTime() != null && !clip.getStartTime().isEmpty()) {
+                    deferredPaths.add(clip.getClipPath());
+                }
+            }
+            prepareKeyframeIndexes(deferredPaths);
+            Files.write(Paths.get(scriptPath), buildFusedConcatScript(videoClips).getBytes(StandardCharsets.UTF_8));
+            
+            List<String> command = new ArrayList<>();
+            command.add(ffmpegPath);
+            command.add("-f");
+            command.add("concat");
+            command.add("-safe");
+            command.add("0");
+            command.add("-i");
+            command.add(scriptPath);
+            command.add("-c");
+            command.add("copy");
+            command.add("-avoid_negative_ts");
+            command.add("make_zero");
+            command.add("-y");
+            command.add(outputPath);
+            
+            log.info("执行FFmpeg剪辑合并命令: {}", String.join(" ", command));
+            
+            boolean success = ffmpegJobPool.submit(FFmpegJobPool.JobType.COPY, videoClips.get(0).getClipPath(),
+                    () -> runFFmpeg(command, 30)).join();
+            if (success && new File(outputPath).length() > 0) {
+                new File(scriptPath).delete();
+                log.info("视频剪辑合并完成，任务ID: {}, 输出路径: {}", taskId, outputPath);
+                return outputPath;
+            }
+            log.error("FFmpeg剪辑合并失败，任务ID: {}", taskId);
+        } catch (Exception e) {
+            log.error("视频剪辑合并时发生异常，任务ID: {}", taskId, e);
+        }
+        
+        log.info("改为先生成剪辑文件再合并，任务ID: {}", taskId);
+        new File(scriptPath).delete();
+        List<String> clipPaths = materializeDeferredClips(taskId, videoClips);
+        return clipPaths.isEmpty() ? null : performMergeVideos(taskId, clipPaths);
+    }
+    
+    /**
+     * 生成剪辑合并用的concat脚本，推迟截取的片段带上inpoint/outpoint（秒）。
+     * 只使用已有的关键帧索引，没有索引的片段按原始起点写入inpoint。
+     * inpoint/outpoint是文件自身的时间戳，有索引时加上文件的起始时间（索引中的时间相对起始时间）
+     */
+    String buildFusedConcatScript(List<VideoClip> videoClips) {
+        StringBuilder script = new StringBuilder("ffconcat version 1.0\n");
+        for (VideoClip clip : videoClips) {
+            // concat脚本中单引号内的单引号写作 '\''
+            script.append("file '").append(clip.getClipPath().replace("'", "'\\''")).append("'\n");
+            if (!isDeferredClip(clip)) {
+                continue;
+            }
+            KeyframeIndex index = findKeyframeIndex(clip.getClipPath());
+            KeyframeIndex.ClipPlan plan = planClip(index, clip.getStartTime(), clip.getEndTime());
+            double offset = index != null ? index.getStartTime() : 0;
+            if (plan != null) {
+                // 入点对齐到关键帧，避免流复制时入点前多出的画面
+                script.append("inpoint ").append(formatSecondsPrecise(offset + plan.getCopyStart())).append("\n");
+            } else if (clip.getStartTime() != null && !clip.getStartTime().isEmpty()) {
+                script.append("inpoint ").append(parseTimeToSeconds(clip.getStartTime())).append("\n");
+            }
+            if (clip.getEndTime() != null && !clip.getEndTime().isEmpty()) {
+                script.append("outpoint ").append(offset > 0
+                    ? formatSecondsPrecise(offset + parseTimeToSeconds(clip.getEndTime()))
+                    : String.valueOf(parseTimeToSeconds(clip.getEndTime()))).append("\n");
+            }
+        }
+        return script.toString();
+    }
+    
+    /**
+     * 为推迟截取的片段生成剪辑文件并更新剪辑记录，返回按顺序排列的剪辑文件路径，失败时返回空列表
+     */
+    private List<String> materializeDeferredClips(String taskId, List<VideoClip> videoClips) {
+        String clipsDir = getWorkDirectory(taskId) + File.separator + "clips";
+        new File(clipsDir).mkdirs();
+        
+        List<CompletableFuture<String>> clipJobs = new ArrayList<>();
+        for (int i = 0; i < videoClips.size(); i++) {
+            VideoClip clip = videoClips.get(i);
+            if (!isDeferredClip(clip)) {
+                clipJobs.add(CompletableFuture.completedFuture(clip.getClipPath()));
+                continue;
+            }
+            TaskSourceVideo sourceVideo = new TaskSourceVideo();
+            sourceVideo.setSourceFilePath(clip.getClipPath());
+            sourceVideo.setStartTime(clip.getStartTime());
+            sourceVideo.setEndTime(clip.getEndTime());
+            int index = i + 1;
+            FFmpegJobPool.JobType jobType = clipJobType(clip.getClipPath(), clip.getStartTime(), clip.getEndTime());
+            clipJobs.add(ffmpegJobPool.submit(jobType, clip.getClipPath(),
+                    () -> clipVideo(sourceVideo, clipsDir, index)));
+        }
+        
+        List<String> clipPaths = new ArrayList<>();
+        for (int i = 0; i < videoClips.size(); i++) {
+            String clipPath = clipJobs.get(i).join();
+            if (clipPath == null || clipPath.isEmpty()) {
+                log.error("视频剪辑失败，任务ID: {}, 视频索引: {}", taskId, i + 1);
+                return Collections.emptyList();
+            }
+            clipPaths.add(clipPath);
+        }
+        
+        for (int i = 0; i < videoClips.size(); i++) {
+            VideoClip clip = videoClips.get(i);
+            if (isDeferredClip(clip)) {
+                clip.setClipPath(clipPaths.get(i));
+                clip.setFileName(new File(clipPaths.get(i)).getName());
+                clip.setStatus(CLIP_STATUS_CLIPPED);
+                clip.setUpdateTime(LocalDateTime.now());
+                videoClipMapper.updateById(clip);
+            }
+        }
+        return clipPaths;
+    }
+    
+    /**
+     * 以参数列表执行FFmpeg（不经过Shell），合并错误输出
+     */
+    private boolean runFFmpeg(List<String> command, long timeoutMinutes) throws IOException, InterruptedException {
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        readProcessOutput(process);
+        if (!process.waitFor(timeoutMinutes, TimeUnit.MINUTES)) {
+            process.destroyForcibly();
+            log.error("FFmpeg执行超时: {}", String.join(" ", command));
+            return false;
+        }
+        if (process.exitValue() != 0) {
+            log.error("FFmpeg执行失败，退出码: {}", process.exitValue());
+            return false;
+        }
+        return true;
+    }
+    
     /**
      * 执行视频合并操作
      */
@@ -310,103 +590,21 @@ public class VideoProcessServiceImpl implements VideoProcessService {
 
             log.info("视频时长: {} 秒，任务ID: {}", videoDuration, taskId);
 
-            // 计算分段数 (每段133秒，即2分13秒)
-            int segmentDuration = 133;
-            int segmentCount = (int) Math.ceil(videoDuration / segmentDuration);
-
-            log.info("分段数: {}, 每段时长: {}秒，任务ID: {}", segmentCount, segmentDuration, taskId);
-
-            List<String> segmentPaths = new ArrayList<>();
-
-            // 循环切割每一段
-            for (int i = 0; i < segmentCount; i++) {
-                int currentStart = i * segmentDuration;
-
-                // 检查是否超过视频总时长
-                if (currentStart >= videoDuration) {
-                    log.info("已达到视频末尾，停止切割，任务ID: {}", taskId);
-                    break;
-                }
-
-                // 格式化开始时间 (HH:MM:SS)
-                String startTime = formatTime(currentStart);
-
-                // 格式化文件编号 (001, 002, ...)
-                String fileNum = String.format("%03d", i + 1);
-
-                // 构建分段文件名，使用分段前缀（如果有的话）
-                String fileName;
-                if (segmentPrefix != null && !segmentPrefix.isEmpty()) {
-                    fileName = segmentPrefix + "_part_" + fileNum + ".mp4";
-                } else {
-                    fileName = "part_" + fileNum + ".mp4";
-                }
-
-                String segmentPath = outputDir + File.separator + fileName;
+            // 单个FFmpeg进程读取一次输入，按目标时长在关键帧处切分，每个分段关闭后立即上报
+            double targetSeconds = ffmpegSegmenter.targetSeconds(new File(mergedVideoPath).length(), videoDuration);
+            int expectedCount = Math.max(1, (int) Math.ceil(videoDuration / targetSeconds));
+            log.info("预计分段数: {}, 每段时长: {}秒，任务ID: {}", expectedCount, String.format("%.1f", targetSeconds), taskId);
 
-                log.info("[{}/{}] 时间: {} → {}, 任务ID: {}", i + 1, segmentCount, startTime, segmentPath, taskId);
-
-                // 构建FFmpeg命令：切割视频
-                // 使用重新编码而不是流复制，以确保生成的视频文件符合B站要求
-                List<String> command = new ArrayList<>();
-                command.add(ffmpegPath);
-                command.add("-ss");
-                command.add(startTime);
-                command.add("-i");
-                command.add("\"" + mergedVideoPath + "\""); // 添加引号以处理特殊字符
-                command.add("-t");
-                command.add("00:02:13"); // 2分13秒
-                command.add("-c");
-                command.add("copy"); // 使用H.264编码
-                command.add("-y");
-                command.add("\"" + segmentPath + "\""); // 添加引号以处理特殊字符
-
-                log.debug("执行FFmpeg切割命令: {}", String.join(" ", command));
-
-                // 使用Shell执行命令以正确处理引号
-                ProcessBuilder builder = new ProcessBuilder("/bin/sh", "-c", String.join(" ", command));
-                Process process = builder.start();
-
-                // 读取输出
-                readProcessOutput(process);
-
-                boolean finished = process.waitFor(10, TimeUnit.MINUTES);
-                if (!finished) {
-                    process.destroyForcibly();
-                    log.error("FFmpeg切割超时，任务ID: {}, 分段: {}", taskId, i + 1);
-                    continue;
-                }
-
-                int exitCode = process.exitValue();
-                if (exitCode == 0) {
-                    // 检查实际生成的文件
-                    File generatedFile = new File(segmentPath);
-                    if (generatedFile.exists()) {
-                        segmentPaths.add(segmentPath);
-                        log.info("✓ 成功创建分段: {}, 任务ID: {}", segmentPath, taskId);
-                    } else {
-                        // 如果文件不存在，尝试查找实际生成的文件
-                        // FFmpeg可能会根据文件名模式生成不同的文件名
-                        String baseName = fileName.substring(0, fileName.lastIndexOf('.'));
-                        String extension = fileName.substring(fileName.lastIndexOf('.'));
-                        File outputDirFile = new File(outputDir);
-                        File[] files = outputDirFile.listFiles((dir, name) ->
-                                name.startsWith(baseName) && name.endsWith(extension));
-
-                        if (files != null && files.length > 0) {
-                            // 选择最新的文件（按修改时间排序）
-                            Arrays.sort(files, Comparator.comparingLong(File::lastModified).reversed());
-                            String actualPath = files[0].getAbsolutePath();
-                            segmentPaths.add(actualPath);
-                            log.info("✓ 成功创建分段: {}, 任务ID: {}", actualPath, taskId);
-                        } else {
-                            log.warn("未能找到生成的分段文件，预期路径: {}, 任务ID: {}", segmentPath, taskId);
+            String namePrefix = segmentPrefix != null && !segmentPrefix.isEmpty() ? segmentPrefix + "_" : "";
+            List<String> segmentPaths = ffmpegJobPool.submit(FFmpegJobPool.JobType.COPY, mergedVideoPath,
+                () -> ffmpegSegmenter.segment(mergedVideoPath, videoDuration, new File(outputDir), namePrefix,
+                    (index, path) -> {
+                        log.info("✓ 成功创建分段 [{}/~{}]: {}, 任务ID: {}", index, expectedCount, path, taskId);
+                        if (workflowStepProgressService != null) {
+                            workflowStepProgressService.updateStepProgress(taskId, StepType.SEGMENTING,
+                                Math.min(1.0, (double) index / expectedCount));
                         }
-                    }
-                } else {
-                    log.error("✗ 创建分段失败，任务ID: {}, 分段: {}, 退出码: {}", taskId, i + 1, exitCode);
-                }
-            }
+                    })).join();
 
             log.info("视频分段完成，任务ID: {}, 分段文件数量: {}", taskId, segmentPaths.size());
             return segmentPaths;
@@ -622,6 +820,16 @@ public class VideoProcessServiceImpl implements VideoProcessService {
         }
     }
 
+    /**
+     * 上报剪辑进度
+     */
+    private void reportClipProgress(String taskId, int finished, int total) {
+        log.info("视频剪辑进度，任务ID: {}, {}/{}", taskId, finished, total);
+        if (workflowStepProgressService != null) {
+            workflowStepProgressService.updateStepProgress(taskId, StepType.CLIPPING, (double) finished / total);
+        }
+    }
+    
     /**
      * 剪辑单个视频
      */
@@ -647,14 +855,48 @@ public class VideoProcessServiceImpl implements VideoProcessService {
                 }
             }
             
+            // 剪辑在FFmpeg任务池中执行，缺少关键帧索引时在此生成
+            KeyframeIndex keyframeIndex = keyframeIndexService != null && startTime != null && !startTime.isEmpty()
+                ? keyframeIndexService.getIndex(inputPath) : null;
+            
+            // 起点不在关键帧上时只重新编码起点到下一个关键帧的画面，其余流复制
+            KeyframeIndex.ClipPlan smartPlan = smartRenderer != null ? planSmartRender(keyframeIndex, startTime, endTime) : null;
+            if (smartPlan != null) {
+                try {
+                    smartRenderer.render(inputPath, keyframeIndex, smartPlan, new File(outputPath));
+                    log.info("视频智能渲染剪辑完成，视频索引: {}, 输出路径: {}", index, outputPath);
+                    return outputPath;
+                } catch (IOException e) {
+                    log.warn("智能渲染剪辑失败，改用流复制，视频索引: {}, 原因: {}", index, e.getMessage());
+                }
+            }
+            
+            // 按关键帧索引把起点对齐到之前的关键帧，流复制输出不会以冻结或黑屏画面开头
+            String seekTime = startTime;
+            KeyframeIndex.ClipPlan plan = planClip(keyframeIndex, startTime, endTime);
+            if (plan != null) {
+                seekTime = formatSecondsPrecise(plan.getCopyStart());
+                if (duration != null) {
+                    duration = formatSecondsPrecise(plan.getCopyDuration());
+                }
+                if (plan.isCopy()) {
+                    log.info("剪辑计划: 起点={}s, 关键帧={}s, 预计大小={}字节, 视频索引: {}", plan.getRequestedStart(),
+                        plan.getCopyStart(), plan.getEstimatedBytes(), index);
+                } else {
+                    log.warn("剪辑起点不在关键帧上，流复制将从之前的关键帧开始，多出{}秒: 起点={}s, 关键帧={}s, 视频索引: {}",
+                        String.format(Locale.ROOT, "%.3f", plan.getLeadIn()), plan.getRequestedStart(),
+                        plan.getCopyStart(), index);
+                }
+            }
+            
             // 构建FFmpeg命令：剪辑视频
             List<String> command = new ArrayList<>();
             command.add(ffmpegPath);
 
             // 将 -ss 放在 -i 之前以实现快速定位
-            if (startTime != null && !startTime.isEmpty()) {
+            if (seekTime != null && !seekTime.isEmpty()) {
                 command.add("-ss");
-                command.add(startTime);
+                command.add(seekTime);
             }
             command.add("-i");
             command.add("\"" + inputPath + "\""); // 添加引号以处理特殊字符
@@ -663,7 +905,7 @@ public class VideoProcessServiceImpl implements VideoProcessService {
             if (duration != null) {
                 command.add("-t");
                 command.add(duration);
-                log.info("剪辑参数: 开始时间={}, 时长={}", startTime, duration);
+                log.info("剪辑参数: 开始时间={}, 时长={}", seekTime, duration);
             }
             
             command.add("-c");
@@ -673,8 +915,9 @@ public class VideoProcessServiceImpl implements VideoProcessService {
             
             log.info("执行FFmpeg剪辑命令: {}", String.join(" ", command));
 
-            // 使用Shell执行命令以正确处理引号
+            // 使用Shell执行命令以正确处理引号；合并错误输出，避免stderr缓冲区写满阻塞FFmpeg
             ProcessBuilder builder = new ProcessBuilder("/bin/sh", "-c", String.join(" ", command));
+            builder.redirectErrorStream(true);
             Process process = builder.start();
 
             // 读取输出
@@ -755,6 +998,78 @@ public class VideoProcessServiceImpl implements VideoProcessService {
         
         return String.format("%02d:%02d:%02d", hours, minutes, seconds);
     }
+    
+    /**
+     * 将秒数转换为FFmpeg时间参数，保留毫秒
+     */
+    private String formatSecondsPrecise(double seconds) {
+        return String.format(Locale.ROOT, "%.3f", seconds);
+    }
+    
+    /**
+     * 为缺少关键帧索引的视频并行生成索引：每个视频一个PROBE任务提交到FFmpeg任务池，全部完成后返回。
+     * ffprobe扫描使用独立队列，不占用流复制任务的并发；之后的剪辑计划只读取已有索引，不在调用线程上逐个启动ffprobe
+     */
+    private void prepareKeyframeIndexes(List<String> videoPaths) {
+        if (keyframeIndexService == null) {
+            return;
+        }
+        List<CompletableFuture<KeyframeIndex>> builds = new ArrayList<>();
+        for (String videoPath : new LinkedHashSet<>(videoPaths)) {
+            if (videoPath != null && keyframeIndexService.findIndex(videoPath) == null) {
+                builds.add(ffmpegJobPool.submit(FFmpegJobPool.JobType.PROBE, videoPath,
+                    () -> keyframeIndexService.getIndex(videoPath)));
+            }
+        }
+        for (CompletableFuture<KeyframeIndex> build : builds) {
+            try {
+                build.join();
+            } catch (Exception e) {
+                // 没有索引的视频按原始起点剪辑
+                log.warn("生成关键帧索引失败: {}", e.getMessage());
+            }
+        }
+    }
+    
+    /**
+     * 只读取已有的关键帧索引，不启动任何进程
+     */
+    private KeyframeIndex findKeyframeIndex(String videoPath) {
+        return keyframeIndexService != null ? keyframeIndexService.findIndex(videoPath) : null;
+    }
+    
+    /**
+     * 按关键帧索引生成剪辑计划，没有开始时间或索引不可用时返回null
+     */
+    private KeyframeIndex.ClipPlan planClip(KeyframeIndex index, String startTime, String endTime) {
+        if (keyframeIndexService == null || index == null || startTime == null || startTime.isEmpty()) {
+            return null;
+        }
+        long end = endTime != null && !endTime.isEmpty() ? parseTimeToSeconds(endTime) : 0;
+        return keyframeIndexService.planClip(index, parseTimeToSeconds(startTime), end);
+    }
+    
+    /**
+     * 剪辑任务类型：需要智能渲染（重新编码起点附近画面）时为ENCODE，否则为COPY。
+     * 只读取已有索引，调用前应先生成关键帧索引
+     */
+    private FFmpegJobPool.JobType clipJobType(String videoPath, String startTime, String endTime) {
+        if (smartRenderer != null && planSmartRender(findKeyframeIndex(videoPath), startTime, endTime) != null) {
+            return FFmpegJobPool.JobType.ENCODE;
+        }
+        return FFmpegJobPool.JobType.COPY;
+    }
+    
+    /**
+     * 起点不在关键帧上且源视频支持智能渲染时返回剪辑计划，否则返回null
+     */
+    private KeyframeIndex.ClipPlan planSmartRender(KeyframeIndex index, String startTime, String endTime) {
+        KeyframeIndex.ClipPlan plan = planClip(index, startTime, endTime);
+        if (plan == null || plan.isCopy() || !smartRenderer.supports(index)) {
+            return null;
+        }
+        return plan;
+    }
 
 
 
@@ -832,6 +1147,12 @@ public class VideoProcessServiceImpl implements VideoProcessService {
      */
     private double getVideoDuration(String videoPath) {
         try {
+            // 已有关键帧索引时直接使用其中的时长，不启动ffprobe
+            KeyframeIndex index = keyframeIndexService != null ? keyframeIndexService.findIndex(videoPath) : null;
+            if (index != null && index.getDuration() > 0) {
+                return index.getDuration();
+            }
+            
             List<String> command = new ArrayList<>();
             command.add(ffmpegPath.replace("ffmpeg", "ffprobe"));
             command.add("-v");
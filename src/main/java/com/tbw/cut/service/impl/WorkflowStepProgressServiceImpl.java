@@ -11,6 +11,7 @@ import com.tbw.cut.entity.TaskRelation;
 import com.tbw.cut.workflow.model.StepStatus;
 import com.tbw.cut.workflow.model.StepType;
 import com.tbw.cut.workflow.model.WorkflowStatus;
+import com.tbw.cut.websocket.DownloadProgressWebSocket;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
@@ -172,6 +173,7 @@ public class WorkflowStepProgressServiceImpl implements WorkflowStepProgressServ
                 // 完成整个工作流
                 workflowDatabaseService.completeWorkflowInstance(instance.getInstanceId(), WorkflowStatus.COMPLETED);
                 workflowDatabaseService.updateWorkflowStatus(instance.getInstanceId(), WorkflowStatus.COMPLETED, "COMPLETED", 1.0);
+                DownloadProgressWebSocket.broadcastWorkflowUpdate(instance.getInstanceId(), WorkflowStatus.COMPLETED.name(), 1.0);
                 
                 log.info("工作流完成: instanceId={}, taskId={}", instance.getInstanceId(), taskId);
             } else {
@@ -274,6 +276,7 @@ public class WorkflowStepProgressServiceImpl implements WorkflowStepProgressServ
                 nextStep.getStepType().getDescription(), 
                 instance.getProgress()
             );
+            DownloadProgressWebSocket.broadcastWorkflowUpdate(instance.getInstanceId(), WorkflowStatus.RUNNING.name(), instance.getProgress());
             
             log.info("启动工作流步骤: stepId={}, stepType={}, taskId={}", 
                 nextStep.getStepId(), nextStep.getStepType(), taskId);
@@ -437,6 +440,7 @@ public class WorkflowStepProgressServiceImpl implements WorkflowStepProgressServ
             
             // 更新工作流进度
             workflowDatabaseService.updateWorkflowStatus(instanceId, WorkflowStatus.RUNNING, null, overallProgress);
+            DownloadProgressWebSocket.broadcastWorkflowUpdate(instanceId, WorkflowStatus.RUNNING.name(), overallProgress);
             
         } catch (Exception e) {
             log.error("更新工作流进度异常: instanceId={}", instanceId, e);
@@ -1,7 +1,9 @@
 package com.tbw.cut.utils;
 
+import com.tbw.cut.service.download.bandwidth.BandwidthGovernor;
 import com.tbw.cut.service.download.model.DownloadConfig;
 import com.tbw.cut.service.download.retry.RetryManager;
+import com.tbw.cut.service.download.segmented.SegmentDownloadExecutor;
 import com.tbw.cut.service.VideoUrlRefreshService;
 import com.tbw.cut.bilibili.BilibiliApiClient;
 import lombok.extern.slf4j.Slf4j;
@@ -11,8 +13,12 @@ import org.springframework.stereotype.Component;
 
 import javax.annotation.PostConstruct;
 import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
 
@@ -45,6 +51,24 @@ public class EnhancedFFmpegUtil {
     @Autowired(required = false)
     private VideoUrlRefreshService videoUrlRefreshService;
     
+    @Autowired(required = false)
+    private BandwidthGovernor bandwidthGovernor;
+    
+    @Autowired(required = false)
+    private SegmentDownloadExecutor segmentDownloadExecutor;
+    
+    @Value("${download.dash.concurrent-fetch:true}")
+    private boolean dashConcurrentFetch = true;
+    
+    @Value("${download.dash.segment-count:4}")
+    private int dashSegmentCount = 4;
+    
+    @Value("${download.dash.streaming-mux:false}")
+    private boolean dashStreamingMux;
+    
+    // FFmpeg退出后等待管道写入方结束的时间
+    private static final long PIPE_WRITER_GRACE_SECONDS = 5;
+    
     @PostConstruct
     public void init() {
         createDirectories();
@@ -89,7 +113,7 @@ public class EnhancedFFmpegUtil {
     public long getVideoDuration(String videoUrl) {
         return retryManager.executeWithRetry(() -> {
             return executeGetDuration(videoUrl);
-        }, "get-duration-" + videoUrl.hashCode()).join();
+        }, "get-duration", videoUrl).join();
     }
     
     /**
@@ -148,7 +172,7 @@ public class EnhancedFFmpegUtil {
         
         return retryManager.executeWithRetry(() -> {
             return executeDownload(videoUrl, outputPath, config, progressCallback);
-        }, "download-" + outputPath.hashCode()).join();
+        }, "download", videoUrl).join();
     }
     
     /**
@@ -170,7 +194,7 @@ public class EnhancedFFmpegUtil {
                 // 重新抛出作为运行时异常，让重试机制处理
                 throw new RuntimeException(e);
             }
-        }, "download-with-refresh-" + outputPath.hashCode()).join();
+        }, "download-with-refresh", videoUrl).join();
     }
     
     /**
@@ -206,7 +230,7 @@ public class EnhancedFFmpegUtil {
         List<String> command = buildDownloadCommand(currentUrl, outputPath, config, 0);
         
         try {
-            ProcessResult result = executeCommandWithProgress(command, config, progressCallback);
+            ProcessResult result = executeDownloadCommand(command, outputPath, config, progressCallback);
             
             if (result.isSuccess()) {
                 File outputFile = new File(outputPath);
@@ -273,7 +297,7 @@ public class EnhancedFFmpegUtil {
         
         return retryManager.executeWithRetry(() -> {
             return executeDownloadWithResume(videoUrl, outputPath, resumeFromBytes, config, progressCallback);
-        }, "resume-download-" + outputPath.hashCode()).join();
+        }, "resume-download", videoUrl).join();
     }
     
     /**
@@ -290,7 +314,7 @@ public class EnhancedFFmpegUtil {
         List<String> command = buildDownloadCommand(videoUrl, outputPath, config, 0);
         
         try {
-            ProcessResult result = executeCommandWithProgress(command, config, progressCallback);
+            ProcessResult result = executeDownloadCommand(command, outputPath, config, progressCallback);
             
             if (result.isSuccess()) {
                 File outputFile = new File(outputPath);
@@ -325,7 +349,7 @@ public class EnhancedFFmpegUtil {
         List<String> command = buildDownloadCommand(videoUrl, outputPath, config, resumeFromBytes);
         
         try {
-            ProcessResult result = executeCommandWithProgress(command, config, progressCallback);
+            ProcessResult result = executeDownloadCommand(command, outputPath, config, progressCallback);
             
             if (result.isSuccess()) {
                 File outputFile = new File(outputPath);
@@ -487,6 +511,29 @@ public class EnhancedFFmpegUtil {
         return null;
     }
     
+    /**
+     * 执行下载命令，FFmpeg输出的字节数计入全局带宽调度
+     * FFmpeg进程自行读取网络无法直接节流，其流量作为欠账让同方向的其他任务让出带宽
+     * @param command 命令列表
+     * @param outputPath 输出路径，未指定流量名称时用作名称
+     * @param config 下载配置
+     * @param progressCallback 进度回调
+     * @return 执行结果
+     */
+    private ProcessResult executeDownloadCommand(List<String> command, String outputPath, DownloadConfig config, 
+                                               ProgressCallback progressCallback) throws Exception {
+        if (bandwidthGovernor == null) {
+            return executeCommandWithProgress(command, config, progressCallback, null);
+        }
+        
+        String flowName = config.getBandwidthFlowName() != null 
+            ? config.getBandwidthFlowName() : new File(outputPath).getName();
+        int weight = config.getBandwidthWeight() != null ? config.getBandwidthWeight() : 1;
+        try (BandwidthGovernor.Flow flow = bandwidthGovernor.register(BandwidthGovernor.Direction.INGRESS, flowName, weight)) {
+            return executeCommandWithProgress(command, config, progressCallback, flow);
+        }
+    }
+    
     /**
      * 执行带进度跟踪的命令
      * @param command 命令列表
@@ -496,6 +543,20 @@ public class EnhancedFFmpegUtil {
      */
     private ProcessResult executeCommandWithProgress(List<String> command, DownloadConfig config, 
                                                    ProgressCallback progressCallback) throws Exception {
+        return executeCommandWithProgress(command, config, progressCallback, null);
+    }
+    
+    /**
+     * 执行带进度跟踪的命令
+     * @param command 命令列表
+     * @param config 下载配置
+     * @param progressCallback 进度回调
+     * @param bandwidthFlow 带宽流量，不为空时记录FFmpeg报告的输出字节数
+     * @return 执行结果
+     */
+    private ProcessResult executeCommandWithProgress(List<String> command, DownloadConfig config, 
+                                                   ProgressCallback progressCallback, 
+                                                   BandwidthGovernor.Flow bandwidthFlow) throws Exception {
         
         log.info("Executing FFmpeg command: {}", String.join(" ", command));
         
@@ -505,7 +566,7 @@ public class EnhancedFFmpegUtil {
         Process process = processBuilder.start();
         
         // 进度跟踪
-        ProgressTracker tracker = new ProgressTracker(progressCallback, config.getProgressUpdateInterval());
+        ProgressTracker tracker = new ProgressTracker(progressCallback, config.getProgressUpdateInterval(), bandwidthFlow);
         
         StringBuilder output = new StringBuilder();
         
@@ -625,31 +686,106 @@ public class EnhancedFFmpegUtil {
      */
     public DownloadResult downloadAndMergeDashStreams(String videoUrl, String audioUrl, String outputPath, 
                                                     DownloadConfig config, ProgressCallback progressCallback, String bvid) {
+        return downloadAndMergeDashStreams(videoUrl, null, audioUrl, null, outputPath, config, progressCallback, bvid);
+    }
+    
+    /**
+     * 下载并合并DASH格式的音视频流，音视频流可附带备用CDN地址
+     * @param videoUrl 视频流URL
+     * @param videoBackupUrls 视频流备用URL，可为空
+     * @param audioUrl 音频流URL
+     * @param audioBackupUrls 音频流备用URL，可为空
+     * @param outputPath 输出路径
+     * @param config 下载配置
+     * @param progressCallback 进度回调
+     * @param bvid 视频BVID（用于URL刷新）
+     * @return 下载结果
+     */
+    public DownloadResult downloadAndMergeDashStreams(String videoUrl, List<String> videoBackupUrls, 
+                                                    String audioUrl, List<String> audioBackupUrls, String outputPath, 
+                                                    DownloadConfig config, ProgressCallback progressCallback, String bvid) {
         
-        return retryManager.executeWithRetry(() -> {
-            try {
-                return executeDownloadAndMergeDash(videoUrl, audioUrl, outputPath, config, progressCallback, bvid);
-            } catch (RetryManager.UrlExpiredException e) {
-                // 重新抛出作为运行时异常，让重试机制处理
-                throw new RuntimeException(e);
+        DownloadResult result = null;
+        try {
+            result = retryManager.executeWithRetry(() -> {
+                try {
+                    return executeDownloadAndMergeDash(videoUrl, videoBackupUrls, audioUrl, audioBackupUrls, 
+                        outputPath, config, progressCallback, bvid);
+                } catch (RetryManager.UrlExpiredException e) {
+                    // 重新抛出作为运行时异常，让重试机制处理
+                    throw new RuntimeException(e);
+                }
+            }, "dash-merge", videoUrl).join();
+            return result;
+        } finally {
+            // 重试之间保留的已下载部分和分段清单在最终失败后不再需要
+            if ((result == null || !result.isSuccess()) && segmentDownloadExecutor != null) {
+                discardDashTempFiles(dashTempPath(outputPath, videoUrl, "video.m4s"));
+                discardDashTempFiles(dashTempPath(outputPath, audioUrl, "audio.m4s"));
+            }
+        }
+    }
+    
+    /**
+     * DASH流的临时文件路径，并发下载时路径固定以便重试时续传。
+     * 文件名取输出路径和流地址的SHA-256，不同输出或不同流不会共用同一组临时文件；
+     * 流地址去掉查询参数，URL刷新后签名变化仍能续传
+     */
+    private String dashTempPath(String outputPath, String streamUrl, String suffix) {
+        String stream = streamUrl;
+        if (stream != null && stream.indexOf('?') >= 0) {
+            stream = stream.substring(0, stream.indexOf('?'));
+        }
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] hash = digest.digest((outputPath + "\n" + stream).getBytes(StandardCharsets.UTF_8));
+            StringBuilder key = new StringBuilder();
+            for (byte b : hash) {
+                key.append(String.format("%02x", b));
             }
-        }, "dash-merge-" + outputPath.hashCode()).join();
+            return tempDir + "/dash_" + key + "." + suffix;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+    
+    /**
+     * 删除DASH流的临时文件及其续传数据（.downloading、.manifest和分段目录）
+     */
+    private void discardDashTempFiles(String tempPath) {
+        cleanupTempFile(tempPath);
+        try {
+            segmentDownloadExecutor.discardResumableDownload(tempPath);
+        } catch (IOException e) {
+            log.warn("清理续传数据失败: {}", tempPath, e);
+        }
     }
     
     /**
      * 执行DASH音视频流下载和合并
+     * 分段下载引擎可用时音视频流通过Range请求并发下载，支持断点续传和带宽调度，只有最后的流复制合并使用FFmpeg；
+     * 否则依次用FFmpeg下载音视频流
      */
-    private DownloadResult executeDownloadAndMergeDash(String videoUrl, String audioUrl, String outputPath, 
+    private DownloadResult executeDownloadAndMergeDash(String videoUrl, List<String> videoBackupUrls, 
+                                                     String audioUrl, List<String> audioBackupUrls, String outputPath, 
                                                      DownloadConfig config, ProgressCallback progressCallback, String bvid) 
                                                      throws RetryManager.UrlExpiredException {
         
-        // 创建临时文件路径
-        String tempVideoPath = tempDir + "/video_" + System.currentTimeMillis() + ".m4s";
-        String tempAudioPath = tempDir + "/audio_" + System.currentTimeMillis() + ".m4s";
+        boolean concurrentFetch = dashConcurrentFetch && segmentDownloadExecutor != null;
+        
+        // 创建临时文件路径，并发下载时路径固定以便重试时续传
+        String tempVideoPath;
+        String tempAudioPath;
+        if (concurrentFetch) {
+            tempVideoPath = dashTempPath(outputPath, videoUrl, "video.m4s");
+            tempAudioPath = dashTempPath(outputPath, audioUrl, "audio.m4s");
+        } else {
+            tempVideoPath = tempDir + "/video_" + System.currentTimeMillis() + ".m4s";
+            tempAudioPath = tempDir + "/audio_" + System.currentTimeMillis() + ".m4s";
+        }
+        boolean keepTempFiles = false;
         
         try {
-            log.info("开始下载DASH视频流到: {}", tempVideoPath);
-            
             // 检查并刷新URL（如果需要）
             String currentVideoUrl = videoUrl;
             String currentAudioUrl = audioUrl;
@@ -672,55 +808,44 @@ public class EnhancedFFmpegUtil {
                 }
             }
             
-            // 下载视频流
-            List<String> videoCommand = buildDownloadCommand(currentVideoUrl, tempVideoPath, config, 0);
-            ProcessResult videoResult = executeCommandWithProgress(videoCommand, config, 
-                (percentage, currentBytes, totalBytes) -> {
-                    // 视频下载占总进度的60%
-                    if (progressCallback != null) {
-                        progressCallback.onProgress(percentage * 60 / 100, currentBytes, totalBytes);
-                    }
-                });
-            
-            if (!videoResult.isSuccess()) {
-                // 检查是否是403错误
-                if (videoResult.getOutput() != null && videoResult.getOutput().contains("403")) {
-                    throw new RetryManager.UrlExpiredException(currentVideoUrl, bvid, 
-                        "视频流下载失败，403错误: " + videoResult.getOutput());
+            if (concurrentFetch && dashStreamingMux) {
+                DownloadResult streamResult = streamAndMergeDash(currentVideoUrl, videoBackupUrls, 
+                    currentAudioUrl, audioBackupUrls, outputPath, config, progressCallback, bvid);
+                if (streamResult != null) {
+                    return streamResult;
                 }
-                return DownloadResult.failure("视频流下载失败: " + videoResult.getOutput());
+                // 不支持命名管道时回退到先下载再合并
             }
             
-            log.info("视频流下载完成，开始下载音频流到: {}", tempAudioPath);
-            
-            // 下载音频流
-            List<String> audioCommand = buildDownloadCommand(currentAudioUrl, tempAudioPath, config, 0);
-            ProcessResult audioResult = executeCommandWithProgress(audioCommand, config, 
-                (percentage, currentBytes, totalBytes) -> {
-                    // 音频下载占总进度的20%，从60%开始
-                    if (progressCallback != null) {
-                        progressCallback.onProgress(60 + percentage * 20 / 100, currentBytes, totalBytes);
-                    }
-                });
-            
-            if (!audioResult.isSuccess()) {
-                // 检查是否是403错误
-                if (audioResult.getOutput() != null && audioResult.getOutput().contains("403")) {
-                    throw new RetryManager.UrlExpiredException(currentAudioUrl, bvid, 
-                        "音频流下载失败，403错误: " + audioResult.getOutput());
+            // 下载部分占总进度的比例，其余为合并
+            int downloadWeight;
+            if (concurrentFetch) {
+                downloadWeight = 90;
+                DownloadResult fetchResult = fetchDashStreamsConcurrently(currentVideoUrl, videoBackupUrls, 
+                    currentAudioUrl, audioBackupUrls, tempVideoPath, tempAudioPath, progressCallback, bvid);
+                if (fetchResult != null) {
+                    // 保留已下载的部分和分段清单，重试时续传
+                    keepTempFiles = true;
+                    return fetchResult;
+                }
+            } else {
+                downloadWeight = 80;
+                DownloadResult fetchResult = fetchDashStreamsWithFFmpeg(currentVideoUrl, currentAudioUrl, 
+                    tempVideoPath, tempAudioPath, config, progressCallback, bvid);
+                if (fetchResult != null) {
+                    return fetchResult;
                 }
-                return DownloadResult.failure("音频流下载失败: " + audioResult.getOutput());
             }
             
-            log.info("音频流下载完成，开始合并音视频流");
+            log.info("音视频流下载完成，开始合并音视频流");
             
             // 合并音视频流
             List<String> mergeCommand = buildMergeCommand(tempVideoPath, tempAudioPath, outputPath);
             ProcessResult mergeResult = executeCommandWithProgress(mergeCommand, config, 
                 (percentage, currentBytes, totalBytes) -> {
-                    // 合并占总进度的20%，从80%开始
                     if (progressCallback != null) {
-                        progressCallback.onProgress(80 + percentage * 20 / 100, currentBytes, totalBytes);
+                        progressCallback.onProgress(downloadWeight + percentage * (100 - downloadWeight) / 100, 
+                            currentBytes, totalBytes);
                     }
                 });
             
@@ -744,6 +869,7 @@ public class EnhancedFFmpegUtil {
             
         } catch (RetryManager.UrlExpiredException e) {
             // 重新抛出URL过期异常
+            keepTempFiles = concurrentFetch;
             throw e;
         } catch (Exception e) {
             log.error("DASH音视频流下载合并过程中发生异常", e);
@@ -751,6 +877,7 @@ public class EnhancedFFmpegUtil {
             // 检查异常消息中是否包含403错误
             String message = e.getMessage();
             if (message != null && message.contains("403")) {
+                keepTempFiles = concurrentFetch;
                 throw new RetryManager.UrlExpiredException(videoUrl, bvid, 
                     "DASH下载过程中检测到403错误: " + message);
             }
@@ -758,8 +885,258 @@ public class EnhancedFFmpegUtil {
             return DownloadResult.failure("DASH下载合并失败: " + e.getMessage());
         } finally {
             // 清理临时文件
-            cleanupTempFile(tempVideoPath);
-            cleanupTempFile(tempAudioPath);
+            if (!keepTempFiles) {
+                cleanupTempFile(tempVideoPath);
+                cleanupTempFile(tempAudioPath);
+            }
+        }
+    }
+    
+    /**
+     * 流式合并DASH音视频流：两路流按顺序下载并写入命名管道，FFmpeg边读边合并，
+     * 最后一个字节到达后很快得到MP4，只写一次磁盘；流式下载不支持续传，失败重试时重新下载
+     * @return 合并结果，当前系统不支持命名管道时返回null
+     */
+    private DownloadResult streamAndMergeDash(String videoUrl, List<String> videoBackupUrls, 
+                                             String audioUrl, List<String> audioBackupUrls, String outputPath, 
+                                             DownloadConfig config, ProgressCallback progressCallback, String bvid) 
+                                             throws Exception {
+        File videoPipe = new File(dashTempPath(outputPath, videoUrl, "video.pipe"));
+        File audioPipe = new File(dashTempPath(outputPath, audioUrl, "audio.pipe"));
+        if (!createNamedPipe(videoPipe) || !createNamedPipe(audioPipe)) {
+            cleanupTempFile(videoPipe.getPath());
+            log.warn("无法创建命名管道，DASH流式合并不可用");
+            return null;
+        }
+        
+        log.info("流式合并DASH音视频流: {}", outputPath);
+        CompletableFuture<com.tbw.cut.service.download.model.DownloadResult> videoFuture = null;
+        CompletableFuture<com.tbw.cut.service.download.model.DownloadResult> audioFuture = null;
+        try {
+            DashFetchProgress progress = new DashFetchProgress(progressCallback, 99);
+            videoFuture = segmentDownloadExecutor.executeStreamingDownload(videoUrl, videoBackupUrls, 
+                videoPipe.getName(), () -> new FileOutputStream(videoPipe), progress.forStream(0));
+            audioFuture = segmentDownloadExecutor.executeStreamingDownload(audioUrl, audioBackupUrls, 
+                audioPipe.getName(), () -> new FileOutputStream(audioPipe), progress.forStream(1));
+            
+            // 合并进度由两路下载的字节进度体现
+            List<String> mergeCommand = buildMergeCommand(videoPipe.getPath(), audioPipe.getPath(), outputPath);
+            ProcessResult mergeResult = executeCommandWithProgress(mergeCommand, config, 
+                (percentage, currentBytes, totalBytes) -> { });
+            
+            // FFmpeg提前退出时写入方可能仍阻塞在打开管道上
+            releasePipeWriter(videoPipe, videoFuture);
+            releasePipeWriter(audioPipe, audioFuture);
+            com.tbw.cut.service.download.model.DownloadResult videoResult = videoFuture.join();
+            com.tbw.cut.service.download.model.DownloadResult audioResult = audioFuture.join();
+            
+            // 下载中断时FFmpeg读到的是截断的输入，即使退出码为0也不能使用输出
+            if (!videoResult.isSuccess() || !audioResult.isSuccess()) {
+                cleanupTempFile(outputPath);
+                if (!videoResult.isSuccess()) {
+                    return streamFailure("视频流", videoUrl, videoResult.getErrorMessage(), bvid);
+                }
+                return streamFailure("音频流", audioUrl, audioResult.getErrorMessage(), bvid);
+            }
+            
+            File outputFile = new File(outputPath);
+            if (!mergeResult.isSuccess() || !outputFile.exists() || outputFile.length() == 0) {
+                return DownloadResult.failure("音视频流合并失败: " + mergeResult.getOutput());
+            }
+            
+            log.info("DASH音视频流流式合并成功: {}", outputPath);
+            if (progressCallback != null) {
+                progressCallback.onProgress(100, outputFile.length(), outputFile.length());
+            }
+            return DownloadResult.success(outputPath, outputFile.length());
+            
+        } finally {
+            releasePipeWriter(videoPipe, videoFuture);
+            releasePipeWriter(audioPipe, audioFuture);
+            cleanupTempFile(videoPipe.getPath());
+            cleanupTempFile(audioPipe.getPath());
+        }
+    }
+    
+    /**
+     * 创建命名管道（依赖mkfifo，Windows上不可用）
+     */
+    private boolean createNamedPipe(File pipe) {
+        try {
+            createDirectory(pipe.getParent());
+            cleanupTempFile(pipe.getPath());
+            Process process = new ProcessBuilder("mkfifo", pipe.getPath()).redirectErrorStream(true).start();
+            return process.waitFor(10, TimeUnit.SECONDS) && process.exitValue() == 0;
+        } catch (Exception e) {
+            log.debug("创建命名管道失败: {}", pipe, e);
+            return false;
+        }
+    }
+    
+    /**
+     * 读取方没有打开管道时，临时打开读取端让写入方的open返回，随后的写入会因管道关闭而失败
+     */
+    private void releasePipeWriter(File pipe, CompletableFuture<?> writer) {
+        if (writer == null || writer.isDone()) {
+            return;
+        }
+        try {
+            // 写入方通常在FFmpeg读到结尾后随即结束
+            writer.get(PIPE_WRITER_GRACE_SECONDS, TimeUnit.SECONDS);
+            return;
+        } catch (java.util.concurrent.TimeoutException e) {
+            log.warn("管道写入方未结束，释放阻塞: {}", pipe);
+        } catch (Exception e) {
+            return;
+        }
+        Thread releaser = new Thread(() -> {
+            try (FileInputStream ignored = new FileInputStream(pipe)) {
+                log.debug("已释放阻塞的管道写入方: {}", pipe);
+            } catch (IOException e) {
+                log.debug("释放管道写入方失败: {}", pipe, e);
+            }
+        }, "dash-pipe-release");
+        releaser.setDaemon(true);
+        releaser.start();
+    }
+    
+    /**
+     * 通过分段下载引擎并发下载DASH音视频流
+     * 两路流各自按Range分段下载，进度按两路已下载字节之和计算
+     * @return 成功时返回null，失败时返回失败结果
+     */
+    private DownloadResult fetchDashStreamsConcurrently(String videoUrl, List<String> videoBackupUrls, 
+                                                       String audioUrl, List<String> audioBackupUrls, 
+                                                       String videoPath, String audioPath, 
+                                                       ProgressCallback progressCallback, String bvid) 
+                                                       throws RetryManager.UrlExpiredException {
+        log.info("并发下载DASH音视频流: video={}, audio={}", videoPath, audioPath);
+        
+        DashFetchProgress progress = new DashFetchProgress(progressCallback, 90);
+        CompletableFuture<com.tbw.cut.service.download.model.DownloadResult> videoFuture = 
+            segmentDownloadExecutor.executeSegmentedDownload(videoUrl, videoBackupUrls, videoPath, 0, 
+                dashSegmentCount, progress.forStream(0));
+        CompletableFuture<com.tbw.cut.service.download.model.DownloadResult> audioFuture = 
+            segmentDownloadExecutor.executeSegmentedDownload(audioUrl, audioBackupUrls, audioPath, 0, 
+                dashSegmentCount, progress.forStream(1));
+        
+        com.tbw.cut.service.download.model.DownloadResult videoResult = videoFuture.join();
+        com.tbw.cut.service.download.model.DownloadResult audioResult = audioFuture.join();
+        
+        if (!videoResult.isSuccess()) {
+            return streamFailure("视频流", videoUrl, videoResult.getErrorMessage(), bvid);
+        }
+        if (!audioResult.isSuccess()) {
+            return streamFailure("音频流", audioUrl, audioResult.getErrorMessage(), bvid);
+        }
+        return null;
+    }
+    
+    private DownloadResult streamFailure(String streamName, String url, String errorMessage, String bvid) 
+            throws RetryManager.UrlExpiredException {
+        if (errorMessage != null && errorMessage.contains("403")) {
+            throw new RetryManager.UrlExpiredException(url, bvid, streamName + "下载失败，403错误: " + errorMessage);
+        }
+        return DownloadResult.failure(streamName + "下载失败: " + errorMessage);
+    }
+    
+    /**
+     * 依次用FFmpeg下载DASH音视频流
+     * @return 成功时返回null，失败时返回失败结果
+     */
+    private DownloadResult fetchDashStreamsWithFFmpeg(String currentVideoUrl, String currentAudioUrl, 
+                                                     String tempVideoPath, String tempAudioPath, DownloadConfig config, 
+                                                     ProgressCallback progressCallback, String bvid) throws Exception {
+        log.info("开始下载DASH视频流到: {}", tempVideoPath);
+        
+        // 下载视频流
+        List<String> videoCommand = buildDownloadCommand(currentVideoUrl, tempVideoPath, config, 0);
+        ProcessResult videoResult = executeDownloadCommand(videoCommand, tempVideoPath, config, 
+            (percentage, currentBytes, totalBytes) -> {
+                // 视频下载占总进度的60%
+                if (progressCallback != null) {
+                    progressCallback.onProgress(percentage * 60 / 100, currentBytes, totalBytes);
+                }
+            });
+        
+        if (!videoResult.isSuccess()) {
+            // 检查是否是403错误
+            if (videoResult.getOutput() != null && videoResult.getOutput().contains("403")) {
+                throw new RetryManager.UrlExpiredException(currentVideoUrl, bvid, 
+                    "视频流下载失败，403错误: " + videoResult.getOutput());
+            }
+            return DownloadResult.failure("视频流下载失败: " + videoResult.getOutput());
+        }
+        
+        log.info("视频流下载完成，开始下载音频流到: {}", tempAudioPath);
+        
+        // 下载音频流
+        List<String> audioCommand = buildDownloadCommand(currentAudioUrl, tempAudioPath, config, 0);
+        ProcessResult audioResult = executeDownloadCommand(audioCommand, tempAudioPath, config, 
+            (percentage, currentBytes, totalBytes) -> {
+                // 音频下载占总进度的20%，从60%开始
+                if (progressCallback != null) {
+                    progressCallback.onProgress(60 + percentage * 20 / 100, currentBytes, totalBytes);
+                }
+            });
+        
+        if (!audioResult.isSuccess()) {
+            // 检查是否是403错误
+            if (audioResult.getOutput() != null && audioResult.getOutput().contains("403")) {
+                throw new RetryManager.UrlExpiredException(currentAudioUrl, bvid, 
+                    "音频流下载失败，403错误: " + audioResult.getOutput());
+            }
+            return DownloadResult.failure("音频流下载失败: " + audioResult.getOutput());
+        }
+        
+        log.info("音频流下载完成");
+        return null;
+    }
+    
+    /**
+     * 汇总DASH音视频两路下载的字节进度
+     */
+    private static class DashFetchProgress {
+        private final ProgressCallback progressCallback;
+        private final int weight;
+        private final long[] downloaded = new long[2];
+        private final long[] total = new long[2];
+        private int lastPercentage = -1;
+        
+        DashFetchProgress(ProgressCallback progressCallback, int weight) {
+            this.progressCallback = progressCallback;
+            this.weight = weight;
+        }
+        
+        SegmentDownloadExecutor.SegmentProgressCallback forStream(int stream) {
+            return new SegmentDownloadExecutor.SegmentProgressCallback() {
+                @Override
+                public void onProgress(int segmentIndex, long segmentDownloaded, long segmentSize, double totalProgress) {
+                    // 字节进度在onBytesProgress中处理
+                }
+                
+                @Override
+                public void onBytesProgress(long downloadedBytes, long totalBytes) {
+                    update(stream, downloadedBytes, totalBytes);
+                }
+            };
+        }
+        
+        private synchronized void update(int stream, long downloadedBytes, long totalBytes) {
+            downloaded[stream] = downloadedBytes;
+            total[stream] = Math.max(0, totalBytes);
+            long allDownloaded = downloaded[0] + downloaded[1];
+            long allTotal = total[0] + total[1];
+            if (progressCallback == null || allTotal <= 0) {
+                return;
+            }
+            
+            // 另一路尚未上报大小时进度会偏高，只允许进度单调增加
+            int percentage = (int) Math.min(weight, allDownloaded * weight / allTotal);
+            if (percentage > lastPercentage) {
+                lastPercentage = percentage;
+                progressCallback.onProgress(percentage, allDownloaded, allTotal);
+            }
         }
     }
     
@@ -869,6 +1246,25 @@ public class EnhancedFFmpegUtil {
     public String downloadVideoToDirectoryWithProgressAndRefresh(String videoUrl, String outputFileName, 
                                                                String outputDirectory, long totalDuration, 
                                                                FFmpegUtil.ProgressCallback progressCallback, String bvid) {
+        return downloadVideoToDirectoryWithProgressAndRefresh(videoUrl, outputFileName, outputDirectory, 
+            totalDuration, progressCallback, bvid, null);
+    }
+    
+    /**
+     * 兼容方法：下载视频到指定目录（带进度跟踪和URL刷新）
+     * @param videoUrl 视频URL
+     * @param outputFileName 输出文件名
+     * @param outputDirectory 输出目录
+     * @param totalDuration 总时长（微秒）
+     * @param progressCallback 进度回调
+     * @param bvid 视频BVID（用于URL刷新）
+     * @param bandwidthFlowName 全局带宽调度中的流量名称，为空时使用输出文件名
+     * @return 输出文件路径，失败返回null
+     */
+    public String downloadVideoToDirectoryWithProgressAndRefresh(String videoUrl, String outputFileName, 
+                                                               String outputDirectory, long totalDuration, 
+                                                               FFmpegUtil.ProgressCallback progressCallback, String bvid,
+                                                               String bandwidthFlowName) {
         
         // 确保输出目录存在
         createDirectory(outputDirectory);
@@ -880,6 +1276,7 @@ public class EnhancedFFmpegUtil {
             .connectionTimeout(30000L)
             .readTimeout(1800000L) // 30分钟
             .progressUpdateInterval(1000L)
+            .bandwidthFlowName(bandwidthFlowName)
             .build();
         
         // 转换进度回调
@@ -959,16 +1356,23 @@ public class EnhancedFFmpegUtil {
     private static class ProgressTracker {
         private final ProgressCallback callback;
         private final long updateInterval;
+        private final BandwidthGovernor.Flow bandwidthFlow;
         private long lastUpdateTime = 0;
         private int lastProgress = 0;
         private long totalDuration = 0; // 总时长（微秒）
+        private long lastTotalSize = 0; // 已输出字节数
         
-        public ProgressTracker(ProgressCallback callback, Long updateInterval) {
+        public ProgressTracker(ProgressCallback callback, Long updateInterval, BandwidthGovernor.Flow bandwidthFlow) {
             this.callback = callback;
             this.updateInterval = updateInterval != null ? updateInterval : 1000;
+            this.bandwidthFlow = bandwidthFlow;
         }
         
         public void parseLine(String line) {
+            if (bandwidthFlow != null && line.startsWith("total_size=")) {
+                recordTransferredBytes(line);
+            }
+            
             if (callback == null) {
                 return;
             }
@@ -1039,6 +1443,22 @@ public class EnhancedFFmpegUtil {
             }
         }
         
+        /**
+         * 将输出字节数的增量记入带宽流量
+         * @param line 格式: total_size=123456，未知时为N/A
+         */
+        private void recordTransferredBytes(String line) {
+            try {
+                long totalSize = Long.parseLong(line.substring(11).trim());
+                if (totalSize > lastTotalSize) {
+                    bandwidthFlow.record(totalSize - lastTotalSize);
+                    lastTotalSize = totalSize;
+                }
+            } catch (NumberFormatException e) {
+                // 大小未知
+            }
+        }
+        
         /**
          * 解析时长字符串为微秒
          * @param durationStr 时长字符串，格式如 "00:01:23.45"
@@ -0,0 +1,164 @@
+package com.tbw.cut.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * FFmpeg任务池
+ * 流复制任务主要受磁盘读写限制，按输入文件所在的磁盘设备分别限制并发；
+ * 重新编码任务主要受CPU限制，所有设备共用一个按CPU核数确定大小的队列；
+ * ffprobe扫描（生成关键帧索引）同样按设备排队，但使用独立的队列，不占用流复制任务的并发
+ */
+@Slf4j
+@Component
+public class FFmpegJobPool {
+
+    /**
+     * 任务类型
+     */
+    public enum JobType {
+        /** 流复制（-c copy） */
+        COPY,
+        /** 重新编码 */
+        ENCODE,
+        /** ffprobe扫描 */
+        PROBE
+    }
+
+    private static final String DEFAULT_DEVICE = "default";
+
+    @Value("${ffmpeg.job-pool.copy-concurrency-per-device:2}")
+    private int copyConcurrencyPerDevice = 2;
+
+    // 小于1时按CPU核数的一半计算，编码器本身也会使用多线程
+    @Value("${ffmpeg.job-pool.encode-concurrency:0}")
+    private int encodeConcurrency = 0;
+
+    @Value("${ffmpeg.job-pool.probe-concurrency-per-device:1}")
+    private int probeConcurrencyPerDevice = 1;
+
+    private final Map<String, ExecutorService> copyExecutors = new ConcurrentHashMap<>();
+    private final Map<String, ExecutorService> probeExecutors = new ConcurrentHashMap<>();
+    private final Map<String, String> deviceCache = new ConcurrentHashMap<>();
+    private volatile ExecutorService encodeExecutor;
+
+    /**
+     * 提交FFmpeg任务
+     * @param type 任务类型
+     * @param inputPath 输入文件路径，流复制和ffprobe扫描任务按其所在磁盘设备排队
+     * @param job 执行FFmpeg并返回结果的任务
+     * @return 任务结果，在任务开始前取消时任务不会执行
+     */
+    public <T> CompletableFuture<T> submit(JobType type, String inputPath, Callable<T> job) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        executorFor(type, inputPath).execute(() -> {
+            if (result.isDone()) {
+                return;
+            }
+            try {
+                result.complete(job.call());
+            } catch (Throwable e) {
+                result.completeExceptionally(e);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * 重新编码任务的并发数
+     */
+    public int getEncodeConcurrency() {
+        return encodeConcurrency > 0 ? encodeConcurrency
+            : Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+    }
+
+    public int getCopyConcurrencyPerDevice() {
+        return Math.max(1, copyConcurrencyPerDevice);
+    }
+
+    public int getProbeConcurrencyPerDevice() {
+        return Math.max(1, probeConcurrencyPerDevice);
+    }
+
+    private ExecutorService executorFor(JobType type, String inputPath) {
+        if (type == JobType.ENCODE) {
+            ExecutorService executor = encodeExecutor;
+            if (executor == null) {
+                synchronized (this) {
+                    if (encodeExecutor == null) {
+                        encodeExecutor = newExecutor("ffmpeg-encode", getEncodeConcurrency());
+                    }
+                    executor = encodeExecutor;
+                }
+            }
+            return executor;
+        }
+        String device = deviceOf(inputPath);
+        if (type == JobType.PROBE) {
+            return probeExecutors.computeIfAbsent(device, d -> {
+                log.info("FFprobe queue for device {}: {} concurrent jobs", d, getProbeConcurrencyPerDevice());
+                return newExecutor("ffmpeg-probe-" + d, getProbeConcurrencyPerDevice());
+            });
+        }
+        return copyExecutors.computeIfAbsent(device, d -> {
+            log.info("FFmpeg copy queue for device {}: {} concurrent jobs", d, getCopyConcurrencyPerDevice());
+            return newExecutor("ffmpeg-copy-" + d, getCopyConcurrencyPerDevice());
+        });
+    }
+
+    /**
+     * 文件所在的磁盘设备，文件不存在时取最近的已存在上级目录
+     */
+    String deviceOf(String path) {
+        if (path == null) {
+            return DEFAULT_DEVICE;
+        }
+        File file = new File(path).getAbsoluteFile();
+        while (file != null && !file.exists()) {
+            file = file.getParentFile();
+        }
+        if (file == null) {
+            return DEFAULT_DEVICE;
+        }
+        String directory = file.isDirectory() ? file.getPath() : file.getParent();
+        return deviceCache.computeIfAbsent(directory, d -> {
+            try {
+                return Files.getFileStore(new File(d).toPath()).name();
+            } catch (IOException e) {
+                log.debug("Failed to resolve file store for {}: {}", d, e.getMessage());
+                return DEFAULT_DEVICE;
+            }
+        });
+    }
+
+    private static ExecutorService newExecutor(String name, int threads) {
+        AtomicInteger counter = new AtomicInteger();
+        return Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, name + "-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        copyExecutors.values().forEach(ExecutorService::shutdownNow);
+        probeExecutors.values().forEach(ExecutorService::shutdownNow);
+        if (encodeExecutor != null) {
+            encodeExecutor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package com.tbw.cut.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 单次读取的视频分段器
+ * 使用FFmpeg segment muxer流复制切分整个文件，分段边界对齐到目标时长之后的第一个关键帧。
+ * 每个分段关闭时FFmpeg把文件名写入分段列表（标准输出），据此按顺序得到分段文件并立即回调，
+ * 不依赖扫描输出目录
+ */
+@Slf4j
+@Component
+public class FFmpegSegmenter {
+
+    @Value("${ffmpeg.path:/opt/homebrew/bin/ffmpeg}")
+    private String ffmpegPath;
+
+    // 分段目标时长（秒）
+    @Value("${ffmpeg.segment.duration-seconds:133}")
+    private double segmentDurationSeconds = 133;
+
+    // 分段目标大小（MB），大于0时按平均码率换算为时长，优先于目标时长
+    @Value("${ffmpeg.segment.target-size-mb:0}")
+    private long targetSizeMb = 0;
+
+    @Value("${ffmpeg.segment.timeout-minutes:60}")
+    private long timeoutMinutes = 60;
+
+    /**
+     * 切分视频
+     * @param inputPath 输入文件
+     * @param durationSeconds 输入时长（秒），按目标大小分段时用于计算码率
+     * @param outputDir 输出目录
+     * @param namePrefix 分段文件名前缀，分段命名为 {前缀}part_001.mp4
+     * @param onSegment 每个分段文件关闭后的回调，参数为分段序号（从1开始）和文件路径
+     * @return 按顺序排列的分段文件路径
+     */
+    public List<String> segment(String inputPath, double durationSeconds, File outputDir, String namePrefix,
+                                SegmentListener onSegment) throws IOException, InterruptedException {
+        double targetSeconds = targetSeconds(new File(inputPath).length(), durationSeconds);
+        // 输出模板中的 % 是序号占位符，目录和前缀中的 % 需要写成 %%
+        String pattern = escapePercent(new File(outputDir, namePrefix).getAbsolutePath()) + "part_%03d.mp4";
+
+        List<String> command = new ArrayList<>();
+        command.add(ffmpegPath);
+        command.add("-hide_banner");
+        command.add("-nostats");
+        command.add("-i");
+        command.add(inputPath);
+        command.add("-c");
+        command.add("copy");
+        command.add("-f");
+        command.add("segment");
+        command.add("-segment_time");
+        command.add(String.format(Locale.ROOT, "%.3f", targetSeconds));
+        command.add("-segment_start_number");
+        command.add("1");
+        command.add("-reset_timestamps");
+        command.add("1");
+        command.add("-segment_list");
+        command.add("pipe:1");
+        command.add("-segment_list_type");
+        command.add("flat");
+        command.add("-y");
+        command.add(pattern);
+
+        log.info("Segmenting {} into ~{}s parts: {}", inputPath, String.format(Locale.ROOT, "%.1f", targetSeconds),
+            String.join(" ", command));
+
+        Process process = new ProcessBuilder(command).start();
+        Thread stderrDrainer = drain(process.getErrorStream(), "ffmpeg-segment-stderr");
+
+        List<String> segments = new ArrayList<>();
+        Thread listReader = new Thread(() -> {
+            try (BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String name = line.trim();
+                    if (name.isEmpty()) {
+                        continue;
+                    }
+                    String path = new File(outputDir, name).getAbsolutePath();
+                    int index;
+                    synchronized (segments) {
+                        segments.add(path);
+                        index = segments.size();
+                    }
+                    onSegment.onSegment(index, path);
+                }
+            } catch (IOException e) {
+                log.warn("Failed to read segment list: {}", e.getMessage());
+            }
+        }, "ffmpeg-segment-list");
+        listReader.setDaemon(true);
+        listReader.start();
+
+        if (!process.waitFor(timeoutMinutes, TimeUnit.MINUTES)) {
+            process.destroyForcibly();
+            throw new IOException("ffmpeg segmentation timed out after " + timeoutMinutes + " minutes: " + inputPath);
+        }
+        listReader.join(TimeUnit.SECONDS.toMillis(10));
+        stderrDrainer.join(TimeUnit.SECONDS.toMillis(10));
+
+        if (process.exitValue() != 0) {
+            throw new IOException("ffmpeg segmentation failed with exit code " + process.exitValue() + ": " + inputPath);
+        }
+        synchronized (segments) {
+            for (String segment : segments) {
+                if (!new File(segment).isFile()) {
+                    throw new IOException("Segment listed by ffmpeg is missing: " + segment);
+                }
+            }
+            return Collections.unmodifiableList(new ArrayList<>(segments));
+        }
+    }
+
+    private static String escapePercent(String value) {
+        return value.replace("%", "%%");
+    }
+
+    /**
+     * 分段目标时长：设置了目标大小时按平均码率换算，否则使用配置的目标时长
+     */
+    public double targetSeconds(long inputBytes, double durationSeconds) {
+        if (targetSizeMb > 0 && inputBytes > 0 && durationSeconds > 0) {
+            double bytesPerSecond = inputBytes / durationSeconds;
+            return Math.max(1.0, targetSizeMb * 1024.0 * 1024.0 / bytesPerSecond);
+        }
+        return segmentDurationSeconds;
+    }
+
+    private static Thread drain(InputStream stream, String name) {
+        Thread thread = new Thread(() -> {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(stream, StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    log.debug("FFmpeg stderr: {}", line);
+                }
+            } catch (IOException e) {
+                log.debug("FFmpeg stderr closed: {}", e.getMessage());
+            }
+        }, name);
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * 分段完成回调
+     */
+    @FunctionalInterface
+    public interface SegmentListener {
+        void onSegment(int index, String path);
+    }
+}
@@ -0,0 +1,313 @@
+package com.tbw.cut.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 智能渲染剪辑
+ * 剪辑起点不在关键帧上时，只按原视频的编码参数重新编码起点到下一个关键帧之间的画面，
+ * 其余部分流复制，两段视频以MPEG-TS拼接（参数集随码流携带），再与从起点精确截取并重新编码的音频一起封装。
+ * 得到逐帧精确、音画同步的剪辑，耗时接近流复制。
+ * 关键帧索引中的时间相对文件起始时间，与 -ss 的时间轴一致；输出时长与剪辑区间不符时视为失败
+ */
+@Slf4j
+@Component
+public class FFmpegSmartRenderer {
+
+    private static final List<String> X264_PROFILES = Arrays.asList(
+        "baseline", "main", "high", "high10", "high422", "high444");
+    private static final List<String> X265_PROFILES = Arrays.asList("main", "main10", "mainstillpicture");
+
+    // 流复制的 -ss 定位到不晚于该时间的最后一个关键帧；定位点比索引中的关键帧时间多出该值（远小于一帧），
+    // 时间格式化的舍入不会让定位落到前一个关键帧而重复整个GOP
+    private static final double KEYFRAME_SEEK_EPSILON = 0.001;
+
+    @Value("${ffmpeg.path:/opt/homebrew/bin/ffmpeg}")
+    private String ffmpegPath;
+
+    @Value("${app.ffprobe-path:/opt/homebrew/bin/ffprobe}")
+    private String ffprobePath;
+
+    @Value("${ffmpeg.smart-render.enabled:true}")
+    private boolean enabled = true;
+
+    // 重新编码片段的质量参数，片段很短，使用较高质量以免与流复制部分有明显差异
+    @Value("${ffmpeg.smart-render.crf:18}")
+    private int crf = 18;
+
+    @Value("${ffmpeg.smart-render.preset:medium}")
+    private String preset = "medium";
+
+    // 音频从剪辑起点解码截取后重新编码，流复制的音频只能从音频包边界开始，会与视频错开
+    @Value("${ffmpeg.smart-render.audio-codec:aac}")
+    private String audioCodec = "aac";
+
+    @Value("${ffmpeg.smart-render.audio-bitrate:192k}")
+    private String audioBitrate = "192k";
+
+    @Value("${ffmpeg.smart-render.timeout-minutes:10}")
+    private long timeoutMinutes = 10;
+
+    @Value("${ffmpeg.smart-render.duration-tolerance-seconds:0.1}")
+    private double durationTolerance = 0.1;
+
+    /**
+     * 是否可以对该视频智能渲染：已启用且视频编码有对应的编码器
+     */
+    public boolean supports(KeyframeIndex index) {
+        return enabled && index != null && index.getStreamInfo() != null
+            && encoderFor(index.getStreamInfo().getCodecName()) != null;
+    }
+
+    /**
+     * 按剪辑计划生成剪辑文件
+     * @param inputPath 源视频
+     * @param index 源视频的关键帧索引
+     * @param plan 剪辑计划
+     * @param output 输出文件
+     */
+    public void render(String inputPath, KeyframeIndex index, KeyframeIndex.ClipPlan plan, File output)
+            throws IOException, InterruptedException {
+        KeyframeIndex.StreamInfo stream = index.getStreamInfo();
+        String encoder = encoderFor(stream.getCodecName());
+        if (!enabled || encoder == null) {
+            throw new IOException("Smart render is not supported for codec " + stream.getCodecName());
+        }
+
+        double start = plan.getRequestedStart();
+        double end = plan.getRequestedEnd();
+        double headEnd = Math.min(plan.getNextKeyframe(), end);
+        // 有流复制部分时，重新编码部分在关键帧之前结束，关键帧那一帧只出现在流复制部分
+        double headDuration = headEnd < end ? headEnd - start - KEYFRAME_SEEK_EPSILON : end - start;
+        File head = new File(output.getPath() + ".head.ts");
+        File tail = new File(output.getPath() + ".tail.ts");
+        File parts = new File(output.getPath() + ".parts.txt");
+        try {
+            // 起点到下一个关键帧：解码定位到起点，按原视频参数重新编码
+            List<String> command = new ArrayList<>();
+            command.add(ffmpegPath);
+            command.add("-hide_banner");
+            command.add("-nostats");
+            command.add("-ss");
+            command.add(seconds(start));
+            command.add("-i");
+            command.add(inputPath);
+            command.add("-t");
+            command.add(seconds(headDuration));
+            command.add("-map");
+            command.add("0:v:0");
+            command.add("-an");
+            command.add("-sn");
+            command.add("-dn");
+            command.add("-c:v");
+            command.add(encoder);
+            String profile = profileFor(encoder, stream.getProfile());
+            if (profile != null) {
+                command.add("-profile:v");
+                command.add(profile);
+            }
+            if (stream.getPixelFormat() != null) {
+                command.add("-pix_fmt");
+                command.add(stream.getPixelFormat());
+            }
+            if (stream.getFrameRate() != null && !stream.getFrameRate().startsWith("0")) {
+                command.add("-r");
+                command.add(stream.getFrameRate());
+            }
+            command.add("-crf");
+            command.add(String.valueOf(crf));
+            command.add("-preset");
+            command.add(preset);
+            command.add("-f");
+            command.add("mpegts");
+            command.add("-y");
+            command.add(head.getPath());
+            run(command);
+
+            StringBuilder partList = new StringBuilder("file '").append(escape(head.getPath())).append("'\n");
+            if (headEnd < end) {
+                // 下一个关键帧到终点：直接流复制，从该关键帧开始输出
+                command = new ArrayList<>();
+                command.add(ffmpegPath);
+                command.add("-hide_banner");
+                command.add("-nostats");
+                command.add("-ss");
+                command.add(seconds(headEnd + KEYFRAME_SEEK_EPSILON));
+                command.add("-i");
+                command.add(inputPath);
+                command.add("-t");
+                command.add(seconds(end - headEnd));
+                command.add("-map");
+                command.add("0:v:0");
+                command.add("-an");
+                command.add("-sn");
+                command.add("-dn");
+                command.add("-c");
+                command.add("copy");
+                command.add("-f");
+                command.add("mpegts");
+                command.add("-y");
+                command.add(tail.getPath());
+                run(command);
+                partList.append("file '").append(escape(tail.getPath())).append("'\n");
+            }
+            Files.write(parts.toPath(), partList.toString().getBytes(StandardCharsets.UTF_8));
+
+            // 拼接视频；音频输入在起点精确定位（解码后丢弃起点之前的采样）并重新编码，
+            // 与从0开始的拼接视频对齐
+            command = new ArrayList<>();
+            command.add(ffmpegPath);
+            command.add("-hide_banner");
+            command.add("-nostats");
+            command.add("-f");
+            command.add("concat");
+            command.add("-safe");
+            command.add("0");
+            command.add("-i");
+            command.add(parts.getPath());
+            command.add("-ss");
+            command.add(seconds(start));
+            command.add("-i");
+            command.add(inputPath);
+            command.add("-t");
+            command.add(seconds(end - start));
+            command.add("-map");
+            command.add("0:v:0");
+            command.add("-map");
+            command.add("1:a:0?");
+            command.add("-c:v");
+            command.add("copy");
+            command.add("-c:a");
+            command.add(audioCodec);
+            command.add("-b:a");
+            command.add(audioBitrate);
+            String timescale = timescaleOf(stream.getTimeBase());
+            if (timescale != null) {
+                command.add("-video_track_timescale");
+                command.add(timescale);
+            }
+            command.add("-y");
+            command.add(output.getPath());
+            run(command);
+
+            if (!output.isFile() || output.length() == 0) {
+                throw new IOException("Smart render produced no output: " + output);
+            }
+            double duration = probeDuration(output);
+            if (Double.isNaN(duration) || Math.abs(duration - (end - start)) > durationTolerance) {
+                output.delete();
+                throw new IOException("Smart render produced " + seconds(duration) + "s instead of "
+                    + seconds(end - start) + "s: " + output);
+            }
+            log.info("Smart rendered {} [{}s, {}s): re-encoded {}s up to keyframe, copied {}s", inputPath,
+                seconds(start), seconds(end), seconds(headEnd - start), seconds(end - headEnd));
+        } finally {
+            head.delete();
+            tail.delete();
+            parts.delete();
+        }
+    }
+
+    /**
+     * 与原视频编码格式对应的编码器，不支持时返回null
+     */
+    static String encoderFor(String codecName) {
+        if ("h264".equals(codecName)) {
+            return "libx264";
+        }
+        if ("hevc".equals(codecName)) {
+            return "libx265";
+        }
+        return null;
+    }
+
+    /**
+     * ffprobe输出的profile（如 "High"、"Constrained Baseline"、"Main 10"）转换为编码器参数，无法对应时返回null
+     */
+    static String profileFor(String encoder, String profile) {
+        if (profile == null) {
+            return null;
+        }
+        String name = profile.toLowerCase(Locale.ROOT).replace(" ", "").replace(":", "");
+        if (name.startsWith("constrained")) {
+            name = name.substring("constrained".length());
+        }
+        if (name.startsWith("high444")) {
+            name = "high444";
+        }
+        List<String> supported = "libx264".equals(encoder) ? X264_PROFILES : X265_PROFILES;
+        return supported.contains(name) ? name : null;
+    }
+
+    private static String timescaleOf(String timeBase) {
+        if (timeBase == null || !timeBase.startsWith("1/")) {
+            return null;
+        }
+        String denominator = timeBase.substring(2);
+        return denominator.matches("\\d+") ? denominator : null;
+    }
+
+    private static String seconds(double value) {
+        return String.format(Locale.ROOT, "%.6f", value);
+    }
+
+    private static String escape(String path) {
+        return path.replace("'", "'\\''");
+    }
+
+    /**
+     * 读取输出文件的时长（秒），失败时返回NaN
+     */
+    private double probeDuration(File file) throws InterruptedException {
+        List<String> command = Arrays.asList(ffprobePath, "-v", "error", "-show_entries", "format=duration",
+            "-of", "default=noprint_wrappers=1:nokey=1", file.getPath());
+        try {
+            Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+            String value;
+            try (BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+                value = reader.readLine();
+            }
+            if (!process.waitFor(1, TimeUnit.MINUTES)) {
+                process.destroyForcibly();
+                return Double.NaN;
+            }
+            return process.exitValue() == 0 && value != null ? Double.parseDouble(value.trim()) : Double.NaN;
+        } catch (IOException | NumberFormatException e) {
+            log.warn("Failed to read duration of {}: {}", file, e.getMessage());
+            return Double.NaN;
+        }
+    }
+
+    private void run(List<String> command) throws IOException, InterruptedException {
+        log.debug("Executing smart render command: {}", String.join(" ", command));
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                log.debug("FFmpeg output: {}", line);
+            }
+        }
+        if (!process.waitFor(timeoutMinutes, TimeUnit.MINUTES)) {
+            process.destroyForcibly();
+            throw new IOException("ffmpeg smart render timed out: " + String.join(" ", command));
+        }
+        if (process.exitValue() != 0) {
+            throw new IOException("ffmpeg smart render failed with exit code " + process.exitValue());
+        }
+    }
+}
@@ -147,7 +147,7 @@ public class FFmpegUtil {
                 } catch (IOException | InterruptedException e) {
                     throw new RuntimeException("Duration detection failed", e);
                 }
-            }, "get-duration-" + videoUrl.hashCode()).join();
+            }, "get-duration", videoUrl).join();
         } catch (Exception e) {
             log.error("Failed to get video duration after all retries: {}", videoUrl, e);
             return tryFallbackDurationDetection(videoUrl);
@@ -371,7 +371,7 @@ public class FFmpegUtil {
                     cleanupPartialFile(outputPath);
                     throw new RuntimeException("Download failed", e);
                 }
-            }, "download-" + outputPath.hashCode()).join();
+            }, "download", videoUrl).join();
         } catch (Exception e) {
             log.error("Failed to download video after all retries: {}", videoUrl, e);
             cleanupPartialFile(outputPath);
@@ -0,0 +1,367 @@
+package com.tbw.cut.utils;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * 视频文件的关键帧索引
+ * 记录视频流每个关键帧的时间戳和字节位置、视频包总数、时长以及视频流的编码参数。
+ * 关键帧时间相对于文件的起始时间（start_time），与FFmpeg -ss 的时间轴一致。
+ * 剪辑前据此把剪辑起点对齐到关键帧、估算输出大小和字节范围、判断能否直接流复制，不需要启动任何进程
+ */
+public class KeyframeIndex {
+
+    private static final int MAGIC = 0x4B46494E;
+    private static final int VERSION = 3;
+
+    private final String filePath;
+    private final long fileSize;
+    private final long lastModified;
+    private final double startTime;
+    private final double duration;
+    private final int packetCount;
+    private final double[] keyframeTimes;
+    private final long[] keyframePositions;
+    private final StreamInfo streamInfo;
+
+    /**
+     * @param startTime 文件的起始时间（秒），即容器中第一个时间戳
+     * @param keyframeTimes 关键帧相对起始时间的时间（秒），升序
+     * @param keyframePositions 关键帧在文件中的字节位置，未知时为-1
+     * @param streamInfo 视频流编码参数，未知时为null
+     */
+    public KeyframeIndex(String filePath, long fileSize, long lastModified, double startTime, double duration,
+                         int packetCount, double[] keyframeTimes, long[] keyframePositions, StreamInfo streamInfo) {
+        if (keyframeTimes.length != keyframePositions.length) {
+            throw new IllegalArgumentException("Keyframe times and positions differ in length");
+        }
+        this.filePath = filePath;
+        this.fileSize = fileSize;
+        this.lastModified = lastModified;
+        this.startTime = startTime;
+        this.duration = duration;
+        this.packetCount = packetCount;
+        this.keyframeTimes = keyframeTimes;
+        this.keyframePositions = keyframePositions;
+        this.streamInfo = streamInfo;
+    }
+
+    /**
+     * 索引是否对应文件的当前内容（路径、大小和修改时间一致）
+     */
+    public boolean matches(File file) {
+        return file.getAbsolutePath().equals(filePath)
+            && file.length() == fileSize
+            && file.lastModified() == lastModified;
+    }
+
+    public String getFilePath() {
+        return filePath;
+    }
+
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    /**
+     * 文件的起始时间（秒），索引中的时间都已减去该值
+     */
+    public double getStartTime() {
+        return startTime;
+    }
+
+    public double getDuration() {
+        return duration;
+    }
+
+    public int getPacketCount() {
+        return packetCount;
+    }
+
+    public int getKeyframeCount() {
+        return keyframeTimes.length;
+    }
+
+    public StreamInfo getStreamInfo() {
+        return streamInfo;
+    }
+
+    /**
+     * 不晚于指定时间的最后一个关键帧时间，没有时返回0
+     */
+    public double keyframeAtOrBefore(double seconds) {
+        int index = indexAtOrBefore(seconds);
+        return index < 0 ? 0 : keyframeTimes[index];
+    }
+
+    /**
+     * 不早于指定时间的第一个关键帧时间，没有时返回时长
+     */
+    public double keyframeAtOrAfter(double seconds) {
+        int index = indexAtOrBefore(seconds);
+        if (index >= 0 && keyframeTimes[index] == seconds) {
+            return seconds;
+        }
+        return index + 1 < keyframeTimes.length ? keyframeTimes[index + 1] : duration;
+    }
+
+    /**
+     * 指定时间前后 tolerance 秒内是否有关键帧
+     */
+    public boolean isKeyframe(double seconds, double tolerance) {
+        int index = indexAtOrBefore(seconds + tolerance);
+        return index >= 0 && keyframeTimes[index] >= seconds - tolerance;
+    }
+
+    /**
+     * 从指定时间开始流复制时读取的起始字节位置（之前最后一个关键帧的位置）
+     */
+    public long byteOffsetAt(double seconds) {
+        int index = indexAtOrBefore(seconds);
+        return index < 0 ? 0 : positionOrEstimate(index);
+    }
+
+    /**
+     * 流复制 [start, end) 时读取的结束字节位置（end之后第一个关键帧的位置）
+     */
+    public long byteEndAt(double seconds) {
+        int index = indexAtOrBefore(seconds);
+        if (index >= 0 && keyframeTimes[index] == seconds) {
+            return positionOrEstimate(index);
+        }
+        return index + 1 < keyframeTimes.length ? positionOrEstimate(index + 1) : fileSize;
+    }
+
+    /**
+     * 生成剪辑计划
+     * @param start 剪辑起点（秒）
+     * @param end 剪辑终点（秒），不大于0时到文件结尾
+     * @param copyLeadInTolerance 起点与之前关键帧相差不超过该值（秒）时直接流复制
+     */
+    public ClipPlan planClip(double start, double end, double copyLeadInTolerance) {
+        double clipEnd = end > 0 ? Math.min(end, duration) : duration;
+        double copyStart = keyframeAtOrBefore(start);
+        double nextKeyframe = keyframeAtOrAfter(start);
+        long byteStart = byteOffsetAt(start);
+        long byteEnd = Math.max(byteStart, byteEndAt(clipEnd));
+        boolean copy = start - copyStart <= copyLeadInTolerance;
+        return new ClipPlan(start, clipEnd, copyStart, nextKeyframe, byteStart, byteEnd, copy);
+    }
+
+    private int indexAtOrBefore(double seconds) {
+        int index = Arrays.binarySearch(keyframeTimes, seconds);
+        return index >= 0 ? index : -index - 2;
+    }
+
+    private long positionOrEstimate(int index) {
+        long position = keyframePositions[index];
+        if (position >= 0) {
+            return position;
+        }
+        // 容器不提供字节位置时按平均码率估算
+        return duration > 0 ? Math.min(fileSize, (long) (fileSize * keyframeTimes[index] / duration)) : 0;
+    }
+
+    /**
+     * 写入紧凑二进制格式
+     */
+    public void writeTo(DataOutputStream out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeUTF(filePath);
+        out.writeLong(fileSize);
+        out.writeLong(lastModified);
+        out.writeDouble(startTime);
+        out.writeDouble(duration);
+        out.writeInt(packetCount);
+        out.writeInt(keyframeTimes.length);
+        for (int i = 0; i < keyframeTimes.length; i++) {
+            out.writeDouble(keyframeTimes[i]);
+            out.writeLong(keyframePositions[i]);
+        }
+        out.writeBoolean(streamInfo != null);
+        if (streamInfo != null) {
+            streamInfo.writeTo(out);
+        }
+    }
+
+    /**
+     * 读取 {@link #writeTo} 写入的索引
+     */
+    public static KeyframeIndex readFrom(DataInputStream in) throws IOException {
+        if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+            throw new IOException("Unsupported keyframe index format");
+        }
+        String filePath = in.readUTF();
+        long fileSize = in.readLong();
+        long lastModified = in.readLong();
+        double startTime = in.readDouble();
+        double duration = in.readDouble();
+        int packetCount = in.readInt();
+        int count = in.readInt();
+        double[] times = new double[count];
+        long[] positions = new long[count];
+        for (int i = 0; i < count; i++) {
+            times[i] = in.readDouble();
+            positions[i] = in.readLong();
+        }
+        StreamInfo streamInfo = in.readBoolean() ? StreamInfo.readFrom(in) : null;
+        return new KeyframeIndex(filePath, fileSize, lastModified, startTime, duration, packetCount, times, positions,
+            streamInfo);
+    }
+
+    /**
+     * 视频流编码参数，重新编码片段时据此匹配原视频
+     */
+    public static class StreamInfo {
+        private final String codecName;
+        private final String profile;
+        private final String pixelFormat;
+        private final int width;
+        private final int height;
+        private final String frameRate;
+        private final String timeBase;
+
+        /**
+         * @param frameRate 平均帧率，如 30000/1001
+         * @param timeBase 时间基，如 1/15360
+         */
+        public StreamInfo(String codecName, String profile, String pixelFormat, int width, int height,
+                          String frameRate, String timeBase) {
+            this.codecName = codecName;
+            this.profile = profile;
+            this.pixelFormat = pixelFormat;
+            this.width = width;
+            this.height = height;
+            this.frameRate = frameRate;
+            this.timeBase = timeBase;
+        }
+
+        public String getCodecName() {
+            return codecName;
+        }
+
+        public String getProfile() {
+            return profile;
+        }
+
+        public String getPixelFormat() {
+            return pixelFormat;
+        }
+
+        public int getWidth() {
+            return width;
+        }
+
+        public int getHeight() {
+            return height;
+        }
+
+        public String getFrameRate() {
+            return frameRate;
+        }
+
+        public String getTimeBase() {
+            return timeBase;
+        }
+
+        void writeTo(DataOutputStream out) throws IOException {
+            writeNullable(out, codecName);
+            writeNullable(out, profile);
+            writeNullable(out, pixelFormat);
+            out.writeInt(width);
+            out.writeInt(height);
+            writeNullable(out, frameRate);
+            writeNullable(out, timeBase);
+        }
+
+        static StreamInfo readFrom(DataInputStream in) throws IOException {
+            return new StreamInfo(readNullable(in), readNullable(in), readNullable(in), in.readInt(), in.readInt(),
+                readNullable(in), readNullable(in));
+        }
+
+        private static void writeNullable(DataOutputStream out, String value) throws IOException {
+            out.writeBoolean(value != null);
+            if (value != null) {
+                out.writeUTF(value);
+            }
+        }
+
+        private static String readNullable(DataInputStream in) throws IOException {
+            return in.readBoolean() ? in.readUTF() : null;
+        }
+    }
+
+    /**
+     * 剪辑计划
+     */
+    public static class ClipPlan {
+        private final double requestedStart;
+        private final double requestedEnd;
+        private final double copyStart;
+        private final double nextKeyframe;
+        private final long byteStart;
+        private final long byteEnd;
+        private final boolean copy;
+
+        ClipPlan(double requestedStart, double requestedEnd, double copyStart, double nextKeyframe,
+                 long byteStart, long byteEnd, boolean copy) {
+            this.requestedStart = requestedStart;
+            this.requestedEnd = requestedEnd;
+            this.copyStart = copyStart;
+            this.nextKeyframe = nextKeyframe;
+            this.byteStart = byteStart;
+            this.byteEnd = byteEnd;
+            this.copy = copy;
+        }
+
+        public double getRequestedStart() {
+            return requestedStart;
+        }
+
+        public double getRequestedEnd() {
+            return requestedEnd;
+        }
+
+        /** 流复制的实际起点：剪辑起点之前最后一个关键帧 */
+        public double getCopyStart() {
+            return copyStart;
+        }
+
+        /** 剪辑起点之后（含）第一个关键帧 */
+        public double getNextKeyframe() {
+            return nextKeyframe;
+        }
+
+        /** 流复制时起点之前多出的时长（秒） */
+        public double getLeadIn() {
+            return requestedStart - copyStart;
+        }
+
+        /** 从关键帧起点流复制到剪辑终点的时长（秒） */
+        public double getCopyDuration() {
+            return requestedEnd - copyStart;
+        }
+
+        public long getByteStart() {
+            return byteStart;
+        }
+
+        public long getByteEnd() {
+            return byteEnd;
+        }
+
+        /** 流复制的估算输出大小（字节） */
+        public long getEstimatedBytes() {
+            return byteEnd - byteStart;
+        }
+
+        /** 起点在关键帧上（或足够接近）可以直接流复制，否则需要重新编码起点处的画面 */
+        public boolean isCopy() {
+            return copy;
+        }
+    }
+}
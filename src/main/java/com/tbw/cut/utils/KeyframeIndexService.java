@@ -0,0 +1,285 @@
+package com.tbw.cut.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 关键帧索引服务
+ * 每个源视频只用ffprobe读取一次视频包的时间戳、字节位置和关键帧标记以及视频流编码参数，
+ * 时间戳减去文件的start_time后保存（FFmpeg的 -ss 也是相对start_time计算）。
+ * 结果按路径、大小和修改时间缓存在内存，并以二进制索引文件保存在索引目录，重启后直接读取
+ */
+@Slf4j
+@Component
+public class KeyframeIndexService {
+
+    private static final String INDEX_SUFFIX = ".kfi";
+
+    @Value("${app.ffprobe-path:/opt/homebrew/bin/ffprobe}")
+    private String ffprobePath;
+
+    @Value("${ffmpeg.keyframe-index.enabled:true}")
+    private boolean enabled = true;
+
+    @Value("${ffmpeg.keyframe-index.dir:./keyframe_index}")
+    private String indexDir = "./keyframe_index";
+
+    @Value("${ffmpeg.keyframe-index.timeout-minutes:10}")
+    private long timeoutMinutes = 10;
+
+    // 剪辑起点与之前关键帧相差不超过该值（秒）时直接流复制
+    @Value("${ffmpeg.keyframe-index.copy-lead-in-seconds:0.5}")
+    private double copyLeadInSeconds = 0.5;
+
+    private final Map<String, KeyframeIndex> cache = new ConcurrentHashMap<>();
+    private final Map<String, Object> buildLocks = new ConcurrentHashMap<>();
+
+    /**
+     * 获取视频文件的关键帧索引，没有有效索引时用ffprobe生成
+     * @return 关键帧索引，未启用、文件不存在或ffprobe失败时返回null
+     */
+    public KeyframeIndex getIndex(String videoPath) {
+        KeyframeIndex index = findIndex(videoPath);
+        if (index != null || !enabled || videoPath == null || !new File(videoPath).isFile()) {
+            return index;
+        }
+        File file = new File(videoPath).getAbsoluteFile();
+        synchronized (buildLocks.computeIfAbsent(file.getPath(), p -> new Object())) {
+            index = findIndex(videoPath);
+            if (index == null) {
+                index = build(file);
+                if (index != null) {
+                    cache.put(file.getPath(), index);
+                    save(index);
+                }
+            }
+        }
+        return index;
+    }
+
+    /**
+     * 只从内存或索引文件读取关键帧索引，不启动任何进程
+     * @return 有效索引，没有或文件已变化时返回null
+     */
+    public KeyframeIndex findIndex(String videoPath) {
+        if (!enabled || videoPath == null) {
+            return null;
+        }
+        File file = new File(videoPath).getAbsoluteFile();
+        if (!file.isFile()) {
+            return null;
+        }
+        KeyframeIndex index = cache.get(file.getPath());
+        if (index != null && index.matches(file)) {
+            return index;
+        }
+        index = load(file);
+        if (index != null) {
+            cache.put(file.getPath(), index);
+        } else {
+            cache.remove(file.getPath());
+        }
+        return index;
+    }
+
+    /**
+     * 按关键帧索引生成剪辑计划
+     * @param start 剪辑起点（秒）
+     * @param end 剪辑终点（秒），不大于0时到文件结尾
+     * @return 剪辑计划，没有可用索引时返回null
+     */
+    public KeyframeIndex.ClipPlan planClip(String videoPath, double start, double end) {
+        return planClip(getIndex(videoPath), start, end);
+    }
+
+    /**
+     * 按已获取的关键帧索引生成剪辑计划，不启动任何进程
+     * @return 剪辑计划，索引为null时返回null
+     */
+    public KeyframeIndex.ClipPlan planClip(KeyframeIndex index, double start, double end) {
+        return index == null ? null : index.planClip(start, end, copyLeadInSeconds);
+    }
+
+    private KeyframeIndex build(File file) {
+        List<String> command = new ArrayList<>();
+        command.add(ffprobePath);
+        command.add("-v");
+        command.add("error");
+        command.add("-select_streams");
+        command.add("v:0");
+        command.add("-show_entries");
+        command.add("packet=pts_time,pos,flags:format=start_time,duration"
+            + ":stream=codec_name,profile,pix_fmt,width,height,avg_frame_rate,time_base,start_time");
+        command.add("-of");
+        command.add("compact=p=0");
+        command.add(file.getPath());
+
+        long fileSize = file.length();
+        long lastModified = file.lastModified();
+        long startNanos = System.nanoTime();
+        try {
+            Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+            List<double[]> keyframes = new ArrayList<>();
+            int packetCount = 0;
+            double maxPts = 0;
+            double duration = -1;
+            double formatStart = Double.NaN;
+            double streamStart = Double.NaN;
+            KeyframeIndex.StreamInfo streamInfo = null;
+            try (BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    Map<String, String> fields = parseFields(line);
+                    if (fields.containsKey("flags")) {
+                        double pts = parseDouble(fields.get("pts_time"));
+                        if (Double.isNaN(pts)) {
+                            continue;
+                        }
+                        packetCount++;
+                        maxPts = Math.max(maxPts, pts);
+                        if (fields.get("flags").startsWith("K")) {
+                            double pos = parseDouble(fields.get("pos"));
+                            keyframes.add(new double[]{pts, Double.isNaN(pos) ? -1 : pos});
+                        }
+                    } else if (fields.containsKey("codec_name")) {
+                        streamInfo = new KeyframeIndex.StreamInfo(fields.get("codec_name"), fields.get("profile"),
+                            fields.get("pix_fmt"), parseInt(fields.get("width")), parseInt(fields.get("height")),
+                            fields.get("avg_frame_rate"), fields.get("time_base"));
+                        streamStart = parseDouble(fields.get("start_time"));
+                    } else if (fields.containsKey("duration")) {
+                        duration = parseDouble(fields.get("duration"));
+                        formatStart = parseDouble(fields.get("start_time"));
+                    }
+                }
+            }
+            if (!process.waitFor(timeoutMinutes, TimeUnit.MINUTES)) {
+                process.destroyForcibly();
+                log.warn("ffprobe keyframe scan timed out: {}", file);
+                return null;
+            }
+            if (process.exitValue() != 0 || packetCount == 0) {
+                log.warn("ffprobe keyframe scan failed with exit code {}: {}", process.exitValue(), file);
+                return null;
+            }
+
+            // 视频包按解码顺序输出，关键帧按时间排序；时间换算为相对文件起始时间
+            double startTime = !Double.isNaN(formatStart) ? formatStart : Double.isNaN(streamStart) ? 0 : streamStart;
+            keyframes.sort(Comparator.comparingDouble(k -> k[0]));
+            double[] times = new double[keyframes.size()];
+            long[] positions = new long[keyframes.size()];
+            for (int i = 0; i < times.length; i++) {
+                times[i] = keyframes.get(i)[0] - startTime;
+                positions[i] = (long) keyframes.get(i)[1];
+            }
+            KeyframeIndex index = new KeyframeIndex(file.getPath(), fileSize, lastModified, startTime,
+                Double.isNaN(duration) || duration <= 0 ? maxPts - startTime : duration, packetCount, times, positions,
+                streamInfo);
+            log.info("Indexed {} keyframes ({} packets, start time {}) in {} ms: {}", times.length, packetCount,
+                startTime, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos), file);
+            return index;
+        } catch (IOException e) {
+            log.warn("ffprobe keyframe scan failed: {}, {}", file, e.getMessage());
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    private KeyframeIndex load(File file) {
+        Path indexFile = indexFile(file.getPath());
+        if (!Files.exists(indexFile)) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(indexFile)))) {
+            KeyframeIndex index = KeyframeIndex.readFrom(in);
+            if (index.matches(file)) {
+                return index;
+            }
+            log.info("Keyframe index is stale, rebuilding: {}", file);
+        } catch (IOException e) {
+            log.warn("Failed to read keyframe index {}: {}", indexFile, e.getMessage());
+        }
+        try {
+            Files.deleteIfExists(indexFile);
+        } catch (IOException e) {
+            log.debug("Failed to delete keyframe index {}: {}", indexFile, e.getMessage());
+        }
+        return null;
+    }
+
+    private void save(KeyframeIndex index) {
+        Path file = indexFile(index.getFilePath());
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try {
+            Files.createDirectories(file.getParent());
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+                index.writeTo(out);
+            }
+            try {
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            log.warn("Failed to save keyframe index for {}: {}", index.getFilePath(), e.getMessage());
+        }
+    }
+
+    private Path indexFile(String filePath) {
+        String name = UUID.nameUUIDFromBytes(filePath.getBytes(StandardCharsets.UTF_8)).toString();
+        return Paths.get(indexDir).toAbsolutePath().resolve(name + INDEX_SUFFIX);
+    }
+
+    private static Map<String, String> parseFields(String line) {
+        Map<String, String> fields = new HashMap<>();
+        for (String field : line.split("\\|")) {
+            int separator = field.indexOf('=');
+            if (separator > 0) {
+                fields.put(field.substring(0, separator), field.substring(separator + 1));
+            }
+        }
+        return fields;
+    }
+
+    private static int parseInt(String value) {
+        try {
+            return value == null ? 0 : Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static double parseDouble(String value) {
+        try {
+            return value == null ? Double.NaN : Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            return Double.NaN;
+        }
+    }
+}
@@ -1,5 +1,7 @@
 package com.tbw.cut.websocket;
 
+import com.alibaba.fastjson.JSON;
+import com.alibaba.fastjson.JSONObject;
 import com.tbw.cut.entity.VideoDownload;
 import com.tbw.cut.service.VideoDownloadService;
 import lombok.extern.slf4j.Slf4j;
@@ -11,9 +13,11 @@ import org.springframework.web.socket.handler.TextWebSocketHandler;
 import org.springframework.web.socket.CloseStatus;
 
 import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.locks.ReentrantLock;
 
 @Slf4j
 @Component
@@ -22,11 +26,23 @@ public class DownloadProgressWebSocket extends TextWebSocketHandler {
     @Autowired
     private VideoDownloadService videoDownloadService;
     
-    // 存储所有活跃的WebSocket会话
-    private static final Map<String, WebSocketSession> sessions = new ConcurrentHashMap<>();
+    // ========== 推送分发 ==========
     
-    // 为每个会话添加锁，防止并发写入
-    private static final Map<String, ReentrantLock> sessionLocks = new ConcurrentHashMap<>();
+    // 合并发送间隔
+    private static final long FLUSH_INTERVAL_MS = 200;
+    
+    // 每个会话待发送的最大进度主题数，超出后丢弃新主题的进度
+    private static final int MAX_PENDING_TOPICS = 1000;
+    
+    // 每个会话待发送的最大状态变更数，超出后关闭会话
+    private static final int MAX_PENDING_TRANSITIONS = 1000;
+    
+    // 单帧发送超过该时长的会话视为慢消费者并关闭
+    private static final long SLOW_CONSUMER_TIMEOUT_MS = 30000;
+    
+    // 按订阅分发并合并进度，调用方只写内存，不等待网络发送；各会话的发送互不排队
+    private static final ProgressFanout fanout = new ProgressFanout(FLUSH_INTERVAL_MS, MAX_PENDING_TOPICS,
+        MAX_PENDING_TRANSITIONS, SLOW_CONSUMER_TIMEOUT_MS, ProgressFanout.newSendExecutor());
     
     // ========== 进度更新节流控制 ==========
     
@@ -109,8 +125,8 @@ public class DownloadProgressWebSocket extends TextWebSocketHandler {
      */
     private static void sendProgressUpdate(Long taskId, Integer progress) {
         String message = String.format("{\"type\":\"progress\",\"taskId\":%d,\"progress\":%d}", taskId, progress);
-        log.info("Broadcasting progress update: taskId={}, progress={}, sessions={}", taskId, progress, sessions.size());
-        broadcastMessage(message);
+        log.debug("Publishing progress update: taskId={}, progress={}", taskId, progress);
+        fanout.publishTask(taskId, "progress", message);
     }
     
     /**
@@ -121,7 +137,7 @@ public class DownloadProgressWebSocket extends TextWebSocketHandler {
     public static void broadcastStatusUpdate(Long taskId, Integer status) {
         String message = String.format("{\"type\":\"status\",\"taskId\":%d,\"status\":%d}", taskId, status);
         log.info("Broadcasting status update: taskId={}, status={}", taskId, status);
-        broadcastMessage(message);
+        fanout.publishTaskTransition(taskId, message);
         
         // 状态更新时清理节流数据（任务完成或失败时）
         if (status == 2 || status == 3) { // 完成或失败
@@ -151,99 +167,106 @@ public class DownloadProgressWebSocket extends TextWebSocketHandler {
     }
     
     /**
-     * 向所有客户端广播消息（线程安全版本）
-     * @param message 消息内容
+     * 推送工作流进度，只发送给订阅了该工作流的会话和未订阅的会话
+     * @param workflowId 工作流实例ID
+     * @param status 工作流状态
+     * @param progress 整体进度（0-1）
      */
-    private static void broadcastMessage(String message) {
-        log.info("Broadcasting message to {} sessions: {}", sessions.size(), message);
-        if (sessions.isEmpty()) {
-            log.warn("No active WebSocket sessions to broadcast to");
+    public static void broadcastWorkflowUpdate(String workflowId, String status, Double progress) {
+        if (workflowId == null) {
             return;
         }
-        
-        int successCount = 0;
-        int errorCount = 0;
-        
-        // 创建会话快照，避免并发修改异常
-        Map<String, WebSocketSession> sessionSnapshot = new ConcurrentHashMap<>(sessions);
-        
-        for (Map.Entry<String, WebSocketSession> entry : sessionSnapshot.entrySet()) {
-            String sessionId = entry.getKey();
-            WebSocketSession session = entry.getValue();
-            
-            // 获取会话锁
-            ReentrantLock sessionLock = sessionLocks.get(sessionId);
-            if (sessionLock == null) {
-                continue; // 会话可能已经被移除
-            }
-            
-            try {
-                // 尝试获取锁，避免长时间阻塞
-                if (sessionLock.tryLock()) {
-                    try {
-                        if (session.isOpen()) {
-                            session.sendMessage(new TextMessage(message));
-                            log.debug("Message sent to session: {}", sessionId);
-                            successCount++;
-                        } else {
-                            log.warn("Session is closed, removing: {}", sessionId);
-                            removeSession(sessionId);
-                            errorCount++;
-                        }
-                    } finally {
-                        sessionLock.unlock();
-                    }
-                } else {
-                    log.warn("Could not acquire lock for session: {}, skipping message", sessionId);
-                    errorCount++;
-                }
-            } catch (IOException e) {
-                log.error("Failed to send message to session: {}, removing session", sessionId, e);
-                removeSession(sessionId);
-                errorCount++;
-            } catch (Exception e) {
-                log.error("Unexpected error sending message to session: {}", sessionId, e);
-                errorCount++;
-            }
+        String message = String.format(Locale.ROOT, "{\"type\":\"workflow\",\"workflowId\":\"%s\",\"status\":\"%s\",\"progress\":%.4f}",
+            workflowId, status, progress != null ? progress : 0.0);
+        log.debug("Publishing workflow update: workflowId={}, status={}, progress={}", workflowId, status, progress);
+        // 运行中的更新只是进度，可以合并；其他状态（如完成）是状态变更，不能丢弃
+        if ("RUNNING".equals(status)) {
+            fanout.publishWorkflow(workflowId, "workflow", message);
+        } else {
+            fanout.publishWorkflowTransition(workflowId, message);
         }
-        
-        log.info("Message broadcast completed: {} successful, {} errors", successCount, errorCount);
     }
     
     /**
-     * 安全地移除会话
-     * @param sessionId 会话ID
+     * 处理客户端订阅消息
+     * 格式：{"action":"subscribe|unsubscribe","taskIds":[1,2],"workflowIds":["..."]}，{"action":"subscribe","all":true} 恢复接收全部更新
      */
-    private static void removeSession(String sessionId) {
-        sessions.remove(sessionId);
-        ReentrantLock lock = sessionLocks.remove(sessionId);
-        if (lock != null) {
-            // 确保锁被释放
-            if (lock.isHeldByCurrentThread()) {
-                lock.unlock();
+    @Override
+    protected void handleTextMessage(WebSocketSession session, TextMessage message) {
+        try {
+            JSONObject request = JSON.parseObject(message.getPayload());
+            String action = request.getString("action");
+            List<Long> taskIds = request.containsKey("taskIds")
+                ? request.getJSONArray("taskIds").toJavaList(Long.class) : Collections.emptyList();
+            List<String> workflowIds = request.containsKey("workflowIds")
+                ? request.getJSONArray("workflowIds").toJavaList(String.class) : Collections.emptyList();
+            
+            if ("subscribe".equals(action)) {
+                if (request.getBooleanValue("all")) {
+                    fanout.subscribeAll(session.getId());
+                } else {
+                    fanout.subscribe(session.getId(), taskIds, workflowIds);
+                }
+            } else if ("unsubscribe".equals(action)) {
+                fanout.unsubscribe(session.getId(), taskIds, workflowIds);
+            } else {
+                log.warn("Unknown WebSocket action from session {}: {}", session.getId(), action);
+                return;
             }
+            log.debug("WebSocket session {} {}: taskIds={}, workflowIds={}", session.getId(), action, taskIds, workflowIds);
+        } catch (Exception e) {
+            log.warn("Invalid WebSocket message from session {}: {}", session.getId(), message.getPayload(), e);
         }
     }
     
     @Override
     public void afterConnectionEstablished(WebSocketSession session) throws Exception {
         String sessionId = session.getId();
-        sessions.put(sessionId, session);
-        sessionLocks.put(sessionId, new ReentrantLock());
-        log.info("WebSocket连接已建立，会话ID: {}，当前会话数: {}", sessionId, sessions.size());
+        fanout.register(sessionId, new SessionSink(session));
+        log.info("WebSocket连接已建立，会话ID: {}，当前会话数: {}", sessionId, fanout.sessionCount());
     }
     
     @Override
     public void afterConnectionClosed(WebSocketSession session, CloseStatus status) throws Exception {
         String sessionId = session.getId();
-        removeSession(sessionId);
-        log.info("WebSocket连接已关闭，会话ID: {}，当前会话数: {}", sessionId, sessions.size());
+        fanout.unregister(sessionId);
+        log.info("WebSocket连接已关闭，会话ID: {}，当前会话数: {}", sessionId, fanout.sessionCount());
     }
     
     @Override
     public void handleTransportError(WebSocketSession session, Throwable exception) throws Exception {
         String sessionId = session.getId();
         log.error("WebSocket transport error for session: {}", sessionId, exception);
-        removeSession(sessionId);
+        fanout.unregister(sessionId);
+    }
+    
+    /**
+     * WebSocket会话的发送端，只由发送线程池调用，同一会话不会并发发送
+     */
+    private static class SessionSink implements ProgressFanout.FrameSink {
+        private final WebSocketSession session;
+        
+        SessionSink(WebSocketSession session) {
+            this.session = session;
+        }
+        
+        @Override
+        public boolean isOpen() {
+            return session.isOpen();
+        }
+        
+        @Override
+        public void send(String frame) throws IOException {
+            session.sendMessage(new TextMessage(frame));
+        }
+        
+        @Override
+        public void close() {
+            try {
+                session.close(CloseStatus.SESSION_NOT_RELIABLE);
+            } catch (IOException e) {
+                log.warn("Failed to close WebSocket session: {}", session.getId(), e);
+            }
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,311 @@
+package com.tbw.cut.websocket;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 进度推送分发器
+ * 客户端按任务ID或工作流ID订阅（未订阅的会话接收全部更新）。进度更新按主题合并：每个会话的待发送表只保留每个主题的最新值；
+ * 状态变更按发布顺序逐条保留，不合并也不丢弃。发送线程按固定间隔把待发送表打包成一帧。
+ * 每个会话同时只有一帧在发送，且各会话的发送互不排队，慢会话只占用自己的发送线程；
+ * 发送未完成时新的进度继续覆盖待发送表，即丢弃中间帧；发送方只写内存，不会因网络I/O阻塞
+ */
+@Slf4j
+class ProgressFanout {
+
+    /**
+     * 会话的发送端
+     */
+    interface FrameSink {
+        boolean isOpen();
+
+        void send(String frame) throws IOException;
+
+        void close();
+    }
+
+    private final int maxPendingPerSession;
+    private final int maxPendingTransitionsPerSession;
+    private final long slowConsumerTimeoutMs;
+    private final Executor sendExecutor;
+    private final ScheduledExecutorService flushScheduler;
+
+    private final Map<String, Subscriber> subscribers = new ConcurrentHashMap<>();
+    private final AtomicLong droppedUpdates = new AtomicLong();
+
+    /**
+     * 待发送的状态变更数与进度主题数使用同一上限
+     */
+    ProgressFanout(long flushIntervalMs, int maxPendingPerSession, long slowConsumerTimeoutMs, Executor sendExecutor) {
+        this(flushIntervalMs, maxPendingPerSession, maxPendingPerSession, slowConsumerTimeoutMs, sendExecutor);
+    }
+
+    /**
+     * @param flushIntervalMs 合并发送间隔，0表示不启动定时发送（由调用方执行 {@link #flush()}）
+     * @param maxPendingPerSession 每个会话待发送的最大进度主题数，超出后丢弃新主题的进度
+     * @param maxPendingTransitionsPerSession 每个会话待发送的最大状态变更数，超出后关闭会话（客户端重连后重新获取状态）
+     * @param slowConsumerTimeoutMs 单帧发送超过该时长的会话被关闭
+     * @param sendExecutor 执行网络发送的线程池，不同会话的发送不应互相排队
+     */
+    ProgressFanout(long flushIntervalMs, int maxPendingPerSession, int maxPendingTransitionsPerSession,
+                   long slowConsumerTimeoutMs, Executor sendExecutor) {
+        this.maxPendingPerSession = maxPendingPerSession;
+        this.maxPendingTransitionsPerSession = maxPendingTransitionsPerSession;
+        this.slowConsumerTimeoutMs = slowConsumerTimeoutMs;
+        this.sendExecutor = sendExecutor;
+        if (flushIntervalMs > 0) {
+            this.flushScheduler = Executors.newSingleThreadScheduledExecutor(daemonThreads("ws-progress-flush"));
+            this.flushScheduler.scheduleWithFixedDelay(this::flushSafely, flushIntervalMs, flushIntervalMs, TimeUnit.MILLISECONDS);
+        } else {
+            this.flushScheduler = null;
+        }
+    }
+
+    /**
+     * 创建默认的发送线程池：每个会话同时最多一帧在发送，发送任务不排队，线程数不超过会话数，
+     * 慢会话阻塞的只是自己的发送线程
+     */
+    static Executor newSendExecutor() {
+        return new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS,
+            new SynchronousQueue<>(), daemonThreads("ws-progress-send"));
+    }
+
+    void register(String sessionId, FrameSink sink) {
+        subscribers.put(sessionId, new Subscriber(sessionId, sink));
+    }
+
+    void unregister(String sessionId) {
+        subscribers.remove(sessionId);
+    }
+
+    /**
+     * 订阅任务或工作流，首次订阅后会话不再接收未订阅主题的更新
+     */
+    void subscribe(String sessionId, Collection<Long> taskIds, Collection<String> workflowIds) {
+        Subscriber subscriber = subscribers.get(sessionId);
+        if (subscriber != null) {
+            subscriber.taskIds.addAll(taskIds);
+            subscriber.workflowIds.addAll(workflowIds);
+            subscriber.all = false;
+        }
+    }
+
+    void unsubscribe(String sessionId, Collection<Long> taskIds, Collection<String> workflowIds) {
+        Subscriber subscriber = subscribers.get(sessionId);
+        if (subscriber != null) {
+            subscriber.taskIds.removeAll(taskIds);
+            subscriber.workflowIds.removeAll(workflowIds);
+        }
+    }
+
+    /**
+     * 恢复接收全部更新
+     */
+    void subscribeAll(String sessionId) {
+        Subscriber subscriber = subscribers.get(sessionId);
+        if (subscriber != null) {
+            subscriber.all = true;
+        }
+    }
+
+    /**
+     * 发布任务进度
+     * @param taskId 任务ID
+     * @param type 更新类型，同一任务同一类型的更新互相覆盖
+     * @param update 更新内容（JSON对象）
+     */
+    void publishTask(Long taskId, String type, String update) {
+        String topic = type + ":" + taskId;
+        for (Subscriber subscriber : subscribers.values()) {
+            if (subscriber.all || subscriber.taskIds.contains(taskId)) {
+                subscriber.offer(topic, update);
+            }
+        }
+    }
+
+    /**
+     * 发布任务状态变更，按顺序逐条发送，不合并也不丢弃
+     */
+    void publishTaskTransition(Long taskId, String update) {
+        for (Subscriber subscriber : subscribers.values()) {
+            if (subscriber.all || subscriber.taskIds.contains(taskId)) {
+                subscriber.offerTransition(update);
+            }
+        }
+    }
+
+    /**
+     * 发布工作流进度
+     */
+    void publishWorkflow(String workflowId, String type, String update) {
+        String topic = type + ":" + workflowId;
+        for (Subscriber subscriber : subscribers.values()) {
+            if (subscriber.all || subscriber.workflowIds.contains(workflowId)) {
+                subscriber.offer(topic, update);
+            }
+        }
+    }
+
+    /**
+     * 发布工作流状态变更，按顺序逐条发送，不合并也不丢弃
+     */
+    void publishWorkflowTransition(String workflowId, String update) {
+        for (Subscriber subscriber : subscribers.values()) {
+            if (subscriber.all || subscriber.workflowIds.contains(workflowId)) {
+                subscriber.offerTransition(update);
+            }
+        }
+    }
+
+    /**
+     * 把每个会话的待发送更新打包为一帧交给发送线程池，发送中的会话本轮跳过
+     */
+    void flush() {
+        long now = System.currentTimeMillis();
+        for (Subscriber subscriber : subscribers.values()) {
+            if (!subscriber.sink.isOpen()) {
+                unregister(subscriber.sessionId);
+                continue;
+            }
+            if (subscriber.overflowed) {
+                log.warn("Closing slow WebSocket session {}: more than {} status updates pending",
+                    subscriber.sessionId, maxPendingTransitionsPerSession);
+                unregister(subscriber.sessionId);
+                subscriber.sink.close();
+                continue;
+            }
+            long sendStartedAt = subscriber.sendStartedAt;
+            if (sendStartedAt > 0) {
+                if (now - sendStartedAt > slowConsumerTimeoutMs) {
+                    log.warn("Closing slow WebSocket session {}: frame pending for {} ms", subscriber.sessionId, now - sendStartedAt);
+                    unregister(subscriber.sessionId);
+                    subscriber.sink.close();
+                }
+                continue;
+            }
+            String frame = subscriber.drainFrame();
+            if (frame == null) {
+                continue;
+            }
+            subscriber.sendStartedAt = now;
+            sendExecutor.execute(() -> send(subscriber, frame));
+        }
+    }
+
+    int sessionCount() {
+        return subscribers.size();
+    }
+
+    long getDroppedUpdates() {
+        return droppedUpdates.get();
+    }
+
+    void shutdown() {
+        if (flushScheduler != null) {
+            flushScheduler.shutdownNow();
+        }
+    }
+
+    private void send(Subscriber subscriber, String frame) {
+        try {
+            subscriber.sink.send(frame);
+        } catch (Exception e) {
+            log.error("Failed to send progress frame to session: {}, removing session", subscriber.sessionId, e);
+            unregister(subscriber.sessionId);
+        } finally {
+            subscriber.sendStartedAt = 0;
+        }
+    }
+
+    private void flushSafely() {
+        try {
+            flush();
+        } catch (Exception e) {
+            log.error("Failed to flush progress updates", e);
+        }
+    }
+
+    private static ThreadFactory daemonThreads(String prefix) {
+        AtomicInteger counter = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, prefix + "-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * 单个会话的订阅和待发送更新
+     */
+    private class Subscriber {
+        private final String sessionId;
+        private final FrameSink sink;
+        private final Set<Long> taskIds = ConcurrentHashMap.newKeySet();
+        private final Set<String> workflowIds = ConcurrentHashMap.newKeySet();
+        private volatile boolean all = true;
+
+        // 主题 -> 最新更新，按首次出现顺序发送；状态变更使用各自唯一的键，不会被覆盖
+        private Map<String, String> pending = new LinkedHashMap<>();
+        private int pendingTopics;
+        private int pendingTransitions;
+        private long transitionSeq;
+        private volatile boolean overflowed;
+        private volatile long sendStartedAt;
+
+        Subscriber(String sessionId, FrameSink sink) {
+            this.sessionId = sessionId;
+            this.sink = sink;
+        }
+
+        synchronized void offer(String topic, String update) {
+            if (pending.put(topic, update) == null) {
+                if (pendingTopics >= maxPendingPerSession) {
+                    pending.remove(topic);
+                    droppedUpdates.incrementAndGet();
+                    return;
+                }
+                pendingTopics++;
+            }
+        }
+
+        /**
+         * 状态变更不丢弃：超出上限时标记会话，由下一次flush关闭
+         */
+        synchronized void offerTransition(String update) {
+            if (pendingTransitions >= maxPendingTransitionsPerSession) {
+                overflowed = true;
+                return;
+            }
+            pending.put("#" + transitionSeq++, update);
+            pendingTransitions++;
+        }
+
+        synchronized String drainFrame() {
+            if (pending.isEmpty()) {
+                return null;
+            }
+            List<String> updates = new ArrayList<>(pending.values());
+            pending = new LinkedHashMap<>();
+            pendingTopics = 0;
+            pendingTransitions = 0;
+            return "{\"type\":\"batch\",\"updates\":[" + String.join(",", updates) + "]}";
+        }
+    }
+}
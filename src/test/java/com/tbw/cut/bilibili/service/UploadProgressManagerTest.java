@@ -0,0 +1,174 @@
+package com.tbw.cut.bilibili.service;
+
+import com.alibaba.fastjson.JSONArray;
+import com.alibaba.fastjson.JSONObject;
+import com.tbw.cut.entity.UploadProgress;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 上传进度管理器测试
+ */
+class UploadProgressManagerTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void testChunkProgressSurvivesRestart() throws Exception {
+        File video = createVideo();
+        UploadProgressManager before = newManager();
+        UploadProgress progress = before.startUpload(video, 5);
+        before.setUploadMetadata(progress, preUploadData(), postVideoMeta("upload-1"));
+        before.markChunkCompleted(progress, 0);
+        before.markChunkCompleted(progress, 3);
+
+        // 新的管理器模拟进程重启
+        UploadProgressManager after = newManager();
+        UploadProgress resumable = after.findResumableUpload(video);
+        assertNotNull(resumable);
+        assertEquals("upload-1", resumable.getPostVideoMeta().getString("upload_id"));
+        assertEquals("//upos-cs-upcdnbda2.bilivideo.com", resumable.getPreUploadData().getString("endpoint"));
+
+        UploadProgress restored = after.startUpload(video, 5);
+        assertEquals(2, restored.getCompletedChunks());
+        assertTrue(restored.isChunkCompleted(0));
+        assertTrue(restored.isChunkCompleted(3));
+        assertEquals(1, restored.getNextChunkIndex());
+    }
+
+    @Test
+    void testChangedFileOrExpiredSessionIsNotResumed() throws Exception {
+        File video = createVideo();
+        UploadProgressManager manager = newManager();
+        UploadProgress progress = manager.startUpload(video, 5);
+        manager.setUploadMetadata(progress, preUploadData(), postVideoMeta("upload-1"));
+
+        // 文件内容变化后会话作废
+        Files.write(video.toPath(), new byte[2048]);
+        assertNull(newManager().findResumableUpload(video));
+
+        progress = manager.startUpload(video, 5);
+        progress.setSessionExpireTime(LocalDateTime.now().minusMinutes(1));
+        manager.setUploadMetadata(progress, preUploadData(), postVideoMeta("upload-1"));
+        assertNull(newManager().findResumableUpload(video));
+    }
+
+    @Test
+    void testNewUploadIdResetsCompletedChunks() throws Exception {
+        File video = createVideo();
+        UploadProgressManager manager = newManager();
+        UploadProgress progress = manager.startUpload(video, 5);
+        manager.setUploadMetadata(progress, preUploadData(), postVideoMeta("upload-1"));
+        manager.markChunkCompleted(progress, 0);
+
+        manager.setUploadMetadata(progress, preUploadData(), postVideoMeta("upload-2"));
+        assertEquals(0, progress.getCompletedChunks());
+        assertEquals(0, newManager().startUpload(video, 5).getCompletedChunks());
+    }
+
+    @Test
+    void testDiscardRemovesSession() throws Exception {
+        File video = createVideo();
+        UploadProgressManager manager = newManager();
+        UploadProgress progress = manager.startUpload(video, 5);
+        manager.setUploadMetadata(progress, preUploadData(), postVideoMeta("upload-1"));
+        manager.completeUpload(progress);
+
+        // 结束上传前会话仍可继续
+        assertNotNull(newManager().findResumableUpload(video));
+
+        manager.discardUpload(video);
+        assertNull(manager.findResumableUpload(video));
+        assertNull(newManager().findResumableUpload(video));
+    }
+
+    @Test
+    void testSessionRejectedByServerIsDiscarded() throws Exception {
+        File video = createVideo();
+        UploadProgressManager manager = newManager();
+        UploadProgress progress = manager.startUpload(video, 5);
+        manager.setUploadMetadata(progress, preUploadData(), postVideoMeta("upload-1"));
+        manager.markChunkCompleted(progress, 0);
+
+        UploadProgress resumable = newManager().findResumableUpload(video);
+        JSONObject rejected = new JSONObject();
+        rejected.put("OK", 0);
+        rejected.put("message", "HTTP 404");
+        assertFalse(manager.confirmResumableUpload(resumable, rejected));
+
+        assertNull(manager.findResumableUpload(video));
+        assertNull(newManager().findResumableUpload(video));
+    }
+
+    @Test
+    void testOnlyServerConfirmedChunksAreSkipped() throws Exception {
+        File video = createVideo();
+        UploadProgressManager manager = newManager();
+        UploadProgress progress = manager.startUpload(video, 5);
+        manager.setUploadMetadata(progress, preUploadData(), postVideoMeta("upload-1"));
+        manager.markChunkCompleted(progress, 0);
+        manager.markChunkCompleted(progress, 1);
+        manager.markChunkCompleted(progress, 3);
+
+        // 服务端只收到第1、4个分片（partNumber从1开始）
+        JSONObject parts = new JSONObject();
+        parts.put("OK", 1);
+        JSONArray list = new JSONArray();
+        for (int partNumber : new int[] {1, 4}) {
+            JSONObject part = new JSONObject();
+            part.put("partNumber", partNumber);
+            list.add(part);
+        }
+        parts.put("parts", list);
+
+        UploadProgressManager restarted = newManager();
+        UploadProgress resumable = restarted.findResumableUpload(video);
+        assertTrue(restarted.confirmResumableUpload(resumable, parts));
+        assertEquals(2, resumable.getCompletedChunks());
+        assertFalse(resumable.isChunkCompleted(1));
+
+        UploadProgress restored = newManager().startUpload(video, 5);
+        assertTrue(restored.isChunkCompleted(0));
+        assertFalse(restored.isChunkCompleted(1));
+        assertTrue(restored.isChunkCompleted(3));
+    }
+
+    private UploadProgressManager newManager() {
+        UploadSessionStore store = new UploadSessionStore();
+        ReflectionTestUtils.setField(store, "sessionDir", tempDir.resolve("sessions").toString());
+        UploadProgressManager manager = new UploadProgressManager();
+        ReflectionTestUtils.setField(manager, "sessionStore", store);
+        return manager;
+    }
+
+    private File createVideo() throws Exception {
+        Path video = tempDir.resolve("segment.mp4");
+        Files.write(video, new byte[1024]);
+        return video.toFile();
+    }
+
+    private static JSONObject preUploadData() {
+        JSONObject data = new JSONObject();
+        data.put("OK", 1);
+        data.put("endpoint", "//upos-cs-upcdnbda2.bilivideo.com");
+        data.put("upos_uri", "upos://ugcfx2lf/n230101.mp4");
+        data.put("chunk_size", 10485760);
+        return data;
+    }
+
+    private static JSONObject postVideoMeta(String uploadId) {
+        JSONObject meta = new JSONObject();
+        meta.put("OK", 1);
+        meta.put("upload_id", uploadId);
+        return meta;
+    }
+}
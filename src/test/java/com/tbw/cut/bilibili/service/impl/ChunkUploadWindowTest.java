@@ -0,0 +1,49 @@
+package com.tbw.cut.bilibili.service.impl;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 分片上传窗口测试
+ */
+class ChunkUploadWindowTest {
+
+    @Test
+    void testWindowStartsAtConfiguredSize() {
+        assertEquals(4, new ChunkUploadWindow(4).current());
+        // 配置小于1时至少保留一个在途分片
+        assertEquals(1, new ChunkUploadWindow(0).current());
+    }
+
+    @Test
+    void testErrorsHalveWindowAndSuccessesGrowItBack() {
+        ChunkUploadWindow window = new ChunkUploadWindow(8);
+        window.onError();
+        assertEquals(4, window.current());
+        window.onError();
+        assertEquals(2, window.current());
+
+        // 每个窗口的分片全部成功后窗口加1
+        window.onSuccess();
+        assertEquals(2, window.current());
+        window.onSuccess();
+        assertEquals(3, window.current());
+
+        for (int i = 0; i < 100; i++) {
+            window.onSuccess();
+        }
+        assertEquals(8, window.current());
+    }
+
+    @Test
+    void testRateLimitDropsWindowToOne() {
+        ChunkUploadWindow window = new ChunkUploadWindow(6);
+        window.onRateLimited();
+        assertEquals(1, window.current());
+        window.onError();
+        assertEquals(1, window.current());
+        window.onSuccess();
+        assertEquals(2, window.current());
+    }
+}
@@ -0,0 +1,98 @@
+package com.tbw.cut.service.download.bandwidth;
+
+import com.tbw.cut.service.download.model.BandwidthStatus;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 全局带宽调度器测试
+ */
+class BandwidthGovernorTest {
+
+    private static final int MB = 1024 * 1024;
+
+    @Test
+    void testActiveFlowsShareLimitByWeight() {
+        BandwidthGovernor governor = new BandwidthGovernor();
+        governor.setLimit(BandwidthGovernor.Direction.INGRESS, 4 * MB);
+
+        BandwidthGovernor.Flow heavy = governor.register(BandwidthGovernor.Direction.INGRESS, "heavy", 3);
+        BandwidthGovernor.Flow light = governor.register(BandwidthGovernor.Direction.INGRESS, "light", 1);
+        governor.register(BandwidthGovernor.Direction.INGRESS, "idle", 4);
+        heavy.acquire(1024);
+        light.acquire(1024);
+
+        // 尚未传输的流量不参与分配
+        assertEquals(3 * MB, allocatedRate(governor, "heavy"));
+        assertEquals(MB, allocatedRate(governor, "light"));
+
+        // 权重可在运行时调整
+        assertEquals(1, governor.setWeight("light", 3));
+        assertEquals(2 * MB, allocatedRate(governor, "light"));
+
+        light.close();
+        assertEquals(4 * MB, allocatedRate(governor, "heavy"));
+    }
+
+    @Test
+    void testAcquireIsPacedToLimit() {
+        BandwidthGovernor governor = new BandwidthGovernor();
+        governor.setLimit(BandwidthGovernor.Direction.INGRESS, 4 * MB);
+
+        long start = System.currentTimeMillis();
+        try (BandwidthGovernor.Flow flow = governor.register(BandwidthGovernor.Direction.INGRESS, "paced")) {
+            for (int i = 0; i < 32; i++) {
+                flow.acquire(64 * 1024);
+            }
+        }
+        long elapsed = System.currentTimeMillis() - start;
+
+        // 2MB按4MB/s传输，至少需要约0.5秒
+        assertTrue(elapsed >= 350, "elapsed " + elapsed + " ms");
+        assertTrue(elapsed < 3000, "elapsed " + elapsed + " ms");
+    }
+
+    @Test
+    void testRecordedTrafficDelaysOtherFlows() {
+        BandwidthGovernor governor = new BandwidthGovernor();
+        governor.setLimit(BandwidthGovernor.Direction.EGRESS, MB);
+
+        BandwidthGovernor.Flow external = governor.register(BandwidthGovernor.Direction.EGRESS, "external");
+        BandwidthGovernor.Flow paced = governor.register(BandwidthGovernor.Direction.EGRESS, "paced");
+
+        // 外部流量不阻塞，但会占用全局令牌
+        long start = System.currentTimeMillis();
+        external.record(MB / 2);
+        assertTrue(System.currentTimeMillis() - start < 100);
+
+        paced.acquire(1024);
+        long elapsed = System.currentTimeMillis() - start;
+        assertTrue(elapsed >= 300, "elapsed " + elapsed + " ms");
+        assertEquals(MB / 2, external.getTotalBytes());
+    }
+
+    @Test
+    void testUnlimitedDirectionNeverBlocks() {
+        BandwidthGovernor governor = new BandwidthGovernor();
+
+        long start = System.currentTimeMillis();
+        try (BandwidthGovernor.Flow flow = governor.register(BandwidthGovernor.Direction.INGRESS, "free")) {
+            for (int i = 0; i < 1000; i++) {
+                flow.acquire(MB);
+            }
+            assertEquals(1000L * MB, flow.getTotalBytes());
+        }
+        assertTrue(System.currentTimeMillis() - start < 1000);
+        assertTrue(governor.getStatus().getFlows().isEmpty());
+    }
+
+    private long allocatedRate(BandwidthGovernor governor, String name) {
+        BandwidthStatus status = governor.getStatus();
+        return status.getFlows().stream()
+            .filter(flow -> flow.getName().equals(name))
+            .findFirst()
+            .map(BandwidthStatus.FlowInfo::getAllocatedRate)
+            .orElse(-1L);
+    }
+}
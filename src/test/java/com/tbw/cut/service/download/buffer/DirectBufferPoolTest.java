@@ -0,0 +1,63 @@
+package com.tbw.cut.service.download.buffer;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 直接内存缓冲区池测试
+ */
+class DirectBufferPoolTest {
+
+    @Test
+    void testReleasedBufferIsReusedWithinSizeClass() {
+        DirectBufferPool pool = new DirectBufferPool();
+        ByteBuffer first = pool.acquire(5 * 1024 * 1024 + 1);
+        assertTrue(first.isDirect());
+        assertEquals(0, first.position());
+        assertEquals(5 * 1024 * 1024 + 1, first.limit());
+        first.put((byte) 1);
+        pool.release(first);
+
+        // 同一容量级别的请求复用同一缓冲区，并恢复为新的读写范围
+        ByteBuffer second = pool.acquire(5 * 1024 * 1024 + 100);
+        assertSame(first, second);
+        assertEquals(0, second.position());
+        assertEquals(5 * 1024 * 1024 + 100, second.limit());
+        assertEquals(1, pool.getAllocations());
+        assertEquals(1, pool.getReuses());
+        assertEquals(0, pool.getPooledBytes());
+
+        // 不同容量级别分别分配
+        assertNotSame(second, pool.acquire(1024));
+        assertEquals(2, pool.getAllocations());
+    }
+
+    @Test
+    void testPoolKeepsAtMostMaxPooledBytes() {
+        DirectBufferPool pool = new DirectBufferPool();
+        ReflectionTestUtils.setField(pool, "maxPooledBytes", 2L * DirectBufferPool.SIZE_CLASS);
+
+        ByteBuffer a = pool.acquire(DirectBufferPool.SIZE_CLASS);
+        ByteBuffer b = pool.acquire(DirectBufferPool.SIZE_CLASS);
+        ByteBuffer c = pool.acquire(DirectBufferPool.SIZE_CLASS);
+        pool.release(a);
+        pool.release(b);
+        pool.release(c);
+
+        assertEquals(2L * DirectBufferPool.SIZE_CLASS, pool.getPooledBytes());
+    }
+
+    @Test
+    void testForeignBuffersAreIgnored() {
+        DirectBufferPool pool = new DirectBufferPool();
+        pool.release(ByteBuffer.allocate(DirectBufferPool.SIZE_CLASS));
+        pool.release(ByteBuffer.allocateDirect(1000));
+        pool.release(null);
+
+        assertEquals(0, pool.getPooledBytes());
+    }
+}
@@ -5,6 +5,8 @@ import org.junit.jupiter.api.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.Map;
+
 import static org.junit.jupiter.api.Assertions.*;
 
 /**
@@ -110,4 +112,23 @@ class DownloadTimeLoggerTest {
         
         log.info("=== 队列等待时长记录测试完成 ===");
     }
+    
+    @Test
+    void testQueueWaitPercentilesPerClass() {
+        for (long i = 1; i <= 100; i++) {
+            downloadTimeLogger.logQueueWaitTime(i, "heavy", i * 100);
+        }
+        downloadTimeLogger.logQueueWaitTime(101L, "light", 20);
+        
+        Map<String, DownloadTimeLogger.QueueWaitStats> statistics = downloadTimeLogger.getQueueWaitStatistics();
+        
+        DownloadTimeLogger.QueueWaitStats heavy = statistics.get("heavy");
+        assertEquals(100, heavy.getCount());
+        assertEquals(5000, heavy.getP50());
+        assertEquals(9000, heavy.getP90());
+        assertEquals(9900, heavy.getP99());
+        assertEquals(10000, heavy.getMax());
+        
+        assertEquals(20, statistics.get("light").getP99());
+    }
 }
\ No newline at end of file
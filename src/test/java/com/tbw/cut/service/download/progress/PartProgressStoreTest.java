@@ -0,0 +1,177 @@
+package com.tbw.cut.service.download.progress;
+
+import com.tbw.cut.entity.VideoDownload;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 分P下载进度表测试
+ */
+class PartProgressStoreTest {
+
+    private final List<List<VideoDownload>> batches = new ArrayList<>();
+
+    @Test
+    void testUpdatesAreCoalescedIntoOneBatch() {
+        PartProgressStore store = createStore();
+        AtomicInteger loads = new AtomicInteger();
+        for (long taskId = 1; taskId <= 3; taskId++) {
+            for (int progress = 1; progress <= 50; progress++) {
+                store.getOrLoad(taskId, id -> load(id, loads)).advance(progress);
+            }
+        }
+
+        // 每个任务只读取一次数据库
+        assertEquals(3, loads.get());
+        assertEquals(3, store.flush());
+        assertEquals(1, batches.size());
+        for (VideoDownload update : batches.get(0)) {
+            assertEquals(50, update.getProgress().intValue());
+            // 批量刷写不写状态，避免覆盖其他服务的状态变更
+            assertNull(update.getStatus());
+        }
+
+        // 没有新进度时不写库
+        assertEquals(0, store.flush());
+        assertEquals(1, batches.size());
+    }
+
+    @Test
+    void testStatusTransitionIsWrittenImmediately() {
+        PartProgressStore store = createStore();
+        PartProgressStore.PartProgress state = store.getOrLoad(1L, id -> load(id, new AtomicInteger()));
+        state.advance(5);
+
+        assertTrue(state.start());
+        assertFalse(state.start());
+        store.writeThrough(1L);
+
+        assertEquals(1, batches.size());
+        assertEquals(1, batches.get(0).get(0).getStatus().intValue());
+        assertEquals(5, batches.get(0).get(0).getProgress().intValue());
+        // 已随状态写入的进度不再重复刷写
+        assertEquals(0, store.flush());
+    }
+
+    @Test
+    void testReadsAreServedFromMemory() {
+        PartProgressStore store = createStore();
+        PartProgressStore.PartProgress state = store.getOrLoad(1L, id -> load(id, new AtomicInteger()));
+        state.start();
+        state.advance(40);
+        assertFalse(state.advance(30));
+
+        VideoDownload stale = load(1L, new AtomicInteger());
+        store.apply(stale);
+        assertEquals(40, stale.getProgress().intValue());
+        assertEquals(1, stale.getStatus().intValue());
+
+        // 进入终态后移除，刷写不会覆盖终态写入
+        store.remove(1L);
+        assertEquals(0, store.flush());
+        assertNull(store.get(1L));
+    }
+
+    @Test
+    void testFinishedTasksAreNotCached() {
+        PartProgressStore store = createStore();
+        for (long taskId = 2; taskId <= 3; taskId++) {
+            // 完成(2)和失败(3)的记录不进入内存，迟到的进度回调不会把进度重置为0
+            assertNull(store.getOrLoad(taskId, PartProgressStoreTest::finished));
+            assertNull(store.get(taskId));
+        }
+        assertEquals(0, store.size());
+        assertEquals(0, store.flush());
+    }
+
+    @Test
+    void testLateCallbackAfterRemoveDoesNotRecreateEntry() {
+        PartProgressStore store = createStore();
+        store.getOrLoad(1L, id -> load(id, new AtomicInteger())).advance(60);
+        store.remove(1L);
+
+        // 终态尚未写库，数据库中仍是下载中的记录
+        AtomicInteger loads = new AtomicInteger();
+        assertNull(store.getOrLoad(1L, id -> downloading(id, loads)));
+        assertEquals(0, loads.get());
+        assertNull(store.get(1L));
+        assertEquals(0, store.flush());
+        assertTrue(batches.isEmpty());
+    }
+
+    @Test
+    void testRemoveDuringLoadDiscardsLoadedEntry() {
+        PartProgressStore store = createStore();
+        assertNull(store.getOrLoad(1L, id -> {
+            // 加载期间任务完成并被移除
+            store.remove(id);
+            return downloading(id, new AtomicInteger());
+        }));
+        assertNull(store.get(1L));
+        assertEquals(0, store.size());
+    }
+
+    @Test
+    void testTombstoneExpires() throws Exception {
+        PartProgressStore store = createStore();
+        ReflectionTestUtils.setField(store, "tombstoneTtlMs", 50L);
+        store.remove(1L);
+        assertNull(store.getOrLoad(1L, id -> downloading(id, new AtomicInteger())));
+
+        Thread.sleep(80);
+        store.flush();
+        assertNotNull(store.getOrLoad(1L, id -> downloading(id, new AtomicInteger())));
+    }
+
+    @Test
+    void testFailedFlushIsRetried() {
+        PartProgressStore store = new PartProgressStore();
+        AtomicInteger attempts = new AtomicInteger();
+        store.setWriter(batch -> {
+            if (attempts.incrementAndGet() == 1) {
+                throw new IllegalStateException("database unavailable");
+            }
+            batches.add(batch);
+        });
+        store.getOrLoad(1L, id -> load(id, new AtomicInteger())).advance(20);
+
+        assertEquals(0, store.flush());
+        assertEquals(1, store.flush());
+        assertEquals(20, batches.get(0).get(0).getProgress().intValue());
+    }
+
+    private PartProgressStore createStore() {
+        PartProgressStore store = new PartProgressStore();
+        store.setWriter(batches::add);
+        return store;
+    }
+
+    private static VideoDownload finished(Long taskId) {
+        VideoDownload download = load(taskId, new AtomicInteger());
+        download.setProgress(100);
+        download.setStatus(taskId.intValue());
+        return download;
+    }
+
+    private static VideoDownload downloading(Long taskId, AtomicInteger loads) {
+        VideoDownload download = load(taskId, loads);
+        download.setProgress(60);
+        download.setStatus(1);
+        return download;
+    }
+
+    private static VideoDownload load(Long taskId, AtomicInteger loads) {
+        loads.incrementAndGet();
+        VideoDownload download = new VideoDownload();
+        download.setId(taskId);
+        download.setProgress(0);
+        download.setStatus(0);
+        return download;
+    }
+}
@@ -0,0 +1,245 @@
+package com.tbw.cut.service.download.progress;
+
+import com.tbw.cut.config.DownloadConfig;
+import com.tbw.cut.service.PartDownloadService;
+import com.tbw.cut.service.download.model.DetailedProgress;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.withSettings;
+
+/**
+ * 进度跟踪器测试
+ * 更新开销基准测试默认跳过，使用 -Dprogress.benchmark=true 启用，
+ * -Dprogress.benchmark.rate / tasks / seconds / threads 指定每秒更新数、任务数、时长和线程数
+ */
+class ProgressTrackerTest {
+
+    private static final Logger log = LoggerFactory.getLogger(ProgressTrackerTest.class);
+
+    @Test
+    void testSpeedEstimateConvergesToSteadyRate() {
+        ProgressTracker.SpeedEstimator estimator = new ProgressTracker.SpeedEstimator(TimeUnit.SECONDS.toNanos(2));
+        long nanos = 1;
+        long bytes = 0;
+        for (int i = 0; i < 100; i++) {
+            // 每100毫秒1MB，即10MB/s
+            estimator.record(bytes, nanos);
+            nanos += TimeUnit.MILLISECONDS.toNanos(100);
+            bytes += 1024 * 1024;
+        }
+        assertEquals(10.0 * 1024 * 1024, estimator.rate(), 10.0 * 1024 * 1024 * 0.01);
+
+        // 速度减半后估算值平滑过渡，不会立即跳变
+        bytes -= 512 * 1024;
+        estimator.record(bytes, nanos);
+        assertTrue(estimator.rate() > 9.0 * 1024 * 1024);
+
+        // 五个时间常数后收敛到新速度
+        for (int i = 0; i < 100; i++) {
+            nanos += TimeUnit.MILLISECONDS.toNanos(100);
+            bytes += 512 * 1024;
+            estimator.record(bytes, nanos);
+        }
+        assertEquals(5.0 * 1024 * 1024, estimator.rate(), 5.0 * 1024 * 1024 * 0.02);
+    }
+
+    @Test
+    void testConcurrentPartUpdatesKeepOverallProgressConsistent() throws Exception {
+        ProgressTracker tracker = createTracker(mock(PartDownloadService.class));
+        int threads = 8;
+        long partSize = 1000L * 1024;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            long cid = t;
+            executor.execute(() -> {
+                for (long bytes = 1024; bytes <= partSize; bytes += 1024) {
+                    tracker.updatePartProgress(1L, cid, "P" + cid, bytes, partSize,
+                        DetailedProgress.DownloadStatus.DOWNLOADING);
+                }
+                done.countDown();
+            });
+        }
+        assertTrue(done.await(30, TimeUnit.SECONDS));
+        executor.shutdown();
+
+        DetailedProgress progress = tracker.getDetailedProgress(1L);
+        assertEquals(threads * partSize, progress.getDownloadedBytes());
+        assertEquals(threads * partSize, progress.getTotalBytes());
+        assertEquals(100, progress.getProgressPercentage());
+        assertEquals(threads, progress.getPartProgresses().size());
+        assertEquals(DetailedProgress.DownloadStatus.COMPLETED, progress.getStatus());
+    }
+
+    @Test
+    void testStalePartUpdateDoesNotDropOverallProgress() {
+        ProgressTracker tracker = createTracker(mock(PartDownloadService.class));
+        tracker.updatePartProgress(1L, 1L, "P1", 6_000, 10_000, DetailedProgress.DownloadStatus.DOWNLOADING);
+        tracker.updatePartProgress(1L, 2L, "P2", 2_000, 10_000, DetailedProgress.DownloadStatus.DOWNLOADING);
+
+        // 乱序到达的旧进度不会让总体已下载字节数和总字节数减少
+        tracker.updatePartProgress(1L, 1L, "P1", 4_000, 8_000, DetailedProgress.DownloadStatus.DOWNLOADING);
+        DetailedProgress progress = tracker.getDetailedProgress(1L);
+        assertEquals(8_000, progress.getDownloadedBytes());
+        assertEquals(20_000, progress.getTotalBytes());
+
+        // 之后的新进度只累加超出部分
+        tracker.updatePartProgress(1L, 1L, "P1", 7_000, 10_000, DetailedProgress.DownloadStatus.DOWNLOADING);
+        progress = tracker.getDetailedProgress(1L);
+        assertEquals(9_000, progress.getDownloadedBytes());
+        assertEquals(20_000, progress.getTotalBytes());
+    }
+
+    @Test
+    void testTaskAndPartUpdatesInterleaveConsistently() {
+        ProgressTracker tracker = createTracker(mock(PartDownloadService.class));
+        tracker.updateProgress(1L, 3_000, 10_000);
+        tracker.updatePartProgress(1L, 1L, "P1", 2_000, 5_000, DetailedProgress.DownloadStatus.DOWNLOADING);
+
+        // 任务本身和分P的字节数分别累计，互不覆盖
+        DetailedProgress progress = tracker.getDetailedProgress(1L);
+        assertEquals(5_000, progress.getDownloadedBytes());
+        assertEquals(15_000, progress.getTotalBytes());
+
+        tracker.updateProgress(1L, 4_000, 10_000);
+        tracker.updatePartProgress(1L, 1L, "P1", 2_500, 5_000, DetailedProgress.DownloadStatus.DOWNLOADING);
+        // 乱序到达的旧任务进度不会回退
+        tracker.updateProgress(1L, 3_500, 10_000);
+        progress = tracker.getDetailedProgress(1L);
+        assertEquals(6_500, progress.getDownloadedBytes());
+        assertEquals(15_000, progress.getTotalBytes());
+        assertEquals(43, progress.getProgressPercentage());
+        assertEquals(1, progress.getPartProgresses().size());
+
+        tracker.updateProgress(1L, 10_000, 10_000);
+        tracker.updatePartProgress(1L, 1L, "P1", 5_000, 5_000, DetailedProgress.DownloadStatus.COMPLETED);
+        progress = tracker.getDetailedProgress(1L);
+        assertEquals(15_000, progress.getDownloadedBytes());
+        assertEquals(100, progress.getProgressPercentage());
+    }
+
+    @Test
+    void testOnlyPercentageChangesAreReported() {
+        PartDownloadService partDownloadService = mock(PartDownloadService.class);
+        ProgressTracker tracker = createTracker(partDownloadService);
+
+        for (long bytes = 0; bytes <= 10_000; bytes += 10) {
+            tracker.updateProgress(1L, bytes, 10_000);
+        }
+        // 乱序到达的旧进度不会让进度回退
+        tracker.updateProgress(1L, 5_000, 10_000);
+
+        verify(partDownloadService, times(101)).updatePartProgress(eq(1L), anyInt());
+        assertEquals(100, tracker.getDetailedProgress(1L).getProgressPercentage());
+    }
+
+    @Test
+    @EnabledIfSystemProperty(named = "progress.benchmark", matches = "true")
+    void benchmarkUpdateCost() throws Exception {
+        int rate = Integer.getInteger("progress.benchmark.rate", 10_000);
+        int taskCount = Integer.getInteger("progress.benchmark.tasks", 200);
+        int seconds = Integer.getInteger("progress.benchmark.seconds", 10);
+        int threads = Integer.getInteger("progress.benchmark.threads", 8);
+
+        ProgressTracker tracker = createTracker(mock(PartDownloadService.class, withSettings().stubOnly()));
+        // 预热
+        runPaced(tracker, taskCount, threads, rate * 10, 2, 0, new long[threads][], new AtomicLong());
+        for (long taskId = 0; taskId < taskCount; taskId++) {
+            tracker.cleanupProgress(taskId);
+        }
+
+        int updatesPerThread = rate * seconds / threads;
+        long[][] costs = new long[threads][updatesPerThread];
+        AtomicLong allocatedBytes = new AtomicLong();
+        runPaced(tracker, taskCount, threads, rate, seconds, updatesPerThread, costs, allocatedBytes);
+
+        long[] all = Arrays.stream(costs).flatMapToLong(Arrays::stream).sorted().toArray();
+        double meanNanos = Arrays.stream(all).average().orElse(0);
+        log.info("Progress update benchmark: {} updates/s across {} tasks on {} threads for {} s, "
+                + "mean {} ns, p50 {} ns, p99 {} ns, max {} ns, {} bytes allocated per update",
+            rate, taskCount, threads, seconds, Math.round(meanNanos), all[all.length / 2],
+            all[(int) (all.length * 0.99)], all[all.length - 1],
+            allocatedBytes.get() < 0 ? "n/a" : String.valueOf(allocatedBytes.get() / all.length));
+        assertEquals(100, tracker.getDetailedProgress(0L).getProgressPercentage());
+    }
+
+    /**
+     * 多线程按固定速率更新，每个线程负责一部分任务；costs为空数组时不记录单次开销
+     */
+    private void runPaced(ProgressTracker tracker, int taskCount, int threads, int rate, int seconds,
+                          int updatesPerThread, long[][] costs, AtomicLong allocatedBytes) throws Exception {
+        int perThread = updatesPerThread > 0 ? updatesPerThread : rate * seconds / threads;
+        long intervalNanos = TimeUnit.SECONDS.toNanos(1) * threads / rate;
+        int tasksPerThread = Math.max(1, taskCount / threads);
+        long totalBytes = 1024L * 1024 * 1024;
+        long step = totalBytes / Math.max(1, perThread / tasksPerThread);
+        com.sun.management.ThreadMXBean threadBean = ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean
+            ? (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean() : null;
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            int thread = t;
+            executor.execute(() -> {
+                long[] bytes = new long[tasksPerThread];
+                Long[] taskIds = new Long[tasksPerThread];
+                for (int slot = 0; slot < tasksPerThread; slot++) {
+                    taskIds[slot] = (long) (thread * tasksPerThread + slot);
+                }
+                long allocatedBefore = threadBean != null ? threadBean.getThreadAllocatedBytes(Thread.currentThread().getId()) : 0;
+                long next = System.nanoTime();
+                for (int i = 0; i < perThread; i++) {
+                    int slot = i % tasksPerThread;
+                    bytes[slot] = Math.min(totalBytes, bytes[slot] + step);
+                    long start = System.nanoTime();
+                    tracker.updateProgress(taskIds[slot], bytes[slot], totalBytes);
+                    if (costs[thread] != null) {
+                        costs[thread][i] = System.nanoTime() - start;
+                    }
+                    next += intervalNanos;
+                    long wait = next - System.nanoTime();
+                    if (wait > 0) {
+                        LockSupport.parkNanos(wait);
+                    }
+                }
+                if (threadBean != null) {
+                    allocatedBytes.addAndGet(threadBean.getThreadAllocatedBytes(Thread.currentThread().getId()) - allocatedBefore);
+                } else {
+                    allocatedBytes.set(-1);
+                }
+                for (int slot = 0; slot < tasksPerThread; slot++) {
+                    tracker.updateProgress(taskIds[slot], totalBytes, totalBytes);
+                }
+                done.countDown();
+            });
+        }
+        assertTrue(done.await(seconds * 3L + 30, TimeUnit.SECONDS));
+        executor.shutdown();
+    }
+
+    private ProgressTracker createTracker(PartDownloadService partDownloadService) {
+        ProgressTracker tracker = new ProgressTracker();
+        ReflectionTestUtils.setField(tracker, "partDownloadService", partDownloadService);
+        ReflectionTestUtils.setField(tracker, "downloadConfig", new DownloadConfig());
+        return tracker;
+    }
+}
@@ -0,0 +1,217 @@
+package com.tbw.cut.service.download.queue;
+
+import com.tbw.cut.service.download.model.VideoDownloadRequest;
+import com.tbw.cut.service.download.model.VideoDownloadTask;
+import com.tbw.cut.service.download.model.VideoPart;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.junit.jupiter.api.io.TempDir;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 下载队列日志测试
+ * 恢复基准测试默认跳过，使用 -Dqueue.journal.benchmark=true 启用，-Dqueue.journal.benchmark.tasks 指定任务数
+ */
+class DownloadQueueJournalTest {
+
+    private static final Logger log = LoggerFactory.getLogger(DownloadQueueJournalTest.class);
+
+    @TempDir
+    Path tempDir;
+
+    private final List<DownloadQueueJournal> journals = new ArrayList<>();
+
+    @AfterEach
+    void tearDown() {
+        journals.forEach(DownloadQueueJournal::close);
+    }
+
+    @Test
+    void testPendingAndActiveTasksSurviveRestart() throws Exception {
+        DownloadQueueJournal journal = openJournal(10000);
+        assertTrue(journal.recover().isEmpty());
+
+        journal.enqueued(createTask(1L, "pending", 3)).get(5, TimeUnit.SECONDS);
+        journal.enqueued(createTask(2L, "active", 0)).get(5, TimeUnit.SECONDS);
+        journal.enqueued(createTask(3L, "done", 0)).get(5, TimeUnit.SECONDS);
+        journal.enqueued(createTask(4L, "cancelled", 0)).get(5, TimeUnit.SECONDS);
+        journal.started(2L);
+        journal.started(3L);
+        journal.completed(3L);
+        journal.cancelled(4L);
+        journal.close();
+
+        List<DownloadQueueJournal.JournaledTask> recovered = openJournal(10000).recover();
+
+        assertEquals(2, recovered.size());
+        DownloadQueueJournal.JournaledTask pending = recovered.get(0);
+        assertEquals(1L, pending.getTaskId().longValue());
+        assertEquals(3, pending.getPriority());
+        assertFalse(pending.isActive());
+        assertEquals("pending", pending.getRequest().getVideoTitle());
+        assertEquals("https://cdn.example.com/pending/P1.mp4", pending.getRequest().getParts().get(0).getUrl());
+        assertEquals("BVpending", pending.getRequest().getExtraParams().get("bvid"));
+
+        DownloadQueueJournal.JournaledTask active = recovered.get(1);
+        assertTrue(active.isActive());
+        // 分P下载记录ID随入队记录保存，恢复后用于更新记录状态
+        assertEquals(Collections.singletonList(2000L), active.getPartTaskIds());
+    }
+
+    @Test
+    void testCompactionKeepsOnlyLiveTasks() throws Exception {
+        DownloadQueueJournal journal = openJournal(50);
+        journal.recover();
+
+        List<CompletableFuture<Void>> commits = new ArrayList<>();
+        for (long id = 1; id <= 200; id++) {
+            commits.add(journal.enqueued(createTask(id, "video" + id, 0)));
+            if (id % 2 == 0) {
+                journal.completed(id);
+            }
+        }
+        CompletableFuture.allOf(commits.toArray(new CompletableFuture[0])).get(10, TimeUnit.SECONDS);
+        journal.close();
+
+        // 旧一代日志在切换后删除
+        long journalFiles = Files.list(tempDir).filter(file -> file.getFileName().toString().startsWith("journal-")).count();
+        assertEquals(1, journalFiles);
+
+        List<DownloadQueueJournal.JournaledTask> recovered = openJournal(50).recover();
+        assertEquals(100, recovered.size());
+        assertEquals(1L, recovered.get(0).getTaskId().longValue());
+        assertEquals(199L, recovered.get(99).getTaskId().longValue());
+    }
+
+    @Test
+    void testTornRecordAtEndIsDiscarded() throws Exception {
+        DownloadQueueJournal journal = openJournal(10000);
+        journal.recover();
+        journal.enqueued(createTask(1L, "kept", 0)).get(5, TimeUnit.SECONDS);
+        journal.close();
+
+        // 模拟写入一半时断电
+        Path journalFile = Files.list(tempDir)
+            .filter(file -> file.getFileName().toString().startsWith("journal-"))
+            .findFirst()
+            .orElseThrow(IllegalStateException::new);
+        Files.write(journalFile, "{\"op\":\"E\",\"id\":2,\"p\":0,\"r\":{\"videoT".getBytes(), StandardOpenOption.APPEND);
+
+        DownloadQueueJournal reopened = openJournal(10000);
+        List<DownloadQueueJournal.JournaledTask> recovered = reopened.recover();
+        assertEquals(1, recovered.size());
+        assertEquals("kept", recovered.get(0).getRequest().getVideoTitle());
+
+        // 截断后可以继续追加
+        reopened.enqueued(createTask(3L, "appended", 0)).get(5, TimeUnit.SECONDS);
+        reopened.close();
+        assertEquals(2, openJournal(10000).recover().size());
+    }
+
+    @Test
+    void testCorruptRecordInTheMiddleIsSkipped() throws Exception {
+        DownloadQueueJournal journal = openJournal(10000);
+        journal.recover();
+        journal.enqueued(createTask(1L, "first", 0)).get(5, TimeUnit.SECONDS);
+        journal.enqueued(createTask(2L, "corrupted", 0)).get(5, TimeUnit.SECONDS);
+        journal.enqueued(createTask(3L, "third", 0)).get(5, TimeUnit.SECONDS);
+        journal.close();
+
+        // 损坏中间一条记录，之后的记录仍然完整
+        Path journalFile = Files.list(tempDir)
+            .filter(file -> file.getFileName().toString().startsWith("journal-"))
+            .findFirst()
+            .orElseThrow(IllegalStateException::new);
+        List<String> lines = new ArrayList<>(Files.readAllLines(journalFile));
+        assertEquals(3, lines.size());
+        lines.set(1, lines.get(1).substring(0, 20) + "\u0000\u0000");
+        Files.write(journalFile, lines);
+
+        List<DownloadQueueJournal.JournaledTask> recovered = openJournal(10000).recover();
+        assertEquals(2, recovered.size());
+        assertEquals("first", recovered.get(0).getRequest().getVideoTitle());
+        assertEquals("third", recovered.get(1).getRequest().getVideoTitle());
+    }
+
+    @Test
+    @EnabledIfSystemProperty(named = "queue.journal.benchmark", matches = "true")
+    void benchmarkRecovery() throws Exception {
+        int taskCount = Integer.getInteger("queue.journal.benchmark.tasks", 100_000);
+
+        DownloadQueueJournal journal = openJournal(Integer.MAX_VALUE);
+        journal.recover();
+        long start = System.nanoTime();
+        List<CompletableFuture<Void>> commits = new ArrayList<>();
+        for (long id = 1; id <= taskCount; id++) {
+            commits.add(journal.enqueued(createTask(id, "video" + id, (int) (id % 3))));
+            if (id % 4 == 0) {
+                journal.started(id);
+            }
+        }
+        CompletableFuture.allOf(commits.toArray(new CompletableFuture[0])).get(5, TimeUnit.MINUTES);
+        long appendMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        journal.close();
+        long journalBytes = Files.list(tempDir).mapToLong(file -> file.toFile().length()).sum();
+
+        start = System.nanoTime();
+        List<DownloadQueueJournal.JournaledTask> recovered = openJournal(Integer.MAX_VALUE).recover();
+        long recoverMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        log.info("Journaled {} tasks in {} ms ({} bytes), recovered in {} ms",
+            taskCount, appendMs, journalBytes, recoverMs);
+        assertEquals(taskCount, recovered.size());
+        assertEquals(taskCount / 4, recovered.stream().filter(DownloadQueueJournal.JournaledTask::isActive).count());
+    }
+
+    private DownloadQueueJournal openJournal(int compactThreshold) {
+        DownloadQueueJournal journal = new DownloadQueueJournal();
+        ReflectionTestUtils.setField(journal, "journalDir", tempDir.toString());
+        ReflectionTestUtils.setField(journal, "compactThreshold", compactThreshold);
+        journals.add(journal);
+        return journal;
+    }
+
+    private VideoDownloadTask createTask(Long taskId, String title, int priority) {
+        VideoPart part = VideoPart.builder()
+            .cid(taskId)
+            .databaseId(taskId * 1000)
+            .title("P1")
+            .url("https://cdn.example.com/" + title + "/P1.mp4")
+            .outputPath("/downloads/" + title + "/P1.mp4")
+            .estimatedSize(100L * 1024 * 1024)
+            .build();
+
+        Map<String, Object> extraParams = new HashMap<>();
+        extraParams.put("bvid", "BV" + title);
+
+        VideoDownloadRequest request = VideoDownloadRequest.builder()
+            .videoTitle(title)
+            .videoUrl("https://www.bilibili.com/video/BV" + title)
+            .parts(Collections.singletonList(part))
+            .outputDirectory("/downloads/" + title)
+            .enableSegmentedDownload(true)
+            .extraParams(extraParams)
+            .build();
+
+        VideoDownloadTask task = VideoDownloadTask.create(request);
+        task.setTaskId(taskId);
+        task.setPriority(priority);
+        return task;
+    }
+}
@@ -0,0 +1,111 @@
+package com.tbw.cut.service.download.queue;
+
+import com.tbw.cut.service.download.model.VideoDownloadRequest;
+import com.tbw.cut.service.download.model.VideoDownloadTask;
+import com.tbw.cut.service.download.model.VideoPart;
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 公平下载调度器测试
+ */
+class FairDownloadDispatcherTest {
+
+    @Test
+    void testHeavyOwnerDoesNotStarveOthers() {
+        FairDownloadDispatcher dispatcher = new FairDownloadDispatcher(1, 0, 0);
+        for (int i = 0; i < 200; i++) {
+            dispatcher.offer(createTask("heavy", "cdn" + i + ".example.com", 1, 0, 0));
+        }
+        dispatcher.offer(createTask("light", "cdn.example.com", 1, 0, 0));
+
+        // 后提交的所属者在第二个槽位就得到调度
+        assertEquals("heavy", owner(dispatcher.next(System.currentTimeMillis())));
+        assertEquals("light", owner(dispatcher.next(System.currentTimeMillis())));
+        assertEquals(199, dispatcher.size());
+    }
+
+    @Test
+    void testOwnersShareSlotsByPartCount() {
+        FairDownloadDispatcher dispatcher = new FairDownloadDispatcher(2, 0, 0);
+        for (int i = 0; i < 4; i++) {
+            dispatcher.offer(createTask("multi", "a.example.com", 4, 0, 0));
+            dispatcher.offer(createTask("single", "b.example.com", 1, 0, 0));
+        }
+        for (int i = 0; i < 4; i++) {
+            dispatcher.offer(createTask("single", "b.example.com", 1, 0, 0));
+        }
+
+        // 4个分P的视频消耗的额度是单P视频的4倍
+        List<String> order = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            order.add(owner(dispatcher.next(System.currentTimeMillis())));
+        }
+        assertEquals(2, Collections.frequency(order, "multi"));
+        assertEquals(8, Collections.frequency(order, "single"));
+    }
+
+    @Test
+    void testWaitingRaisesPriority() {
+        FairDownloadDispatcher dispatcher = new FairDownloadDispatcher(1, 60_000, 0);
+        VideoDownloadTask urgent = createTask("a", "a.example.com", 1, 0, 0);
+        VideoDownloadTask oldLow = createTask("b", "b.example.com", 1, 5, 4);
+        VideoDownloadTask newLow = createTask("c", "c.example.com", 1, 5, 0);
+        dispatcher.offer(newLow);
+        dispatcher.offer(oldLow);
+        dispatcher.offer(urgent);
+
+        long now = System.currentTimeMillis();
+        assertSame(urgent, dispatcher.next(now));
+        // 等待4分钟的低优先级任务排到同优先级的新任务之前
+        assertSame(oldLow, dispatcher.next(now));
+        assertSame(newLow, dispatcher.next(now));
+        assertNull(dispatcher.next(now));
+    }
+
+    @Test
+    void testHostConcurrencyIsCapped() {
+        FairDownloadDispatcher dispatcher = new FairDownloadDispatcher(1, 0, 1);
+        VideoDownloadTask first = createTask("a", "same.example.com", 1, 0, 0);
+        VideoDownloadTask second = createTask("b", "same.example.com", 1, 0, 0);
+        VideoDownloadTask other = createTask("b", "other.example.com", 1, 0, 0);
+        dispatcher.offer(first);
+        dispatcher.offer(second);
+        dispatcher.offer(other);
+
+        assertSame(first, dispatcher.next(System.currentTimeMillis()));
+        assertSame(other, dispatcher.next(System.currentTimeMillis()));
+        assertNull(dispatcher.next(System.currentTimeMillis()));
+
+        // 同一主机的任务结束后才能开始下一个
+        dispatcher.release(first);
+        assertSame(second, dispatcher.next(System.currentTimeMillis()));
+    }
+
+    private VideoDownloadTask createTask(String owner, String host, int partCount, int priority, int waitedMinutes) {
+        List<VideoPart> parts = new ArrayList<>();
+        for (int i = 0; i < partCount; i++) {
+            parts.add(VideoPart.builder().url("https://" + host + "/v" + i + ".mp4").build());
+        }
+        VideoDownloadRequest request = VideoDownloadRequest.builder()
+            .videoTitle(owner)
+            .userId(owner)
+            .parts(parts)
+            .build();
+
+        VideoDownloadTask task = VideoDownloadTask.create(request);
+        task.setPriority(priority);
+        task.setCreatedTime(LocalDateTime.now().minusMinutes(waitedMinutes));
+        return task;
+    }
+
+    private String owner(VideoDownloadTask task) {
+        return task != null ? task.getRequest().getUserId() : null;
+    }
+}
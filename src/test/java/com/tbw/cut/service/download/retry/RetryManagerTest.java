@@ -0,0 +1,184 @@
+package com.tbw.cut.service.download.retry;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 重试管理器测试
+ */
+class RetryManagerTest {
+
+    private final RetryManager retryManager = new RetryManager();
+    private final ExecutorService worker = Executors.newSingleThreadExecutor();
+
+    @AfterEach
+    void tearDown() {
+        worker.shutdownNow();
+        retryManager.shutdown();
+    }
+
+    @Test
+    void testPendingRetriesDoNotHoldWorkerThread() {
+        // 20个操作各失败两次，共用一个工作线程；重试等待若占用线程，总耗时至少为 20 * 2 * 200ms
+        List<CompletableFuture<Integer>> results = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int i = 0; i < 20; i++) {
+            int value = i;
+            AtomicInteger attempts = new AtomicInteger();
+            results.add(retryManager.retryAsync(() -> CompletableFuture.supplyAsync(() -> {
+                if (attempts.incrementAndGet() <= 2) {
+                    throw new IllegalStateException("temporary failure");
+                }
+                return value;
+            }, worker), "op-" + i, null, fixedDelay(5, 200)));
+        }
+
+        for (int i = 0; i < results.size(); i++) {
+            assertEquals(i, results.get(i).join().intValue());
+        }
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 2000);
+    }
+
+    @Test
+    void testExhaustedRetriesFailWithLastException() {
+        AtomicInteger attempts = new AtomicInteger();
+        CompletableFuture<Object> result = retryManager.retryAsync(() -> CompletableFuture.supplyAsync(() -> {
+            attempts.incrementAndGet();
+            throw new IllegalStateException("boom");
+        }, worker), "failing", null, fixedDelay(2, 10));
+
+        CompletionException error = assertThrows(CompletionException.class, result::join);
+        assertTrue(error.getCause() instanceof RetryManager.RetryExhaustedException);
+        assertEquals("boom", error.getCause().getCause().getMessage());
+        assertEquals(3, attempts.get());
+    }
+
+    @Test
+    void testRetryBudgetIsSharedPerHostAndOperation() {
+        ReflectionTestUtils.setField(retryManager, "budgetMaxTokens", 3.0);
+        ReflectionTestUtils.setField(retryManager, "budgetTokenRatio", 0.5);
+
+        AtomicInteger attempts = new AtomicInteger();
+        for (int i = 0; i < 5; i++) {
+            CompletableFuture<Object> result = retryManager.retryAsync(() -> CompletableFuture.supplyAsync(() -> {
+                attempts.incrementAndGet();
+                throw new IllegalStateException("host down");
+            }, worker), "download", "https://cdn-a.example.com/video/" + i, fixedDelay(4, 1));
+            assertThrows(CompletionException.class, result::join);
+        }
+        // 5次首次尝试，同一主机共3次重试额度
+        assertEquals(8, attempts.get());
+
+        // 其他主机和其他操作不受影响
+        assertTrue(retryManager.tryAcquireRetry("https://cdn-b.example.com/video/0", "download"));
+        assertTrue(retryManager.tryAcquireRetry("https://cdn-a.example.com/video/0", "get-duration"));
+        assertFalse(retryManager.tryAcquireRetry("https://cdn-a.example.com/video/1", "download"));
+
+        // 成功请求补充额度
+        retryManager.recordSuccess("https://cdn-a.example.com/video/1", "download");
+        retryManager.recordSuccess("https://cdn-a.example.com/video/1", "download");
+        assertTrue(retryManager.tryAcquireRetry("https://cdn-a.example.com/video/1", "download"));
+    }
+
+    @Test
+    void testOnlyFullIdleBudgetsExpire() {
+        ReflectionTestUtils.setField(retryManager, "budgetMaxTokens", 2.0);
+        ReflectionTestUtils.setField(retryManager, "budgetIdleExpiryMs", 0L);
+
+        retryManager.recordSuccess("https://cdn-a.example.com/video/0", "download");
+        assertTrue(retryManager.tryAcquireRetry("https://cdn-b.example.com/video/0", "download"));
+        assertEquals(2, retryManager.budgetCount());
+
+        // 额度已满的预算被移除，仍在消耗中的预算保留
+        assertEquals(1, retryManager.expireIdleBudgets());
+        assertEquals(1, retryManager.budgetCount());
+        assertTrue(retryManager.tryAcquireRetry("https://cdn-b.example.com/video/0", "download"));
+        assertFalse(retryManager.tryAcquireRetry("https://cdn-b.example.com/video/0", "download"));
+
+        ReflectionTestUtils.setField(retryManager, "budgetIdleExpiryMs", 60_000L);
+        retryManager.recordSuccess("https://cdn-a.example.com/video/0", "download");
+        assertEquals(0, retryManager.expireIdleBudgets());
+        assertEquals(2, retryManager.budgetCount());
+    }
+
+    @Test
+    void testCancelStopsPendingRetry() throws Exception {
+        AtomicInteger attempts = new AtomicInteger();
+        CompletableFuture<Object> result = retryManager.retryAsync(() -> CompletableFuture.supplyAsync(() -> {
+            attempts.incrementAndGet();
+            throw new IllegalStateException("unavailable");
+        }, worker), "cancelled", null, fixedDelay(5, 300));
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (attempts.get() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertTrue(result.cancel(true));
+        Thread.sleep(600);
+
+        assertEquals(1, attempts.get());
+        assertThrows(CancellationException.class, result::join);
+    }
+
+    @Test
+    void testJitterStaysWithinRange() {
+        for (int i = 0; i < 1000; i++) {
+            long delay = retryManager.jitter(1000);
+            assertTrue(delay >= 500 && delay <= 1000, "delay " + delay);
+        }
+        assertEquals(0, retryManager.jitter(0));
+    }
+
+    @Test
+    void testExecuteWithRetryUsesExceptionStrategy() {
+        AtomicInteger attempts = new AtomicInteger();
+        ReflectionTestUtils.setField(retryManager, "jitterRatio", 0.0);
+        retryManager.initializeStrategies();
+
+        CompletableFuture<String> result = retryManager.executeWithRetry(() -> {
+            if (attempts.incrementAndGet() == 1) {
+                throw new IllegalArgumentException("bad request");
+            }
+            return "ok";
+        }, "default-strategy");
+
+        assertEquals("ok", result.join());
+        assertEquals(2, attempts.get());
+    }
+
+    @Test
+    void testExecuteWithRetryRunsOffTheCommonPool() {
+        CompletableFuture<String> result = retryManager.executeWithRetry(
+            () -> Thread.currentThread().getName(), "operation-thread");
+
+        assertTrue(result.join().startsWith("retry-operation-"), result.join());
+    }
+
+    private static RetryManager.RetryStrategy fixedDelay(int maxRetries, long delayMs) {
+        return new RetryManager.RetryStrategy() {
+            @Override
+            public boolean shouldRetry(int attempt, Exception exception) {
+                return attempt < maxRetries;
+            }
+
+            @Override
+            public long getDelayMs(int attempt) {
+                return delayMs;
+            }
+        };
+    }
+}
@@ -0,0 +1,53 @@
+package com.tbw.cut.service.download.segmented;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 连接数AIMD控制器测试
+ */
+class ConnectionControllerTest {
+
+    private OptimalThreadCalculator.ConnectionController newController(int initialConnections) {
+        return new OptimalThreadCalculator.ConnectionController(initialConnections, 1, 16, 0.05, 0.5, 1000);
+    }
+
+    @Test
+    void testAddsConnectionsWhileThroughputImproves() {
+        OptimalThreadCalculator.ConnectionController controller = newController(4);
+
+        assertEquals(5, controller.onSample(4_000_000, 1000));
+        assertEquals(6, controller.onSample(5_000_000, 1000));
+        assertEquals(7, controller.onSample(6_000_000, 1000));
+
+        // 增加连接没有带来收益时回退一个连接
+        assertEquals(6, controller.onSample(6_050_000, 1000));
+        assertEquals(6, controller.getLearnedConnections());
+    }
+
+    @Test
+    void testBacksOffMultiplicativelyOnErrors() {
+        OptimalThreadCalculator.ConnectionController controller = newController(8);
+        controller.onSample(8_000_000, 1000);
+
+        controller.recordError();
+        assertEquals(4, controller.onSample(9_000_000, 1000));
+
+        // 停滞同样触发乘性减少
+        assertEquals(2, controller.onSample(0, 1000));
+        assertEquals(2, controller.getLearnedConnections());
+    }
+
+    @Test
+    void testHoldsAfterBackoffBeforeProbingAgain() {
+        OptimalThreadCalculator.ConnectionController controller = newController(4);
+        controller.recordError();
+        assertEquals(2, controller.onSample(1_000_000, 1000));
+
+        assertEquals(2, controller.onSample(1_000_000, 1000));
+        assertEquals(2, controller.onSample(1_000_000, 1000));
+        assertEquals(2, controller.onSample(1_000_000, 1000));
+        assertEquals(3, controller.onSample(1_000_000, 1000));
+    }
+}
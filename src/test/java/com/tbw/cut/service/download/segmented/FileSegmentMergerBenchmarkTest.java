@@ -0,0 +1,193 @@
+package com.tbw.cut.service.download.segmented;
+
+import com.tbw.cut.service.download.logging.DownloadTimeLogger;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 文件分段合并器测试
+ * 基准测试默认跳过，使用 -Dmerge.benchmark=true 启用，-Dmerge.benchmark.sizes-gb=1,2,4,8 指定输入大小
+ */
+class FileSegmentMergerBenchmarkTest {
+
+    private static final Logger log = LoggerFactory.getLogger(FileSegmentMergerBenchmarkTest.class);
+
+    private static final int SEGMENT_COUNT = 8;
+    private static final int LEGACY_BUFFER_SIZE = 65536;
+
+    @Mock
+    private DownloadTimeLogger downloadTimeLogger;
+
+    @InjectMocks
+    private FileSegmentMerger fileSegmentMerger;
+
+    @TempDir
+    Path tempDir;
+
+    @BeforeEach
+    void setUp() {
+        MockitoAnnotations.openMocks(this);
+
+        ReflectionTestUtils.setField(fileSegmentMerger, "bufferSize", LEGACY_BUFFER_SIZE);
+        ReflectionTestUtils.setField(fileSegmentMerger, "transferChunkSize", 64L * 1024 * 1024);
+        ReflectionTestUtils.setField(fileSegmentMerger, "verifyChecksum", true);
+        ReflectionTestUtils.setField(fileSegmentMerger, "tempCleanupDelayMs", 0L);
+    }
+
+    @AfterEach
+    void tearDown() {
+        fileSegmentMerger.shutdown();
+    }
+
+    @Test
+    void testMergePreservesContentAndCombinesChecksums() throws Exception {
+        List<String> segmentFiles = createSegments(tempDir.resolve("small"), 3L * 1024 * 1024 + 17);
+        Path outputFile = tempDir.resolve("small.mp4");
+
+        // 合并成功后分段文件会被清理，先准备对照数据
+        Path legacyOutput = tempDir.resolve("small-legacy.mp4");
+        legacyMerge(segmentFiles, legacyOutput);
+
+        List<String> segmentChecksums = new ArrayList<>();
+        for (String segmentFile : segmentFiles) {
+            segmentChecksums.add(FileSegmentMerger.bytesToHex(
+                MessageDigest.getInstance("MD5").digest(Files.readAllBytes(new File(segmentFile).toPath()))));
+        }
+
+        FileSegmentMerger.MergeResult result = fileSegmentMerger.mergeSegments(
+            segmentFiles, outputFile.toString(), 3L * 1024 * 1024 + 17, null).get(30, TimeUnit.SECONDS);
+
+        assertTrue(result.isSuccess(), result.getErrorMessage());
+        assertEquals(3L * 1024 * 1024 + 17, Files.size(outputFile));
+
+        // 合并结果应与逐段顺序拼接一致
+        assertArrayEquals(Files.readAllBytes(legacyOutput), Files.readAllBytes(outputFile));
+
+        // 回读分段计算的校验值应与下载时分段摘要的组合一致
+        assertEquals(FileSegmentMerger.combineChecksums(segmentChecksums), result.getChecksum());
+        assertTrue(result.getChecksum().endsWith("-" + SEGMENT_COUNT));
+    }
+
+    @Test
+    @EnabledIfSystemProperty(named = "merge.benchmark", matches = "true")
+    void benchmarkLegacyCopyLoopVersusTransferTo() throws Exception {
+        String[] sizes = System.getProperty("merge.benchmark.sizes-gb", "1,2,4,8").split(",");
+
+        for (String sizeGb : sizes) {
+            long totalSize = Long.parseLong(sizeGb.trim()) * 1024 * 1024 * 1024;
+            Path caseDir = tempDir.resolve("bench-" + sizeGb.trim());
+            List<String> segmentFiles = createSegments(caseDir, totalSize);
+
+            Path legacyOutput = caseDir.resolve("legacy.mp4");
+            long legacyStart = System.nanoTime();
+            legacyMerge(segmentFiles, legacyOutput);
+            long legacyMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - legacyStart);
+            Files.delete(legacyOutput);
+
+            // 分段摘要在下载时已计算，这里传入占位摘要以只测量合并本身
+            List<String> segmentChecksums = new ArrayList<>();
+            for (int i = 0; i < segmentFiles.size(); i++) {
+                segmentChecksums.add("00000000000000000000000000000000");
+            }
+
+            Path output = caseDir.resolve("transfer.mp4");
+            long start = System.nanoTime();
+            FileSegmentMerger.MergeResult result = fileSegmentMerger.mergeSegments(
+                segmentFiles, segmentChecksums, output.toString(), totalSize, null).get(30, TimeUnit.MINUTES);
+            long transferMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+            assertTrue(result.isSuccess(), result.getErrorMessage());
+            assertEquals(totalSize, Files.size(output));
+            Files.delete(output);
+            for (String segmentFile : segmentFiles) {
+                Files.deleteIfExists(new File(segmentFile).toPath());
+            }
+
+            log.info("Merge benchmark {} GB: legacy copy loop + MD5 {} ms ({} MB/s), transferTo {} ms ({} MB/s)",
+                sizeGb.trim(), legacyMs, throughputMbps(totalSize, legacyMs),
+                transferMs, throughputMbps(totalSize, transferMs));
+        }
+    }
+
+    /**
+     * 原有的合并实现：缓冲流逐块拷贝并在同一循环中计算MD5
+     */
+    private void legacyMerge(List<String> segmentFiles, Path outputFile) throws Exception {
+        MessageDigest md5Digest = MessageDigest.getInstance("MD5");
+
+        try (FileOutputStream outputStream = new FileOutputStream(outputFile.toFile());
+             BufferedOutputStream bufferedOutput = new BufferedOutputStream(outputStream, LEGACY_BUFFER_SIZE)) {
+            for (String segmentFile : segmentFiles) {
+                try (FileInputStream inputStream = new FileInputStream(segmentFile);
+                     BufferedInputStream bufferedInput = new BufferedInputStream(inputStream, LEGACY_BUFFER_SIZE)) {
+                    byte[] buffer = new byte[LEGACY_BUFFER_SIZE];
+                    int bytesRead;
+                    while ((bytesRead = bufferedInput.read(buffer)) != -1) {
+                        bufferedOutput.write(buffer, 0, bytesRead);
+                        md5Digest.update(buffer, 0, bytesRead);
+                    }
+                }
+            }
+            bufferedOutput.flush();
+            outputStream.getFD().sync();
+        }
+    }
+
+    private List<String> createSegments(Path dir, long totalSize) throws IOException {
+        Files.createDirectories(dir);
+
+        byte[] pattern = new byte[4 * 1024 * 1024];
+        new Random(42).nextBytes(pattern);
+
+        List<String> segmentFiles = new ArrayList<>();
+        long segmentSize = totalSize / SEGMENT_COUNT;
+
+        for (int i = 0; i < SEGMENT_COUNT; i++) {
+            long size = (i == SEGMENT_COUNT - 1) ? totalSize - segmentSize * i : segmentSize;
+            Path segmentFile = dir.resolve("segment_" + i + ".tmp");
+
+            try (FileChannel channel = FileChannel.open(segmentFile,
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                long written = 0;
+                while (written < size) {
+                    int length = (int) Math.min(pattern.length, size - written);
+                    // 修改首字节，避免各段内容完全相同
+                    ByteBuffer buffer = ByteBuffer.wrap(pattern, 0, length);
+                    buffer.put(0, (byte) i);
+                    while (buffer.hasRemaining()) {
+                        written += channel.write(buffer);
+                    }
+                }
+            }
+            segmentFiles.add(segmentFile.toString());
+        }
+        return segmentFiles;
+    }
+
+    private long throughputMbps(long bytes, long millis) {
+        return millis > 0 ? bytes * 1000 / millis / (1024 * 1024) : 0;
+    }
+}
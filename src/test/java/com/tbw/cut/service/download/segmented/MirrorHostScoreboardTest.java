@@ -0,0 +1,83 @@
+package com.tbw.cut.service.download.segmented;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * CDN镜像主机评分测试
+ */
+class MirrorHostScoreboardTest {
+
+    private static final String FAST = "https://fast.example.com/v.m4s?x=1";
+    private static final String SLOW = "https://slow.example.com/v.m4s?x=1";
+    private static final String NEW = "https://new.example.com/v.m4s?x=1";
+
+    @Test
+    void testConnectionsAreSpreadInProportionToScore() {
+        MirrorHostScoreboard scoreboard = new MirrorHostScoreboard();
+        scoreboard.recordThroughput(FAST, 3_000_000);
+        scoreboard.recordThroughput(SLOW, 1_000_000);
+
+        List<String> urls = Arrays.asList(SLOW, FAST);
+        Map<String, AtomicInteger> active = new HashMap<>();
+        for (int i = 0; i < 8; i++) {
+            String url = scoreboard.selectUrl(urls, active, null);
+            active.computeIfAbsent(MirrorHostScoreboard.hostOf(url), host -> new AtomicInteger()).incrementAndGet();
+        }
+
+        assertEquals(6, active.get("fast.example.com").get());
+        assertEquals(2, active.get("slow.example.com").get());
+    }
+
+    @Test
+    void testUnknownHostIsProbedAndAvoidedHostSkipped() {
+        MirrorHostScoreboard scoreboard = new MirrorHostScoreboard();
+        scoreboard.recordThroughput(FAST, 3_000_000);
+
+        Map<String, AtomicInteger> active = new HashMap<>();
+        active.put("fast.example.com", new AtomicInteger(1));
+
+        // 没有记录的主机按已知最好的吞吐量估计，获得探测机会
+        assertEquals(NEW, scoreboard.selectUrl(Arrays.asList(FAST, NEW), active, null));
+        assertEquals(-1.0, scoreboard.getScore("new.example.com"));
+
+        // 需要避开的主机不被选择，只剩它时仍返回主URL
+        assertEquals(NEW, scoreboard.selectUrl(Arrays.asList(FAST, NEW), new HashMap<>(), "fast.example.com"));
+        assertEquals(FAST, scoreboard.selectUrl(Arrays.asList(FAST), new HashMap<>(), "fast.example.com"));
+    }
+
+    @Test
+    void testErrorsPenalizeHostAndDecay() throws Exception {
+        MirrorHostScoreboard scoreboard = new MirrorHostScoreboard();
+        ReflectionTestUtils.setField(scoreboard, "scoreHalfLifeMs", 200L);
+        scoreboard.recordThroughput(FAST, 3_000_000);
+        scoreboard.recordThroughput(SLOW, 1_000_000);
+
+        scoreboard.recordError(FAST);
+        scoreboard.recordError(FAST);
+        scoreboard.recordError(FAST);
+        assertTrue(scoreboard.getScore("fast.example.com") < scoreboard.getScore("slow.example.com"));
+        assertEquals(SLOW, scoreboard.selectUrl(Arrays.asList(FAST, SLOW), new HashMap<>(), null));
+
+        // 错误分随时间衰减后主机恢复
+        Thread.sleep(1500);
+        assertTrue(scoreboard.getScore("fast.example.com") > 2_000_000);
+    }
+
+    @Test
+    void testDistinctHostsKeepsOneUrlPerHost() {
+        List<String> urls = MirrorHostScoreboard.distinctHosts(FAST,
+            Arrays.asList("https://fast.example.com/other", SLOW, "", null));
+
+        assertEquals(Arrays.asList(FAST, SLOW), urls);
+        assertEquals(1, MirrorHostScoreboard.distinctHosts(FAST, null).size());
+    }
+}
@@ -0,0 +1,98 @@
+package com.tbw.cut.service.download.segmented;
+
+import com.sun.net.httpserver.HttpServer;
+import com.tbw.cut.service.download.buffer.DirectBufferPool;
+import com.tbw.cut.service.download.model.DownloadResult;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 流式分块下载测试
+ */
+class SegmentDownloadExecutorStreamingTest {
+
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final int CHUNK_COUNT = 4;
+
+    private HttpServer server;
+    private final DirectBufferPool bufferPool = new DirectBufferPool();
+    private final SegmentDownloadExecutor executor = new SegmentDownloadExecutor();
+
+    @BeforeEach
+    void setUp() throws Exception {
+        byte[] content = new byte[CHUNK_SIZE * CHUNK_COUNT];
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/video.m4s", exchange -> {
+            exchange.getResponseHeaders().add("Accept-Ranges", "bytes");
+            String range = exchange.getRequestHeaders().getFirst("Range");
+            if (range == null) {
+                exchange.getResponseHeaders().add("Content-Length", String.valueOf(content.length));
+                exchange.sendResponseHeaders(200, -1);
+                exchange.close();
+                return;
+            }
+            String[] bounds = range.substring("bytes=".length()).split("-");
+            int from = Integer.parseInt(bounds[0]);
+            int to = Integer.parseInt(bounds[1]);
+            exchange.sendResponseHeaders(206, to - from + 1);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(content, from, to - from + 1);
+            }
+        });
+        server.start();
+
+        ReflectionTestUtils.setField(executor, "bufferPool", bufferPool);
+        ReflectionTestUtils.setField(executor, "maxRetries", 3);
+        ReflectionTestUtils.setField(executor, "streamChunkSize", CHUNK_SIZE);
+        ReflectionTestUtils.setField(executor, "streamReadAhead", CHUNK_COUNT);
+    }
+
+    @AfterEach
+    void tearDown() {
+        server.stop(0);
+    }
+
+    @Test
+    void testPrefetchedChunksAreReturnedWhenSinkFails() throws Exception {
+        String url = "http://127.0.0.1:" + server.getAddress().getPort() + "/video.m4s";
+
+        // 写出第一个分块时等预读的分块下载完成后再失败
+        DownloadResult result = executor.executeStreamingDownload(url, Collections.emptyList(), "video", () ->
+            new OutputStream() {
+                @Override
+                public void write(int b) throws IOException {
+                    throw new IOException("pipe closed");
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    try {
+                        Thread.sleep(300);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    throw new IOException("pipe closed");
+                }
+            }, null).get(10, TimeUnit.SECONDS);
+
+        assertFalse(result.isSuccess());
+        // 预读窗口中已下载的分块全部归还到池中
+        long deadline = System.currentTimeMillis() + 5000;
+        while (bufferPool.getPooledBytes() < bufferPool.getAllocations() * CHUNK_SIZE
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertEquals(CHUNK_COUNT, bufferPool.getAllocations());
+        assertEquals(bufferPool.getAllocations() * CHUNK_SIZE, bufferPool.getPooledBytes());
+    }
+}
@@ -0,0 +1,104 @@
+package com.tbw.cut.service.download.segmented;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 分段下载清单测试
+ */
+class SegmentManifestTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void testCheckpointPersistsCommittedBytesAndChecksums() throws Exception {
+        Path manifestPath = tempDir.resolve("video.mp4.manifest");
+        AtomicInteger syncCount = new AtomicInteger();
+
+        try (SegmentManifest manifest = SegmentManifest.create(manifestPath, "/upgcxcode/1/2/3-1-30080.m4s", 300,
+                new long[]{0, 100, 200}, new long[]{99, 199, 299}, 3)) {
+            manifest.recordProgress(0, 40);
+            manifest.completeSegment(1, "0123456789abcdef0123456789abcdef");
+
+            // 检查点之前进度只在内存中
+            assertEquals(0, manifest.getCommittedBytes(0));
+
+            manifest.checkpoint(syncCount::incrementAndGet);
+            assertEquals(1, syncCount.get());
+        }
+
+        try (SegmentManifest reopened = SegmentManifest.open(manifestPath)) {
+            assertNotNull(reopened);
+            assertTrue(reopened.matches("/upgcxcode/1/2/3-1-30080.m4s", 300));
+            assertFalse(reopened.matches("/upgcxcode/1/2/3-1-30080.m4s", 301));
+            assertEquals(3, reopened.getSegmentCount());
+            assertEquals(40, reopened.getCommittedBytes(0));
+            assertEquals(100, reopened.getCommittedBytes(1));
+            assertEquals(0, reopened.getCommittedBytes(2));
+            assertEquals("0123456789abcdef0123456789abcdef", reopened.getChecksum(1));
+            assertNull(reopened.getChecksum(0));
+            assertEquals(140, reopened.getTotalCommittedBytes());
+        }
+    }
+
+    @Test
+    void testSplitSegmentIsPersistedAtCheckpoint() throws Exception {
+        Path manifestPath = tempDir.resolve("split.mp4.manifest");
+
+        try (SegmentManifest manifest = SegmentManifest.create(manifestPath, "/video.m4s", 200,
+                new long[]{0, 100}, new long[]{99, 199}, 4)) {
+            manifest.recordProgress(0, 30);
+
+            int newIndex = manifest.splitSegment(0, 60);
+            assertEquals(2, newIndex);
+            assertEquals(59, manifest.getSegmentEnd(0));
+            assertEquals(60, manifest.getSegmentStart(2));
+            assertEquals(99, manifest.getSegmentEnd(2));
+
+            // 拆分点不能落在分段范围之外
+            assertEquals(-1, manifest.splitSegment(1, 250));
+
+            manifest.recordProgress(2, 10);
+            manifest.checkpoint(null);
+        }
+
+        try (SegmentManifest reopened = SegmentManifest.open(manifestPath)) {
+            assertNotNull(reopened);
+            assertEquals(3, reopened.getSegmentCount());
+            assertEquals(59, reopened.getSegmentEnd(0));
+            assertEquals(30, reopened.getCommittedBytes(0));
+            assertEquals(60, reopened.getSegmentStart(2));
+            assertEquals(10, reopened.getCommittedBytes(2));
+
+            // 槽位用尽后不再拆分
+            assertEquals(3, reopened.splitSegment(1, 150));
+            assertEquals(-1, reopened.splitSegment(1, 120));
+        }
+    }
+
+    @Test
+    void testIdentityIgnoresHostAndQuery() {
+        String first = SegmentManifest.identityOf(
+            "https://cn-gdfs-ct-01-01.bilivideo.com/upgcxcode/80/12/123/123-1-30080.m4s?deadline=1&upsig=a");
+        String refreshed = SegmentManifest.identityOf(
+            "https://upos-sz-mirrorcos.bilivideo.com/upgcxcode/80/12/123/123-1-30080.m4s?deadline=2&upsig=b");
+
+        assertEquals(first, refreshed);
+    }
+
+    @Test
+    void testCorruptManifestIsIgnored() throws Exception {
+        Path manifestPath = tempDir.resolve("broken.manifest");
+        Files.write(manifestPath, new byte[]{1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16, 17, 18, 19, 20, 21, 22, 23, 24, 25, 26, 27});
+
+        assertNull(SegmentManifest.open(manifestPath));
+        assertNull(SegmentManifest.open(tempDir.resolve("missing.manifest")));
+    }
+}
@@ -0,0 +1,166 @@
+package com.tbw.cut.service.download.store;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 下载存储测试
+ */
+class DownloadStoreTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void testRepeatDownloadIsLinkedFromStore() throws Exception {
+        DownloadStore store = createStore(1024 * 1024);
+        String key = DownloadStore.keyOf("BV1xx", 100L, "80", "avc");
+        AtomicInteger downloads = new AtomicInteger();
+
+        Path first = tempDir.resolve("task1/P1.mp4");
+        store.fetch(key, first.toString(), () -> write(first, "video-bytes", downloads));
+
+        Path second = tempDir.resolve("task2/P1.mp4");
+        String result = store.fetch(key, second.toString(), () -> write(second, "other", downloads));
+
+        assertEquals(second.toString(), result);
+        assertEquals(1, downloads.get());
+        assertEquals("video-bytes", new String(Files.readAllBytes(second)));
+        // 存储对象与两个任务文件是同一份数据
+        assertTrue(Files.isSameFile(first, second));
+
+        // 索引重新加载后仍然命中
+        DownloadStore reloaded = createStore(1024 * 1024);
+        assertTrue(reloaded.contains(key));
+    }
+
+    @Test
+    void testInFlightDuplicateAttachesToRunningDownload() throws Exception {
+        DownloadStore store = createStore(1024 * 1024);
+        String key = DownloadStore.keyOf("BV1xx", 200L, "80", "avc");
+        AtomicInteger downloads = new AtomicInteger();
+        CompletableFuture<String> running = new CompletableFuture<>();
+
+        Path first = tempDir.resolve("task1/P1.mp4");
+        CompletableFuture<String> firstResult = store.fetchAsync(key, first.toString(), () -> {
+            downloads.incrementAndGet();
+            return running;
+        });
+
+        Path second = tempDir.resolve("task2/P1.mp4");
+        CompletableFuture<String> secondResult = store.fetchAsync(key, second.toString(),
+            () -> CompletableFuture.completedFuture(write(second, "duplicate", downloads)));
+        assertFalse(secondResult.isDone());
+
+        running.complete(write(first, "shared", new AtomicInteger()));
+
+        assertEquals(first.toString(), firstResult.get());
+        assertEquals(second.toString(), secondResult.get());
+        assertEquals(1, downloads.get());
+        assertEquals("shared", new String(Files.readAllBytes(second)));
+    }
+
+    @Test
+    void testLeastRecentlyUsedEntryIsEvictedOverQuota() throws Exception {
+        DownloadStore store = createStore(25);
+        String a = DownloadStore.keyOf("BV1aa", 1L, "80", null);
+        String b = DownloadStore.keyOf("BV1bb", 2L, "80", null);
+        String c = DownloadStore.keyOf("BV1cc", 3L, "80", null);
+        AtomicInteger downloads = new AtomicInteger();
+
+        store.fetch(a, tempDir.resolve("a.mp4").toString(), () -> write(tempDir.resolve("a.mp4"), "aaaaaaaaaa", downloads));
+        store.fetch(b, tempDir.resolve("b.mp4").toString(), () -> write(tempDir.resolve("b.mp4"), "bbbbbbbbbb", downloads));
+        store.awaitIngest();
+
+        // 访问a后b成为最久未使用的条目
+        store.fetch(a, tempDir.resolve("a2.mp4").toString(), () -> write(tempDir.resolve("a2.mp4"), "x", downloads));
+        store.fetch(c, tempDir.resolve("c.mp4").toString(), () -> write(tempDir.resolve("c.mp4"), "cccccccccc", downloads));
+        store.awaitIngest();
+
+        assertTrue(store.contains(a));
+        assertFalse(store.contains(b));
+        assertTrue(store.contains(c));
+        assertEquals(20, store.getStoredBytes());
+
+        // 被淘汰的只是存储中的副本，任务目录中的文件不受影响
+        assertTrue(Files.exists(tempDir.resolve("b.mp4")));
+    }
+
+    @Test
+    void testRewrittenTaskFileIsNotServedFromStore() throws Exception {
+        DownloadStore store = createStore(1024 * 1024);
+        String key = DownloadStore.keyOf("BV1xx", 300L, "80", "avc");
+        AtomicInteger downloads = new AtomicInteger();
+
+        Path first = tempDir.resolve("task1/P1.mp4");
+        store.fetch(key, first.toString(), () -> write(first, "video-bytes", downloads));
+        store.awaitIngest();
+
+        // 任务文件被原地改写（如FFmpeg -y 覆盖同名输出），大小不变；
+        // 显式推后修改时间，避免文件系统时间精度较粗时与登记时间相同
+        Files.write(first, "rewritten!!".getBytes());
+        Files.setLastModifiedTime(first, FileTime.fromMillis(System.currentTimeMillis() + 5000));
+
+        Path second = tempDir.resolve("task2/P1.mp4");
+        store.fetch(key, second.toString(), () -> write(second, "fresh-bytes", downloads));
+        assertEquals(2, downloads.get());
+        assertEquals("fresh-bytes", new String(Files.readAllBytes(second)));
+        assertEquals("rewritten!!", new String(Files.readAllBytes(first)));
+    }
+
+    @Test
+    void testTruncatedStoredFileIsDiscarded() throws Exception {
+        DownloadStore store = createStore(1024 * 1024);
+        String key = DownloadStore.keyOf("BV1xx", 400L, "80", "avc");
+        AtomicInteger downloads = new AtomicInteger();
+
+        Path first = tempDir.resolve("task1/P1.mp4");
+        store.fetch(key, first.toString(), () -> write(first, "video-bytes", downloads));
+        store.awaitIngest();
+        try (Stream<Path> files = Files.walk(tempDir.resolve("store/objects"))) {
+            Path blob = files.filter(Files::isRegularFile).findFirst().get();
+            Files.write(blob, "video".getBytes());
+        }
+
+        Path second = tempDir.resolve("task2/P1.mp4");
+        store.fetch(key, second.toString(), () -> write(second, "fresh-bytes", downloads));
+        assertEquals(2, downloads.get());
+        assertEquals("fresh-bytes", new String(Files.readAllBytes(second)));
+    }
+
+    @Test
+    void testPartsWithoutIdentityAreNotDeduplicated() {
+        assertNull(DownloadStore.keyOf(null, 100L, "80", "avc"));
+        assertNull(DownloadStore.keyOf("BV1xx", null, "80", "avc"));
+        assertEquals("BV1xx:100:80:", DownloadStore.keyOf("BV1xx", 100L, "80", null));
+    }
+
+    private DownloadStore createStore(long quotaBytes) {
+        DownloadStore store = new DownloadStore();
+        ReflectionTestUtils.setField(store, "storeDir", tempDir.resolve("store").toString());
+        ReflectionTestUtils.setField(store, "quotaBytes", quotaBytes);
+        store.init();
+        return store;
+    }
+
+    private static String write(Path path, String content, AtomicInteger downloads) {
+        try {
+            downloads.incrementAndGet();
+            Files.createDirectories(path.getParent());
+            Files.write(path, content.getBytes());
+            return path.toString();
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,224 @@
+package com.tbw.cut.service.impl;
+
+import com.alibaba.fastjson.JSONObject;
+import com.tbw.cut.bilibili.service.BilibiliVideoUploadService;
+import com.tbw.cut.bilibili.service.RateLimitHandler;
+import com.tbw.cut.bilibili.service.UploadProgressManager;
+import com.tbw.cut.config.BilibiliSubmissionConfig;
+import com.tbw.cut.entity.TaskOutputSegment;
+import com.tbw.cut.service.SubmissionTaskService;
+import com.tbw.cut.service.download.retry.RetryManager;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.multipart.MultipartFile;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * 分段上传流水线测试
+ */
+class BilibiliSubmissionServiceImplTest {
+
+    @TempDir
+    Path tempDir;
+
+    private final BilibiliSubmissionServiceImpl service = new BilibiliSubmissionServiceImpl();
+    private final FakeUploadService uploadService = new FakeUploadService();
+    private final SubmissionTaskService submissionTaskService = mock(SubmissionTaskService.class);
+    private final RetryManager retryManager = new RetryManager();
+    private final BilibiliSubmissionConfig config = new BilibiliSubmissionConfig();
+
+    @BeforeEach
+    void setUp() {
+        config.setSegmentUploadConcurrency(4);
+        config.setSegmentUploadConcurrencyPerAccount(2);
+        config.setSegmentRetryDelayMs(20);
+        ReflectionTestUtils.setField(service, "videoUploadService", uploadService);
+        ReflectionTestUtils.setField(service, "submissionTaskService", submissionTaskService);
+        ReflectionTestUtils.setField(service, "uploadProgressManager", new UploadProgressManager());
+        ReflectionTestUtils.setField(service, "rateLimitHandler", new RateLimitHandler());
+        ReflectionTestUtils.setField(service, "submissionConfig", config);
+        ReflectionTestUtils.setField(service, "retryManager", retryManager);
+        service.initSegmentUploadLimiter();
+    }
+
+    @AfterEach
+    void tearDown() {
+        retryManager.shutdown();
+    }
+
+    @Test
+    void testSegmentsUploadConcurrentlyWithinAccountLimit() throws Exception {
+        List<TaskOutputSegment> segments = createSegments(6);
+
+        assertTrue(service.uploadSegments("task-1", segments));
+
+        assertEquals(6, uploadService.uploaded.size());
+        assertEquals(2, uploadService.maxConcurrentUploads.get());
+        verify(submissionTaskService, times(6)).updateSegmentUploadStatusAndCid(
+            anyString(), eq(TaskOutputSegment.UploadStatus.SUCCESS), any());
+    }
+
+    @Test
+    void testFailedSegmentIsRetriedWithoutRedoingOthers() throws Exception {
+        List<TaskOutputSegment> segments = createSegments(3);
+        uploadService.failOnce.add(segments.get(1).getSegmentFilePath());
+
+        assertTrue(service.uploadSegments("task-1", segments));
+
+        // 只有失败的分段重新握手
+        assertEquals(4, uploadService.preUploads.get());
+        assertEquals(3, uploadService.uploaded.size());
+    }
+
+    @Test
+    void testUploadedSegmentsAreSkipped() throws Exception {
+        List<TaskOutputSegment> segments = createSegments(3);
+        segments.get(0).setUploadStatus(TaskOutputSegment.UploadStatus.SUCCESS);
+        segments.get(0).setCid(100L);
+
+        assertTrue(service.uploadSegments("task-1", segments));
+
+        assertEquals(2, uploadService.preUploads.get());
+        assertFalse(uploadService.uploaded.contains(segments.get(0).getSegmentFilePath()));
+    }
+
+    @Test
+    void testMissingFileFailsWithoutRetry() throws Exception {
+        List<TaskOutputSegment> segments = createSegments(2);
+        Files.delete(new File(segments.get(0).getSegmentFilePath()).toPath());
+
+        assertFalse(service.uploadSegments("task-1", segments));
+
+        assertEquals(1, uploadService.preUploads.get());
+        verify(submissionTaskService, times(1)).updateSegmentUploadStatusAndCid(
+            eq(segments.get(0).getSegmentId()), eq(TaskOutputSegment.UploadStatus.FAILED), any());
+    }
+
+    private List<TaskOutputSegment> createSegments(int count) throws Exception {
+        List<TaskOutputSegment> segments = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            Path file = tempDir.resolve("part" + i + ".mp4");
+            Files.write(file, new byte[1024]);
+            TaskOutputSegment segment = new TaskOutputSegment();
+            segment.setSegmentId("segment-" + i);
+            segment.setSegmentFilePath(file.toString());
+            segment.setUploadStatus(TaskOutputSegment.UploadStatus.PENDING);
+            segments.add(segment);
+        }
+        return segments;
+    }
+
+    /**
+     * 记录调用情况的上传服务，每个文件上传耗时50ms
+     */
+    private static class FakeUploadService implements BilibiliVideoUploadService {
+        final AtomicInteger preUploads = new AtomicInteger();
+        final AtomicInteger concurrentUploads = new AtomicInteger();
+        final AtomicInteger maxConcurrentUploads = new AtomicInteger();
+        final Set<String> uploaded = ConcurrentHashMap.newKeySet();
+        final Set<String> failOnce = ConcurrentHashMap.newKeySet();
+
+        @Override
+        public JSONObject preUploadVideo(String fileName, long fileSize) {
+            preUploads.incrementAndGet();
+            JSONObject result = new JSONObject();
+            result.put("OK", 1);
+            result.put("biz_id", 1000L + preUploads.get());
+            return result;
+        }
+
+        @Override
+        public JSONObject postVideoMeta(JSONObject preUploadData, long fileSize) {
+            JSONObject result = new JSONObject();
+            result.put("OK", 1);
+            result.put("upload_id", "upload-" + preUploadData.getLong("biz_id"));
+            return result;
+        }
+
+        @Override
+        public int uploadVideo(JSONObject preUploadData, JSONObject postVideoMeta, File videoFile) {
+            int current = concurrentUploads.incrementAndGet();
+            maxConcurrentUploads.accumulateAndGet(current, Math::max);
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                concurrentUploads.decrementAndGet();
+            }
+            if (failOnce.remove(videoFile.getPath())) {
+                throw new IllegalStateException("connection reset");
+            }
+            uploaded.add(videoFile.getPath());
+            return 1;
+        }
+
+        @Override
+        public JSONObject endUpload(JSONObject preUploadData, JSONObject postVideoMeta, int chunks) {
+            JSONObject result = new JSONObject();
+            result.put("OK", 1);
+            return result;
+        }
+
+        @Override
+        public JSONObject listUploadedParts(JSONObject preUploadData, JSONObject postVideoMeta) {
+            JSONObject result = new JSONObject();
+            result.put("OK", 1);
+            return result;
+        }
+        
+        @Override
+        public String uploadCover(MultipartFile coverImage) {
+            return null;
+        }
+
+        @Override
+        public JSONObject submitVideo(JSONObject submitData) {
+            return null;
+        }
+
+        @Override
+        public JSONObject associateWithSeason(Long seasonId, Long sectionId, String title, Long aid) {
+            return null;
+        }
+
+        @Override
+        public JSONObject addEpisodesToSection(Long sectionId, List<JSONObject> episodes) {
+            return null;
+        }
+
+        @Override
+        public JSONObject getSeasonInfo(Long seasonId) {
+            return null;
+        }
+
+        @Override
+        public Long getAidFromBvid(String bvid) {
+            return null;
+        }
+
+        @Override
+        public JSONObject editVideo(Long aid, JSONObject editData) {
+            return null;
+        }
+
+        @Override
+        public JSONObject getVideoInfo(Long aid) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package com.tbw.cut.service.impl;
+
+import com.tbw.cut.entity.SubmissionTask;
+import com.tbw.cut.entity.TaskSourceVideo;
+import com.tbw.cut.mapper.MergedVideoMapper;
+import com.tbw.cut.mapper.SubmissionTaskMapper;
+import com.tbw.cut.mapper.TaskOutputSegmentMapper;
+import com.tbw.cut.mapper.TaskSourceVideoMapper;
+import com.tbw.cut.mapper.VideoClipMapper;
+import com.tbw.cut.utils.FFmpegJobPool;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.when;
+
+/**
+ * 视频剪辑基准测试
+ * 用FFmpeg生成20个源视频，对比逐个剪辑和通过FFmpeg任务池并行剪辑的耗时。
+ * 默认跳过，使用 -Dclip.benchmark=true 启用，-Dclip.benchmark.ffmpeg 指定FFmpeg路径，
+ * -Dclip.benchmark.concurrency 指定并行剪辑时每个磁盘设备的任务数（默认4）
+ */
+@EnabledIfSystemProperty(named = "clip.benchmark", matches = "true")
+class VideoProcessServiceImplBenchmarkTest {
+
+    private static final Logger log = LoggerFactory.getLogger(VideoProcessServiceImplBenchmarkTest.class);
+
+    private static final String TASK_ID = "clip-benchmark";
+    private static final int SOURCE_VIDEOS = 20;
+    private static final int SOURCE_SECONDS = 60;
+
+    @Mock
+    private SubmissionTaskMapper submissionTaskMapper;
+
+    @Mock
+    private TaskSourceVideoMapper taskSourceVideoMapper;
+
+    @Mock
+    private TaskOutputSegmentMapper taskOutputSegmentMapper;
+
+    @Mock
+    private VideoClipMapper videoClipMapper;
+
+    @Mock
+    private MergedVideoMapper mergedVideoMapper;
+
+    @InjectMocks
+    private VideoProcessServiceImpl videoProcessService;
+
+    @TempDir
+    Path tempDir;
+
+    private final String ffmpeg = System.getProperty("clip.benchmark.ffmpeg", "ffmpeg");
+
+    @BeforeEach
+    void setUp() throws Exception {
+        MockitoAnnotations.openMocks(this);
+        ReflectionTestUtils.setField(videoProcessService, "ffmpegPath", ffmpeg);
+        // 基准测试比较的是生成剪辑文件的耗时
+        ReflectionTestUtils.setField(videoProcessService, "fusedClipMergeEnabled", false);
+
+        List<TaskSourceVideo> sourceVideos = new ArrayList<>();
+        for (int i = 0; i < SOURCE_VIDEOS; i++) {
+            File source = tempDir.resolve("source_" + i + ".mp4").toFile();
+            generateSource(source);
+            TaskSourceVideo sourceVideo = new TaskSourceVideo();
+            sourceVideo.setTaskId(TASK_ID);
+            sourceVideo.setSourceFilePath(source.getAbsolutePath());
+            sourceVideo.setSortOrder(i + 1);
+            sourceVideo.setStartTime("00:00:05");
+            sourceVideo.setEndTime("00:00:50");
+            sourceVideos.add(sourceVideo);
+        }
+        SubmissionTask task = new SubmissionTask();
+        task.setTaskId(TASK_ID);
+        when(submissionTaskMapper.selectById(TASK_ID)).thenReturn(task);
+        when(taskSourceVideoMapper.findByTaskIdOrderBySortOrder(TASK_ID)).thenReturn(sourceVideos);
+    }
+
+    @Test
+    void benchmarkClipVideos() {
+        int concurrency = Integer.getInteger("clip.benchmark.concurrency", 4);
+
+        long serialMs = runClipVideos(1);
+        long pooledMs = runClipVideos(concurrency);
+
+        log.info("Clipped {} videos: serial {} ms, pooled ({} per device) {} ms, speedup {}x",
+            SOURCE_VIDEOS, serialMs, concurrency, pooledMs, String.format("%.2f", (double) serialMs / pooledMs));
+    }
+
+    private long runClipVideos(int copyConcurrency) {
+        FFmpegJobPool pool = new FFmpegJobPool();
+        ReflectionTestUtils.setField(pool, "copyConcurrencyPerDevice", copyConcurrency);
+        ReflectionTestUtils.setField(videoProcessService, "ffmpegJobPool", pool);
+        try {
+            long start = System.nanoTime();
+            List<String> clipPaths = videoProcessService.clipVideos(TASK_ID);
+            long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+            // 结果按源视频顺序排列
+            assertEquals(SOURCE_VIDEOS, clipPaths.size());
+            for (int i = 0; i < SOURCE_VIDEOS; i++) {
+                File clip = new File(clipPaths.get(i));
+                assertEquals("clip_" + (i + 1) + "_source_" + i + ".mp4", clip.getName());
+                assertTrue(clip.length() > 0);
+            }
+            return elapsedMs;
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private void generateSource(File output) throws Exception {
+        Process process = new ProcessBuilder(ffmpeg, "-v", "error", "-f", "lavfi",
+                "-i", "testsrc2=size=1280x720:rate=30:duration=" + SOURCE_SECONDS,
+                "-c:v", "libx264", "-preset", "ultrafast", "-g", "60", "-y", output.getAbsolutePath())
+            .redirectErrorStream(true)
+            .redirectOutput(ProcessBuilder.Redirect.appendTo(tempDir.resolve("ffmpeg.log").toFile()))
+            .start();
+        assertTrue(process.waitFor(5, TimeUnit.MINUTES), "ffmpeg timed out generating " + output);
+        assertEquals(0, process.exitValue(), "ffmpeg failed generating " + output);
+    }
+}
@@ -0,0 +1,267 @@
+package com.tbw.cut.service.impl;
+
+import com.tbw.cut.entity.SubmissionTask;
+import com.tbw.cut.entity.TaskSourceVideo;
+import com.tbw.cut.entity.VideoClip;
+import com.tbw.cut.mapper.MergedVideoMapper;
+import com.tbw.cut.mapper.SubmissionTaskMapper;
+import com.tbw.cut.mapper.TaskSourceVideoMapper;
+import com.tbw.cut.mapper.VideoClipMapper;
+import com.tbw.cut.utils.FFmpegJobPool;
+import com.tbw.cut.utils.FFmpegSmartRenderer;
+import com.tbw.cut.utils.KeyframeIndexService;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.ArgumentCaptor;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * 剪辑合并一次完成测试
+ * 用脚本模拟FFmpeg：记录每次调用的参数，并把 -i 指定的输入内容复制到输出文件
+ */
+class VideoProcessServiceImplTest {
+
+    private static final String TASK_ID = "fused-task";
+
+    @TempDir
+    Path tempDir;
+
+    private final VideoProcessServiceImpl service = new VideoProcessServiceImpl();
+    private final SubmissionTaskMapper submissionTaskMapper = mock(SubmissionTaskMapper.class);
+    private final TaskSourceVideoMapper taskSourceVideoMapper = mock(TaskSourceVideoMapper.class);
+    private final VideoClipMapper videoClipMapper = mock(VideoClipMapper.class);
+    private final MergedVideoMapper mergedVideoMapper = mock(MergedVideoMapper.class);
+    private final FFmpegJobPool ffmpegJobPool = new FFmpegJobPool();
+
+    private final List<TaskSourceVideo> sourceVideos = new ArrayList<>();
+    private Path invocationLog;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        ReflectionTestUtils.setField(service, "submissionTaskMapper", submissionTaskMapper);
+        ReflectionTestUtils.setField(service, "taskSourceVideoMapper", taskSourceVideoMapper);
+        ReflectionTestUtils.setField(service, "videoClipMapper", videoClipMapper);
+        ReflectionTestUtils.setField(service, "mergedVideoMapper", mergedVideoMapper);
+        ReflectionTestUtils.setField(service, "ffmpegJobPool", ffmpegJobPool);
+
+        for (int i = 0; i < 2; i++) {
+            Path source = Files.write(tempDir.resolve("source_" + i + ".mp4"),
+                ("source-" + i).getBytes(StandardCharsets.UTF_8));
+            TaskSourceVideo sourceVideo = new TaskSourceVideo();
+            sourceVideo.setTaskId(TASK_ID);
+            sourceVideo.setSourceFilePath(source.toString());
+            sourceVideo.setSortOrder(i + 1);
+            sourceVideo.setStartTime("00:00:05");
+            sourceVideo.setEndTime("00:01:10");
+            sourceVideos.add(sourceVideo);
+        }
+        SubmissionTask task = new SubmissionTask();
+        task.setTaskId(TASK_ID);
+        when(submissionTaskMapper.selectById(TASK_ID)).thenReturn(task);
+        when(taskSourceVideoMapper.findByTaskIdOrderBySortOrder(TASK_ID)).thenReturn(sourceVideos);
+    }
+
+    @AfterEach
+    void tearDown() {
+        ffmpegJobPool.shutdown();
+    }
+
+    @Test
+    void testClipStepDefersCuttingToMerge() throws Exception {
+        useFakeFfmpeg(false);
+
+        List<String> clipPaths = service.clipVideos(TASK_ID);
+
+        // 剪辑步骤仍返回存在的非空文件，但不启动FFmpeg
+        assertEquals(Arrays.asList(sourceVideos.get(0).getSourceFilePath(), sourceVideos.get(1).getSourceFilePath()),
+            clipPaths);
+        assertEquals(Collections.emptyList(), invocations());
+        ArgumentCaptor<VideoClip> inserted = ArgumentCaptor.forClass(VideoClip.class);
+        verify(videoClipMapper, times(2)).insert(inserted.capture());
+        for (VideoClip clip : inserted.getAllValues()) {
+            assertEquals(VideoProcessServiceImpl.CLIP_STATUS_DEFERRED, clip.getStatus().intValue());
+            assertEquals("00:00:05", clip.getStartTime());
+        }
+    }
+
+    @Test
+    void testMergeCutsAndConcatenatesInOneFfmpegRun() throws Exception {
+        useFakeFfmpeg(false);
+        when(videoClipMapper.findByTaskIdOrderBySequence(TASK_ID)).thenReturn(deferredClips());
+
+        String mergedPath = service.mergeVideos(TASK_ID);
+
+        assertNotNull(mergedPath);
+        assertEquals("merged_video.mp4", new File(mergedPath).getName());
+        assertEquals(1, invocations().size());
+        assertTrue(invocations().get(0).contains("-f concat -safe 0"));
+        // 模拟的FFmpeg把concat脚本复制到了输出文件
+        String script = new String(Files.readAllBytes(new File(mergedPath).toPath()), StandardCharsets.UTF_8);
+        assertTrue(script.contains("file '" + sourceVideos.get(1).getSourceFilePath() + "'\ninpoint 5\noutpoint 70\n"));
+        assertFalse(new File(new File(mergedPath).getParent(), "fused_concat.txt").exists());
+        verify(mergedVideoMapper, times(1)).insert(any());
+    }
+
+    @Test
+    void testFailedFusedMergeFallsBackToClipFiles() throws Exception {
+        useFakeFfmpeg(true);
+        when(videoClipMapper.findByTaskIdOrderBySequence(TASK_ID)).thenReturn(deferredClips());
+
+        String mergedPath = service.mergeVideos(TASK_ID);
+
+        assertNotNull(mergedPath);
+        // 一次失败的剪辑合并，两次剪辑，一次合并剪辑文件
+        assertEquals(4, invocations().size());
+        ArgumentCaptor<VideoClip> updated = ArgumentCaptor.forClass(VideoClip.class);
+        verify(videoClipMapper, times(2)).updateById(updated.capture());
+        for (VideoClip clip : updated.getAllValues()) {
+            assertEquals(VideoProcessServiceImpl.CLIP_STATUS_CLIPPED, clip.getStatus().intValue());
+            assertTrue(new File(clip.getClipPath()).getName().startsWith("clip_"));
+        }
+    }
+
+    @Test
+    void testKeyframeIndexesAreBuiltOnJobPoolBeforePlanning() throws Exception {
+        useFakeFfmpeg(false);
+        Path probeLog = tempDir.resolve("ffprobe.log");
+        ReflectionTestUtils.setField(service, "keyframeIndexService", keyframeIndexService(probeLog));
+
+        // 生成concat脚本只读取已有索引，没有索引时按原始起点写入，不启动ffprobe
+        assertTrue(service.buildFusedConcatScript(deferredClips()).contains("inpoint 5\n"));
+        assertFalse(probeLog.toFile().exists());
+
+        // 剪辑步骤先在任务池中为每个源视频生成索引，再按索引判断能否推迟剪辑
+        service.clipVideos(TASK_ID);
+        assertEquals(2, Files.readAllLines(probeLog).size());
+        assertEquals(Collections.emptyList(), invocations());
+
+        // 入点对齐到之前的关键帧
+        String script = service.buildFusedConcatScript(deferredClips());
+        assertTrue(script.contains("file '" + sourceVideos.get(0).getSourceFilePath() + "'\ninpoint 4.000\noutpoint 70\n"));
+        assertEquals(2, Files.readAllLines(probeLog).size());
+    }
+
+    @Test
+    void testSmartRenderClipsAreSubmittedAsEncodeJobs() throws Exception {
+        useFakeFfmpeg(false);
+        FFmpegJobPool pool = spy(ffmpegJobPool);
+        FFmpegSmartRenderer smartRenderer = mock(FFmpegSmartRenderer.class);
+        when(smartRenderer.supports(any())).thenReturn(true);
+        ReflectionTestUtils.setField(service, "ffmpegJobPool", pool);
+        ReflectionTestUtils.setField(service, "smartRenderer", smartRenderer);
+        ReflectionTestUtils.setField(service, "keyframeIndexService", keyframeIndexService(tempDir.resolve("ffprobe.log")));
+
+        // 起点5秒不在关键帧上：索引扫描走PROBE队列，剪辑需要重新编码，提交为ENCODE任务
+        assertEquals(2, service.clipVideos(TASK_ID).size());
+        verify(pool, times(2)).submit(eq(FFmpegJobPool.JobType.PROBE), anyString(), any());
+        verify(pool, times(2)).submit(eq(FFmpegJobPool.JobType.ENCODE), anyString(), any());
+        verify(pool, never()).submit(eq(FFmpegJobPool.JobType.COPY), anyString(), any());
+        verify(smartRenderer, times(2)).render(anyString(), any(), any(), any());
+    }
+
+    @Test
+    void testConcatScriptUsesSourceTimestampsForNonZeroStartTime() throws Exception {
+        KeyframeIndexService keyframeIndexService = keyframeIndexService(tempDir.resolve("ffprobe.log"), 1.4);
+        ReflectionTestUtils.setField(service, "keyframeIndexService", keyframeIndexService);
+        assertNotNull(keyframeIndexService.getIndex(sourceVideos.get(0).getSourceFilePath()));
+
+        // 索引时间相对起始时间，concat的inpoint/outpoint是文件自身的时间戳
+        String script = service.buildFusedConcatScript(deferredClips());
+        assertTrue(script.contains("file '" + sourceVideos.get(0).getSourceFilePath() + "'\ninpoint 5.400\noutpoint 71.400\n"));
+        assertTrue(script.contains("file '" + sourceVideos.get(1).getSourceFilePath() + "'\ninpoint 5\noutpoint 70\n"));
+    }
+
+    @Test
+    void testConcatScriptQuotesPathsAndOnlyTrimsDeferredClips() {
+        VideoClip deferred = clip("/videos/it's.mp4", VideoProcessServiceImpl.CLIP_STATUS_DEFERRED);
+        deferred.setStartTime("01:00:00");
+        deferred.setEndTime(null);
+        VideoClip clipped = clip("/videos/clip_2.mp4", VideoProcessServiceImpl.CLIP_STATUS_CLIPPED);
+
+        assertEquals("ffconcat version 1.0\n"
+                + "file '/videos/it'\\''s.mp4'\ninpoint 3600\n"
+                + "file '/videos/clip_2.mp4'\n",
+            service.buildFusedConcatScript(Arrays.asList(deferred, clipped)));
+    }
+
+    private List<VideoClip> deferredClips() {
+        List<VideoClip> clips = new ArrayList<>();
+        for (TaskSourceVideo sourceVideo : sourceVideos) {
+            VideoClip clip = clip(sourceVideo.getSourceFilePath(), VideoProcessServiceImpl.CLIP_STATUS_DEFERRED);
+            clip.setSequence(sourceVideo.getSortOrder());
+            clips.add(clip);
+        }
+        return clips;
+    }
+
+    private static VideoClip clip(String path, int status) {
+        VideoClip clip = new VideoClip();
+        clip.setTaskId(TASK_ID);
+        clip.setClipPath(path);
+        clip.setStartTime("00:00:05");
+        clip.setEndTime("00:01:10");
+        clip.setStatus(status);
+        return clip;
+    }
+
+    /**
+     * 用脚本模拟ffprobe：从startTime开始每2秒一个关键帧，时长12秒，每次扫描记录一行
+     */
+    private KeyframeIndexService keyframeIndexService(Path probeLog) throws IOException {
+        return keyframeIndexService(probeLog, 0);
+    }
+
+    private KeyframeIndexService keyframeIndexService(Path probeLog, double startTime) throws IOException {
+        Path script = tempDir.resolve("ffprobe");
+        StringBuilder content = new StringBuilder("#!/bin/sh\n")
+            .append("echo scan >> '").append(probeLog).append("'\n");
+        for (int second = 0; second < 12; second += 2) {
+            content.append("echo 'pts_time=").append(startTime + second).append("|pos=").append(second * 1000)
+                .append("|flags=K__'\n");
+        }
+        content.append("echo 'start_time=").append(startTime).append("|duration=12.000000'\n");
+        Files.write(script, content.toString().getBytes(StandardCharsets.UTF_8));
+        assertTrue(script.toFile().setExecutable(true));
+
+        KeyframeIndexService keyframeIndexService = new KeyframeIndexService();
+        ReflectionTestUtils.setField(keyframeIndexService, "ffprobePath", script.toString());
+        ReflectionTestUtils.setField(keyframeIndexService, "indexDir", tempDir.resolve("index").toString());
+        return keyframeIndexService;
+    }
+
+    private List<String> invocations() throws IOException {
+        return invocationLog.toFile().exists() ? Files.readAllLines(invocationLog) : Collections.emptyList();
+    }
+
+    private void useFakeFfmpeg(boolean failFusedMerge) throws IOException {
+        invocationLog = tempDir.resolve("ffmpeg.log");
+        Path script = tempDir.resolve("ffmpeg");
+        String content = "#!/bin/sh\n"
+            + "echo \"$*\" >> '" + invocationLog + "'\n"
+            + "input=''; prev=''\n"
+            + "for arg; do\n"
+            + "  if [ \"$prev\" = '-i' ]; then input=\"$arg\"; fi\n"
+            + "  prev=\"$arg\"\n"
+            + "done\n"
+            + (failFusedMerge ? "case \"$input\" in *fused_concat.txt) exit 1;; esac\n" : "")
+            + "cat \"$input\" > \"$prev\"\n";
+        Files.write(script, content.getBytes(StandardCharsets.UTF_8));
+        assertTrue(script.toFile().setExecutable(true));
+        ReflectionTestUtils.setField(service, "ffmpegPath", script.toString());
+    }
+}
@@ -0,0 +1,110 @@
+package com.tbw.cut.utils;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * FFmpeg任务池测试
+ */
+class FFmpegJobPoolTest {
+
+    @TempDir
+    Path tempDir;
+
+    private final FFmpegJobPool pool = new FFmpegJobPool();
+
+    @AfterEach
+    void tearDown() {
+        pool.shutdown();
+    }
+
+    @Test
+    void testCopyJobsOnSameDeviceShareConcurrencyLimit() throws Exception {
+        ReflectionTestUtils.setField(pool, "copyConcurrencyPerDevice", 3);
+        assertEquals(3, maxConcurrency(FFmpegJobPool.JobType.COPY, 12));
+    }
+
+    @Test
+    void testEncodeJobsUseEncodeConcurrency() throws Exception {
+        ReflectionTestUtils.setField(pool, "encodeConcurrency", 2);
+        assertEquals(2, pool.getEncodeConcurrency());
+        assertEquals(2, maxConcurrency(FFmpegJobPool.JobType.ENCODE, 8));
+    }
+
+    @Test
+    void testProbeJobsDoNotOccupyCopySlots() throws Exception {
+        ReflectionTestUtils.setField(pool, "copyConcurrencyPerDevice", 1);
+        Path input = Files.write(tempDir.resolve("probe.mp4"), new byte[16]);
+        CountDownLatch release = new CountDownLatch(1);
+        CompletableFuture<Object> probe = pool.submit(FFmpegJobPool.JobType.PROBE, input.toString(), () -> {
+            release.await();
+            return null;
+        });
+        CompletableFuture<String> copy = pool.submit(FFmpegJobPool.JobType.COPY, input.toString(), () -> "copied");
+        assertEquals("copied", copy.get(5, TimeUnit.SECONDS));
+        assertFalse(probe.isDone());
+        release.countDown();
+        probe.get(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    void testResultsKeepSubmissionOrderAndPropagateFailures() throws Exception {
+        Path input = Files.write(tempDir.resolve("input.mp4"), new byte[16]);
+        List<CompletableFuture<Integer>> results = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            int value = i;
+            results.add(pool.submit(FFmpegJobPool.JobType.COPY, input.toString(), () -> {
+                Thread.sleep(10 - value);
+                return value;
+            }));
+        }
+        for (int i = 0; i < results.size(); i++) {
+            assertEquals(i, results.get(i).join().intValue());
+        }
+
+        CompletableFuture<Object> failed = pool.submit(FFmpegJobPool.JobType.COPY, input.toString(), () -> {
+            throw new IOException("ffmpeg exited with 1");
+        });
+        CompletionException error = assertThrows(CompletionException.class, failed::join);
+        assertEquals("ffmpeg exited with 1", error.getCause().getMessage());
+    }
+
+    @Test
+    void testDeviceOfMissingFileUsesExistingParent() {
+        String device = pool.deviceOf(tempDir.toString());
+        assertEquals(device, pool.deviceOf(tempDir.resolve("missing/clip.mp4").toString()));
+        assertNotNull(pool.deviceOf(null));
+    }
+
+    private int maxConcurrency(FFmpegJobPool.JobType type, int jobs) throws Exception {
+        Path input = Files.write(tempDir.resolve(type + ".mp4"), new byte[16]);
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger max = new AtomicInteger();
+        List<CompletableFuture<Void>> results = new ArrayList<>();
+        for (int i = 0; i < jobs; i++) {
+            results.add(pool.submit(type, input.toString(), () -> {
+                max.accumulateAndGet(running.incrementAndGet(), Math::max);
+                Thread.sleep(30);
+                running.decrementAndGet();
+                return null;
+            }));
+        }
+        CompletableFuture.allOf(results.toArray(new CompletableFuture[0])).join();
+        return max.get();
+    }
+}
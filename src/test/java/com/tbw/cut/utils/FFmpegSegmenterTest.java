@@ -0,0 +1,95 @@
+package com.tbw.cut.utils;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 视频分段器测试
+ * 用脚本模拟FFmpeg：按输出模板生成分段文件，并在每个分段关闭后把文件名写入分段列表
+ */
+class FFmpegSegmenterTest {
+
+    @TempDir
+    Path tempDir;
+
+    private final FFmpegSegmenter segmenter = new FFmpegSegmenter();
+
+    @Test
+    void testSegmentsAreReportedInOrderFromSegmentList() throws Exception {
+        useFakeFfmpeg(0);
+        File outputDir = Files.createDirectories(tempDir.resolve("output")).toFile();
+        // 上次运行残留的文件不在分段列表中，不会被返回
+        Files.write(outputDir.toPath().resolve("task_part_009.mp4"), new byte[1]);
+
+        List<String> reported = new ArrayList<>();
+        List<String> segments = segmenter.segment(input().toString(), 400, outputDir, "task_",
+            (index, path) -> reported.add(index + ":" + new File(path).getName()));
+
+        assertEquals(Arrays.asList("1:task_part_001.mp4", "2:task_part_002.mp4", "3:task_part_003.mp4"), reported);
+        assertEquals(3, segments.size());
+        assertEquals(new File(outputDir, "task_part_001.mp4").getAbsolutePath(), segments.get(0));
+    }
+
+    @Test
+    void testPercentInOutputPathIsEscaped() throws Exception {
+        useFakeFfmpeg(0);
+        File outputDir = Files.createDirectories(tempDir.resolve("100%d_output")).toFile();
+
+        List<String> segments = segmenter.segment(input().toString(), 400, outputDir, "50%_",
+            (index, path) -> { });
+
+        assertEquals(3, segments.size());
+        assertEquals(new File(outputDir, "50%_part_001.mp4").getAbsolutePath(), segments.get(0));
+        assertTrue(new File(segments.get(2)).isFile());
+    }
+
+    @Test
+    void testFailedFfmpegRaisesError() throws Exception {
+        useFakeFfmpeg(1);
+        File outputDir = Files.createDirectories(tempDir.resolve("output")).toFile();
+
+        assertThrows(IOException.class, () ->
+            segmenter.segment(input().toString(), 400, outputDir, "", (index, path) -> { }));
+    }
+
+    @Test
+    void testTargetSizeIsConvertedToDuration() {
+        assertEquals(133.0, segmenter.targetSeconds(1000L * 1024 * 1024, 1000), 0.001);
+
+        // 1000MB / 1000秒 = 1MB/s，目标100MB对应100秒
+        ReflectionTestUtils.setField(segmenter, "targetSizeMb", 100L);
+        assertEquals(100.0, segmenter.targetSeconds(1000L * 1024 * 1024, 1000), 0.001);
+    }
+
+    private Path input() throws IOException {
+        return Files.write(tempDir.resolve("merged.mp4"), new byte[1024]);
+    }
+
+    private void useFakeFfmpeg(int exitCode) throws IOException {
+        Path script = tempDir.resolve("ffmpeg");
+        String content = "#!/bin/sh\n"
+            + "for last; do :; done\n"
+            + "echo 'fake ffmpeg' >&2\n"
+            + "for i in 1 2 3; do\n"
+            + "  file=$(printf \"$last\" $i)\n"
+            + "  echo data > \"$file\"\n"
+            + "  basename \"$file\"\n"
+            + "done\n"
+            + "exit " + exitCode + "\n";
+        Files.write(script, content.getBytes(StandardCharsets.UTF_8));
+        assertTrue(script.toFile().setExecutable(true));
+        ReflectionTestUtils.setField(segmenter, "ffmpegPath", script.toString());
+    }
+}
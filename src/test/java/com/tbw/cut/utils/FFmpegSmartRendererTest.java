@@ -0,0 +1,212 @@
+package com.tbw.cut.utils;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 智能渲染剪辑测试
+ * 用脚本模拟FFmpeg：记录每次调用的参数，并向输出文件写入数据；模拟的ffprobe输出指定的时长。
+ * 使用真实FFmpeg的音画同步测试默认跳过，使用 -Dsmartrender.ffmpeg=true 启用，
+ * -Dsmartrender.ffmpeg.path / ffprobe.path 指定FFmpeg和ffprobe路径
+ */
+class FFmpegSmartRendererTest {
+
+    private static final KeyframeIndex.StreamInfo H264 = new KeyframeIndex.StreamInfo(
+        "h264", "High", "yuv420p", 1280, 720, "30/1", "1/15360");
+
+    @TempDir
+    Path tempDir;
+
+    private final FFmpegSmartRenderer renderer = new FFmpegSmartRenderer();
+    private Path invocationLog;
+    private File output;
+
+    @BeforeEach
+    void setUp() {
+        invocationLog = tempDir.resolve("ffmpeg.log");
+        output = tempDir.resolve("clip.mp4").toFile();
+    }
+
+    @Test
+    void testOnlyLeadingPartialGopIsReencoded() throws Exception {
+        useFakeFfmpeg(0);
+        useFakeFfprobe(4.0);
+        KeyframeIndex index = index(H264);
+
+        renderer.render("/videos/source.mp4", index, index.planClip(5.0, 9.0, 0.5), output);
+
+        List<String> commands = invocations();
+        assertEquals(3, commands.size());
+        // 5秒到6秒处的关键帧之前按原视频参数重新编码，不含关键帧本身
+        assertTrue(commands.get(0).contains("-ss 5.000000 -i /videos/source.mp4 -t 0.999000 -map 0:v:0"));
+        assertTrue(commands.get(0).contains("-c:v libx264 -profile:v high -pix_fmt yuv420p -r 30/1 -crf 18"));
+        // 6秒到9秒流复制，定位点略晚于关键帧，不会落到4秒处的前一个关键帧
+        assertTrue(commands.get(1).contains("-ss 6.001000 -i /videos/source.mp4 -t 3.000000 -map 0:v:0 -an -sn -dn -c copy"));
+        // 拼接视频，音频从起点精确截取并重新编码
+        assertTrue(commands.get(2).contains("-f concat -safe 0 -i " + output + ".parts.txt -ss 5.000000"));
+        assertTrue(commands.get(2).contains(
+            "-map 0:v:0 -map 1:a:0? -c:v copy -c:a aac -b:a 192k -video_track_timescale 15360"));
+        assertFalse(commands.get(2).contains("-avoid_negative_ts"));
+        assertTrue(output.length() > 0);
+        assertFalse(new File(output + ".head.ts").exists());
+        assertFalse(new File(output + ".parts.txt").exists());
+    }
+
+    @Test
+    void testClipInsideOneGopIsReencodedEntirely() throws Exception {
+        useFakeFfmpeg(0);
+        useFakeFfprobe(1.0);
+        KeyframeIndex index = index(H264);
+
+        renderer.render("/videos/source.mp4", index, index.planClip(4.5, 5.5, 0.1), output);
+
+        List<String> commands = invocations();
+        assertEquals(2, commands.size());
+        assertTrue(commands.get(0).contains("-ss 4.500000 -i /videos/source.mp4 -t 1.000000"));
+        assertTrue(commands.get(1).contains("-f concat"));
+    }
+
+    @Test
+    void testFailedEncodeRaisesErrorAndCleansUp() throws Exception {
+        useFakeFfmpeg(1);
+        KeyframeIndex index = index(H264);
+
+        assertThrows(IOException.class, () ->
+            renderer.render("/videos/source.mp4", index, index.planClip(5.0, 9.0, 0.5), output));
+        assertEquals(1, invocations().size());
+        assertFalse(new File(output + ".head.ts").exists());
+    }
+
+    @Test
+    void testOutputWithWrongDurationIsRejected() throws Exception {
+        useFakeFfmpeg(0);
+        // 多复制了一个GOP
+        useFakeFfprobe(6.0);
+        KeyframeIndex index = index(H264);
+
+        IOException error = assertThrows(IOException.class, () ->
+            renderer.render("/videos/source.mp4", index, index.planClip(5.0, 9.0, 0.5), output));
+        assertTrue(error.getMessage().contains("6.000000s instead of 4.000000s"));
+        assertFalse(output.exists());
+        assertFalse(new File(output + ".tail.ts").exists());
+    }
+
+    @Test
+    void testSupportedCodecsAndProfiles() {
+        assertTrue(renderer.supports(index(H264)));
+        assertFalse(renderer.supports(index(new KeyframeIndex.StreamInfo("vp9", null, "yuv420p", 1280, 720, "30/1", "1/1000"))));
+        assertFalse(renderer.supports(index(null)));
+        ReflectionTestUtils.setField(renderer, "enabled", false);
+        assertFalse(renderer.supports(index(H264)));
+
+        assertEquals("baseline", FFmpegSmartRenderer.profileFor("libx264", "Constrained Baseline"));
+        assertEquals("high10", FFmpegSmartRenderer.profileFor("libx264", "High 10"));
+        assertEquals("main10", FFmpegSmartRenderer.profileFor("libx265", "Main 10"));
+        assertNull(FFmpegSmartRenderer.profileFor("libx264", "Extended"));
+    }
+
+    @Test
+    @EnabledIfSystemProperty(named = "smartrender.ffmpeg", matches = "true")
+    void testRenderedClipKeepsAudioInSync() throws Exception {
+        String ffmpeg = System.getProperty("smartrender.ffmpeg.path", "ffmpeg");
+        String ffprobe = System.getProperty("smartrender.ffprobe.path", "ffprobe");
+        File source = tempDir.resolve("source.mp4").toFile();
+        // 20秒音视频，每2秒一个关键帧
+        exec(ffmpeg, "-v", "error", "-f", "lavfi", "-i", "testsrc2=size=640x360:rate=30:duration=20",
+            "-f", "lavfi", "-i", "sine=frequency=1000:sample_rate=48000:duration=20",
+            "-c:v", "libx264", "-preset", "ultrafast", "-g", "60", "-c:a", "aac", "-shortest", "-y", source.getPath());
+
+        KeyframeIndexService indexService = new KeyframeIndexService();
+        ReflectionTestUtils.setField(indexService, "ffprobePath", ffprobe);
+        ReflectionTestUtils.setField(indexService, "indexDir", tempDir.resolve("index").toString());
+        KeyframeIndex index = indexService.getIndex(source.getPath());
+        assertNotNull(index);
+        KeyframeIndex.ClipPlan plan = index.planClip(5.5, 15.0, 0.1);
+        assertFalse(plan.isCopy());
+
+        ReflectionTestUtils.setField(renderer, "ffmpegPath", ffmpeg);
+        ReflectionTestUtils.setField(renderer, "ffprobePath", ffprobe);
+        ReflectionTestUtils.setField(renderer, "preset", "ultrafast");
+        renderer.render(source.getPath(), index, plan, output);
+
+        // 视频和音频的第一个PTS相差不超过一帧，时长与剪辑区间一致
+        double videoStart = Double.parseDouble(exec(ffprobe, "-v", "error", "-select_streams", "v:0",
+            "-show_entries", "stream=start_time", "-of", "csv=p=0", output.getPath()));
+        double audioStart = Double.parseDouble(exec(ffprobe, "-v", "error", "-select_streams", "a:0",
+            "-show_entries", "stream=start_time", "-of", "csv=p=0", output.getPath()));
+        double duration = Double.parseDouble(exec(ffprobe, "-v", "error",
+            "-show_entries", "format=duration", "-of", "csv=p=0", output.getPath()));
+        assertEquals(videoStart, audioStart, 1.0 / 30);
+        assertEquals(9.5, duration, 0.1);
+    }
+
+    private String exec(String... command) throws Exception {
+        Process process = new ProcessBuilder(command)
+            .redirectError(ProcessBuilder.Redirect.appendTo(tempDir.resolve("ffmpeg-stderr.log").toFile()))
+            .start();
+        String stdout = new String(readAll(process), StandardCharsets.UTF_8).trim();
+        assertTrue(process.waitFor(5, TimeUnit.MINUTES), "timed out: " + String.join(" ", command));
+        assertEquals(0, process.exitValue(), "failed: " + String.join(" ", command));
+        return stdout;
+    }
+
+    private static byte[] readAll(Process process) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = process.getInputStream().read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * 12秒视频，每2秒一个关键帧
+     */
+    private static KeyframeIndex index(KeyframeIndex.StreamInfo streamInfo) {
+        double[] times = {0, 2, 4, 6, 8, 10};
+        long[] positions = {0, 2000, 4000, 6000, 8000, 10000};
+        return new KeyframeIndex("/videos/source.mp4", 12000, 0, 0, 12.0, 360, times, positions, streamInfo);
+    }
+
+    private List<String> invocations() throws IOException {
+        return Files.exists(invocationLog) ? Files.readAllLines(invocationLog) : Collections.emptyList();
+    }
+
+    private void useFakeFfmpeg(int exitCode) throws IOException {
+        Path script = tempDir.resolve("ffmpeg");
+        String content = "#!/bin/sh\n"
+            + "echo \"$*\" >> '" + invocationLog + "'\n"
+            + "for last; do :; done\n"
+            + "echo data > \"$last\"\n"
+            + "exit " + exitCode + "\n";
+        Files.write(script, content.getBytes(StandardCharsets.UTF_8));
+        assertTrue(script.toFile().setExecutable(true));
+        ReflectionTestUtils.setField(renderer, "ffmpegPath", script.toString());
+    }
+
+    private void useFakeFfprobe(double duration) throws IOException {
+        Path script = tempDir.resolve("ffprobe");
+        String content = "#!/bin/sh\n"
+            + "echo " + String.format(Locale.ROOT, "%.6f", duration) + "\n";
+        Files.write(script, content.getBytes(StandardCharsets.UTF_8));
+        assertTrue(script.toFile().setExecutable(true));
+        ReflectionTestUtils.setField(renderer, "ffprobePath", script.toString());
+    }
+}
@@ -0,0 +1,157 @@
+package com.tbw.cut.utils;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 关键帧索引测试
+ * 用脚本模拟ffprobe：按解码顺序输出视频包（每2秒一个关键帧，字节位置为时间×1000），并记录调用次数
+ */
+class KeyframeIndexServiceTest {
+
+    @TempDir
+    Path tempDir;
+
+    private Path video;
+    private Path invocationLog;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        video = Files.write(tempDir.resolve("source.mp4"), new byte[10000]);
+        invocationLog = tempDir.resolve("ffprobe.log");
+    }
+
+    @Test
+    void testPlanSnapsStartToPreviousKeyframe() throws Exception {
+        KeyframeIndex index = newService(0).getIndex(video.toString());
+
+        assertEquals(6, index.getKeyframeCount());
+        assertEquals(24, index.getPacketCount());
+        assertEquals(12.0, index.getDuration(), 0.001);
+
+        KeyframeIndex.ClipPlan plan = index.planClip(5.0, 9.0, 0.5);
+        assertEquals(4.0, plan.getCopyStart(), 0.001);
+        assertEquals(6.0, plan.getNextKeyframe(), 0.001);
+        assertEquals(1.0, plan.getLeadIn(), 0.001);
+        assertEquals(5.0, plan.getCopyDuration(), 0.001);
+        assertFalse(plan.isCopy());
+        // 从4秒处的关键帧读到9秒之后的第一个关键帧（10秒）
+        assertEquals(4000, plan.getByteStart());
+        assertEquals(10000, plan.getByteEnd());
+        assertEquals(6000, plan.getEstimatedBytes());
+
+        KeyframeIndex.ClipPlan onKeyframe = index.planClip(6.0, 0, 0.5);
+        assertTrue(onKeyframe.isCopy());
+        assertEquals(6.0, onKeyframe.getNextKeyframe(), 0.001);
+        assertEquals(12.0, onKeyframe.getRequestedEnd(), 0.001);
+        assertTrue(index.isKeyframe(6.04, 0.05));
+        assertFalse(index.isKeyframe(6.5, 0.05));
+    }
+
+    @Test
+    void testIndexIsScannedOnceAndPersisted() throws Exception {
+        KeyframeIndexService service = newService(0);
+        KeyframeIndex first = service.getIndex(video.toString());
+        assertSame(first, service.getIndex(video.toString()));
+        assertEquals(1, invocations());
+
+        // 重启后从索引文件读取，不再启动ffprobe
+        KeyframeIndexService restarted = newService(1);
+        assertNull(restarted.findIndex(tempDir.resolve("other.mp4").toString()));
+        KeyframeIndex loaded = restarted.findIndex(video.toString());
+        assertNotNull(loaded);
+        assertEquals(first.getKeyframeCount(), loaded.getKeyframeCount());
+        assertEquals(4000, loaded.byteOffsetAt(5.0));
+        assertEquals("h264", loaded.getStreamInfo().getCodecName());
+        assertEquals("High", loaded.getStreamInfo().getProfile());
+        assertEquals(720, loaded.getStreamInfo().getHeight());
+        assertEquals("1/15360", loaded.getStreamInfo().getTimeBase());
+        assertEquals(1, invocations());
+    }
+
+    @Test
+    void testChangedFileIsRescanned() throws Exception {
+        KeyframeIndexService service = newService(0);
+        assertNotNull(service.getIndex(video.toString()));
+
+        Files.write(video, new byte[10], StandardOpenOption.APPEND);
+
+        assertNull(service.findIndex(video.toString()));
+        assertNotNull(service.getIndex(video.toString()));
+        assertEquals(2, invocations());
+    }
+
+    @Test
+    void testTimesAreRelativeToStartTime() throws Exception {
+        // MPEG-TS等容器的第一个时间戳通常不为0，-ss 按相对start_time的时间定位
+        KeyframeIndex index = newService(0, 1.4).getIndex(video.toString());
+
+        assertEquals(1.4, index.getStartTime(), 0.001);
+        assertEquals(12.0, index.getDuration(), 0.001);
+        assertEquals(0.0, index.keyframeAtOrBefore(1.0), 0.001);
+
+        KeyframeIndex.ClipPlan plan = index.planClip(5.0, 9.0, 0.5);
+        assertEquals(4.0, plan.getCopyStart(), 0.001);
+        assertEquals(6.0, plan.getNextKeyframe(), 0.001);
+        assertEquals(4000, plan.getByteStart());
+
+        // 起始时间随索引文件保存
+        KeyframeIndex loaded = newService(1).findIndex(video.toString());
+        assertEquals(1.4, loaded.getStartTime(), 0.001);
+        assertEquals(6.0, loaded.keyframeAtOrAfter(5.0), 0.001);
+    }
+
+    @Test
+    void testFailedScanReturnsNoIndex() throws Exception {
+        KeyframeIndexService service = newService(1);
+
+        assertNull(service.getIndex(video.toString()));
+        assertNull(service.planClip(video.toString(), 5, 9));
+    }
+
+    private KeyframeIndexService newService(int exitCode) throws IOException {
+        return newService(exitCode, 0);
+    }
+
+    private KeyframeIndexService newService(int exitCode, double startTime) throws IOException {
+        Path script = tempDir.resolve("ffprobe-" + exitCode);
+        StringBuilder content = new StringBuilder("#!/bin/sh\n")
+            .append("echo scan >> '").append(invocationLog).append("'\n")
+            .append("if [ ").append(exitCode).append(" -ne 0 ]; then echo 'Invalid data' >&2; exit ")
+            .append(exitCode).append("; fi\n");
+        // 每个GOP为 I P B B，B帧在解码顺序中位于P帧之后
+        for (int gop = 0; gop < 6; gop++) {
+            double base = gop * 2.0;
+            double pts = startTime + base;
+            content.append("echo 'pts_time=").append(pts).append("|pos=").append((long) (base * 1000))
+                .append("|flags=K__'\n");
+            content.append("echo 'pts_time=").append(pts + 1.5).append("|pos=N/A|flags=___'\n");
+            content.append("echo 'pts_time=").append(pts + 0.5).append("|pos=N/A|flags=___'\n");
+            content.append("echo 'pts_time=").append(pts + 1.0).append("|pos=N/A|flags=___'\n");
+        }
+        content.append("echo 'codec_name=h264|profile=High|pix_fmt=yuv420p|width=1280|height=720"
+            + "|avg_frame_rate=30/1|time_base=1/15360|start_time=").append(startTime).append("'\n");
+        content.append("echo 'start_time=").append(startTime).append("|duration=12.000000'\n");
+        Files.write(script, content.toString().getBytes(StandardCharsets.UTF_8));
+        assertTrue(script.toFile().setExecutable(true));
+
+        KeyframeIndexService service = new KeyframeIndexService();
+        ReflectionTestUtils.setField(service, "ffprobePath", script.toString());
+        ReflectionTestUtils.setField(service, "indexDir", tempDir.resolve("index").toString());
+        return service;
+    }
+
+    private int invocations() throws IOException {
+        return Files.exists(invocationLog) ? Files.readAllLines(invocationLog).size() : 0;
+    }
+}
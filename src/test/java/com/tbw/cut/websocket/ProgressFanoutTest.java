@@ -0,0 +1,267 @@
+package com.tbw.cut.websocket;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 进度推送分发器测试
+ */
+class ProgressFanoutTest {
+
+    @Test
+    void testUpdatesAreCoalescedIntoOneFramePerSession() {
+        ProgressFanout fanout = new ProgressFanout(0, 100, 30_000, Runnable::run);
+        RecordingSink sink = new RecordingSink();
+        fanout.register("s1", sink);
+
+        for (int progress = 1; progress <= 50; progress++) {
+            fanout.publishTask(1L, "progress", progress(1L, progress));
+        }
+        fanout.publishTask(2L, "progress", progress(2L, 10));
+        fanout.publishTask(1L, "status", "{\"type\":\"status\",\"taskId\":1,\"status\":1}");
+        fanout.flush();
+
+        assertEquals(1, sink.frames.size());
+        assertEquals("{\"type\":\"batch\",\"updates\":[" + progress(1L, 50) + "," + progress(2L, 10)
+            + ",{\"type\":\"status\",\"taskId\":1,\"status\":1}]}", sink.frames.get(0));
+
+        // 没有新的更新时不发送
+        fanout.flush();
+        assertEquals(1, sink.frames.size());
+    }
+
+    @Test
+    void testSessionsReceiveOnlySubscribedTopics() {
+        ProgressFanout fanout = new ProgressFanout(0, 100, 30_000, Runnable::run);
+        RecordingSink taskSink = new RecordingSink();
+        RecordingSink workflowSink = new RecordingSink();
+        RecordingSink allSink = new RecordingSink();
+        fanout.register("task", taskSink);
+        fanout.register("workflow", workflowSink);
+        fanout.register("all", allSink);
+        fanout.subscribe("task", Collections.singletonList(1L), Collections.emptyList());
+        fanout.subscribe("workflow", Collections.emptyList(), Collections.singletonList("wf-1"));
+
+        fanout.publishTask(1L, "progress", progress(1L, 10));
+        fanout.publishTask(2L, "progress", progress(2L, 20));
+        fanout.publishWorkflow("wf-1", "workflow", "{\"type\":\"workflow\",\"workflowId\":\"wf-1\"}");
+        fanout.flush();
+
+        assertEquals(Collections.singletonList("{\"type\":\"batch\",\"updates\":[" + progress(1L, 10) + "]}"), taskSink.frames);
+        assertEquals(Collections.singletonList("{\"type\":\"batch\",\"updates\":[{\"type\":\"workflow\",\"workflowId\":\"wf-1\"}]}"),
+            workflowSink.frames);
+        // 未订阅的会话接收全部更新
+        assertTrue(allSink.frames.get(0).contains("\"taskId\":2"));
+
+        fanout.unsubscribe("task", Arrays.asList(1L), Collections.emptyList());
+        fanout.publishTask(1L, "progress", progress(1L, 30));
+        fanout.flush();
+        assertEquals(1, taskSink.frames.size());
+    }
+
+    @Test
+    void testSlowConsumerDoesNotBlockPublishersOrOtherSessions() throws Exception {
+        ExecutorService sendExecutor = Executors.newFixedThreadPool(2);
+        ProgressFanout fanout = new ProgressFanout(0, 100, 30_000, sendExecutor);
+        CountDownLatch release = new CountDownLatch(1);
+        RecordingSink slowSink = new RecordingSink() {
+            @Override
+            public void send(String frame) {
+                super.send(frame);
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        RecordingSink fastSink = new RecordingSink();
+        fanout.register("slow", slowSink);
+        fanout.register("fast", fastSink);
+
+        fanout.publishTask(1L, "progress", progress(1L, 1));
+        fanout.flush();
+        waitForFrames(slowSink, 1);
+
+        // 慢会话发送未完成时发布不阻塞，中间进度被最新值覆盖
+        long start = System.nanoTime();
+        for (int progress = 2; progress <= 1000; progress++) {
+            fanout.publishTask(1L, "progress", progress(1L, progress % 100));
+            if (progress % 100 == 0) {
+                fanout.flush();
+            }
+        }
+        assertTrue(TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start) < 5);
+        waitForFrames(fastSink, 1);
+        assertEquals(1, slowSink.frames.size());
+
+        release.countDown();
+        waitForNextFrame(fanout, slowSink);
+        assertEquals(2, slowSink.frames.size());
+        assertEquals("{\"type\":\"batch\",\"updates\":[" + progress(1L, 0) + "]}", slowSink.frames.get(1));
+        sendExecutor.shutdown();
+    }
+
+    @Test
+    void testStalledSessionIsClosed() throws Exception {
+        ExecutorService sendExecutor = Executors.newSingleThreadExecutor();
+        ProgressFanout fanout = new ProgressFanout(0, 100, 50, sendExecutor);
+        CountDownLatch release = new CountDownLatch(1);
+        RecordingSink stalledSink = new RecordingSink() {
+            @Override
+            public void send(String frame) {
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        fanout.register("stalled", stalledSink);
+
+        fanout.publishTask(1L, "progress", progress(1L, 1));
+        fanout.flush();
+        Thread.sleep(100);
+        fanout.flush();
+
+        assertTrue(stalledSink.closed);
+        assertEquals(0, fanout.sessionCount());
+        release.countDown();
+        sendExecutor.shutdown();
+    }
+
+    @Test
+    void testPendingTopicsAreBounded() {
+        ProgressFanout fanout = new ProgressFanout(0, 2, 30_000, Runnable::run);
+        RecordingSink sink = new RecordingSink();
+        fanout.register("s1", sink);
+
+        fanout.publishTask(1L, "progress", progress(1L, 1));
+        fanout.publishTask(2L, "progress", progress(2L, 1));
+        fanout.publishTask(3L, "progress", progress(3L, 1));
+        // 已有主题的更新仍然覆盖
+        fanout.publishTask(1L, "progress", progress(1L, 2));
+        fanout.flush();
+
+        assertEquals(1, fanout.getDroppedUpdates());
+        assertEquals("{\"type\":\"batch\",\"updates\":[" + progress(1L, 2) + "," + progress(2L, 1) + "]}", sink.frames.get(0));
+    }
+
+    @Test
+    void testStatusTransitionsAreKeptInOrderWhenTopicsAreFull() {
+        ProgressFanout fanout = new ProgressFanout(0, 1, 10, 30_000, Runnable::run);
+        RecordingSink sink = new RecordingSink();
+        fanout.register("s1", sink);
+
+        fanout.publishTask(1L, "progress", progress(1L, 99));
+        fanout.publishTask(2L, "progress", progress(2L, 1));
+        fanout.publishTaskTransition(1L, status(1L, 1));
+        fanout.publishTaskTransition(1L, status(1L, 2));
+        fanout.publishWorkflowTransition("wf-1", "{\"type\":\"workflow\",\"status\":\"COMPLETED\"}");
+        fanout.flush();
+
+        // 进度主题已满时只丢弃新主题的进度，状态变更逐条保留
+        assertEquals(1, fanout.getDroppedUpdates());
+        assertEquals("{\"type\":\"batch\",\"updates\":[" + progress(1L, 99) + "," + status(1L, 1) + ","
+            + status(1L, 2) + ",{\"type\":\"workflow\",\"status\":\"COMPLETED\"}]}", sink.frames.get(0));
+    }
+
+    @Test
+    void testSessionWithTooManyPendingTransitionsIsClosed() {
+        ProgressFanout fanout = new ProgressFanout(0, 100, 2, 30_000, Runnable::run);
+        RecordingSink sink = new RecordingSink();
+        fanout.register("s1", sink);
+
+        for (int i = 0; i < 3; i++) {
+            fanout.publishTaskTransition(1L, status(1L, i));
+        }
+        fanout.flush();
+
+        assertTrue(sink.closed);
+        assertTrue(sink.frames.isEmpty());
+        assertEquals(0, fanout.sessionCount());
+    }
+
+    @Test
+    void testStalledSessionsDoNotDelayOtherSessions() throws Exception {
+        ProgressFanout fanout = new ProgressFanout(0, 100, 30_000, ProgressFanout.newSendExecutor());
+        CountDownLatch release = new CountDownLatch(1);
+        for (int i = 0; i < 8; i++) {
+            fanout.register("stalled-" + i, new RecordingSink() {
+                @Override
+                public void send(String frame) {
+                    try {
+                        release.await(10, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+        }
+        fanout.publishTask(1L, "progress", progress(1L, 1));
+        fanout.flush();
+
+        // 已有8个会话阻塞在发送中，新会话的帧仍然立即发出
+        RecordingSink fastSink = new RecordingSink();
+        fanout.register("fast", fastSink);
+        fanout.publishTask(1L, "progress", progress(1L, 2));
+        fanout.flush();
+        waitForFrames(fastSink, 1);
+        release.countDown();
+    }
+
+    private static String status(Long taskId, int status) {
+        return "{\"type\":\"status\",\"taskId\":" + taskId + ",\"status\":" + status + "}";
+    }
+
+    private static String progress(Long taskId, int progress) {
+        return "{\"type\":\"progress\",\"taskId\":" + taskId + ",\"progress\":" + progress + "}";
+    }
+
+    private static void waitForFrames(RecordingSink sink, int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (sink.frames.size() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(sink.frames.size() >= count);
+    }
+
+    private static void waitForNextFrame(ProgressFanout fanout, RecordingSink sink) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        int frames = sink.frames.size();
+        while (sink.frames.size() == frames && System.currentTimeMillis() < deadline) {
+            fanout.flush();
+            Thread.sleep(10);
+        }
+    }
+
+    private static class RecordingSink implements ProgressFanout.FrameSink {
+        final List<String> frames = new CopyOnWriteArrayList<>();
+        volatile boolean closed;
+
+        @Override
+        public boolean isOpen() {
+            return !closed;
+        }
+
+        @Override
+        public void send(String frame) {
+            frames.add(frame);
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+}